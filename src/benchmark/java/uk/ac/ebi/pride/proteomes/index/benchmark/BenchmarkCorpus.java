@@ -0,0 +1,68 @@
+package uk.ac.ebi.pride.proteomes.index.benchmark;
+
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.data.solr.core.SolrTemplate;
+import org.springframework.data.solr.core.query.SimpleQuery;
+import org.springframework.data.solr.core.query.SimpleStringCriteria;
+import uk.ac.ebi.pride.proteomes.index.model.SolrPeptiform;
+import uk.ac.ebi.pride.proteomes.index.service.SyntheticCorpus;
+import uk.ac.ebi.pride.proteomes.index.service.TestContext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Synthetic PeptiForm corpus (see SyntheticCorpus) for the benchmarks, indexed into the embedded
+ * Solr core of the TestContext. The same settings always give the same documents, so results
+ * of different runs can be compared.
+ *
+ * @author florian@ebi.ac.uk
+ */
+final class BenchmarkCorpus {
+
+    static final int TAXID_HUMAN = 9606;
+    static final int TAXID_MOUSE = 10090;
+
+    // the most popular human protein of the corpus
+    static final String TOP_PROTEIN = SyntheticCorpus.accession(0, 1);
+
+    private static final int BATCH_SIZE = 10000;
+
+    private BenchmarkCorpus() {
+    }
+
+    static AnnotationConfigApplicationContext start() {
+        return new AnnotationConfigApplicationContext(TestContext.class);
+    }
+
+    static SyntheticCorpus create(long peptiforms, int proteins) {
+        SyntheticCorpus corpus = new SyntheticCorpus(peptiforms);
+        corpus.setProteins(proteins);
+        return corpus;
+    }
+
+    /**
+     * Replaces the content of the index with the given number of PeptiForms mapping to the
+     * given number of proteins (per species).
+     */
+    static void load(SolrTemplate solrTemplate, int peptiforms, int proteins) {
+        clear(solrTemplate);
+        List<SolrPeptiform> batch = new ArrayList<SolrPeptiform>(BATCH_SIZE);
+        for (SolrPeptiform peptiform : create(peptiforms, proteins)) {
+            batch.add(peptiform);
+            if (batch.size() == BATCH_SIZE) {
+                solrTemplate.saveBeans(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            solrTemplate.saveBeans(batch);
+        }
+        solrTemplate.commit();
+    }
+
+    static void clear(SolrTemplate solrTemplate) {
+        solrTemplate.delete(new SimpleQuery(new SimpleStringCriteria("*:*")));
+        solrTemplate.commit();
+    }
+}
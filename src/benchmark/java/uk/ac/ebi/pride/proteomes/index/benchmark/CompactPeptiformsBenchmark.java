@@ -0,0 +1,103 @@
+package uk.ac.ebi.pride.proteomes.index.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import uk.ac.ebi.pride.proteomes.index.model.CompactPeptiforms;
+import uk.ac.ebi.pride.proteomes.index.model.SolrPeptiform;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a CompactPeptiforms list with a list of SolrPeptiform beans for the synthetic corpus,
+ * as returned by findAllCompactByXyz and findAllByXyz (no Solr requests, only the lists).
+ *
+ * - buildCompact / buildBeans: reading all records of the corpus into the list.
+ * - scanCompact / scanBeans: reading the sequence and the proteins of every record, the
+ *   compact list with its column getters.
+ *
+ * The retained heap of both lists is measured once per trial (used heap after a full GC
+ * before and after building each list) and printed with the results:
+ *   mvn -P benchmark test-compile exec:exec -Djmh.args="CompactPeptiformsBenchmark -prof gc"
+ *
+ * @author florian@ebi.ac.uk
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class CompactPeptiformsBenchmark {
+
+    @Param({"100000", "1000000"})
+    private int peptiforms;
+
+    @Param({"50000"})
+    private int proteins;
+
+    private List<SolrPeptiform> beans;
+    private CompactPeptiforms compact;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // each list is built from its own pass over the corpus, so they share no strings
+        long before = usedHeap();
+        compact = CompactPeptiforms.of(BenchmarkCorpus.create(peptiforms, proteins).iterator());
+        long compactBytes = usedHeap() - before;
+
+        before = usedHeap();
+        beans = toBeans(BenchmarkCorpus.create(peptiforms, proteins).iterator());
+        long beanBytes = usedHeap() - before;
+
+        System.out.println();
+        System.out.println("Retained heap for " + peptiforms + " PeptiForms: beans " + (beanBytes >> 10) + " KB, compact "
+                + (compactBytes >> 10) + " KB (" + compact.getDictionarySize() + " dictionary strings)");
+    }
+
+    @Benchmark
+    public CompactPeptiforms buildCompact() {
+        return CompactPeptiforms.of(beans.iterator());
+    }
+
+    @Benchmark
+    public List<SolrPeptiform> buildBeans() {
+        return toBeans(compact.iterator());
+    }
+
+    @Benchmark
+    public long scanCompact() {
+        long sum = 0;
+        for (int i = 0; i < compact.size(); i++) {
+            sum += compact.getSequence(i).length() + compact.getProteins(i).size();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long scanBeans() {
+        long sum = 0;
+        for (SolrPeptiform peptiform : beans) {
+            sum += peptiform.getSequence().length() + peptiform.getProteins().size();
+        }
+        return sum;
+    }
+
+    private List<SolrPeptiform> toBeans(Iterator<SolrPeptiform> peptiforms) {
+        List<SolrPeptiform> list = new ArrayList<SolrPeptiform>(this.peptiforms);
+        while (peptiforms.hasNext()) {
+            list.add(peptiforms.next());
+        }
+        return list;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        // a few rounds, a single System.gc() may leave garbage behind
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
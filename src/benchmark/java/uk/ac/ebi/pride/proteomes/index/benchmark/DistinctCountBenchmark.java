@@ -0,0 +1,123 @@
+package uk.ac.ebi.pride.proteomes.index.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.solr.core.SolrTemplate;
+import org.springframework.data.solr.core.query.FacetOptions;
+import org.springframework.data.solr.core.query.FacetQuery;
+import org.springframework.data.solr.core.query.SimpleFacetQuery;
+import org.springframework.data.solr.core.query.SimpleStringCriteria;
+import org.springframework.data.solr.server.SolrServerFactory;
+import uk.ac.ebi.pride.proteomes.index.model.SolrPeptiform;
+import uk.ac.ebi.pride.proteomes.index.repository.FacetDistinctCounter;
+import uk.ac.ebi.pride.proteomes.index.repository.TaxidShardedSolrServer;
+import uk.ac.ebi.pride.proteomes.index.service.RebuildOptions;
+import uk.ac.ebi.pride.proteomes.index.service.TestCores;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static uk.ac.ebi.pride.proteomes.index.model.SolrPeptiformFields.*;
+
+/**
+ * Compares the ways of computing the total number of distinct facet values
+ * (e.g. proteins) used for the facet count pages.
+ *
+ * - legacyFacetLimit: the former approach, a second facet query with a limit of 10M
+ *   materialising all facet entries to take the size of the list.
+ * - distinctCountCold: the FacetDistinctCounter without a cached value, a single request
+ *   (the number of terms from Luke, there are no deleted documents after the load).
+ * - distinctCountFilteredCold: as distinctCountCold, for the values of the human PeptiForms
+ *   (a facet request for all values of the field).
+ * - distinctCountCached: the FacetDistinctCounter with an up to date cached value
+ *   (no request within the check interval of the index version), the common case when paging.
+ *
+ * With sharded=true the corpus is split into two embedded shards (mouse and all other species,
+ * see TaxidShardedSolrServer): both counts are facet requests for all values of every shard,
+ * merged in-process (the human filter only goes to the default shard).
+ *
+ * Run with the GC profiler to compare the allocation rates:
+ *   mvn -P benchmark test-compile exec:exec -Djmh.args="DistinctCountBenchmark -prof gc"
+ *
+ * @author florian@ebi.ac.uk
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DistinctCountBenchmark {
+
+    private static final String MOUSE_SHARD = "mouse";
+    private static final List<String> HUMAN = Collections.singletonList(String.valueOf(BenchmarkCorpus.TAXID_HUMAN));
+
+    @Param({"100000"})
+    private int peptiforms;
+
+    @Param({"50000"})
+    private int proteins;
+
+    @Param({PROTEINS, UP_GROUPS})
+    private String facetField;
+
+    @Param({"false", "true"})
+    private boolean sharded;
+
+    private AnnotationConfigApplicationContext context;
+    private SolrTemplate solrTemplate;
+    private FacetDistinctCounter counter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        context = BenchmarkCorpus.start();
+        solrTemplate = context.getBean(SolrTemplate.class);
+        if (sharded) {
+            SolrServerFactory factory = context.getBean(SolrServerFactory.class);
+            TaxidShardedSolrServer shardedServer = new TaxidShardedSolrServer(factory.getSolrServer(RebuildOptions.DEFAULT_CORE), null);
+            shardedServer.addShard(MOUSE_SHARD, TestCores.create(factory, MOUSE_SHARD), null, BenchmarkCorpus.TAXID_MOUSE);
+            solrTemplate = new SolrTemplate(shardedServer);
+        }
+        counter = new FacetDistinctCounter(solrTemplate);
+        BenchmarkCorpus.load(solrTemplate, peptiforms, proteins);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkCorpus.clear(solrTemplate);
+        if (sharded) {
+            TestCores.remove(context.getBean(SolrServerFactory.class), MOUSE_SHARD);
+        }
+        context.close();
+    }
+
+    @Benchmark
+    public long legacyFacetLimit() {
+        FacetOptions options = new FacetOptions(facetField);
+        options.setFacetLimit(10000000);
+        FacetQuery facetQuery = new SimpleFacetQuery(new SimpleStringCriteria("*:*"));
+        facetQuery.setFacetOptions(options);
+        facetQuery.setPageRequest(new PageRequest(0, 1));
+        return solrTemplate.queryForFacetPage(facetQuery, SolrPeptiform.class)
+                .getFacetResultPage(facetField).getContent().size();
+    }
+
+    @Benchmark
+    public long distinctCountCold() {
+        counter.clear();
+        return counter.countDistinct(facetField, null, null);
+    }
+
+    @Benchmark
+    public long distinctCountFilteredCold() {
+        counter.clear();
+        return counter.countDistinct(facetField, PEPTIFORM_TAXID, HUMAN);
+    }
+
+    @Benchmark
+    public long distinctCountCached() {
+        return counter.countDistinct(facetField, null, null);
+    }
+}
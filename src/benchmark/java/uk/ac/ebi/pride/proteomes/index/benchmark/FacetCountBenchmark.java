@@ -0,0 +1,110 @@
+package uk.ac.ebi.pride.proteomes.index.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.data.domain.Page;
+import org.springframework.data.solr.core.SolrTemplate;
+import org.springframework.data.solr.core.query.result.FacetFieldEntry;
+import uk.ac.ebi.pride.proteomes.index.model.FacetSummary;
+import uk.ac.ebi.pride.proteomes.index.service.ProteomesSearchService;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static uk.ac.ebi.pride.proteomes.index.model.SolrPeptiformFields.*;
+
+/**
+ * The facet count methods of the ProteomesSearchService (getXyzCounts and getXyzCountsBySpecies,
+ * based on ProteomesRepositoryImpl.getCounts), the taxid facets and the combined facet summary.
+ * Measured as throughput and as sampled latency (percentiles).
+ *
+ *   mvn -P benchmark test-compile exec:exec -Djmh.args="FacetCountBenchmark -prof gc"
+ *
+ * @author florian@ebi.ac.uk
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FacetCountBenchmark {
+
+    @Param({"100000"})
+    private int peptiforms;
+
+    @Param({"50000"})
+    private int proteins;
+
+    // later pages are more expensive to compute for Solr
+    @Param({"0", "100"})
+    private int page;
+
+    @Param({"false", "true"})
+    private boolean sortByIndex;
+
+    private static final int SIZE = 20;
+
+    private AnnotationConfigApplicationContext context;
+    private SolrTemplate solrTemplate;
+    private ProteomesSearchService searchService;
+
+    private final List<Integer> taxids = Arrays.asList(BenchmarkCorpus.TAXID_HUMAN, BenchmarkCorpus.TAXID_MOUSE);
+    private final List<String> facetFields = Arrays.asList(PROTEINS, UP_GROUPS, GENE_GROUPS);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = BenchmarkCorpus.start();
+        solrTemplate = context.getBean(SolrTemplate.class);
+        searchService = context.getBean(ProteomesSearchService.class);
+        BenchmarkCorpus.load(solrTemplate, peptiforms, proteins);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkCorpus.clear(solrTemplate);
+        context.close();
+    }
+
+    @Benchmark
+    public Page<FacetFieldEntry> getProteinCounts() {
+        return searchService.getProteinCounts(page, SIZE, sortByIndex);
+    }
+
+    @Benchmark
+    public Page<FacetFieldEntry> getProteinCountsBySpecies() {
+        return searchService.getProteinCountsBySpecies(taxids, page, SIZE, sortByIndex);
+    }
+
+    @Benchmark
+    public Page<FacetFieldEntry> getUPGroupCounts() {
+        return searchService.getUPGroupCounts(page, SIZE, sortByIndex);
+    }
+
+    @Benchmark
+    public Page<FacetFieldEntry> getUPGroupCountsBySpecies() {
+        return searchService.getUPGroupCountsBySpecies(taxids, page, SIZE, sortByIndex);
+    }
+
+    @Benchmark
+    public Page<FacetFieldEntry> getGeneGroupCounts() {
+        return searchService.getGeneGroupCounts(page, SIZE, sortByIndex);
+    }
+
+    @Benchmark
+    public Page<FacetFieldEntry> getGeneGroupCountsBySpecies() {
+        return searchService.getGeneGroupCountsBySpecies(taxids, page, SIZE, sortByIndex);
+    }
+
+    @Benchmark
+    public Map<Integer, Long> getTaxidFacets() {
+        return searchService.getTaxidFacets();
+    }
+
+    @Benchmark
+    public FacetSummary getFacetSummary() {
+        return searchService.getFacetSummary("human", taxids, facetFields, page, SIZE, sortByIndex);
+    }
+}
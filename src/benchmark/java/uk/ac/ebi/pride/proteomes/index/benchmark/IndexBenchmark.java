@@ -0,0 +1,97 @@
+package uk.ac.ebi.pride.proteomes.index.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.data.solr.core.SolrTemplate;
+import uk.ac.ebi.pride.proteomes.index.model.SolrPeptiform;
+import uk.ac.ebi.pride.proteomes.index.service.BulkIndexOptions;
+import uk.ac.ebi.pride.proteomes.index.service.BulkIndexResult;
+import uk.ac.ebi.pride.proteomes.index.service.ProteomesIndexService;
+import uk.ac.ebi.pride.proteomes.index.service.SyntheticCorpus;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexing throughput of the ProteomesIndexService: saving a batch of new PeptiForms with
+ * save(Collection) (one request and commit per batch) and with the bulk indexer (saveAll).
+ * One operation is one batch, the document throughput is the batch throughput times the
+ * batch size. The index is emptied after every iteration, so it does not grow without bound,
+ * and the next iteration starts again at the beginning of the corpus.
+ *
+ *   mvn -P benchmark test-compile exec:exec -Djmh.args="IndexBenchmark -prof gc"
+ *
+ * @author florian@ebi.ac.uk
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    private int batchSize;
+
+    @Param({"50000"})
+    private int proteins;
+
+    private AnnotationConfigApplicationContext context;
+    private SolrTemplate solrTemplate;
+    private ProteomesIndexService indexService;
+
+    private BulkIndexOptions bulkOptions;
+    // the largest corpus with unique IDs, restarted with the empty index of every iteration
+    private Iterator<SolrPeptiform> corpus;
+    private List<SolrPeptiform> batch;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = BenchmarkCorpus.start();
+        solrTemplate = context.getBean(SolrTemplate.class);
+        indexService = context.getBean(ProteomesIndexService.class);
+        BenchmarkCorpus.clear(solrTemplate);
+        bulkOptions = new BulkIndexOptions();
+        bulkOptions.setBatchSize(Math.max(1, batchSize / 4));
+    }
+
+    @Setup(Level.Iteration)
+    public void startCorpus() {
+        corpus = BenchmarkCorpus.create(SyntheticCorpus.MAX_SIZE, proteins).iterator();
+    }
+
+    @Setup(Level.Invocation)
+    public void createBatch() {
+        batch = new ArrayList<SolrPeptiform>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            if (!corpus.hasNext()) {
+                // more documents than unique IDs, the batch would only overwrite documents
+                throw new IllegalStateException("The corpus is exhausted, use shorter iterations!");
+            }
+            batch.add(corpus.next());
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void clearIndex() {
+        BenchmarkCorpus.clear(solrTemplate);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public void save() {
+        indexService.save(batch);
+    }
+
+    @Benchmark
+    public BulkIndexResult saveAll() {
+        return indexService.saveAll(batch.iterator(), bulkOptions);
+    }
+}
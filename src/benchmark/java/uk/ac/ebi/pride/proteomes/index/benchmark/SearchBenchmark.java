@@ -0,0 +1,104 @@
+package uk.ac.ebi.pride.proteomes.index.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.solr.core.SolrTemplate;
+import uk.ac.ebi.pride.proteomes.index.model.SolrPeptiform;
+import uk.ac.ebi.pride.proteomes.index.service.ProteomesSearchService;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Find and count methods of the ProteomesSearchService. Every benchmark is measured as
+ * throughput and as sampled latency (SampleTime reports the p50, p90, p99, ... percentiles).
+ *
+ *   mvn -P benchmark test-compile exec:exec -Djmh.args="SearchBenchmark -prof gc"
+ *
+ * @author florian@ebi.ac.uk
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SearchBenchmark {
+
+    @Param({"100000"})
+    private int peptiforms;
+
+    @Param({"50000"})
+    private int proteins;
+
+    @Param({"human", "P0001*"})
+    private String query;
+
+    @Param({"10", "100"})
+    private int pageSize;
+
+    private AnnotationConfigApplicationContext context;
+    private SolrTemplate solrTemplate;
+    private ProteomesSearchService searchService;
+
+    private final List<Integer> taxids = Arrays.asList(BenchmarkCorpus.TAXID_MOUSE);
+    private PageRequest pageRequest;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = BenchmarkCorpus.start();
+        solrTemplate = context.getBean(SolrTemplate.class);
+        searchService = context.getBean(ProteomesSearchService.class);
+        BenchmarkCorpus.load(solrTemplate, peptiforms, proteins);
+        pageRequest = new PageRequest(0, pageSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkCorpus.clear(solrTemplate);
+        context.close();
+    }
+
+    @Benchmark
+    public Page<SolrPeptiform> findByQuery() {
+        return searchService.findByQuery(query, pageRequest);
+    }
+
+    @Benchmark
+    public Page<SolrPeptiform> findByQueryAndFilterTaxid() {
+        return searchService.findByQueryAndFilterTaxid(query, taxids, pageRequest);
+    }
+
+    @Benchmark
+    public Page<SolrPeptiform> findByProtein() {
+        return searchService.findByProtein(BenchmarkCorpus.TOP_PROTEIN, pageRequest);
+    }
+
+    @Benchmark
+    public long countAll() {
+        return searchService.countAll();
+    }
+
+    @Benchmark
+    public long countByQuery() {
+        return searchService.countByQuery(query);
+    }
+
+    @Benchmark
+    public long countByQueryAndFilterTaxid() {
+        return searchService.countByQueryAndFilterTaxid(query, taxids);
+    }
+
+    @Benchmark
+    public long countByProtein() {
+        return searchService.countByProtein(BenchmarkCorpus.TOP_PROTEIN);
+    }
+
+    @Benchmark
+    public long countByTaxid() {
+        return searchService.countByTaxid(BenchmarkCorpus.TAXID_HUMAN);
+    }
+}
@@ -0,0 +1,283 @@
+package uk.ac.ebi.pride.proteomes.index.model;
+
+import java.util.*;
+
+/**
+ * Compact in memory list of PeptiForms for large result sets (exports, post-processing).
+ *
+ * The records are stored column by column instead of as SolrPeptiform beans. The protein,
+ * modification and group lists, the species and the group descriptions are dictionary
+ * encoded: every distinct string is held once and the records refer to it by an int code.
+ * The values of the list fields of all records are kept in one int array per field with the
+ * offsets of the records, so a record costs a few array slots instead of a bean with four
+ * lists of repeated strings. The ids, content hashes and sequences are (nearly) unique per
+ * record and kept as plain string arrays, a dictionary entry would only add to their cost.
+ * The lookup map of the dictionary is released by trimToSize() and rebuilt if records are
+ * added afterwards.
+ *
+ * get(int) creates a new SolrPeptiform bean for the record on every call, changes to it are
+ * not written back. The column getters read single fields without creating a bean. Records
+ * can only be added at the end, the list is not thread safe while records are added.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public class CompactPeptiforms extends AbstractList<SolrPeptiform> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    // code -> string and string -> code of all encoded strings, code -1 is null
+    private final ArrayList<String> dictionary = new ArrayList<String>();
+    // null once trimmed, rebuilt from the dictionary when needed again
+    private Map<String, Integer> codes = new HashMap<String, Integer>();
+
+    private int size = 0;
+    private String[] ids;
+    private String[] contentHashes;
+    private String[] sequences;
+    private int[] species;
+    private int[] groupDescs;
+    private int[] taxids;
+    private int[] numProteins;
+    private int[] numUpGroups;
+    private int[] numGeneGroups;
+
+    private final ListColumn proteins;
+    private final ListColumn mods;
+    private final ListColumn upGroups;
+    private final ListColumn geneGroups;
+
+
+    public CompactPeptiforms() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the expected number of records.
+     */
+    public CompactPeptiforms(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("The capacity can not be negative!");
+        }
+        ids = new String[capacity];
+        contentHashes = new String[capacity];
+        sequences = new String[capacity];
+        species = new int[capacity];
+        groupDescs = new int[capacity];
+        taxids = new int[capacity];
+        numProteins = new int[capacity];
+        numUpGroups = new int[capacity];
+        numGeneGroups = new int[capacity];
+        proteins = new ListColumn(capacity);
+        mods = new ListColumn(capacity);
+        upGroups = new ListColumn(capacity);
+        geneGroups = new ListColumn(capacity);
+    }
+
+    /**
+     * Reads all PeptiForms of the iterator, e.g. a PeptiformCursor. Only the compact form is
+     * kept, so at most the beans of one page of the cursor are in memory at any time.
+     */
+    public static CompactPeptiforms of(Iterator<SolrPeptiform> peptiforms) {
+        CompactPeptiforms compact = new CompactPeptiforms();
+        while (peptiforms.hasNext()) {
+            compact.add(peptiforms.next());
+        }
+        compact.trimToSize();
+        return compact;
+    }
+
+    @Override
+    public boolean add(SolrPeptiform peptiform) {
+        if (peptiform == null) {
+            throw new IllegalArgumentException("A PeptiForm is required!");
+        }
+        if (size == ids.length) {
+            grow(Math.max(DEFAULT_CAPACITY, size * 2));
+        }
+        ids[size] = peptiform.getId();
+        contentHashes[size] = peptiform.getContentHash();
+        sequences[size] = peptiform.getSequence();
+        species[size] = encode(peptiform.getSpecies());
+        groupDescs[size] = encode(peptiform.getGroupDescs());
+        taxids[size] = peptiform.getTaxid();
+        numProteins[size] = peptiform.getNumProteins();
+        numUpGroups[size] = peptiform.getNumUpGroups();
+        numGeneGroups[size] = peptiform.getNumGeneGroups();
+        proteins.add(size, peptiform.getProteins());
+        mods.add(size, peptiform.getMods());
+        upGroups.add(size, peptiform.getUpGroups());
+        geneGroups.add(size, peptiform.getGeneGroups());
+        size++;
+        modCount++;
+        return true;
+    }
+
+    /**
+     * @return a new bean with the fields of the record.
+     */
+    @Override
+    public SolrPeptiform get(int index) {
+        checkIndex(index);
+        SolrPeptiform peptiform = new SolrPeptiform();
+        peptiform.setId(ids[index]);
+        peptiform.setContentHash(contentHashes[index]);
+        peptiform.setSequence(sequences[index]);
+        peptiform.setSpecies(decode(species[index]));
+        peptiform.setGroupDescs(decode(groupDescs[index]));
+        peptiform.setTaxid(taxids[index]);
+        peptiform.setNumProteins(numProteins[index]);
+        peptiform.setNumUpGroups(numUpGroups[index]);
+        peptiform.setNumGeneGroups(numGeneGroups[index]);
+        peptiform.setProteins(proteins.get(index));
+        peptiform.setMods(mods.get(index));
+        peptiform.setUpGroups(upGroups.get(index));
+        peptiform.setGeneGroups(geneGroups.get(index));
+        return peptiform;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public String getId(int index) {
+        checkIndex(index);
+        return ids[index];
+    }
+
+    public String getSequence(int index) {
+        checkIndex(index);
+        return sequences[index];
+    }
+
+    public int getTaxid(int index) {
+        checkIndex(index);
+        return taxids[index];
+    }
+
+    public List<String> getProteins(int index) {
+        checkIndex(index);
+        return proteins.get(index);
+    }
+
+    public List<String> getUpGroups(int index) {
+        checkIndex(index);
+        return upGroups.get(index);
+    }
+
+    public List<String> getGeneGroups(int index) {
+        checkIndex(index);
+        return geneGroups.get(index);
+    }
+
+    /**
+     * @return the number of distinct strings held by the dictionary.
+     */
+    public int getDictionarySize() {
+        return dictionary.size();
+    }
+
+    /**
+     * Releases the unused capacity, e.g. once all records have been added.
+     */
+    public void trimToSize() {
+        grow(size);
+        proteins.trimToSize();
+        mods.trimToSize();
+        upGroups.trimToSize();
+        geneGroups.trimToSize();
+        dictionary.trimToSize();
+        codes = null;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    private void grow(int capacity) {
+        ids = Arrays.copyOf(ids, capacity);
+        contentHashes = Arrays.copyOf(contentHashes, capacity);
+        sequences = Arrays.copyOf(sequences, capacity);
+        species = Arrays.copyOf(species, capacity);
+        groupDescs = Arrays.copyOf(groupDescs, capacity);
+        taxids = Arrays.copyOf(taxids, capacity);
+        numProteins = Arrays.copyOf(numProteins, capacity);
+        numUpGroups = Arrays.copyOf(numUpGroups, capacity);
+        numGeneGroups = Arrays.copyOf(numGeneGroups, capacity);
+    }
+
+    private int encode(String value) {
+        if (value == null) {
+            return -1;
+        }
+        if (codes == null) {
+            codes = new HashMap<String, Integer>(dictionary.size() * 4 / 3 + 1);
+            for (int i = 0; i < dictionary.size(); i++) {
+                codes.put(dictionary.get(i), i);
+            }
+        }
+        Integer code = codes.get(value);
+        if (code == null) {
+            code = dictionary.size();
+            dictionary.add(value);
+            codes.put(value, code);
+        }
+        return code;
+    }
+
+    private String decode(int code) {
+        return (code < 0) ? null : dictionary.get(code);
+    }
+
+    /**
+     * The values of a list field of all records in one array, the values of record i
+     * are at offsets[i] to offsets[i + 1]. Null lists are marked separately from empty ones.
+     */
+    private class ListColumn {
+
+        private int[] values;
+        private int valueCount = 0;
+        private int[] offsets;
+        private final BitSet nulls = new BitSet();
+
+        private ListColumn(int capacity) {
+            values = new int[capacity];
+            offsets = new int[capacity + 1];
+        }
+
+        void add(int index, List<String> list) {
+            if (index + 1 >= offsets.length) {
+                offsets = Arrays.copyOf(offsets, Math.max(DEFAULT_CAPACITY, offsets.length * 2));
+            }
+            if (list == null) {
+                nulls.set(index);
+            } else {
+                if (valueCount + list.size() > values.length) {
+                    values = Arrays.copyOf(values, Math.max(valueCount + list.size(), values.length * 2));
+                }
+                for (String value : list) {
+                    values[valueCount++] = encode(value);
+                }
+            }
+            offsets[index + 1] = valueCount;
+        }
+
+        List<String> get(int index) {
+            if (nulls.get(index)) {
+                return null;
+            }
+            List<String> list = new ArrayList<String>(offsets[index + 1] - offsets[index]);
+            for (int i = offsets[index]; i < offsets[index + 1]; i++) {
+                list.add(decode(values[i]));
+            }
+            return list;
+        }
+
+        void trimToSize() {
+            values = Arrays.copyOf(values, valueCount);
+            offsets = Arrays.copyOf(offsets, size + 1);
+        }
+    }
+}
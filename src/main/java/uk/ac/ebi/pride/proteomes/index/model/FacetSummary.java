@@ -0,0 +1,64 @@
+package uk.ac.ebi.pride.proteomes.index.model;
+
+import org.springframework.data.domain.Page;
+import org.springframework.data.solr.core.query.result.FacetFieldEntry;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Result of a combined facet request: the number of matching PeptiForms, the number of
+ * PeptiForms per taxid and a page of facet values for each requested field. The total
+ * elements of a facet page is the number of distinct values of that field.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public class FacetSummary {
+
+    private final long hitCount;
+    private final Map<Integer, Long> taxidCounts;
+    private final Map<String, Page<FacetFieldEntry>> facetPages;
+
+    public FacetSummary(long hitCount, Map<Integer, Long> taxidCounts, Map<String, Page<FacetFieldEntry>> facetPages) {
+        this.hitCount = hitCount;
+        this.taxidCounts = Collections.unmodifiableMap(taxidCounts);
+        this.facetPages = Collections.unmodifiableMap(facetPages);
+    }
+
+    /**
+     * @return the number of PeptiForms matching the query and taxid filters.
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return the number of PeptiForms per taxid matching the query, the taxid filters are
+     * not applied to these counts, so they show how many records the other species have.
+     */
+    public Map<Integer, Long> getTaxidCounts() {
+        return taxidCounts;
+    }
+
+    public Set<String> getFacetFields() {
+        return facetPages.keySet();
+    }
+
+    /**
+     * @param facetField one of the requested facet fields, e.g. SolrPeptiformFields.PROTEINS
+     * @return the requested page of values and their PeptiForm counts, or null if the field was not requested.
+     */
+    public Page<FacetFieldEntry> getFacetPage(String facetField) {
+        return facetPages.get(facetField);
+    }
+
+    /**
+     * @param facetField one of the requested facet fields, e.g. SolrPeptiformFields.PROTEINS
+     * @return the number of distinct values of the field, 0 if the field was not requested.
+     */
+    public long getDistinctCount(String facetField) {
+        Page<FacetFieldEntry> page = facetPages.get(facetField);
+        return (page == null) ? 0 : page.getTotalElements();
+    }
+}
@@ -0,0 +1,58 @@
+package uk.ac.ebi.pride.proteomes.index.model;
+
+import java.util.List;
+
+/**
+ * The multivalued membership fields of a PeptiForm together with the fields counting
+ * their values.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public enum MembershipField {
+
+    PROTEINS(SolrPeptiformFields.PROTEINS, SolrPeptiformFields.NUM_PROTEINS) {
+        @Override
+        public List<String> getValues(SolrPeptiform solrPeptiform) {
+            return solrPeptiform.getProteins();
+        }
+    },
+    UP_GROUPS(SolrPeptiformFields.UP_GROUPS, SolrPeptiformFields.NUM_UP_GROUPS) {
+        @Override
+        public List<String> getValues(SolrPeptiform solrPeptiform) {
+            return solrPeptiform.getUpGroups();
+        }
+    },
+    GENE_GROUPS(SolrPeptiformFields.GENE_GROUPS, SolrPeptiformFields.NUM_GENE_GROUPS) {
+        @Override
+        public List<String> getValues(SolrPeptiform solrPeptiform) {
+            return solrPeptiform.getGeneGroups();
+        }
+    };
+
+    private final String field;
+    private final String countField;
+
+    private MembershipField(String field, String countField) {
+        this.field = field;
+        this.countField = countField;
+    }
+
+    /**
+     * @return the name of the multivalued field.
+     */
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * @return the name of the field holding the number of values.
+     */
+    public String getCountField() {
+        return countField;
+    }
+
+    /**
+     * @return the values of the field in the bean, may be null.
+     */
+    public abstract List<String> getValues(SolrPeptiform solrPeptiform);
+}
@@ -0,0 +1,78 @@
+package uk.ac.ebi.pride.proteomes.index.model;
+
+import java.util.*;
+
+import static uk.ac.ebi.pride.proteomes.index.model.SolrPeptiformFields.*;
+
+/**
+ * The set of stored fields to load for the PeptiForms of a search result. Fields that
+ * are not part of the projection are not transferred from Solr and are left empty in
+ * the SolrPeptiform beans (null or 0). The ID is always part of a projection.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public final class PeptiformProjection {
+
+    private static final Set<String> STORED_FIELDS = new HashSet<String>(Arrays.asList(
+            ID, PEPTIFORM_SEQUENCE, PEPTIFORM_TAXID, PEPTIFORM_SPECIES, NUM_PROTEINS, PROTEINS,
+            MODS, NUM_UP_GROUPS, UP_GROUPS, NUM_GENE_GROUPS, GENE_GROUPS, GROUP_DESCS, CONTENT_HASH));
+
+    /**
+     * All stored fields but the group descriptions, the same as a search without a projection.
+     * The descriptions are only stored for atomic updates, they are loaded with a projection
+     * that includes GROUP_DESCS.
+     */
+    public static final PeptiformProjection ALL = new PeptiformProjection(ID, PEPTIFORM_SEQUENCE, PEPTIFORM_TAXID,
+            PEPTIFORM_SPECIES, NUM_PROTEINS, PROTEINS, MODS, NUM_UP_GROUPS, UP_GROUPS, NUM_GENE_GROUPS, GENE_GROUPS, CONTENT_HASH);
+
+    /**
+     * Lightweight projection for result listings: ID, sequence and taxid.
+     */
+    public static final PeptiformProjection SUMMARY = new PeptiformProjection(PEPTIFORM_SEQUENCE, PEPTIFORM_TAXID);
+
+    /**
+     * Everything but the multivalued protein, modification and group lists.
+     */
+    public static final PeptiformProjection NO_LISTS = new PeptiformProjection(PEPTIFORM_SEQUENCE, PEPTIFORM_TAXID,
+            PEPTIFORM_SPECIES, NUM_PROTEINS, NUM_UP_GROUPS, NUM_GENE_GROUPS);
+
+    private final Set<String> fields;
+
+    /**
+     * @param fields the fields to load, see SolrPeptiformFields. Only stored fields can be projected.
+     */
+    public PeptiformProjection(String... fields) {
+        Set<String> set = new LinkedHashSet<String>();
+        set.add(ID);
+        if (fields != null) {
+            for (String field : fields) {
+                if (!STORED_FIELDS.contains(field)) {
+                    throw new IllegalArgumentException("Not a stored PeptiForm field: " + field);
+                }
+                set.add(field);
+            }
+        }
+        this.fields = Collections.unmodifiableSet(set);
+    }
+
+    public Set<String> getFields() {
+        return fields;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return fields.equals(((PeptiformProjection) o).fields);
+    }
+
+    @Override
+    public int hashCode() {
+        return fields.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "PeptiformProjection" + fields;
+    }
+}
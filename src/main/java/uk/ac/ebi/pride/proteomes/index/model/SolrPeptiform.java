@@ -50,6 +50,9 @@ public class SolrPeptiform implements SolrPeptiformFields {
     @Field(GROUP_DESCS)
     private String groupDescs;
 
+    @Field(CONTENT_HASH)
+    private String contentHash;
+
 
     public String getId() {
         return id;
@@ -139,7 +142,22 @@ public class SolrPeptiform implements SolrPeptiformFields {
         this.geneGroups = geneGroups;
     }
 
+    public String getGroupDescs() {
+        return groupDescs;
+    }
+
     public void setGroupDescs(String groupDescs) {
         this.groupDescs = groupDescs;
     }
+
+    /**
+     * @return the hash over the content of the record when it was indexed, see ProteomesIndexService.
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
 }
@@ -20,4 +20,7 @@ public interface SolrPeptiformFields {
     public static final String NUM_GENE_GROUPS = "num_gene_groups";
     public static final String GENE_GROUPS = "gene_groups";
     public static final String GROUP_DESCS = "group_descs";
+    public static final String CONTENT_HASH = "content_hash";
+    // not stored, filled from the sequence by Solr (copyField)
+    public static final String PEPTIFORM_SEQUENCE_KMERS = "peptiform_sequence_kmers";
 }
@@ -0,0 +1,469 @@
+package uk.ac.ebi.pride.proteomes.index.repository;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.PivotField;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.solr.core.SolrCallback;
+import org.springframework.data.solr.core.SolrTemplate;
+import org.springframework.data.solr.core.query.SimpleField;
+import org.springframework.data.solr.core.query.result.FacetFieldEntry;
+import org.springframework.data.solr.core.query.result.SimpleFacetFieldEntry;
+import org.springframework.data.solr.core.query.result.SolrResultPage;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static uk.ac.ebi.pride.proteomes.index.model.SolrPeptiformFields.*;
+
+/**
+ * In memory PeptiForm counts of the protein and group values per taxid, so the count pages
+ * of ProteomesRepositoryImpl (with or without taxid filter) are answered without a facet
+ * request and without sorting all values of the field for every page.
+ *
+ * The counts of every field are loaded with a single pivot facet request (taxid, field), one
+ * per shard for a TaxidShardedSolrServer. The pivots are not limited (facet.limit=-1), so a
+ * response holds one entry per (taxid, value) pair: for 10M protein values in one species
+ * that is 10M pivot entries, plus one per further species a value occurs in. Each entry is
+ * parsed into a PivotField with its value string (in the order of 100-200 bytes), so such a
+ * load needs 1-2 GB of heap at its peak, on top of the dictionary and the arrays kept.
+ * The totals of all taxids are accumulated in one array indexed by value id. The
+ * values of a field are stored once in a sorted dictionary, the counts of a taxid as sorted
+ * value ids with their counts in primitive arrays, together with the positions in count order.
+ * A PeptiForm has exactly one taxid, so the counts for several taxids are the sums of the
+ * counts of each taxid, only the top of the merged counts is ordered for a count sorted page.
+ *
+ * The index version is taken from the IndexVersionTracker of the server, so it costs a Luke
+ * request at most once per check interval. When the version has changed, the first request
+ * starts a reload in the background (one at a time) and requests keep being answered from
+ * the previous counts until the new ones are loaded. Only the very first request waits for
+ * the counts, refresh() loads them right away, e.g. at the end of an index run. If the index
+ * version is not available (-1), a reload is started whenever none is running.
+ *
+ * Pages are the same as those of the Solr facets: index order is the order of the values,
+ * count order is by decreasing count and then by value, and the total is the number of values.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public class FacetCountStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(FacetCountStore.class);
+
+    /**
+     * The fields counts are kept for.
+     */
+    public static final List<String> FIELDS = Collections.unmodifiableList(Arrays.asList(PROTEINS, UP_GROUPS, GENE_GROUPS));
+
+    private final SolrTemplate solrTemplate;
+    private final IndexVersionTracker versionTracker;
+    private final Executor executor;
+
+    // replaced as a whole when the counts are reloaded
+    private volatile Store store;
+    // set while a background reload is pending or running
+    private final AtomicBoolean reloading = new AtomicBoolean();
+
+
+    public FacetCountStore(SolrTemplate solrTemplate) {
+        this(solrTemplate, null);
+    }
+
+    /**
+     * @param solrTemplate the template to load the counts with.
+     * @param executor     the executor to reload the counts on, null to reload on a new daemon thread.
+     */
+    public FacetCountStore(SolrTemplate solrTemplate, Executor executor) {
+        if (solrTemplate == null) {
+            throw new IllegalArgumentException("A SolrTemplate is required!");
+        }
+        this.solrTemplate = solrTemplate;
+        this.versionTracker = IndexVersionTracker.of(solrTemplate);
+        this.executor = (executor == null) ? createDefaultExecutor() : executor;
+    }
+
+    /**
+     * @param facetField the field to count the values of, one of FIELDS.
+     * @param taxids     the taxids to count the PeptiForms of (ORed), all PeptiForms if empty or null.
+     * @param page       the page of values.
+     * @param size       the number of values per page.
+     * @param sortByIndex sort the values by value instead of by count.
+     * @return the page of values and counts, the total is the number of values with a count.
+     */
+    public Page<FacetFieldEntry> getCounts(String facetField, Collection<Integer> taxids, int page, int size, boolean sortByIndex) {
+        if (!FIELDS.contains(facetField)) {
+            throw new IllegalArgumentException("No counts are kept for the field " + facetField + "!");
+        }
+        PageRequest pageRequest = new PageRequest(page, size);
+        FieldCounts fieldCounts = getStore().fields.get(facetField);
+
+        Counts counts;
+        if (taxids == null || taxids.isEmpty()) {
+            counts = fieldCounts.all;
+        } else {
+            counts = null;
+            // a duplicated taxid must not be counted twice
+            for (Integer taxid : new HashSet<Integer>(taxids)) {
+                Counts taxidCounts = fieldCounts.byTaxid.get(taxid);
+                if (taxidCounts != null) {
+                    counts = (counts == null) ? taxidCounts : Counts.sum(counts, taxidCounts);
+                }
+            }
+            if (counts == null) {
+                counts = Counts.EMPTY;
+            }
+        }
+
+        int from = Math.min(pageRequest.getOffset(), counts.size());
+        int to = Math.min(from + size, counts.size());
+        int[] positions;
+        if (sortByIndex) {
+            positions = new int[to - from];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = from + i;
+            }
+        } else {
+            positions = Arrays.copyOfRange(counts.countOrder(to), from, to);
+        }
+
+        SimpleField field = new SimpleField(facetField);
+        List<FacetFieldEntry> content = new ArrayList<FacetFieldEntry>(positions.length);
+        for (int position : positions) {
+            content.add(new SimpleFacetFieldEntry(field, fieldCounts.values[counts.ids[position]], counts.counts[position]));
+        }
+        return new SolrResultPage<FacetFieldEntry>(content, pageRequest, counts.size(), 0.0f);
+    }
+
+    /**
+     * Loads the counts of the current index version, if they are not loaded yet, and waits for them.
+     */
+    public void refresh() {
+        load(versionTracker.getVersion());
+    }
+
+    /**
+     * @return the index version of the loaded counts, -1 if none are loaded.
+     */
+    public long getVersion() {
+        Store current = store;
+        return (current == null) ? -1 : current.version;
+    }
+
+    // the loaded counts, possibly of a previous version while they are reloaded
+    private Store getStore() {
+        long version = versionTracker.getVersion();
+        Store current = store;
+        if (current == null) {
+            return load(version);
+        }
+        if (current.version != version || version < 0) {
+            reload();
+        }
+        return current;
+    }
+
+    // starts a background reload, unless one is already pending or running
+    private void reload() {
+        if (!reloading.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        load(versionTracker.getVersion());
+                    } catch (RuntimeException e) {
+                        // the previous counts are served until the next reload succeeds
+                        logger.warn("Failed to reload the facet counts", e);
+                    } finally {
+                        reloading.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            reloading.set(false);
+            logger.warn("Failed to start the reload of the facet counts", e);
+        }
+    }
+
+    // one load at a time, the version is read before the counts so they are never older than it
+    private synchronized Store load(long version) {
+        Store current = store;
+        if (current != null && current.version == version && version >= 0) {
+            return current;
+        }
+        Map<String, FieldCounts> fields = new HashMap<String, FieldCounts>();
+        for (String field : FIELDS) {
+            fields.put(field, loadField(field));
+        }
+        current = new Store(version, fields);
+        store = current;
+        return current;
+    }
+
+    private static Executor createDefaultExecutor() {
+        return new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                Thread thread = new Thread(runnable, "proteomes-facet-counts");
+                // never keep the application from exiting
+                thread.setDaemon(true);
+                thread.start();
+            }
+        };
+    }
+
+    private FieldCounts loadField(String field) {
+        final SolrQuery query = new SolrQuery("*:*");
+        query.setRows(0);
+        query.setFacet(true);
+        final String pivot = PEPTIFORM_TAXID + "," + field;
+        query.addFacetPivotField(pivot);
+        query.setFacetLimit(-1);
+        query.setFacetMinCount(1);
+        query.set(FacetParams.FACET_PIVOT_MINCOUNT, 1);
+        query.setFacetSort(FacetParams.FACET_SORT_INDEX);
+        List<PivotField> taxidPivots = solrTemplate.execute(new SolrCallback<List<PivotField>>() {
+            @Override
+            public List<PivotField> doInSolr(SolrServer solrServer) throws SolrServerException, IOException {
+                if (!(solrServer instanceof TaxidShardedSolrServer)) {
+                    return queryPivots(solrServer, query, pivot);
+                }
+                // no distributed pivot facets in this Solr version, but the shards have disjoint taxids
+                List<PivotField> pivots = new ArrayList<PivotField>();
+                for (SolrServer shard : ((TaxidShardedSolrServer) solrServer).getShards()) {
+                    pivots.addAll(queryPivots(shard, query, pivot));
+                }
+                return pivots;
+            }
+        });
+
+        // the dictionary of all values of the field
+        List<String> all = new ArrayList<String>();
+        for (PivotField taxidPivot : taxidPivots) {
+            if (taxidPivot.getPivot() != null) {
+                for (PivotField valuePivot : taxidPivot.getPivot()) {
+                    all.add(String.valueOf(valuePivot.getValue()));
+                }
+            }
+        }
+        String[] values = all.toArray(new String[all.size()]);
+        Arrays.sort(values);
+        int distinct = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (distinct == 0 || !values[i].equals(values[distinct - 1])) {
+                values[distinct++] = values[i];
+            }
+        }
+        values = Arrays.copyOf(values, distinct);
+
+        Map<Integer, Counts> byTaxid = new HashMap<Integer, Counts>();
+        // the counts of all taxids by value id, a PeptiForm has one taxid so they just add up
+        int[] totals = new int[values.length];
+        for (PivotField taxidPivot : taxidPivots) {
+            List<PivotField> valuePivots = taxidPivot.getPivot();
+            if (valuePivots == null || valuePivots.isEmpty()) {
+                continue;
+            }
+            // id and count packed into one long, sorted by id
+            long[] entries = new long[valuePivots.size()];
+            for (int i = 0; i < entries.length; i++) {
+                PivotField valuePivot = valuePivots.get(i);
+                int id = Arrays.binarySearch(values, String.valueOf(valuePivot.getValue()));
+                entries[i] = ((long) id << 32) | valuePivot.getCount();
+            }
+            Arrays.sort(entries);
+            int[] ids = new int[entries.length];
+            int[] counts = new int[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                ids[i] = (int) (entries[i] >>> 32);
+                counts[i] = (int) entries[i];
+                totals[ids[i]] += counts[i];
+            }
+            Counts taxidCounts = new Counts(ids, counts);
+            taxidCounts.countOrder(ids.length);
+            byTaxid.put(Integer.valueOf(String.valueOf(taxidPivot.getValue())), taxidCounts);
+        }
+        Counts total = Counts.of(totals);
+        total.countOrder(total.size());
+        return new FieldCounts(values, byTaxid, total);
+    }
+
+    private static List<PivotField> queryPivots(SolrServer solrServer, SolrQuery query, String pivot) throws SolrServerException {
+        NamedList<List<PivotField>> pivots = solrServer.query(query).getFacetPivot();
+        List<PivotField> taxidPivots = (pivots == null) ? null : pivots.get(pivot);
+        return (taxidPivots == null) ? Collections.<PivotField>emptyList() : taxidPivots;
+    }
+
+    private static class Store {
+        private final long version;
+        private final Map<String, FieldCounts> fields;
+
+        private Store(long version, Map<String, FieldCounts> fields) {
+            this.version = version;
+            this.fields = fields;
+        }
+    }
+
+    private static class FieldCounts {
+        // sorted, the position of a value is its id
+        private final String[] values;
+        private final Map<Integer, Counts> byTaxid;
+        private final Counts all;
+
+        private FieldCounts(String[] values, Map<Integer, Counts> byTaxid, Counts all) {
+            this.values = values;
+            this.byTaxid = byTaxid;
+            this.all = all;
+        }
+    }
+
+    /**
+     * Counts per value id, sorted by id. The count order of the loaded counts is computed
+     * once, for sums only the positions up to the requested page are ordered.
+     */
+    private static class Counts {
+
+        private static final Counts EMPTY = new Counts(new int[0], new int[0]);
+
+        private final int[] ids;
+        private final int[] counts;
+        // positions in count order, possibly only the first ones
+        private volatile int[] countOrder;
+
+        private Counts(int[] ids, int[] counts) {
+            this.ids = ids;
+            this.counts = counts;
+        }
+
+        int size() {
+            return ids.length;
+        }
+
+        /**
+         * @return the positions in count order, at least the first n.
+         */
+        int[] countOrder(int n) {
+            int[] order = countOrder;
+            if (order != null && order.length >= n) {
+                return order;
+            }
+            order = top(n);
+            countOrder = order;
+            return order;
+        }
+
+        // the n positions with the highest counts, with a bounded heap of sort keys
+        private int[] top(int n) {
+            n = Math.min(n, ids.length);
+            // smaller key = higher count, then smaller position (= smaller value)
+            long[] heap = new long[n];
+            int heapSize = 0;
+            for (int position = 0; position < ids.length; position++) {
+                long key = ((long) (Integer.MAX_VALUE - counts[position]) << 32) | position;
+                if (heapSize < n) {
+                    heap[heapSize] = key;
+                    siftUp(heap, heapSize++);
+                } else if (n > 0 && key < heap[0]) {
+                    heap[0] = key;
+                    siftDown(heap, heapSize);
+                }
+            }
+            Arrays.sort(heap, 0, heapSize);
+            int[] order = new int[heapSize];
+            for (int i = 0; i < heapSize; i++) {
+                order[i] = (int) heap[i];
+            }
+            return order;
+        }
+
+        // max heap, the largest key is at the root
+        private static void siftUp(long[] heap, int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (heap[parent] >= heap[i]) {
+                    return;
+                }
+                swap(heap, parent, i);
+                i = parent;
+            }
+        }
+
+        private static void siftDown(long[] heap, int size) {
+            int i = 0;
+            while (true) {
+                int largest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < size && heap[left] > heap[largest]) {
+                    largest = left;
+                }
+                if (right < size && heap[right] > heap[largest]) {
+                    largest = right;
+                }
+                if (largest == i) {
+                    return;
+                }
+                swap(heap, i, largest);
+                i = largest;
+            }
+        }
+
+        private static void swap(long[] heap, int i, int j) {
+            long tmp = heap[i];
+            heap[i] = heap[j];
+            heap[j] = tmp;
+        }
+
+        // the non zero counts of a dense array indexed by value id
+        static Counts of(int[] countsById) {
+            int n = 0;
+            for (int count : countsById) {
+                if (count > 0) {
+                    n++;
+                }
+            }
+            int[] ids = new int[n];
+            int[] counts = new int[n];
+            n = 0;
+            for (int id = 0; id < countsById.length; id++) {
+                if (countsById[id] > 0) {
+                    ids[n] = id;
+                    counts[n++] = countsById[id];
+                }
+            }
+            return new Counts(ids, counts);
+        }
+
+        // merges two sorted count lists, the counts of the same value are added
+        static Counts sum(Counts a, Counts b) {
+            int[] ids = new int[a.size() + b.size()];
+            int[] counts = new int[ids.length];
+            int i = 0;
+            int j = 0;
+            int n = 0;
+            while (i < a.size() || j < b.size()) {
+                if (j == b.size() || (i < a.size() && a.ids[i] < b.ids[j])) {
+                    ids[n] = a.ids[i];
+                    counts[n++] = a.counts[i++];
+                } else if (i == a.size() || b.ids[j] < a.ids[i]) {
+                    ids[n] = b.ids[j];
+                    counts[n++] = b.counts[j++];
+                } else {
+                    ids[n] = a.ids[i];
+                    counts[n++] = a.counts[i++] + b.counts[j++];
+                }
+            }
+            return new Counts(Arrays.copyOf(ids, n), Arrays.copyOf(counts, n));
+        }
+    }
+}
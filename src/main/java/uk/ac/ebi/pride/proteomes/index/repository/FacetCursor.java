@@ -0,0 +1,129 @@
+package uk.ac.ebi.pride.proteomes.index.repository;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.FacetParams;
+import org.springframework.data.solr.core.SolrCallback;
+import org.springframework.data.solr.core.SolrTemplate;
+import org.springframework.data.solr.core.query.SimpleField;
+import org.springframework.data.solr.core.query.result.FacetFieldEntry;
+import org.springframework.data.solr.core.query.result.SimpleFacetFieldEntry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over all values of a facet field with their number of PeptiForms, in index order
+ * (or in count order, as the getXyzCounts pages, see the sortByIndex constructor). Pages of values are requested lazily while iterating, each with a single facet request
+ * (rows=0, no documents and no count of the distinct values), so only one page of values
+ * is held in memory at a time.
+ *
+ * Values that are added or removed while iterating may or may not be returned, and may
+ * shift the following pages by a few values. In count order a changed count can also move a
+ * value to another page, so a value may be returned twice or not at all; a single page as
+ * large as the facet avoids this.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public class FacetCursor implements Iterator<FacetFieldEntry> {
+
+    private final SolrTemplate solrTemplate;
+    private final SolrQuery query;
+    private final String facetField;
+    private final SimpleField field;
+    private final int pageSize;
+
+    private int offset = 0;
+    private Iterator<FacetFieldEntry> page = Collections.<FacetFieldEntry>emptyList().iterator();
+    private boolean exhausted = false;
+
+    /**
+     * @param solrTemplate the template to query.
+     * @param facetField the field to iterate over, e.g. proteins.
+     * @param filterQuery restricts the PeptiForms that are counted, null to count all.
+     * @param pageSize the number of values to fetch per request.
+     */
+    public FacetCursor(SolrTemplate solrTemplate, String facetField, String filterQuery, int pageSize) {
+        this(solrTemplate, facetField, filterQuery, pageSize, true);
+    }
+
+    /**
+     * @param solrTemplate the template to query.
+     * @param facetField the field to iterate over, e.g. proteins.
+     * @param filterQuery restricts the PeptiForms that are counted, null to count all.
+     * @param pageSize the number of values to fetch per request.
+     * @param sortByIndex iterate in index order, otherwise by decreasing count (ties in index order).
+     */
+    public FacetCursor(SolrTemplate solrTemplate, String facetField, String filterQuery, int pageSize, boolean sortByIndex) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("The page size needs to be positive!");
+        }
+        this.solrTemplate = solrTemplate;
+        this.facetField = facetField;
+        this.field = new SimpleField(facetField);
+        this.pageSize = pageSize;
+
+        this.query = new SolrQuery("*:*");
+        if (filterQuery != null) {
+            this.query.addFilterQuery(filterQuery);
+        }
+        this.query.setRows(0);
+        this.query.setFacet(true);
+        this.query.addFacetField(facetField);
+        this.query.setFacetMinCount(1);
+        this.query.setFacetLimit(pageSize);
+        // the index order is stable from page to page, unlike the count order
+        this.query.setFacetSort(sortByIndex ? FacetParams.FACET_SORT_INDEX : FacetParams.FACET_SORT_COUNT);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!page.hasNext() && !exhausted) {
+            fetchNextPage();
+        }
+        return page.hasNext();
+    }
+
+    @Override
+    public FacetFieldEntry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("The index can not be modified through a cursor!");
+    }
+
+    private void fetchNextPage() {
+        query.set(FacetParams.FACET_OFFSET, offset);
+        QueryResponse response = solrTemplate.execute(new SolrCallback<QueryResponse>() {
+            @Override
+            public QueryResponse doInSolr(SolrServer solrServer) throws SolrServerException, IOException {
+                return solrServer.query(query);
+            }
+        });
+
+        FacetField facet = response.getFacetField(facetField);
+        List<FacetFieldEntry> entries = new ArrayList<FacetFieldEntry>(pageSize);
+        if (facet != null && facet.getValues() != null) {
+            for (FacetField.Count count : facet.getValues()) {
+                entries.add(new SimpleFacetFieldEntry(field, count.getName(), count.getCount()));
+            }
+        }
+        if (entries.size() < pageSize) {
+            exhausted = true;
+        }
+        offset += entries.size();
+        page = entries.iterator();
+    }
+}
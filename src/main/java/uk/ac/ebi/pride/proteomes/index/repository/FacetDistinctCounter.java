@@ -0,0 +1,270 @@
+package uk.ac.ebi.pride.proteomes.index.repository;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.springframework.data.solr.core.SolrCallback;
+import org.springframework.data.solr.core.SolrTemplate;
+import org.springframework.data.solr.core.query.Query;
+
+import java.io.IOException;
+import java.util.*;
+
+import static uk.ac.ebi.pride.proteomes.index.model.SolrPeptiformFields.ID;
+
+/**
+ * Computes the number of distinct values of a facet field (e.g. the number of
+ * proteins in the index), optionally restricted by a filter on another field.
+ *
+ * The Solr version we use has no cheap way to get this number: the stats component
+ * (calcdistinct) returns the full list of distinct values together with the count and
+ * cardinality estimation (HyperLogLog) is only available from Solr 5.2. So the count is
+ * taken with a single request:
+ *
+ * - without a query or filter, the number of terms of the field from the Luke request handler.
+ * It iterates over the terms of the field on the Solr side and returns only their number. The
+ * terms of deleted (or updated) documents are only dropped when their segment is merged, so it
+ * is only used if the index has no deleted documents, and never for a TaxidShardedSolrServer (the
+ * shards may share values, e.g. proteins).
+ *
+ * - otherwise a facet request (no documents, index order, no bean binding) for all values of
+ * the field, of which only the number is kept. The transfer grows with the number of values,
+ * e.g. about 10 bytes per protein accession. With a TaxidShardedSolrServer every shard returns
+ * all its values and they are merged to count the values shared by shards once, so the transfer
+ * is that of all shards together (see the sharded case of the DistinctCountBenchmark).
+ *
+ * The count is cached against the index version (see IndexVersionTracker), so paging through
+ * facet values only pays for it once per version.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public class FacetDistinctCounter {
+
+    public static final int DEFAULT_CACHE_SIZE = 256;
+
+    private static final String LUKE_PATH = "/admin/luke";
+
+    private final SolrTemplate solrTemplate;
+
+    private final Map<String, CachedCount> cache;
+
+
+    public FacetDistinctCounter(SolrTemplate solrTemplate) {
+        this(solrTemplate, DEFAULT_CACHE_SIZE);
+    }
+
+    public FacetDistinctCounter(SolrTemplate solrTemplate, final int cacheSize) {
+        if (solrTemplate == null) {
+            throw new IllegalArgumentException("A SolrTemplate is required!");
+        }
+        if (cacheSize < 1) {
+            throw new IllegalArgumentException("The cache size needs to be positive!");
+        }
+        this.solrTemplate = solrTemplate;
+        // access ordered map, so the least recently used count is dropped first
+        this.cache = new LinkedHashMap<String, CachedCount>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedCount> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * @param facetField   the field to count the distinct values of.
+     * @param filterField  the field to restrict the documents on, may be null.
+     * @param filterValues the accepted values for the filter field (ORed), null or empty matches all documents.
+     * @return the number of distinct values of the facet field in the matching documents.
+     */
+    public long countDistinct(String facetField, String filterField, Collection<String> filterValues) {
+        return countDistinct(Collections.singleton(facetField), QueryStrings.createFilterQuery(filterField, filterValues), null).get(facetField);
+    }
+
+    /**
+     * Counts the distinct values of several fields at once. Counts that are not cached
+     * for the current index version are computed with a single request.
+     *
+     * @param facetFields the fields to count the distinct values of.
+     * @param query       the Solr query selecting the documents.
+     * @param filterQuery an additional filter query, may be null.
+     * @return the number of distinct values per field.
+     */
+    public Map<String, Long> countDistinct(Collection<String> facetFields, String query, String filterQuery) {
+        return countDistinct(facetFields, query, filterQuery, null);
+    }
+
+    /**
+     * As countDistinct(facetFields, query, filterQuery), with the default operator (q.op) used to
+     * parse the query and the filter query, e.g. AND as for the annotated queries with filters.
+     *
+     * @param defaultOperator the default operator, null for the one of the schema.
+     */
+    public Map<String, Long> countDistinct(Collection<String> facetFields, String query, String filterQuery, Query.Operator defaultOperator) {
+        if (facetFields == null || facetFields.isEmpty()) {
+            throw new IllegalArgumentException("A facet field is required!");
+        }
+        for (String facetField : facetFields) {
+            if (facetField == null || facetField.trim().isEmpty()) {
+                throw new IllegalArgumentException("A facet field is required!");
+            }
+        }
+        String queryKey = '|' + query + '|' + filterQuery + '|' + defaultOperator;
+
+        Map<String, Long> counts = new LinkedHashMap<String, Long>(facetFields.size());
+        List<String> missing = new ArrayList<String>(facetFields.size());
+        long version = getIndexVersion();
+        synchronized (cache) {
+            for (String facetField : facetFields) {
+                CachedCount cached = cache.get(facetField + queryKey);
+                if (cached != null && cached.version == version && version >= 0) {
+                    counts.put(facetField, cached.count);
+                } else {
+                    missing.add(facetField);
+                }
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            Map<String, Long> queried = queryDistinctCounts(missing, query, filterQuery, defaultOperator);
+            synchronized (cache) {
+                for (Map.Entry<String, Long> entry : queried.entrySet()) {
+                    cache.put(entry.getKey() + queryKey, new CachedCount(version, entry.getValue()));
+                }
+            }
+            counts.putAll(queried);
+        }
+        return counts;
+    }
+
+    /**
+     * Drops all cached counts, the next request for every field/filter will query Solr.
+     */
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * @return the version of the index as seen by the current Solr searcher (see IndexVersionTracker).
+     * It only changes when a commit makes new changes visible.
+     */
+    public long getIndexVersion() {
+        return getIndexVersion(solrTemplate);
+    }
+
+    static long getIndexVersion(SolrTemplate solrTemplate) {
+        return IndexVersionTracker.of(solrTemplate).getVersion();
+    }
+
+    private Map<String, Long> queryDistinctCounts(final Collection<String> facetFields, String queryString, String filterQuery, Query.Operator defaultOperator) {
+        if (isMatchAll(queryString) && (filterQuery == null || isMatchAll(filterQuery))) {
+            Map<String, Long> counts = solrTemplate.execute(new SolrCallback<Map<String, Long>>() {
+                @Override
+                public Map<String, Long> doInSolr(SolrServer solrServer) throws SolrServerException, IOException {
+                    return countTerms(solrServer, facetFields);
+                }
+            });
+            if (counts != null) {
+                return counts;
+            }
+        }
+        return countFacetValues(facetFields, queryString, filterQuery, defaultOperator);
+    }
+
+    // the number of terms of the fields from the Luke request handler, null if it may not be exact
+    private static Map<String, Long> countTerms(SolrServer solrServer, Collection<String> facetFields) throws SolrServerException, IOException {
+        if (solrServer instanceof TaxidShardedSolrServer) {
+            // the Luke request only goes to the default shard and the shards may share values
+            return null;
+        }
+        StringBuilder fl = new StringBuilder();
+        for (String facetField : facetFields) {
+            fl.append((fl.length() == 0) ? "" : ",").append(facetField);
+        }
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(CommonParams.FL, fl.toString());
+        params.set("numTerms", 0);
+        QueryRequest request = new QueryRequest(params);
+        request.setPath(LUKE_PATH);
+        NamedList<Object> response = solrServer.request(request);
+
+        // the terms of deleted documents are only dropped by a merge, until then they are counted
+        NamedList<?> index = (NamedList<?>) response.get("index");
+        Object numDocs = (index == null) ? null : index.get("numDocs");
+        Object maxDoc = (index == null) ? null : index.get("maxDoc");
+        if (!(numDocs instanceof Number) || !(maxDoc instanceof Number) || ((Number) numDocs).intValue() != ((Number) maxDoc).intValue()) {
+            return null;
+        }
+        NamedList<?> fields = (NamedList<?>) response.get("fields");
+        Map<String, Long> counts = new LinkedHashMap<String, Long>(facetFields.size());
+        for (String facetField : facetFields) {
+            NamedList<?> field = (fields == null) ? null : (NamedList<?>) fields.get(facetField);
+            Object distinct = (field == null) ? null : field.get("distinct");
+            if (field != null && !(distinct instanceof Number)) {
+                return null;
+            }
+            // a field without any term is not listed
+            counts.put(facetField, (field == null) ? 0L : ((Number) distinct).longValue());
+        }
+        return counts;
+    }
+
+    // a single facet request for all values of the fields, only their number is kept
+    private Map<String, Long> countFacetValues(Collection<String> facetFields, String queryString, String filterQuery, Query.Operator defaultOperator) {
+        SolrQuery query = new SolrQuery(queryString);
+        if (filterQuery != null) {
+            query.addFilterQuery(filterQuery);
+        }
+        if (defaultOperator != null && defaultOperator != Query.Operator.NONE) {
+            query.set("q.op", defaultOperator.asQueryStringRepresentation());
+        }
+        // we are not interested in any document, only in the facet values
+        query.setRows(0);
+        query.setFields(ID);
+        query.setFacet(true);
+        query.setFacetLimit(-1);
+        query.setFacetMinCount(1);
+        // index order avoids sorting all values by count on the Solr side
+        query.setFacetSort(FacetParams.FACET_SORT_INDEX);
+        for (String facetField : facetFields) {
+            query.addFacetField(facetField);
+        }
+        // the raw response, no FacetField.Count object per value
+        final QueryRequest request = new QueryRequest(query);
+        NamedList<Object> response = solrTemplate.execute(new SolrCallback<NamedList<Object>>() {
+            @Override
+            public NamedList<Object> doInSolr(SolrServer solrServer) throws SolrServerException, IOException {
+                return solrServer.request(request);
+            }
+        });
+
+        NamedList<?> facetCounts = (NamedList<?>) response.get("facet_counts");
+        NamedList<?> fieldCounts = (facetCounts == null) ? null : (NamedList<?>) facetCounts.get("facet_fields");
+        Map<String, Long> counts = new LinkedHashMap<String, Long>(facetFields.size());
+        for (String facetField : facetFields) {
+            NamedList<?> values = (fieldCounts == null) ? null : (NamedList<?>) fieldCounts.get(facetField);
+            counts.put(facetField, (values == null) ? 0L : (long) values.size());
+        }
+        return counts;
+    }
+
+    private static boolean isMatchAll(String query) {
+        return query == null || query.trim().isEmpty() || "*:*".equals(query.trim());
+    }
+
+    private static class CachedCount {
+        private final long version;
+        private final long count;
+
+        private CachedCount(long version, long count) {
+            this.version = version;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package uk.ac.ebi.pride.proteomes.index.repository;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.springframework.data.solr.UncategorizedSolrException;
+import org.springframework.data.solr.core.SolrTemplate;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The version of the index, used to tell if a cached result (see FacetDistinctCounter,
+ * FacetCountStore and the caches of the ProteomesSearchService) is still valid. The version is
+ * read from the Luke request handler, but at most once per check interval, in between it costs
+ * a volatile read.
+ *
+ * Changes made through the ProteomesIndexService are announced with changed(), the version
+ * is then read again on the next request. Changes sent with a commitWithin are announced with
+ * changedWithin(), the version is then also read again once the commit is due and, until it
+ * has changed, with every request for at most one more check interval. Changes made to the
+ * index by other clients (or committed by the autoCommit of Solr) are noticed after the check
+ * interval.
+ *
+ * There is one tracker per SolrServer, shared by all its users (see of(SolrTemplate)). The
+ * trackers are kept in a map with weak keys and only reference their server weakly, so they
+ * are dropped together with their server.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public class IndexVersionTracker {
+
+    public static final long DEFAULT_CHECK_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+
+    private static final String LUKE_PATH = "/admin/luke";
+
+    // weak keys, the values must not reference their key strongly (not even through a SolrTemplate)
+    private static final Map<SolrServer, IndexVersionTracker> trackers = new WeakHashMap<SolrServer, IndexVersionTracker>();
+
+    private final Reference<SolrServer> solrServer;
+    private volatile long checkInterval = DEFAULT_CHECK_INTERVAL;
+
+    private volatile long version = -1;
+    // time of the next Luke request, 0 to read the version with the next request
+    private volatile long nextCheck = 0;
+    // incremented by changed(), a version read while the index changed is not kept
+    private final AtomicLong changes = new AtomicLong();
+    // time by which the changes announced with changedWithin are visible, 0 if there are none
+    private long pendingUntil = 0;
+
+
+    private IndexVersionTracker(SolrServer solrServer) {
+        this.solrServer = new WeakReference<SolrServer>(solrServer);
+    }
+
+    /**
+     * @return the tracker of the server of the template.
+     */
+    public static IndexVersionTracker of(SolrTemplate solrTemplate) {
+        if (solrTemplate == null) {
+            throw new IllegalArgumentException("A SolrTemplate is required!");
+        }
+        SolrServer solrServer = solrTemplate.getSolrServer();
+        synchronized (trackers) {
+            IndexVersionTracker tracker = trackers.get(solrServer);
+            if (tracker == null) {
+                tracker = new IndexVersionTracker(solrServer);
+                trackers.put(solrServer, tracker);
+            }
+            return tracker;
+        }
+    }
+
+    /**
+     * @return the version of the index as seen by the current Solr searcher, at most the check
+     * interval old. -1 if the version is not available.
+     */
+    public long getVersion() {
+        if (System.currentTimeMillis() >= nextCheck) {
+            synchronized (this) {
+                if (System.currentTimeMillis() >= nextCheck) {
+                    long changesBefore = changes.get();
+                    long previous = version;
+                    version = readVersion(solrServer.get());
+                    if (changes.get() == changesBefore) {
+                        nextCheck = nextCheck(previous);
+                    }
+                }
+            }
+        }
+        return version;
+    }
+
+    // called with the lock held, after a read of the version
+    private long nextCheck(long previous) {
+        long now = System.currentTimeMillis();
+        if (pendingUntil > 0) {
+            if (now < pendingUntil) {
+                return Math.min(now + checkInterval, pendingUntil);
+            }
+            if (version == previous && now < pendingUntil + checkInterval) {
+                // the commit is due, but may still be opening the new searcher
+                return now;
+            }
+            pendingUntil = 0;
+        }
+        return now + checkInterval;
+    }
+
+    /**
+     * The index has been changed, the version is read again on the next request.
+     */
+    public void changed() {
+        changes.incrementAndGet();
+        nextCheck = 0;
+    }
+
+    /**
+     * Changes have been sent that become visible within the given time (commitWithin), the
+     * version is read again on the next request and once they are due to be visible.
+     *
+     * @param millis the commitWithin of the changes in milliseconds.
+     */
+    public void changedWithin(long millis) {
+        synchronized (this) {
+            pendingUntil = Math.max(pendingUntil, System.currentTimeMillis() + millis);
+        }
+        changed();
+    }
+
+    public long getCheckInterval() {
+        return checkInterval;
+    }
+
+    /**
+     * @param checkInterval the time in milliseconds the version is used without reading it again,
+     *                      0 to read it for every request.
+     */
+    public void setCheckInterval(long checkInterval) {
+        if (checkInterval < 0) {
+            throw new IllegalArgumentException("The check interval can not be negative!");
+        }
+        this.checkInterval = checkInterval;
+        this.nextCheck = 0;
+    }
+
+    private static long readVersion(SolrServer solrServer) {
+        if (solrServer == null) {
+            // the server is gone, only a tracker obtained before can still be asked
+            return -1L;
+        }
+        try {
+            if (solrServer instanceof TaxidShardedSolrServer) {
+                // the versions only grow, so the sum changes whenever a shard changes
+                long sum = 0;
+                for (SolrServer shard : ((TaxidShardedSolrServer) solrServer).getShards()) {
+                    long version = readLukeVersion(shard);
+                    if (version < 0) {
+                        return -1L;
+                    }
+                    sum += version;
+                }
+                return sum;
+            }
+            return readLukeVersion(solrServer);
+        } catch (SolrServerException e) {
+            throw new UncategorizedSolrException("Could not read the index version", e);
+        } catch (IOException e) {
+            throw new UncategorizedSolrException("Could not read the index version", e);
+        }
+    }
+
+    private static long readLukeVersion(SolrServer solrServer) throws SolrServerException, IOException {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("show", "index");
+        params.set("numTerms", 0);
+        QueryRequest request = new QueryRequest(params);
+        request.setPath(LUKE_PATH);
+        NamedList<Object> response = solrServer.request(request);
+        NamedList<?> index = (NamedList<?>) response.get("index");
+        Object version = (index == null) ? null : index.get("version");
+        // without a version we can't tell if a cached count is still valid (never matches a cached count)
+        return (version instanceof Number) ? ((Number) version).longValue() : -1L;
+    }
+}
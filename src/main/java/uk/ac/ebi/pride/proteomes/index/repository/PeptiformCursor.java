@@ -0,0 +1,109 @@
+package uk.ac.ebi.pride.proteomes.index.repository;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.springframework.data.solr.core.SolrCallback;
+import org.springframework.data.solr.core.SolrTemplate;
+import uk.ac.ebi.pride.proteomes.index.model.SolrPeptiform;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static uk.ac.ebi.pride.proteomes.index.model.SolrPeptiformFields.ID;
+
+/**
+ * Iterates over all PeptiForms matching a query using Solr deep paging (cursorMark).
+ * Unlike start/rows paging the cost per page does not grow with the position in the
+ * result set, and only one page of records is held in memory at a time.
+ *
+ * Pages are requested lazily while iterating. The results are sorted by ID (or by the
+ * sort of the query and then by ID), which is required for the cursor to be stable. Documents added or deleted while iterating
+ * may or may not be returned, but no document is returned twice.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public class PeptiformCursor implements Iterator<SolrPeptiform> {
+
+    private final SolrTemplate solrTemplate;
+    private final SolrQuery query;
+
+    private String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+    private Iterator<SolrPeptiform> page = Collections.<SolrPeptiform>emptyList().iterator();
+    private boolean exhausted = false;
+
+    /**
+     * @param solrTemplate the template to query.
+     * @param queryString the Solr query (q parameter), e.g. proteins:P12345
+     * @param pageSize the number of records to fetch per request.
+     */
+    public PeptiformCursor(SolrTemplate solrTemplate, String queryString, int pageSize) {
+        this(solrTemplate, new SolrQuery(queryString), pageSize);
+    }
+
+    /**
+     * @param solrTemplate the template to query.
+     * @param query the query to iterate over, it must not define a start. A sort of the query
+     *              is kept, the ID is added as last sort criterion.
+     * @param pageSize the number of records to fetch per request.
+     */
+    public PeptiformCursor(SolrTemplate solrTemplate, SolrQuery query, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("The page size needs to be positive!");
+        }
+        this.solrTemplate = solrTemplate;
+        this.query = query.getCopy();
+        this.query.setRows(pageSize);
+        // a cursor needs a sort on the unique key as tie breaker
+        if (this.query.getSorts().isEmpty()) {
+            this.query.setSort(ID, SolrQuery.ORDER.asc);
+        } else {
+            this.query.addSort(ID, SolrQuery.ORDER.asc);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!page.hasNext() && !exhausted) {
+            fetchNextPage();
+        }
+        return page.hasNext();
+    }
+
+    @Override
+    public SolrPeptiform next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("The index can not be modified through a cursor!");
+    }
+
+    private void fetchNextPage() {
+        query.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+        QueryResponse response = solrTemplate.execute(new SolrCallback<QueryResponse>() {
+            @Override
+            public QueryResponse doInSolr(SolrServer solrServer) throws SolrServerException, IOException {
+                return solrServer.query(query);
+            }
+        });
+
+        List<SolrPeptiform> beans = response.getBeans(SolrPeptiform.class);
+        String nextCursorMark = response.getNextCursorMark();
+        // the cursor does not move any more once all documents have been returned
+        if (nextCursorMark == null || nextCursorMark.equals(cursorMark) || beans.size() < query.getRows()) {
+            exhausted = true;
+        }
+        cursorMark = nextCursorMark;
+        page = beans.iterator();
+    }
+}
@@ -18,9 +18,19 @@ import static uk.ac.ebi.pride.proteomes.index.model.SolrPeptiformFields.*;
  * @author florian@ebi.ac.uk
  *
  * Note: using the Query annotation allows wildcards to go straight into the query
+ *
+ * Note: the count and projection queries in ProteomesRepositoryImpl build the criteria of the
+ * annotated query strings (see textCriteria and taxidFilterCriteria there), a change to a find
+ * query has to be made there as well.
  */
 public interface ProteomesRepository extends SolrCrudRepository<SolrPeptiform, String>, ProteomesRepositoryCustom {
 
+    public static final String SPECIES_QUERY = PEPTIFORM_SPECIES + ":?0";
+    public static final String TEXT_QUERY = TEXT + ":?0";
+    public static final String TEXT_NOT_QUERY = "-" + TEXT + ":?0";
+    public static final String TAXID_FILTER = PEPTIFORM_TAXID + ":(?1)";
+    public static final String SUB_SEQUENCE_QUERY = PEPTIFORM_SEQUENCE_KMERS + ":?0";
+
     /*
      * Global queries, query for all records
      */
@@ -37,16 +47,27 @@ public interface ProteomesRepository extends SolrCrudRepository<SolrPeptiform, S
      */
 
     Page<SolrPeptiform> findBySequence(String sequence, Pageable pageable);
+    long countBySequence(String sequence);
+
+    Page<SolrPeptiform> findBySequenceStartingWith(String prefix, Pageable pageable);
+    long countBySequenceStartingWith(String prefix);
+
+    // the sub-sequence is matched against the 3-mers of the sequences, see the text_seq field type
+    @Query(value = SUB_SEQUENCE_QUERY)
+    Page<SolrPeptiform> findBySubSequence(String subSequence, Pageable pageable);
 
     Page<SolrPeptiform> findByTaxid(int taxid, Pageable pageable);
+    long countByTaxid(int taxid);
 
-    @Query(value = PEPTIFORM_SPECIES+":?0")
+    @Query(value = SPECIES_QUERY)
     Page<SolrPeptiform> findBySpecies(String species, Pageable pageable);
 
     Page<SolrPeptiform> findByProteins(String proteinAcc, Pageable pageable);
     List<SolrPeptiform> findAllByProteins(String proteinAcc);
+    long countByProteins(String proteinAcc);
 
     Page<SolrPeptiform> findByMods(String mod, Pageable pageable);
+    long countByMods(String mod);
 
     Page<SolrPeptiform> findByNumProteinsGreaterThan(int num, Pageable page);
     long countByNumProteinsGreaterThan(int num);
@@ -56,26 +77,28 @@ public interface ProteomesRepository extends SolrCrudRepository<SolrPeptiform, S
 
     List<SolrPeptiform> findAllByUpGroups(String upGroupId);
     Page<SolrPeptiform> findByUpGroups(String upGroupId, Pageable pageable);
+    long countByUpGroups(String upGroupId);
 
     List<SolrPeptiform> findAllByGeneGroups(String geneGroupId);
     Page<SolrPeptiform> findByGeneGroups(String geneGroupId, Pageable pageable);
+    long countByGeneGroups(String geneGroupId);
 
 
     /*
      * General queries, not field specific
      */
 
-    @Query(value = SolrPeptiform.TEXT + ":?0")
+    @Query(value = TEXT_QUERY)
     Page<SolrPeptiform> findByQuery(String query, Pageable pageable);
 
     @Facet(fields = {PEPTIFORM_TAXID}, limit = 100)
-    @Query(value = SolrPeptiform.TEXT + ":?0")
+    @Query(value = TEXT_QUERY)
     FacetPage<SolrPeptiform> findByQueryFacetTaxid(String query, Pageable pageable);
 
-    @Query(value = "-"+ TEXT + ":?0")
+    @Query(value = TEXT_NOT_QUERY)
     Page<SolrPeptiform> findByQueryNot(String query, Pageable pageable);
 
-    @Query(value = TEXT+":?0", filters = PEPTIFORM_TAXID+":(?1)", defaultOperator = AND)
+    @Query(value = TEXT_QUERY, filters = TAXID_FILTER, defaultOperator = AND)
     Page<SolrPeptiform> findByQueryAndFilterTaxid(String query, Collection<Integer> taxIds, Pageable pageable);
 
 
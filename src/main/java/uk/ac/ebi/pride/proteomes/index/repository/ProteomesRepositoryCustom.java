@@ -1,9 +1,16 @@
 package uk.ac.ebi.pride.proteomes.index.repository;
 
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.solr.core.query.result.FacetFieldEntry;
+import uk.ac.ebi.pride.proteomes.index.model.FacetSummary;
+import uk.ac.ebi.pride.proteomes.index.model.PeptiformProjection;
+import uk.ac.ebi.pride.proteomes.index.model.SolrPeptiform;
 
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 /**
  * @author florian@ebi.ac.uk
@@ -18,4 +25,66 @@ public interface ProteomesRepositoryCustom {
 
     public Page<FacetFieldEntry> getGeneGroupCounts(int page, int size, boolean soryByIndex);
     public Page<FacetFieldEntry> getGeneGroupCountsBySpecies(Collection<Integer> taxids, int page, int size, boolean soryByIndex);
+
+    public FacetSummary getFacetSummary(String query, Collection<Integer> taxids, Collection<String> facetFields, int page, int size, boolean sortByIndex);
+
+    /*
+     * Count queries matching the @Query annotated find methods in ProteomesRepository,
+     * they only retrieve the number of results (no documents).
+     */
+    public long countBySpecies(String species);
+    public long countByQuery(String query);
+    public long countByQueryNot(String query);
+    public long countByQueryAndFilterTaxid(String query, Collection<Integer> taxIds);
+    public long countBySubSequence(String subSequence);
+
+    /*
+     * Find queries matching the find methods in ProteomesRepository, but only the
+     * fields of the projection are loaded into the SolrPeptiform beans.
+     */
+    public Page<SolrPeptiform> findAll(Pageable pageable, PeptiformProjection projection);
+    public Page<SolrPeptiform> findBySequence(String sequence, Pageable pageable, PeptiformProjection projection);
+    public Page<SolrPeptiform> findByTaxid(int taxid, Pageable pageable, PeptiformProjection projection);
+    public Page<SolrPeptiform> findByProteins(String proteinAcc, Pageable pageable, PeptiformProjection projection);
+    public Page<SolrPeptiform> findByUpGroups(String upGroupId, Pageable pageable, PeptiformProjection projection);
+    public Page<SolrPeptiform> findByGeneGroups(String geneGroupId, Pageable pageable, PeptiformProjection projection);
+    public Page<SolrPeptiform> findByQuery(String query, Pageable pageable, PeptiformProjection projection);
+    public Page<SolrPeptiform> findByQueryAndFilterTaxid(String query, Collection<Integer> taxIds, Pageable pageable, PeptiformProjection projection);
+
+    /*
+     * All PeptiForms with one of the IDs in a single request, in no particular order.
+     * The number of IDs is limited by the maxBooleanClauses of the Solr configuration.
+     */
+    public List<SolrPeptiform> findByIds(Collection<String> ids, PeptiformProjection projection);
+
+    /*
+     * The PeptiForms of each protein, with the exact number of PeptiForms per protein and at most
+     * rowsPerProtein PeptiForms, in a single request (result grouping with one group per protein).
+     * The number of proteins is limited by the maxBooleanClauses of the Solr configuration.
+     */
+    public Map<String, Page<SolrPeptiform>> findByProteinsGrouped(Collection<String> proteinAccs, Collection<Integer> taxids, int rowsPerProtein);
+
+    /*
+     * The IDs of the PeptiForms matching the query and taxid filters as findByQueryAndFilterTaxid (or
+     * findByQuery without filters, or all PeptiForms without a query), in the same order (by relevance),
+     * at most limit IDs. The IDs are read with deep paging, only the ID field is loaded.
+     */
+    public List<String> findIdsByQuery(String query, Collection<Integer> taxIds, int limit);
+
+    public Iterator<SolrPeptiform> streamAll(int pageSize);
+    public Iterator<SolrPeptiform> streamByQuery(String query, int pageSize);
+    public Iterator<SolrPeptiform> streamByProteins(String proteinAcc, int pageSize);
+    public Iterator<SolrPeptiform> streamByUpGroups(String upGroupId, int pageSize);
+    public Iterator<SolrPeptiform> streamByGeneGroups(String geneGroupId, int pageSize);
+
+    /*
+     * All values of a facet field (e.g. proteins) with their PeptiForm counts, sorted by value.
+     * Pages of values are fetched lazily (see FacetCursor), the number of distinct values is not computed.
+     */
+    public Iterator<FacetFieldEntry> streamFacetCounts(String facetField, Collection<Integer> taxids, int pageSize);
+
+    /*
+     * As streamFacetCounts, sorted by value or by decreasing count as the getXyzCounts pages.
+     */
+    public Iterator<FacetFieldEntry> streamFacetCounts(String facetField, Collection<Integer> taxids, int pageSize, boolean sortByIndex);
 }
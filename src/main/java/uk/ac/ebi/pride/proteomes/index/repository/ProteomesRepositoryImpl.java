@@ -1,14 +1,34 @@
 package uk.ac.ebi.pride.proteomes.index.repository;
 
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.beans.DocumentObjectBinder;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.GroupCommand;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.GroupParams;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.solr.core.DefaultQueryParser;
+import org.springframework.data.solr.core.QueryParser;
+import org.springframework.data.solr.core.SolrCallback;
 import org.springframework.data.solr.core.SolrTemplate;
 import org.springframework.data.solr.core.query.*;
 import org.springframework.data.solr.core.query.result.*;
 import org.springframework.stereotype.Repository;
+import uk.ac.ebi.pride.proteomes.index.model.FacetSummary;
+import uk.ac.ebi.pride.proteomes.index.model.PeptiformProjection;
 import uk.ac.ebi.pride.proteomes.index.model.SolrPeptiform;
 
 import javax.annotation.Resource;
+import java.io.IOException;
 import java.util.*;
 
 import static uk.ac.ebi.pride.proteomes.index.model.SolrPeptiformFields.*;
@@ -20,37 +40,385 @@ import static uk.ac.ebi.pride.proteomes.index.model.SolrPeptiformFields.*;
 @SuppressWarnings("unused")
 public class ProteomesRepositoryImpl implements ProteomesRepositoryCustom {
 
+    private static final String TAXID_FILTER_TAG = "taxid";
+    private static final int TAXID_FACET_LIMIT = 100;
+    // IDs read per request by findIdsByQuery
+    private static final int ID_PAGE_SIZE = 10000;
+
+    private static final QueryParser QUERY_PARSER = new DefaultQueryParser();
+
     @Resource
     SolrTemplate solrTemplate;
 
+    // answers the protein and group count pages if there is one, see FacetCountStore
+    @Autowired(required = false)
+    FacetCountStore facetCountStore;
+
+    private FacetDistinctCounter distinctCounter;
+
     @Override
     public Page<FacetFieldEntry> getProteinCounts(int page, int size, boolean soryByIndex) {
-        return getCounts(PROTEINS, null, null, page, size, soryByIndex);
+        return getCountsBySpecies(PROTEINS, null, page, size, soryByIndex);
     }
 
     @Override
     public Page<FacetFieldEntry> getProteinCountsBySpecies(Collection<Integer> taxids, int page, int size, boolean soryByIndex) {
-        return getCounts(PROTEINS, PEPTIFORM_TAXID, createQueryValues(taxids), page, size, soryByIndex);
+        return getCountsBySpecies(PROTEINS, taxids, page, size, soryByIndex);
     }
 
     @Override
     public Page<FacetFieldEntry> getUPGroupCounts(int page, int size, boolean soryByIndex) {
-        return getCounts(UP_GROUPS, null, null, page, size, soryByIndex);
+        return getCountsBySpecies(UP_GROUPS, null, page, size, soryByIndex);
     }
 
     @Override
     public Page<FacetFieldEntry> getUPGroupCountsBySpecies(Collection<Integer> taxids, int page, int size, boolean soryByIndex) {
-        return getCounts(UP_GROUPS, PEPTIFORM_TAXID, createQueryValues(taxids), page, size, soryByIndex);
+        return getCountsBySpecies(UP_GROUPS, taxids, page, size, soryByIndex);
     }
 
     @Override
     public Page<FacetFieldEntry> getGeneGroupCounts(int page, int size, boolean soryByIndex) {
-        return getCounts(GENE_GROUPS, null, null, page, size, soryByIndex);
+        return getCountsBySpecies(GENE_GROUPS, null, page, size, soryByIndex);
     }
 
     @Override
     public Page<FacetFieldEntry> getGeneGroupCountsBySpecies(Collection<Integer> taxids, int page, int size, boolean soryByIndex) {
-        return getCounts(GENE_GROUPS, PEPTIFORM_TAXID, createQueryValues(taxids), page, size, soryByIndex);
+        return getCountsBySpecies(GENE_GROUPS, taxids, page, size, soryByIndex);
+    }
+
+    /**
+     * The hit count, the taxid facets and a page of values for each of the requested facet
+     * fields come from one facet request. The query and the taxid filter are the ones of
+     * findByQueryAndFilterTaxid (default operator AND), so the hit count is the one of
+     * countByQueryAndFilterTaxid. The taxid filter is excluded from the taxid facets, so
+     * they show the counts for all species matching the query.
+     *
+     * The distinct counts (the total elements of the facet pages) are not part of that
+     * response, they come from the distinct counter: its cached counts are checked against
+     * the index version (a Luke request at most once per check interval, see
+     * IndexVersionTracker) and the fields without an up to date count are counted together
+     * with one more request.
+     */
+    @Override
+    public FacetSummary getFacetSummary(String query, Collection<Integer> taxids, Collection<String> facetFields, int page, int size, boolean sortByIndex) {
+        if (facetFields == null) {
+            facetFields = Collections.emptyList();
+        }
+        if (facetFields.contains(PEPTIFORM_TAXID)) {
+            throw new IllegalArgumentException("The taxid counts are always part of the summary!");
+        }
+        PageRequest pageRequest = new PageRequest(page, size);
+
+        String queryString = (query == null || query.trim().isEmpty()) ? "*:*" : queryString(textCriteria(query));
+        String filterQuery = (taxids == null || taxids.isEmpty()) ? null : queryString(taxidFilterCriteria(taxids));
+        // the default operator of the annotated query with the taxid filter
+        Query.Operator defaultOperator = (filterQuery == null) ? null : Query.Operator.AND;
+
+        SolrQuery solrQuery = new SolrQuery(queryString);
+        if (filterQuery != null) {
+            solrQuery.addFilterQuery("{!tag=" + TAXID_FILTER_TAG + "}" + filterQuery);
+            solrQuery.set("q.op", defaultOperator.asQueryStringRepresentation());
+        }
+        solrQuery.setRows(0);
+        solrQuery.setFields(ID);
+        solrQuery.setFacet(true);
+        solrQuery.setFacetMinCount(1);
+        solrQuery.addFacetField("{!ex=" + TAXID_FILTER_TAG + "}" + PEPTIFORM_TAXID);
+        solrQuery.set("f." + PEPTIFORM_TAXID + "." + FacetParams.FACET_LIMIT, TAXID_FACET_LIMIT);
+        for (String facetField : facetFields) {
+            solrQuery.addFacetField(facetField);
+            solrQuery.set("f." + facetField + "." + FacetParams.FACET_OFFSET, pageRequest.getOffset());
+            solrQuery.set("f." + facetField + "." + FacetParams.FACET_LIMIT, size);
+            solrQuery.set("f." + facetField + "." + FacetParams.FACET_SORT, sortByIndex ? FacetParams.FACET_SORT_INDEX : FacetParams.FACET_SORT_COUNT);
+        }
+        QueryResponse response = query(solrQuery);
+
+        Map<Integer, Long> taxidCounts = new HashMap<Integer, Long>();
+        FacetField taxidFacet = response.getFacetField(PEPTIFORM_TAXID);
+        if (taxidFacet != null && taxidFacet.getValues() != null) {
+            for (FacetField.Count count : taxidFacet.getValues()) {
+                taxidCounts.put(Integer.parseInt(count.getName()), count.getCount());
+            }
+        }
+
+        Map<String, Page<FacetFieldEntry>> facetPages = new LinkedHashMap<String, Page<FacetFieldEntry>>();
+        if (!facetFields.isEmpty()) {
+            Map<String, Long> totals = getDistinctCounter().countDistinct(facetFields, queryString, filterQuery, defaultOperator);
+            for (String facetField : facetFields) {
+                List<FacetFieldEntry> entries = new ArrayList<FacetFieldEntry>(size);
+                FacetField facet = response.getFacetField(facetField);
+                if (facet != null && facet.getValues() != null) {
+                    SimpleField field = new SimpleField(facetField);
+                    for (FacetField.Count count : facet.getValues()) {
+                        entries.add(new SimpleFacetFieldEntry(field, count.getName(), count.getCount()));
+                    }
+                }
+                facetPages.put(facetField, new SolrResultPage<FacetFieldEntry>(entries, pageRequest, totals.get(facetField), 0.0f));
+            }
+        }
+
+        return new FacetSummary(response.getResults().getNumFound(), taxidCounts, facetPages);
+    }
+
+    @Override
+    public long countBySpecies(String species) {
+        return count(new Criteria(PEPTIFORM_SPECIES).expression(species), null);
+    }
+
+    @Override
+    public long countByQuery(String query) {
+        return count(textCriteria(query), null);
+    }
+
+    @Override
+    public long countByQueryNot(String query) {
+        return count(textCriteria(query).not(), null);
+    }
+
+    @Override
+    public long countByQueryAndFilterTaxid(String query, Collection<Integer> taxIds) {
+        return count(textCriteria(query), taxidFilterCriteria(taxIds));
+    }
+
+    @Override
+    public long countBySubSequence(String subSequence) {
+        return count(new Criteria(PEPTIFORM_SEQUENCE_KMERS).expression(subSequence), null);
+    }
+
+    @Override
+    public Page<SolrPeptiform> findAll(Pageable pageable, PeptiformProjection projection) {
+        return find(new SimpleStringCriteria("*:*"), null, pageable, projection);
+    }
+
+    @Override
+    public Page<SolrPeptiform> findBySequence(String sequence, Pageable pageable, PeptiformProjection projection) {
+        return find(new Criteria(PEPTIFORM_SEQUENCE).is(sequence), null, pageable, projection);
+    }
+
+    @Override
+    public Page<SolrPeptiform> findByTaxid(int taxid, Pageable pageable, PeptiformProjection projection) {
+        return find(new Criteria(PEPTIFORM_TAXID).is(taxid), null, pageable, projection);
+    }
+
+    @Override
+    public Page<SolrPeptiform> findByProteins(String proteinAcc, Pageable pageable, PeptiformProjection projection) {
+        return find(new Criteria(PROTEINS).is(proteinAcc), null, pageable, projection);
+    }
+
+    @Override
+    public Page<SolrPeptiform> findByUpGroups(String upGroupId, Pageable pageable, PeptiformProjection projection) {
+        return find(new Criteria(UP_GROUPS).is(upGroupId), null, pageable, projection);
+    }
+
+    @Override
+    public Page<SolrPeptiform> findByGeneGroups(String geneGroupId, Pageable pageable, PeptiformProjection projection) {
+        return find(new Criteria(GENE_GROUPS).is(geneGroupId), null, pageable, projection);
+    }
+
+    @Override
+    public Page<SolrPeptiform> findByQuery(String query, Pageable pageable, PeptiformProjection projection) {
+        return find(textCriteria(query), null, pageable, projection);
+    }
+
+    @Override
+    public Page<SolrPeptiform> findByQueryAndFilterTaxid(String query, Collection<Integer> taxIds, Pageable pageable, PeptiformProjection projection) {
+        return find(textCriteria(query), taxidFilterCriteria(taxIds), pageable, projection);
+    }
+
+    @Override
+    public List<SolrPeptiform> findByIds(Collection<String> ids, PeptiformProjection projection) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return find(new Criteria(ID).in(ids), null, new PageRequest(0, ids.size()), projection).getContent();
+    }
+
+    @Override
+    public Map<String, Page<SolrPeptiform>> findByProteinsGrouped(Collection<String> proteinAccs, Collection<Integer> taxids, int rowsPerProtein) {
+        Map<String, String> groupQueries = new LinkedHashMap<String, String>();
+        for (String proteinAcc : proteinAccs) {
+            groupQueries.put(proteinAcc, PROTEINS + ":" + ClientUtils.escapeQueryChars(proteinAcc));
+        }
+        if (groupQueries.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        SolrQuery solrQuery = new SolrQuery(QueryStrings.createFilterQuery(PROTEINS, groupQueries.keySet()));
+        if (taxids != null && !taxids.isEmpty()) {
+            solrQuery.addFilterQuery(QueryStrings.createFilterQuery(PEPTIFORM_TAXID, createQueryValues(taxids)));
+        }
+        solrQuery.set(GroupParams.GROUP, true);
+        for (String groupQuery : groupQueries.values()) {
+            solrQuery.add(GroupParams.GROUP_QUERY, groupQuery);
+        }
+        // a group needs at least one row, the counts are exact in any case
+        solrQuery.set(GroupParams.GROUP_LIMIT, Math.max(rowsPerProtein, 1));
+        QueryResponse response = query(solrQuery);
+
+        Map<String, SolrDocumentList> groups = new HashMap<String, SolrDocumentList>();
+        for (GroupCommand command : response.getGroupResponse().getValues()) {
+            if (!command.getValues().isEmpty()) {
+                groups.put(command.getName(), command.getValues().get(0).getResult());
+            }
+        }
+
+        DocumentObjectBinder binder = solrTemplate.getSolrServer().getBinder();
+        Pageable pageable = new PageRequest(0, Math.max(rowsPerProtein, 1));
+        Map<String, Page<SolrPeptiform>> result = new LinkedHashMap<String, Page<SolrPeptiform>>();
+        for (Map.Entry<String, String> entry : groupQueries.entrySet()) {
+            SolrDocumentList docs = groups.get(entry.getValue());
+            List<SolrPeptiform> peptiforms = new ArrayList<SolrPeptiform>();
+            long total = 0;
+            if (docs != null) {
+                total = docs.getNumFound();
+                peptiforms.addAll(binder.getBeans(SolrPeptiform.class, docs));
+                if (peptiforms.size() > rowsPerProtein) {
+                    peptiforms = peptiforms.subList(0, rowsPerProtein);
+                }
+            }
+            result.put(entry.getKey(), new PageImpl<SolrPeptiform>(peptiforms, pageable, total));
+        }
+        return result;
+    }
+
+    @Override
+    public Iterator<SolrPeptiform> streamAll(int pageSize) {
+        return new PeptiformCursor(solrTemplate, "*:*", pageSize);
+    }
+
+    @Override
+    public Iterator<SolrPeptiform> streamByQuery(String query, int pageSize) {
+        // same as the findByQuery, the query goes straight to the general search field (wildcards allowed)
+        return new PeptiformCursor(solrTemplate, TEXT + ":" + query, pageSize);
+    }
+
+    @Override
+    public Iterator<SolrPeptiform> streamByProteins(String proteinAcc, int pageSize) {
+        return new PeptiformCursor(solrTemplate, PROTEINS + ":" + ClientUtils.escapeQueryChars(proteinAcc), pageSize);
+    }
+
+    @Override
+    public Iterator<SolrPeptiform> streamByUpGroups(String upGroupId, int pageSize) {
+        return new PeptiformCursor(solrTemplate, UP_GROUPS + ":" + ClientUtils.escapeQueryChars(upGroupId), pageSize);
+    }
+
+    @Override
+    public Iterator<SolrPeptiform> streamByGeneGroups(String geneGroupId, int pageSize) {
+        return new PeptiformCursor(solrTemplate, GENE_GROUPS + ":" + ClientUtils.escapeQueryChars(geneGroupId), pageSize);
+    }
+
+    @Override
+    public Iterator<FacetFieldEntry> streamFacetCounts(String facetField, Collection<Integer> taxids, int pageSize) {
+        return streamFacetCounts(facetField, taxids, pageSize, true);
+    }
+
+    @Override
+    public Iterator<FacetFieldEntry> streamFacetCounts(String facetField, Collection<Integer> taxids, int pageSize, boolean sortByIndex) {
+        String filterQuery = (taxids == null || taxids.isEmpty()) ? null : QueryStrings.createFilterQuery(PEPTIFORM_TAXID, createQueryValues(taxids));
+        return new FacetCursor(solrTemplate, facetField, filterQuery, pageSize, sortByIndex);
+    }
+
+    @Override
+    public List<String> findIdsByQuery(String query, Collection<Integer> taxIds, int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("The limit needs to be positive!");
+        }
+        SolrQuery solrQuery;
+        if (taxIds == null || taxIds.isEmpty()) {
+            boolean all = (query == null || query.trim().isEmpty());
+            solrQuery = new SolrQuery(all ? "*:*" : queryString(textCriteria(query)));
+        } else {
+            // same as the annotated find query with filters, which matches everything with a * query
+            String term = (query == null || query.trim().isEmpty()) ? "*" : query;
+            solrQuery = new SolrQuery(queryString(textCriteria(term)));
+            solrQuery.addFilterQuery(queryString(taxidFilterCriteria(taxIds)));
+            solrQuery.set("q.op", "AND");
+        }
+        solrQuery.setFields(ID);
+        // the default order of the find queries, the cursor adds the ID as tie breaker
+        solrQuery.setSort("score", SolrQuery.ORDER.desc);
+
+        List<String> ids = new ArrayList<String>();
+        Iterator<SolrPeptiform> cursor = new PeptiformCursor(solrTemplate, solrQuery, Math.min(limit, ID_PAGE_SIZE));
+        while (ids.size() < limit && cursor.hasNext()) {
+            ids.add(cursor.next().getId());
+        }
+        return ids;
+    }
+
+    private QueryResponse query(final SolrQuery solrQuery) {
+        return solrTemplate.execute(new SolrCallback<QueryResponse>() {
+            @Override
+            public QueryResponse doInSolr(SolrServer solrServer) throws SolrServerException, IOException {
+                return solrServer.query(solrQuery);
+            }
+        });
+    }
+
+    // find query restricted to the fields of the projection (fl parameter), the other
+    // stored fields are neither transferred nor bound to the beans
+    private Page<SolrPeptiform> find(Criteria criteria, Criteria filter, Pageable pageable, PeptiformProjection projection) {
+        if (projection == null) {
+            throw new IllegalArgumentException("A projection is required!");
+        }
+        SimpleQuery query = new SimpleQuery(criteria, pageable);
+        if (filter != null) {
+            query.addFilterQuery(new SimpleFilterQuery(filter));
+            // same as the annotated find query with filters
+            query.setDefaultOperator(Query.Operator.AND);
+        }
+        for (String field : projection.getFields()) {
+            query.addProjectionOnField(field);
+        }
+        return solrTemplate.queryForPage(query, SolrPeptiform.class);
+    }
+
+    // count only query, Solr is asked for the number of results only (rows=0),
+    // so no stored fields are loaded and nothing is bound to beans
+    private long count(Criteria criteria, Criteria filter) {
+        SimpleQuery query = new SimpleQuery(criteria);
+        if (filter != null) {
+            query.addFilterQuery(new SimpleFilterQuery(filter));
+            // same as the annotated find query with filters
+            query.setDefaultOperator(Query.Operator.AND);
+        }
+        return solrTemplate.count(query);
+    }
+
+    /*
+     * The criteria of the custom queries (counts, projections, ...) that correspond to the query
+     * strings of the annotated find methods of ProteomesRepository, built the same way: the terms
+     * go into the query as they are (wildcards and query syntax allowed), the taxids of a filter
+     * are separated by spaces and a filter makes AND the default operator (see count and find).
+     */
+
+    private static Criteria textCriteria(String query) {
+        // ProteomesRepository.TEXT_QUERY
+        return new Criteria(TEXT).expression(query);
+    }
+
+    private static Criteria taxidFilterCriteria(Collection<Integer> taxIds) {
+        // ProteomesRepository.TAXID_FILTER
+        StringBuilder taxids = new StringBuilder("(");
+        for (Integer taxId : taxIds) {
+            if (taxids.length() > 1) {
+                taxids.append(' ');
+            }
+            taxids.append(taxId);
+        }
+        return new Criteria(PEPTIFORM_TAXID).expression(taxids.append(')').toString());
+    }
+
+    // the query string Spring Data Solr creates for the criteria
+    private static String queryString(Criteria criteria) {
+        return QUERY_PARSER.getQueryString(new SimpleQuery(criteria));
+    }
+
+    private synchronized FacetDistinctCounter getDistinctCounter() {
+        if (distinctCounter == null) {
+            distinctCounter = new FacetDistinctCounter(solrTemplate);
+        }
+        return distinctCounter;
     }
 
     private static List<String> createQueryValues(Collection<Integer> taxids) {
@@ -66,6 +434,17 @@ public class ProteomesRepositoryImpl implements ProteomesRepositoryCustom {
         return values;
     }
 
+    // counts of the PeptiForms of the taxids (all PeptiForms if null), from the count store if there is one
+    private Page<FacetFieldEntry> getCountsBySpecies(String facetField, Collection<Integer> taxids, int page, int size, boolean sortByIndex) {
+        if (facetCountStore != null) {
+            return facetCountStore.getCounts(facetField, taxids, page, size, sortByIndex);
+        }
+        if (taxids == null) {
+            return getCounts(facetField, null, null, page, size, sortByIndex);
+        }
+        return getCounts(facetField, PEPTIFORM_TAXID, createQueryValues(taxids), page, size, sortByIndex);
+    }
+
     // count method based on Solr facets
     private Page<FacetFieldEntry> getCounts(String facetField, String searchField, List<String> searchValues, int page, int size, boolean sortByIndex) {
 
@@ -99,37 +478,14 @@ public class ProteomesRepositoryImpl implements ProteomesRepositoryCustom {
 
         FacetPage<SolrPeptiform> facetPage = solrTemplate.queryForFacetPage(facetQuery, SolrPeptiform.class);
 
-        FacetOptions options2 = new FacetOptions(facetField);
-        options2.setFacetLimit(10000000);
-        FacetQuery facetQuery2 = facetQuery.setFacetOptions(options2);
-        FacetPage<SolrPeptiform> facetPage2 = solrTemplate.queryForFacetPage(facetQuery2, SolrPeptiform.class);
-
-        long totalCount = facetPage2.getFacetResultPage(facetField).getContent().size();
-
-
-        // stats version
-//        StatsOptions statsOptions = new StatsOptions()
-//                .addField(facetField)
-//                .setSelectiveCalcDistinct(true)
-//                .setCalcDistinct(true);
-//
-//
-//        SimpleQuery statsQuery = new SimpleQuery(criteria);
-//        statsQuery.setStatsOptions(statsOptions);
-//        StatsPage<Peptiform> statsPage = solrTemplate.queryForStatsPage(statsQuery, Peptiform.class);
-//        FieldStatsResult priceStatResult = statsPage.getFieldStatsResult(facetField);
-//        long totalCountStats = 0;
-//        if (priceStatResult != null) {
-//            totalCountStats = priceStatResult.getDistinctCount();
-//        }
-//
+        // the total is the number of distinct facet values, not the number of documents,
+        // it is cached by the counter until the index changes
+        long totalCount = getDistinctCounter().countDistinct(facetField, searchField, searchValues);
 
         // we don't want to return the full facet page, so we extract the bits we want
         Page<FacetFieldEntry> tempPage = facetPage.getFacetResultPage(facetField);
         PageRequest pageRequest = new PageRequest(tempPage.getNumber(), tempPage.getSize(), tempPage.getSort());
-        // on the result page set the total count of the initial result, not of the paged facet part
-        // ToDo: facetPage.getTotalElements is NOT correct, as it counts the documents, not the unique facet values
-//        return new SolrResultPage<FacetFieldEntry>(tempPage.getContent(), pageRequest, tempPage.getTotalElements(), 0.0f);
+        // the total of the page is the distinct count, facetPage.getTotalElements would count the documents
         return new SolrResultPage<FacetFieldEntry>(tempPage.getContent(), pageRequest, totalCount, 0.0f);
     }
 
@@ -0,0 +1,39 @@
+package uk.ac.ebi.pride.proteomes.index.repository;
+
+import org.apache.solr.client.solrj.util.ClientUtils;
+
+import java.util.Collection;
+
+/**
+ * Solr query strings shared by the repository and its helpers (e.g. the FacetDistinctCounter).
+ *
+ * @author florian@ebi.ac.uk
+ */
+final class QueryStrings {
+
+    private QueryStrings() {
+    }
+
+    /**
+     * @param filterField  the field to match, may be null.
+     * @param filterValues the accepted values (ORed and escaped), null or empty to match all documents.
+     * @return the query, e.g. proteins:(P12345 OR P12346), *:* if there is no field or value.
+     * The number of values is limited by the maxBooleanClauses of the Solr configuration.
+     */
+    static String createFilterQuery(String filterField, Collection<String> filterValues) {
+        if (filterField == null || filterField.trim().isEmpty() || filterValues == null || filterValues.isEmpty()) {
+            // empty filter = match all
+            return "*:*";
+        }
+        StringBuilder sb = new StringBuilder(filterField).append(":(");
+        boolean first = true;
+        for (String value : filterValues) {
+            if (!first) {
+                sb.append(" OR ");
+            }
+            sb.append(ClientUtils.escapeQueryChars(value));
+            first = false;
+        }
+        return sb.append(')').toString();
+    }
+}
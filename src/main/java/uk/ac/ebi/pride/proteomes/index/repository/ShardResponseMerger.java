@@ -0,0 +1,757 @@
+package uk.ac.ebi.pride.proteomes.index.repository;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.*;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.common.util.StrUtils;
+import uk.ac.ebi.pride.proteomes.index.model.PeptiformProjection;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static uk.ac.ebi.pride.proteomes.index.model.SolrPeptiformFields.ID;
+
+/**
+ * Sends a query to several shards in parallel and merges their responses in-process, used by
+ * the TaxidShardedSolrServer when not all shards have an address for a Solr distributed search.
+ * The request to the shards is rewritten so that the merged response is the same as that of a
+ * single core with all documents, except for the scores:
+ *
+ * - documents: the numbers of matches are summed. Every shard returns its first start + rows
+ * documents with the fields of the sort (default score desc), which are merged by the sort,
+ * missing values last and equal documents in shard order, before start and rows are applied.
+ * Fields only added for the sort are removed again. Without a fl parameter the shards return
+ * the fields of PeptiformProjection.ALL, the default fields of the /select handler. Scores are
+ * computed by every shard with the term statistics (IDF) of its own documents, as in a Solr 4
+ * distributed search: the order of a score sort is only that of a single core if the shards
+ * have similar statistics, which partitions by taxid do not have for the species specific terms.
+ *
+ * - cursorMark: the merged cursor mark combines the cursor marks of the shards (separated by
+ * commas), each shard is queried from its own mark. A shard of which only some documents have
+ * been returned is queried again for the mark after them.
+ *
+ * - facet fields: as in a Solr distributed search, every shard returns its first offset + limit
+ * values with some headroom (x 1.5 + 10), the counts are summed and the shards that may have
+ * more values are asked for the counts of the candidates they did not return (facet.field with
+ * the terms local parameter). Unlike Solr, the page is exact: if a value that no shard returned
+ * could still be part of it, the shards are queried again for twice as many values. Without a
+ * limit or with facet.mincount=0 (not used by the services) all values are fetched. In index
+ * order the values of a field are compared as numbers if they are all integers (the int fields,
+ * e.g. the taxids), as strings otherwise.
+ *
+ * - group.query: the matches are summed and the documents of every group are merged as above,
+ * with group.sort, group.offset and group.limit.
+ *
+ * Other components are not merged, requests with stats, highlighting, facet queries, range, date
+ * or pivot facets, grouping by field or function, or sorting by a function are rejected with an
+ * IllegalStateException. The FacetCountStore queries the shards of its pivot facets itself.
+ *
+ * @author florian@ebi.ac.uk
+ */
+final class ShardResponseMerger {
+
+    // the rows of the /select handler if the request has none
+    private static final int DEFAULT_ROWS = 10;
+    private static final String DEFAULT_SORT = "score desc";
+    private static final String SCORE = "score";
+    private static final String CURSOR_SEPARATOR = ",";
+    private static final Pattern FACET_KEY = Pattern.compile("\\bkey=([^\\s}]+)");
+    private static final Pattern INTEGER = Pattern.compile("-?\\d+");
+    // the facet.overrequest.ratio and facet.overrequest.count defaults of a Solr distributed search
+    private static final double OVERREQUEST_RATIO = 1.5;
+    private static final int OVERREQUEST_COUNT = 10;
+    private static final String TERMS_PARAM = "refine_terms";
+
+    private final List<SolrServer> shards;
+    private final ExecutorService executor;
+    private final QueryRequest request;
+    private final SolrParams params;
+
+    private ShardResponseMerger(List<SolrServer> shards, ExecutorService executor, QueryRequest request) {
+        this.shards = shards;
+        this.executor = executor;
+        this.request = request;
+        this.params = request.getParams();
+    }
+
+    /**
+     * @param shards   the servers of the shards to query.
+     * @param executor runs the requests to all shards but the first, which is queried by the calling thread.
+     * @param request  the query.
+     * @return the merged response.
+     */
+    static NamedList<Object> query(List<SolrServer> shards, ExecutorService executor, QueryRequest request)
+            throws SolrServerException, IOException {
+        return new ShardResponseMerger(shards, executor, request).query();
+    }
+
+    private NamedList<Object> query() throws SolrServerException, IOException {
+        checkSupported();
+        boolean grouped = params.getBool(GroupParams.GROUP, false);
+        boolean faceted = params.getBool(FacetParams.FACET, false);
+        String cursorMark = params.get(CursorMarkParams.CURSOR_MARK_PARAM);
+        int start = params.getInt(CommonParams.START, 0);
+        int rows = params.getInt(CommonParams.ROWS, DEFAULT_ROWS);
+        List<SortClause> sort = SortClause.parse(params.get(CommonParams.SORT, DEFAULT_SORT));
+        List<SortClause> groupSort = SortClause.parse(params.get(GroupParams.GROUP_SORT, params.get(CommonParams.SORT, DEFAULT_SORT)));
+
+        ModifiableSolrParams shardParams = new ModifiableSolrParams(params);
+        Set<String> addedFields = addSortFields(shardParams, grouped ? groupSort : sort);
+        if (grouped) {
+            int groupOffset = params.getInt(GroupParams.GROUP_OFFSET, 0);
+            shardParams.set(GroupParams.GROUP_OFFSET, 0);
+            shardParams.set(GroupParams.GROUP_LIMIT, groupOffset + params.getInt(GroupParams.GROUP_LIMIT, 1));
+        } else if (cursorMark == null) {
+            shardParams.set(CommonParams.START, 0);
+            shardParams.set(CommonParams.ROWS, start + rows);
+        }
+        if (faceted) {
+            limitFacets(shardParams);
+        }
+
+        String[] shardMarks = null;
+        List<ModifiableSolrParams> requests = new ArrayList<ModifiableSolrParams>(shards.size());
+        if (cursorMark != null) {
+            shardMarks = splitCursorMark(cursorMark);
+        }
+        for (int i = 0; i < shards.size(); i++) {
+            ModifiableSolrParams shardRequest = new ModifiableSolrParams(shardParams);
+            if (shardMarks != null) {
+                shardRequest.set(CursorMarkParams.CURSOR_MARK_PARAM, shardMarks[i]);
+            }
+            requests.add(shardRequest);
+        }
+        List<NamedList<Object>> responses = requestAll(requests);
+
+        NamedList<Object> response = new NamedList<Object>();
+        response.add("responseHeader", mergeHeaders(responses));
+        if (grouped) {
+            response.add("grouped", mergeGroups(responses, groupSort, addedFields));
+        } else {
+            List<Integer> sources = new ArrayList<Integer>();
+            List<SolrDocumentList> docLists = new ArrayList<SolrDocumentList>(responses.size());
+            for (NamedList<Object> shardResponse : responses) {
+                docLists.add((SolrDocumentList) shardResponse.get("response"));
+            }
+            response.add("response", mergeDocs(docLists, sort, (cursorMark == null) ? start : 0, rows, addedFields, sources));
+            if (cursorMark != null) {
+                response.add(CursorMarkParams.CURSOR_MARK_NEXT, nextCursorMark(cursorMark, shardMarks, responses, sources, shardParams));
+            }
+        }
+        if (faceted) {
+            response.add("facet_counts", mergeFacets(responses));
+        }
+        return response;
+    }
+
+    private void checkSupported() {
+        if (params.getBool(StatsParams.STATS, false) || params.getBool(HighlightParams.HIGHLIGHT, false)) {
+            throw new IllegalStateException("Stats and highlighting are not merged across shards!");
+        }
+        if (params.get(FacetParams.FACET_RANGE) != null || params.get(FacetParams.FACET_DATE) != null
+                || params.get(FacetParams.FACET_PIVOT) != null || params.get(FacetParams.FACET_QUERY) != null) {
+            throw new IllegalStateException("Only facet fields are merged across shards!");
+        }
+        String groupFormat = params.get(GroupParams.GROUP_FORMAT, "grouped");
+        if (params.getBool(GroupParams.GROUP, false) && (params.get(GroupParams.GROUP_FIELD) != null
+                || params.get(GroupParams.GROUP_FUNC) != null || params.getBool(GroupParams.GROUP_MAIN, false)
+                || !"grouped".equals(groupFormat))) {
+            throw new IllegalStateException("Only group.query results are merged across shards!");
+        }
+    }
+
+    // the fields of the sort that the shards would not return, they are removed from the merged documents
+    private Set<String> addSortFields(ModifiableSolrParams shardParams, List<SortClause> sort) {
+        Set<String> fields = new LinkedHashSet<String>();
+        String[] fl = params.getParams(CommonParams.FL);
+        if (fl == null) {
+            fields.addAll(PeptiformProjection.ALL.getFields());
+        } else {
+            for (String value : fl) {
+                fields.addAll(Arrays.asList(value.trim().split("[,\\s]+")));
+            }
+        }
+        Set<String> added = new LinkedHashSet<String>();
+        for (SortClause clause : sort) {
+            boolean returned = fields.contains(clause.field) || (!SCORE.equals(clause.field) && fields.contains("*"));
+            if (!returned) {
+                added.add(clause.field);
+            }
+        }
+        fields.addAll(added);
+        StringBuilder shardFl = new StringBuilder();
+        for (String field : fields) {
+            if (field.length() > 0) {
+                shardFl.append((shardFl.length() == 0) ? "" : ",").append(field);
+            }
+        }
+        shardParams.set(CommonParams.FL, shardFl.toString());
+        return added;
+    }
+
+    // the first values of every facet field, with the offset and mincount of the sums not applied per shard
+    private void limitFacets(ModifiableSolrParams shardParams) {
+        for (String field : facetFields()) {
+            limitFacet(shardParams, field, shardLimit(field));
+        }
+    }
+
+    private void limitFacet(ModifiableSolrParams shardParams, String field, int shardLimit) {
+        shardParams.set("f." + field + "." + FacetParams.FACET_LIMIT, shardLimit);
+        shardParams.set("f." + field + "." + FacetParams.FACET_OFFSET, 0);
+        shardParams.set("f." + field + "." + FacetParams.FACET_MINCOUNT, Math.min(1, minCount(field)));
+    }
+
+    // offset + limit with the headroom of a Solr distributed search, all values without limit or mincount
+    private int shardLimit(String field) {
+        int limit = params.getFieldInt(field, FacetParams.FACET_LIMIT, 100);
+        if (limit < 0 || minCount(field) <= 0) {
+            return -1;
+        }
+        long shardLimit = (long) ((params.getFieldInt(field, FacetParams.FACET_OFFSET, 0) + (long) limit) * OVERREQUEST_RATIO)
+                + OVERREQUEST_COUNT;
+        return (shardLimit > Integer.MAX_VALUE) ? -1 : (int) shardLimit;
+    }
+
+    private List<String> facetFields() {
+        List<String> fields = new ArrayList<String>();
+        String[] facetFields = params.getParams(FacetParams.FACET_FIELD);
+        if (facetFields != null) {
+            for (String facetField : facetFields) {
+                fields.add(localParamsValue(facetField));
+            }
+        }
+        return fields;
+    }
+
+    private int minCount(String field) {
+        return params.getFieldInt(field, FacetParams.FACET_MINCOUNT, 0);
+    }
+
+    // the responses in shard order, null for the shards without a request
+    private List<NamedList<Object>> requestAll(List<ModifiableSolrParams> requests) throws SolrServerException, IOException {
+        List<Future<NamedList<Object>>> futures = new ArrayList<Future<NamedList<Object>>>(shards.size());
+        for (int i = 1; i < shards.size(); i++) {
+            if (requests.get(i) == null) {
+                futures.add(null);
+                continue;
+            }
+            final SolrServer shard = shards.get(i);
+            final QueryRequest shardRequest = shardRequest(requests.get(i));
+            futures.add(executor.submit(new Callable<NamedList<Object>>() {
+                @Override
+                public NamedList<Object> call() throws Exception {
+                    return shard.request(shardRequest);
+                }
+            }));
+        }
+        List<NamedList<Object>> responses = new ArrayList<NamedList<Object>>(shards.size());
+        try {
+            responses.add((requests.get(0) == null) ? null : shards.get(0).request(shardRequest(requests.get(0))));
+            for (Future<NamedList<Object>> future : futures) {
+                responses.add((future == null) ? null : future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SolrServerException("Interrupted while waiting for the shards", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SolrServerException) {
+                throw (SolrServerException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SolrServerException(cause);
+        } finally {
+            for (Future<NamedList<Object>> future : futures) {
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+        }
+        return responses;
+    }
+
+    private QueryRequest shardRequest(SolrParams shardParams) {
+        QueryRequest shardRequest = new QueryRequest(shardParams, request.getMethod());
+        shardRequest.setPath(request.getPath());
+        shardRequest.setResponseParser(request.getResponseParser());
+        return shardRequest;
+    }
+
+    // the header of the first shard, with the longest QTime of all shards
+    private static NamedList<Object> mergeHeaders(List<NamedList<Object>> responses) {
+        NamedList<Object> header = new SimpleOrderedMap<Object>();
+        int qTime = 0;
+        for (NamedList<Object> response : responses) {
+            NamedList<?> shardHeader = (NamedList<?>) response.get("responseHeader");
+            Object shardQTime = (shardHeader == null) ? null : shardHeader.get("QTime");
+            if (shardQTime instanceof Number) {
+                qTime = Math.max(qTime, ((Number) shardQTime).intValue());
+            }
+        }
+        header.add("status", 0);
+        header.add("QTime", qTime);
+        return header;
+    }
+
+    private static SolrDocumentList mergeDocs(List<SolrDocumentList> docLists, List<SortClause> sort, int start, int rows,
+                                              Set<String> addedFields, List<Integer> sources) {
+        SolrDocumentList merged = new SolrDocumentList();
+        merged.setStart(start);
+        long numFound = 0;
+        Float maxScore = null;
+        // stable sort, so equal documents stay in shard order
+        List<SolrDocument> all = new ArrayList<SolrDocument>();
+        final Map<SolrDocument, Integer> shardOf = new IdentityHashMap<SolrDocument, Integer>();
+        for (int shard = 0; shard < docLists.size(); shard++) {
+            SolrDocumentList docs = docLists.get(shard);
+            if (docs == null) {
+                continue;
+            }
+            numFound += docs.getNumFound();
+            if (docs.getMaxScore() != null && (maxScore == null || docs.getMaxScore() > maxScore)) {
+                maxScore = docs.getMaxScore();
+            }
+            for (SolrDocument doc : docs) {
+                all.add(doc);
+                shardOf.put(doc, shard);
+            }
+        }
+        Collections.sort(all, SortClause.comparator(sort));
+        merged.setNumFound(numFound);
+        merged.setMaxScore(maxScore);
+        for (int i = start; i < Math.min(all.size(), start + rows); i++) {
+            SolrDocument doc = all.get(i);
+            for (String field : addedFields) {
+                doc.removeFields(field);
+            }
+            merged.add(doc);
+            sources.add(shardOf.get(doc));
+        }
+        return merged;
+    }
+
+    private String nextCursorMark(String cursorMark, String[] shardMarks, List<NamedList<Object>> responses,
+                                  List<Integer> sources, ModifiableSolrParams shardParams) throws SolrServerException, IOException {
+        String[] nextMarks = new String[shards.size()];
+        boolean moved = false;
+        for (int shard = 0; shard < shards.size(); shard++) {
+            int returned = ((SolrDocumentList) responses.get(shard).get("response")).size();
+            int consumed = Collections.frequency(sources, shard);
+            if (consumed == 0) {
+                nextMarks[shard] = shardMarks[shard];
+            } else if (consumed == returned) {
+                nextMarks[shard] = (String) responses.get(shard).get(CursorMarkParams.CURSOR_MARK_NEXT);
+            } else {
+                // the mark after the documents of the shard that are part of the merged page
+                ModifiableSolrParams markParams = new ModifiableSolrParams(shardParams);
+                markParams.set(CursorMarkParams.CURSOR_MARK_PARAM, shardMarks[shard]);
+                markParams.set(CommonParams.ROWS, consumed);
+                markParams.set(CommonParams.FL, ID);
+                markParams.set(FacetParams.FACET, false);
+                nextMarks[shard] = (String) shards.get(shard).request(shardRequest(markParams)).get(CursorMarkParams.CURSOR_MARK_NEXT);
+            }
+            moved |= !nextMarks[shard].equals(shardMarks[shard]);
+        }
+        // like Solr, the same mark once all documents have been returned
+        if (!moved) {
+            return cursorMark;
+        }
+        StringBuilder mark = new StringBuilder();
+        for (String nextMark : nextMarks) {
+            mark.append((mark.length() == 0) ? "" : CURSOR_SEPARATOR).append(nextMark);
+        }
+        return mark.toString();
+    }
+
+    private String[] splitCursorMark(String cursorMark) {
+        String[] marks = new String[shards.size()];
+        if (CursorMarkParams.CURSOR_MARK_START.equals(cursorMark)) {
+            Arrays.fill(marks, CursorMarkParams.CURSOR_MARK_START);
+            return marks;
+        }
+        String[] split = cursorMark.split(CURSOR_SEPARATOR, -1);
+        if (split.length != marks.length) {
+            throw new IllegalArgumentException("The cursor mark " + cursorMark + " does not belong to these shards!");
+        }
+        return split;
+    }
+
+    @SuppressWarnings("unchecked")
+    private NamedList<Object> mergeGroups(List<NamedList<Object>> responses, List<SortClause> groupSort, Set<String> addedFields) {
+        int groupOffset = params.getInt(GroupParams.GROUP_OFFSET, 0);
+        int groupLimit = params.getInt(GroupParams.GROUP_LIMIT, 1);
+        Map<String, Integer> matches = new LinkedHashMap<String, Integer>();
+        Map<String, List<SolrDocumentList>> docLists = new LinkedHashMap<String, List<SolrDocumentList>>();
+        for (NamedList<Object> response : responses) {
+            NamedList<Object> grouped = (NamedList<Object>) response.get("grouped");
+            if (grouped == null) {
+                continue;
+            }
+            for (Map.Entry<String, Object> command : grouped) {
+                NamedList<Object> group = (NamedList<Object>) command.getValue();
+                Integer count = matches.get(command.getKey());
+                matches.put(command.getKey(), ((count == null) ? 0 : count) + ((Number) group.get("matches")).intValue());
+                if (!docLists.containsKey(command.getKey())) {
+                    docLists.put(command.getKey(), new ArrayList<SolrDocumentList>());
+                }
+                docLists.get(command.getKey()).add((SolrDocumentList) group.get("doclist"));
+            }
+        }
+        NamedList<Object> merged = new SimpleOrderedMap<Object>();
+        for (Map.Entry<String, Integer> entry : matches.entrySet()) {
+            NamedList<Object> group = new SimpleOrderedMap<Object>();
+            group.add("matches", entry.getValue());
+            group.add("doclist", mergeDocs(docLists.get(entry.getKey()), groupSort, groupOffset, groupLimit,
+                    addedFields, new ArrayList<Integer>()));
+            merged.add(entry.getKey(), group);
+        }
+        return merged;
+    }
+
+    private NamedList<Object> mergeFacets(List<NamedList<Object>> responses) throws SolrServerException, IOException {
+        NamedList<NamedList<Integer>> mergedFields = new SimpleOrderedMap<NamedList<Integer>>();
+        String[] facetFields = params.getParams(FacetParams.FACET_FIELD);
+        for (String facetField : (facetFields == null) ? new String[0] : facetFields) {
+            String key = facetKey(facetField);
+            if (mergedFields.get(key) == null) {
+                mergedFields.add(key, mergeField(facetField, fieldCounts(responses, key)));
+            }
+        }
+        NamedList<Object> merged = new SimpleOrderedMap<Object>();
+        merged.add("facet_queries", new SimpleOrderedMap<Integer>());
+        merged.add("facet_fields", mergedFields);
+        merged.add("facet_dates", new SimpleOrderedMap<Object>());
+        merged.add("facet_ranges", new SimpleOrderedMap<Object>());
+        return merged;
+    }
+
+    // the counts of a facet field returned by every shard, empty for a shard without response
+    @SuppressWarnings("unchecked")
+    private static List<NamedList<Number>> fieldCounts(List<NamedList<Object>> responses, String key) {
+        List<NamedList<Number>> fieldCounts = new ArrayList<NamedList<Number>>(responses.size());
+        for (NamedList<Object> response : responses) {
+            NamedList<Object> facetCounts = (response == null) ? null : (NamedList<Object>) response.get("facet_counts");
+            NamedList<Object> facetFields = (facetCounts == null) ? null : (NamedList<Object>) facetCounts.get("facet_fields");
+            NamedList<Number> counts = (facetFields == null) ? null : (NamedList<Number>) facetFields.get(key);
+            fieldCounts.add((counts == null) ? new NamedList<Number>() : counts);
+        }
+        return fieldCounts;
+    }
+
+    // The summed counts of a field with the sort, offset, limit and mincount of the request. A shard
+    // that returned as many values as requested (full) may have more values, all with at most the
+    // count of its last value (count order) or after its last value (index order). The shards are
+    // asked for the counts of the candidates they did not return (refinement), and if the page may
+    // still miss a value that no shard has returned, they are queried again for twice as many values.
+    private NamedList<Integer> mergeField(String facetField, List<NamedList<Number>> shardCounts)
+            throws SolrServerException, IOException {
+        String field = localParamsValue(facetField);
+        int limit = params.getFieldInt(field, FacetParams.FACET_LIMIT, 100);
+        int offset = params.getFieldInt(field, FacetParams.FACET_OFFSET, 0);
+        int minCount = minCount(field);
+        boolean byCount = isCountSort(field, limit);
+        int shardLimit = shardLimit(field);
+        while (true) {
+            Map<String, Integer> sums = new HashMap<String, Integer>();
+            Map<String, BitSet> returnedBy = new HashMap<String, BitSet>();
+            Integer missing = null;
+            BitSet full = new BitSet();
+            // per full shard the last value and its count, the bound of the values it did not return
+            String[] lastValues = new String[shards.size()];
+            int[] lastCounts = new int[shards.size()];
+            for (int shard = 0; shard < shardCounts.size(); shard++) {
+                int returned = 0;
+                for (Map.Entry<String, Number> entry : shardCounts.get(shard)) {
+                    if (entry.getKey() == null) {
+                        missing = ((missing == null) ? 0 : missing) + entry.getValue().intValue();
+                        continue;
+                    }
+                    add(sums, entry.getKey(), entry.getValue().intValue());
+                    returnedBy(returnedBy, entry.getKey()).set(shard);
+                    lastValues[shard] = entry.getKey();
+                    lastCounts[shard] = entry.getValue().intValue();
+                    returned++;
+                }
+                if (shardLimit >= 0 && returned >= shardLimit) {
+                    full.set(shard);
+                }
+            }
+            Comparator<String> valueOrder = valueOrder(sums.keySet());
+            int end = (limit < 0) ? Integer.MAX_VALUE : offset + limit;
+
+            List<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>();
+            boolean complete;
+            if (byCount) {
+                refine(facetField, sums, returnedBy, full, lastCounts, end, minCount);
+                // the highest count a value that no shard has returned may have
+                int unseen = 0;
+                for (int shard = full.nextSetBit(0); shard >= 0; shard = full.nextSetBit(shard + 1)) {
+                    unseen += lastCounts[shard];
+                }
+                for (Map.Entry<String, Integer> entry : sums.entrySet()) {
+                    BitSet unknown = (BitSet) full.clone();
+                    unknown.andNot(returnedBy.get(entry.getKey()));
+                    // the values that were not refined can not be part of the page
+                    if (unknown.isEmpty() && entry.getValue() >= minCount) {
+                        entries.add(entry);
+                    }
+                }
+                sortByCount(entries, valueOrder);
+                complete = full.isEmpty() || unseen < minCount
+                        || (entries.size() >= end && unseen < entries.get(end - 1).getValue());
+            } else {
+                // the values up to the first last value of the full shards are counted by all shards
+                String bound = null;
+                for (int shard = full.nextSetBit(0); shard >= 0; shard = full.nextSetBit(shard + 1)) {
+                    if (bound == null || valueOrder.compare(lastValues[shard], bound) < 0) {
+                        bound = lastValues[shard];
+                    }
+                }
+                for (Map.Entry<String, Integer> entry : sums.entrySet()) {
+                    if (entry.getValue() >= minCount && (bound == null || valueOrder.compare(entry.getKey(), bound) <= 0)) {
+                        entries.add(entry);
+                    }
+                }
+                sortByValue(entries, valueOrder);
+                complete = bound == null || entries.size() >= end;
+            }
+
+            if (complete) {
+                NamedList<Integer> page = new NamedList<Integer>();
+                for (int i = offset; i < Math.min(entries.size(), end); i++) {
+                    page.add(entries.get(i).getKey(), entries.get(i).getValue());
+                }
+                if (missing != null) {
+                    page.add(null, missing);
+                }
+                return page;
+            }
+            shardLimit = (shardLimit > Integer.MAX_VALUE / 2) ? -1 : shardLimit * 2;
+            List<ModifiableSolrParams> requests = new ArrayList<ModifiableSolrParams>(shards.size());
+            for (int shard = 0; shard < shards.size(); shard++) {
+                ModifiableSolrParams facetRequest = facetRequest(facetField);
+                limitFacet(facetRequest, field, shardLimit);
+                requests.add(facetRequest);
+            }
+            shardCounts = fieldCounts(requestAll(requests), facetKey(facetField));
+        }
+    }
+
+    // adds the counts of the candidate values that a full shard did not return, where they may change the page
+    private void refine(String facetField, Map<String, Integer> sums, Map<String, BitSet> returnedBy,
+                        BitSet full, int[] lastCounts, int end, int minCount) throws SolrServerException, IOException {
+        if (full.isEmpty()) {
+            return;
+        }
+        // the counts the values at least have, the values below the lowest count on the page are not refined
+        List<Integer> known = new ArrayList<Integer>(sums.values());
+        Collections.sort(known, Collections.reverseOrder());
+        int threshold = Math.max(minCount, (known.size() >= end) ? known.get(end - 1) : 0);
+
+        List<List<String>> refinements = new ArrayList<List<String>>(shards.size());
+        for (int shard = 0; shard < shards.size(); shard++) {
+            refinements.add(new ArrayList<String>());
+        }
+        for (Map.Entry<String, Integer> entry : sums.entrySet()) {
+            BitSet unknown = (BitSet) full.clone();
+            unknown.andNot(returnedBy.get(entry.getKey()));
+            int highest = entry.getValue();
+            for (int shard = unknown.nextSetBit(0); shard >= 0; shard = unknown.nextSetBit(shard + 1)) {
+                highest += lastCounts[shard];
+            }
+            if (!unknown.isEmpty() && highest >= threshold) {
+                for (int shard = unknown.nextSetBit(0); shard >= 0; shard = unknown.nextSetBit(shard + 1)) {
+                    refinements.get(shard).add(entry.getKey());
+                }
+            }
+        }
+
+        List<ModifiableSolrParams> requests = new ArrayList<ModifiableSolrParams>(shards.size());
+        for (List<String> values : refinements) {
+            if (values.isEmpty()) {
+                requests.add(null);
+                continue;
+            }
+            // the counts of the listed terms, as in the refinement requests of a Solr distributed search
+            ModifiableSolrParams refineRequest = facetRequest(facetField.startsWith("{!")
+                    ? "{!terms=$" + TERMS_PARAM + " " + facetField.substring(2)
+                    : "{!terms=$" + TERMS_PARAM + "}" + facetField);
+            refineRequest.set(TERMS_PARAM, StrUtils.join(values, ','));
+            requests.add(refineRequest);
+        }
+        List<NamedList<Number>> refinedCounts = fieldCounts(requestAll(requests), facetKey(facetField));
+        for (int shard = 0; shard < refinedCounts.size(); shard++) {
+            for (Map.Entry<String, Number> entry : refinedCounts.get(shard)) {
+                if (entry.getKey() != null && sums.containsKey(entry.getKey())) {
+                    add(sums, entry.getKey(), entry.getValue().intValue());
+                }
+            }
+            // a value without count is not in the shard
+            for (String value : refinements.get(shard)) {
+                returnedBy.get(value).set(shard);
+            }
+        }
+    }
+
+    // a request for the counts of a single facet field, without documents
+    private ModifiableSolrParams facetRequest(String facetField) {
+        ModifiableSolrParams facetParams = new ModifiableSolrParams(params);
+        facetParams.set(CommonParams.START, 0);
+        facetParams.set(CommonParams.ROWS, 0);
+        facetParams.remove(CursorMarkParams.CURSOR_MARK_PARAM);
+        facetParams.set(GroupParams.GROUP, false);
+        facetParams.set(FacetParams.FACET_FIELD, facetField);
+        return facetParams;
+    }
+
+    private boolean isCountSort(String field, int limit) {
+        String sort = params.getFieldParam(field, FacetParams.FACET_SORT, (limit > 0) ? FacetParams.FACET_SORT_COUNT : FacetParams.FACET_SORT_INDEX);
+        return FacetParams.FACET_SORT_COUNT.equals(sort) || FacetParams.FACET_SORT_COUNT_LEGACY.equals(sort);
+    }
+
+    // the values of an int field (e.g. the taxids) are in numeric order in the index
+    private static Comparator<String> valueOrder(Collection<String> values) {
+        boolean integers = true;
+        for (String value : values) {
+            integers &= INTEGER.matcher(value).matches();
+        }
+        final boolean numeric = integers;
+        return new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                return numeric ? Long.valueOf(o1).compareTo(Long.valueOf(o2)) : o1.compareTo(o2);
+            }
+        };
+    }
+
+    private static void sortByValue(List<Map.Entry<String, Integer>> entries, final Comparator<String> valueOrder) {
+        Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> o1, Map.Entry<String, Integer> o2) {
+                return valueOrder.compare(o1.getKey(), o2.getKey());
+            }
+        });
+    }
+
+    // equal counts in index order as in Solr
+    private static void sortByCount(List<Map.Entry<String, Integer>> entries, final Comparator<String> valueOrder) {
+        Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> o1, Map.Entry<String, Integer> o2) {
+                int c = o2.getValue().compareTo(o1.getValue());
+                return (c != 0) ? c : valueOrder.compare(o1.getKey(), o2.getKey());
+            }
+        });
+    }
+
+    private static BitSet returnedBy(Map<String, BitSet> returnedBy, String value) {
+        BitSet shards = returnedBy.get(value);
+        if (shards == null) {
+            shards = new BitSet();
+            returnedBy.put(value, shards);
+        }
+        return shards;
+    }
+
+    private static void add(Map<String, Integer> counts, String key, int count) {
+        Integer sum = counts.get(key);
+        counts.put(key, (sum == null) ? count : sum + count);
+    }
+
+    // the key of a facet field in the response, e.g. peptiform_taxid for {!ex=taxid}peptiform_taxid
+    private static String facetKey(String facetField) {
+        if (facetField.startsWith("{!")) {
+            Matcher key = FACET_KEY.matcher(facetField);
+            if (key.find()) {
+                return key.group(1);
+            }
+        }
+        return localParamsValue(facetField);
+    }
+
+    private static String localParamsValue(String value) {
+        if (value.startsWith("{!")) {
+            int end = value.indexOf('}');
+            return (end < 0) ? value : value.substring(end + 1).trim();
+        }
+        return value.trim();
+    }
+
+    // order of typed field values of the sort, as in the index
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        if (a instanceof Comparable && a.getClass().isInstance(b)) {
+            return ((Comparable<Object>) a).compareTo(b);
+        }
+        return String.valueOf(a).compareTo(String.valueOf(b));
+    }
+
+    /**
+     * A field (or score) of the sort parameter and its direction.
+     */
+    private static final class SortClause {
+        private final String field;
+        private final boolean ascending;
+
+        private SortClause(String field, boolean ascending) {
+            this.field = field;
+            this.ascending = ascending;
+        }
+
+        static List<SortClause> parse(String sort) {
+            List<SortClause> clauses = new ArrayList<SortClause>();
+            for (String clause : sort.split(",")) {
+                String[] parts = clause.trim().split("\\s+");
+                if (parts.length != 2 || parts[0].contains("(")) {
+                    throw new IllegalStateException("Only sorts by fields are merged across shards: " + sort);
+                }
+                clauses.add(new SortClause(parts[0], "asc".equalsIgnoreCase(parts[1])));
+            }
+            return clauses;
+        }
+
+        static Comparator<SolrDocument> comparator(final List<SortClause> sort) {
+            return new Comparator<SolrDocument>() {
+                @Override
+                public int compare(SolrDocument o1, SolrDocument o2) {
+                    for (SortClause clause : sort) {
+                        Object v1 = o1.getFirstValue(clause.field);
+                        Object v2 = o2.getFirstValue(clause.field);
+                        if (v1 == null || v2 == null) {
+                            // missing values last, in both directions
+                            if (v1 != v2) {
+                                return (v1 == null) ? 1 : -1;
+                            }
+                            continue;
+                        }
+                        int c = compareValues(v1, v2);
+                        if (c != 0) {
+                            return clause.ascending ? c : -c;
+                        }
+                    }
+                    return 0;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package uk.ac.ebi.pride.proteomes.index.repository;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.beans.DocumentObjectBinder;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.params.UpdateParams;
+import org.apache.solr.common.util.NamedList;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static uk.ac.ebi.pride.proteomes.index.model.SolrPeptiformFields.ID;
+import static uk.ac.ebi.pride.proteomes.index.model.SolrPeptiformFields.PEPTIFORM_TAXID;
+
+/**
+ * SolrServer for an index partitioned by taxid: every shard (core) holds the PeptiForms of a
+ * group of species, the default shard those of all other species. Use it as the server of the
+ * SolrTemplate of the repository and the ProteomesIndexService:
+ *
+ *   TaxidShardedSolrServer server = new TaxidShardedSolrServer(factory.getSolrServer("other"), null);
+ *   server.addShard("human", factory.getSolrServer("human"), null, 9606);
+ *   new SolrTemplate(server)
+ *
+ * - updates: the documents are sent to the shard of their taxid, so every document needs the
+ * taxid field (for atomic updates a "set" of the unchanged taxid). Deletes and commits are
+ * sent to all shards.
+ *
+ * - queries: if the query (q) or one of the filter queries (fq) only matches some taxids, e.g.
+ * the filters of findByTaxid, findByQueryAndFilterTaxid and the getXyzCountsBySpecies methods,
+ * the request only goes to their shards, a single shard is queried directly. All other queries
+ * go to all shards. If all shards have an address (e.g. localhost:8983/solr/human, taken from the
+ * URL of an HttpSolrServer if none is given), the Solr distributed search (shards parameter) is
+ * run by the default shard. Otherwise, e.g. for EmbeddedSolrServers, the shards are queried in
+ * parallel by this server and the documents, facet counts, group.query results and cursor marks
+ * are merged in-process (see ShardResponseMerger). All methods of the ProteomesSearchService work
+ * with both, including findByQuery, countAll, getTaxidFacets, getFacetSummary, the streamXyz
+ * methods and the snapshots. Requests with stats, highlighting, facet queries, range, date or
+ * pivot facets, grouping by field or sorting by a function (not used by the services) fail with
+ * an IllegalStateException when merged in-process. The facet counts are fetched from the shards
+ * page by page and refined like in a Solr distributed search. With both, the scores of a shard
+ * are computed with the term statistics of its own documents only, so a score sort across
+ * shards is not exactly that of a single core.
+ *
+ * - other requests (e.g. core admin, luke) are sent to the default shard. The index version
+ * used by the caches (see IndexVersionTracker) is combined from all shards.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public class TaxidShardedSolrServer extends SolrServer {
+
+    // a q or fq that only restricts the taxid, e.g. peptiform_taxid:9606 or peptiform_taxid:(9606 OR 10090)
+    private static final Pattern TAXID_CLAUSE = Pattern.compile(
+            "\\s*" + PEPTIFORM_TAXID + ":\\(?\\s*(\\d+(?:\\s+(?:OR\\s+)?\\d+)*)\\s*\\)?\\s*");
+    private static final Pattern SEPARATOR = Pattern.compile("\\s+(?:OR\\s+)?");
+
+    private final Shard defaultShard;
+    private final Map<String, Shard> shards = new LinkedHashMap<String, Shard>();
+    private final Map<Integer, Shard> taxidShards = new HashMap<Integer, Shard>();
+    // queries the shards of in-process merged queries, idle threads are released
+    private final ExecutorService executor = createExecutor();
+
+
+    /**
+     * @param defaultServer  the shard of the taxids that are not assigned to another shard.
+     * @param defaultAddress the address of the shard for distributed searches, null to take it
+     *                       from the URL of an HttpSolrServer.
+     */
+    public TaxidShardedSolrServer(SolrServer defaultServer, String defaultAddress) {
+        if (defaultServer == null) {
+            throw new IllegalArgumentException("A SolrServer is required!");
+        }
+        this.defaultShard = new Shard(defaultServer, address(defaultServer, defaultAddress));
+    }
+
+    /**
+     * @param name    the name of the shard, e.g. the name of its core.
+     * @param server  the server of the shard.
+     * @param address the address of the shard for distributed searches, null to take it
+     *                from the URL of an HttpSolrServer.
+     * @param taxids  the taxids of the PeptiForms in the shard.
+     */
+    public synchronized void addShard(String name, SolrServer server, String address, Integer... taxids) {
+        if (name == null || server == null) {
+            throw new IllegalArgumentException("A name and a SolrServer are required!");
+        }
+        if (shards.containsKey(name)) {
+            throw new IllegalArgumentException("A shard " + name + " already exists!");
+        }
+        Shard shard = new Shard(server, address(server, address));
+        for (Integer taxid : taxids) {
+            if (taxidShards.containsKey(taxid)) {
+                throw new IllegalArgumentException("The taxid " + taxid + " is already assigned to a shard!");
+            }
+        }
+        for (Integer taxid : taxids) {
+            taxidShards.put(taxid, shard);
+        }
+        shards.put(name, shard);
+    }
+
+    /**
+     * @return the servers of all shards, the default shard first.
+     */
+    public synchronized List<SolrServer> getShards() {
+        List<SolrServer> servers = new ArrayList<SolrServer>(shards.size() + 1);
+        for (Shard shard : allShards()) {
+            servers.add(shard.server);
+        }
+        return servers;
+    }
+
+    /**
+     * @return the server of the shard that holds the PeptiForms of the taxid.
+     */
+    public synchronized SolrServer getShard(int taxid) {
+        return shardOf(taxid).server;
+    }
+
+    @Override
+    public NamedList<Object> request(SolrRequest request) throws SolrServerException, IOException {
+        if (request instanceof UpdateRequest) {
+            return update((UpdateRequest) request);
+        }
+        if (request instanceof QueryRequest && (request.getPath() == null || !request.getPath().startsWith("/admin"))) {
+            return query((QueryRequest) request);
+        }
+        return defaultShard.server.request(request);
+    }
+
+    private NamedList<Object> query(QueryRequest request) throws SolrServerException, IOException {
+        SolrParams params = request.getParams();
+        if (params.get(ShardParams.SHARDS) != null) {
+            // already a distributed request
+            return defaultShard.server.request(request);
+        }
+        Collection<Shard> targets;
+        synchronized (this) {
+            targets = targets(params);
+        }
+        if (targets.size() == 1) {
+            return targets.iterator().next().server.request(request);
+        }
+
+        List<SolrServer> servers = new ArrayList<SolrServer>(targets.size());
+        boolean addresses = true;
+        for (Shard shard : targets) {
+            servers.add(shard.server);
+            addresses &= (shard.address != null);
+        }
+        if (!addresses) {
+            return ShardResponseMerger.query(servers, executor, request);
+        }
+        return distributedQuery(request, targets);
+    }
+
+    // the Solr distributed search, run by the default shard
+    private NamedList<Object> distributedQuery(QueryRequest request, Collection<Shard> targets) throws SolrServerException, IOException {
+        StringBuilder addresses = new StringBuilder();
+        for (Shard shard : targets) {
+            if (addresses.length() > 0) {
+                addresses.append(',');
+            }
+            addresses.append(shard.address);
+        }
+        ModifiableSolrParams distributed = new ModifiableSolrParams(request.getParams());
+        distributed.set(ShardParams.SHARDS, addresses.toString());
+        QueryRequest distributedRequest = new QueryRequest(distributed, request.getMethod());
+        distributedRequest.setPath(request.getPath());
+        distributedRequest.setResponseParser(request.getResponseParser());
+        return defaultShard.server.request(distributedRequest);
+    }
+
+    // the shards of the taxid clause with the fewest shards, all shards if there is none
+    private Collection<Shard> targets(SolrParams params) {
+        List<String> clauses = new ArrayList<String>();
+        if (params.get("q") != null) {
+            clauses.add(params.get("q"));
+        }
+        if (params.getParams("fq") != null) {
+            clauses.addAll(Arrays.asList(params.getParams("fq")));
+        }
+        Collection<Shard> targets = allShards();
+        for (String clause : clauses) {
+            Matcher matcher = TAXID_CLAUSE.matcher(clause);
+            if (matcher.matches()) {
+                Set<Shard> clauseShards = new LinkedHashSet<Shard>();
+                for (String taxid : SEPARATOR.split(matcher.group(1).trim())) {
+                    clauseShards.add(shardOf(Integer.parseInt(taxid)));
+                }
+                if (clauseShards.size() < targets.size()) {
+                    targets = clauseShards;
+                }
+            }
+        }
+        return targets;
+    }
+
+    private NamedList<Object> update(UpdateRequest request) throws SolrServerException, IOException {
+        Map<Shard, UpdateRequest> requests = new LinkedHashMap<Shard, UpdateRequest>();
+        synchronized (this) {
+            // deletes and commits go to every shard
+            SolrParams params = request.getParams();
+            boolean all = (request.getDocuments() == null || request.getDocuments().isEmpty())
+                    || (request.getDeleteById() != null && !request.getDeleteById().isEmpty())
+                    || (request.getDeleteQuery() != null && !request.getDeleteQuery().isEmpty())
+                    || (params != null && (params.get(UpdateParams.COMMIT) != null || params.get(UpdateParams.OPTIMIZE) != null));
+            if (all) {
+                for (Shard shard : allShards()) {
+                    requests.put(shard, copy(request, true));
+                }
+            }
+            if (request.getDocuments() != null) {
+                for (SolrInputDocument doc : request.getDocuments()) {
+                    Shard shard = shardOf(taxid(doc));
+                    UpdateRequest shardRequest = requests.get(shard);
+                    if (shardRequest == null) {
+                        shardRequest = copy(request, false);
+                        requests.put(shard, shardRequest);
+                    }
+                    shardRequest.add(doc);
+                }
+            }
+        }
+        NamedList<Object> response = null;
+        for (Map.Entry<Shard, UpdateRequest> entry : requests.entrySet()) {
+            NamedList<Object> shardResponse = entry.getKey().server.request(entry.getValue());
+            if (response == null) {
+                response = shardResponse;
+            }
+        }
+        return response;
+    }
+
+    // the parameters (commit, optimize, ...) and optionally the deletes of the request
+    private static UpdateRequest copy(UpdateRequest request, boolean deletes) {
+        UpdateRequest copy = new UpdateRequest(request.getPath());
+        if (request.getParams() != null) {
+            copy.setParams(new ModifiableSolrParams(request.getParams()));
+        }
+        copy.setCommitWithin(request.getCommitWithin());
+        if (deletes) {
+            if (request.getDeleteById() != null) {
+                copy.deleteById(new ArrayList<String>(request.getDeleteById()));
+            }
+            if (request.getDeleteQuery() != null) {
+                for (String query : request.getDeleteQuery()) {
+                    copy.deleteByQuery(query);
+                }
+            }
+        }
+        return copy;
+    }
+
+    private static int taxid(SolrInputDocument doc) {
+        Object value = doc.getFieldValue(PEPTIFORM_TAXID);
+        if (value instanceof Map) {
+            // atomic update
+            value = ((Map<?, ?>) value).get("set");
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("The document " + doc.getFieldValue(ID) + " has no taxid to choose its shard!");
+        }
+        return (value instanceof Number) ? ((Number) value).intValue() : Integer.parseInt(value.toString());
+    }
+
+    private Shard shardOf(int taxid) {
+        Shard shard = taxidShards.get(taxid);
+        return (shard == null) ? defaultShard : shard;
+    }
+
+    private List<Shard> allShards() {
+        List<Shard> all = new ArrayList<Shard>(shards.size() + 1);
+        all.add(defaultShard);
+        all.addAll(shards.values());
+        return all;
+    }
+
+    private static String address(SolrServer server, String address) {
+        if (address == null && server instanceof HttpSolrServer) {
+            // the shards parameter takes the URLs without the protocol
+            return ((HttpSolrServer) server).getBaseURL().replaceFirst("^https?://", "");
+        }
+        return address;
+    }
+
+    @Override
+    public DocumentObjectBinder getBinder() {
+        return defaultShard.server.getBinder();
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        executor.shutdown();
+        for (Shard shard : allShards()) {
+            shard.server.shutdown();
+        }
+    }
+
+    private static ExecutorService createExecutor() {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "proteomes-shard-" + count.incrementAndGet());
+                // never keep the application from exiting
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static class Shard {
+        private final SolrServer server;
+        private final String address;
+
+        private Shard(SolrServer server, String address) {
+            this.server = server;
+            this.address = address;
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.solr.core.query.result.FacetFieldEntry;
+import org.springframework.stereotype.Service;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureTask;
+import uk.ac.ebi.pride.proteomes.index.model.FacetSummary;
+import uk.ac.ebi.pride.proteomes.index.model.PeptiformProjection;
+import uk.ac.ebi.pride.proteomes.index.model.SolrPeptiform;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking variants of the find, count and facet methods of the ProteomesSearchService.
+ * The methods return immediately, the queries run on an executor. Independent queries (e.g.
+ * the taxid facets, the protein counts and a page of results for one page view) can so run
+ * concurrently and the time to get all results is the time of the slowest query.
+ *
+ * The futures support callbacks (addCallback) and can also simply be waited for with get().
+ * Exceptions of the search service (e.g. for invalid parameters) are reported by the future.
+ *
+ * By default the queries run on a pool of DEFAULT_THREADS daemon threads with a queue of at
+ * most DEFAULT_QUEUE_CAPACITY waiting queries. When the queue is full, the calling thread runs
+ * the query itself before the method returns, so callers that submit faster than Solr answers
+ * are slowed down instead of piling up queries (and their results) in memory. Another executor
+ * (e.g. the one of the web container) can be set with setExecutor.
+ *
+ * @author florian@ebi.ac.uk
+ */
+@Service
+@SuppressWarnings("unused")
+public class AsyncProteomesSearchService {
+
+    public static final int DEFAULT_THREADS = 16;
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    @Resource
+    private ProteomesSearchService proteomesSearchService;
+
+    private Executor executor;
+    // the default executor is created (and shut down) by this service
+    private ExecutorService defaultExecutor;
+
+    public synchronized Executor getExecutor() {
+        if (executor == null) {
+            defaultExecutor = createDefaultExecutor();
+            executor = defaultExecutor;
+        }
+        return executor;
+    }
+
+    /**
+     * @param executor the executor to run the queries on, null for the default executor.
+     */
+    public synchronized void setExecutor(Executor executor) {
+        if (defaultExecutor != null && executor != defaultExecutor) {
+            defaultExecutor.shutdown();
+            defaultExecutor = null;
+        }
+        this.executor = executor;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (defaultExecutor != null) {
+            defaultExecutor.shutdown();
+            defaultExecutor = null;
+            executor = null;
+        }
+    }
+
+    private static ExecutorService createDefaultExecutor() {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(DEFAULT_QUEUE_CAPACITY), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "proteomes-search-" + count.incrementAndGet());
+                // never keep the application from exiting
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        // idle threads are released
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private <T> ListenableFuture<T> submit(Callable<T> query) {
+        ListenableFutureTask<T> task = new ListenableFutureTask<T>(query);
+        getExecutor().execute(task);
+        return task;
+    }
+
+    /*
+     * Global queries, query for all records
+     */
+
+    public ListenableFuture<Page<SolrPeptiform>> findAll(final Pageable pageable) {
+        return submit(new Callable<Page<SolrPeptiform>>() {
+            @Override
+            public Page<SolrPeptiform> call() {
+                return proteomesSearchService.findAll(pageable);
+            }
+        });
+    }
+    public ListenableFuture<Page<SolrPeptiform>> findAll(final Pageable pageable, final PeptiformProjection projection) {
+        return submit(new Callable<Page<SolrPeptiform>>() {
+            @Override
+            public Page<SolrPeptiform> call() {
+                return proteomesSearchService.findAll(pageable, projection);
+            }
+        });
+    }
+    public ListenableFuture<Long> countAll() {
+        return submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return proteomesSearchService.countAll();
+            }
+        });
+    }
+    public ListenableFuture<Map<Integer, Long>> getTaxidFacets() {
+        return submit(new Callable<Map<Integer, Long>>() {
+            @Override
+            public Map<Integer, Long> call() {
+                return proteomesSearchService.getTaxidFacets();
+            }
+        });
+    }
+
+    /*
+     * Queries for specific fields
+     */
+
+    public ListenableFuture<SolrPeptiform> findById(final String id) {
+        return submit(new Callable<SolrPeptiform>() {
+            @Override
+            public SolrPeptiform call() {
+                return proteomesSearchService.findById(id);
+            }
+        });
+    }
+
+    public ListenableFuture<Page<SolrPeptiform>> findBySequence(final String sequence, final Pageable pageable) {
+        return submit(new Callable<Page<SolrPeptiform>>() {
+            @Override
+            public Page<SolrPeptiform> call() {
+                return proteomesSearchService.findBySequence(sequence, pageable);
+            }
+        });
+    }
+    public ListenableFuture<Long> countBySequence(final String sequence) {
+        return submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return proteomesSearchService.countBySequence(sequence);
+            }
+        });
+    }
+
+    public ListenableFuture<Page<SolrPeptiform>> findByTaxid(final int taxid, final Pageable pageable) {
+        return submit(new Callable<Page<SolrPeptiform>>() {
+            @Override
+            public Page<SolrPeptiform> call() {
+                return proteomesSearchService.findByTaxid(taxid, pageable);
+            }
+        });
+    }
+    public ListenableFuture<Long> countByTaxid(final int taxid) {
+        return submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return proteomesSearchService.countByTaxid(taxid);
+            }
+        });
+    }
+
+    public ListenableFuture<Page<SolrPeptiform>> findBySpecies(final String species, final Pageable pageable) {
+        return submit(new Callable<Page<SolrPeptiform>>() {
+            @Override
+            public Page<SolrPeptiform> call() {
+                return proteomesSearchService.findBySpecies(species, pageable);
+            }
+        });
+    }
+    public ListenableFuture<Long> countBySpecies(final String species) {
+        return submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return proteomesSearchService.countBySpecies(species);
+            }
+        });
+    }
+
+    public ListenableFuture<Page<SolrPeptiform>> findByProtein(final String proteinAccession, final Pageable pageable) {
+        return submit(new Callable<Page<SolrPeptiform>>() {
+            @Override
+            public Page<SolrPeptiform> call() {
+                return proteomesSearchService.findByProtein(proteinAccession, pageable);
+            }
+        });
+    }
+    public ListenableFuture<Long> countByProtein(final String proteinAccession) {
+        return submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return proteomesSearchService.countByProtein(proteinAccession);
+            }
+        });
+    }
+
+    public ListenableFuture<Page<SolrPeptiform>> findByMod(final String mod, final Pageable pageable) {
+        return submit(new Callable<Page<SolrPeptiform>>() {
+            @Override
+            public Page<SolrPeptiform> call() {
+                return proteomesSearchService.findByMod(mod, pageable);
+            }
+        });
+    }
+    public ListenableFuture<Long> countByMod(final String mod) {
+        return submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return proteomesSearchService.countByMod(mod);
+            }
+        });
+    }
+
+    public ListenableFuture<Page<SolrPeptiform>> findByUpGroup(final String upGroupId, final Pageable pageable) {
+        return submit(new Callable<Page<SolrPeptiform>>() {
+            @Override
+            public Page<SolrPeptiform> call() {
+                return proteomesSearchService.findByUpGroup(upGroupId, pageable);
+            }
+        });
+    }
+    public ListenableFuture<Long> countByUpGroup(final String upGroupId) {
+        return submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return proteomesSearchService.countByUpGroup(upGroupId);
+            }
+        });
+    }
+
+    public ListenableFuture<Page<SolrPeptiform>> findByGeneGroup(final String geneGroupId, final Pageable pageable) {
+        return submit(new Callable<Page<SolrPeptiform>>() {
+            @Override
+            public Page<SolrPeptiform> call() {
+                return proteomesSearchService.findByGeneGroup(geneGroupId, pageable);
+            }
+        });
+    }
+    public ListenableFuture<Long> countByGeneGroup(final String geneGroupId) {
+        return submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return proteomesSearchService.countByGeneGroup(geneGroupId);
+            }
+        });
+    }
+
+    /*
+     * General queries, not field specific
+     */
+
+    public ListenableFuture<Page<SolrPeptiform>> findByQuery(final String query, final Pageable pageable) {
+        return submit(new Callable<Page<SolrPeptiform>>() {
+            @Override
+            public Page<SolrPeptiform> call() {
+                return proteomesSearchService.findByQuery(query, pageable);
+            }
+        });
+    }
+    public ListenableFuture<Page<SolrPeptiform>> findByQuery(final String query, final Pageable pageable, final PeptiformProjection projection) {
+        return submit(new Callable<Page<SolrPeptiform>>() {
+            @Override
+            public Page<SolrPeptiform> call() {
+                return proteomesSearchService.findByQuery(query, pageable, projection);
+            }
+        });
+    }
+    public ListenableFuture<Long> countByQuery(final String query) {
+        return submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return proteomesSearchService.countByQuery(query);
+            }
+        });
+    }
+    public ListenableFuture<Map<Integer, Long>> getTaxidFacetsByQuery(final String query) {
+        return submit(new Callable<Map<Integer, Long>>() {
+            @Override
+            public Map<Integer, Long> call() {
+                return proteomesSearchService.getTaxidFacetsByQuery(query);
+            }
+        });
+    }
+
+    public ListenableFuture<Page<SolrPeptiform>> findByQueryAndFilterTaxid(final String query, final Collection<Integer> taxIds, final Pageable pageable) {
+        return submit(new Callable<Page<SolrPeptiform>>() {
+            @Override
+            public Page<SolrPeptiform> call() {
+                return proteomesSearchService.findByQueryAndFilterTaxid(query, taxIds, pageable);
+            }
+        });
+    }
+    public ListenableFuture<Page<SolrPeptiform>> findByQueryAndFilterTaxid(final String query, final Collection<Integer> taxIds, final Pageable pageable, final PeptiformProjection projection) {
+        return submit(new Callable<Page<SolrPeptiform>>() {
+            @Override
+            public Page<SolrPeptiform> call() {
+                return proteomesSearchService.findByQueryAndFilterTaxid(query, taxIds, pageable, projection);
+            }
+        });
+    }
+    public ListenableFuture<Long> countByQueryAndFilterTaxid(final String query, final Collection<Integer> taxIds) {
+        return submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return proteomesSearchService.countByQueryAndFilterTaxid(query, taxIds);
+            }
+        });
+    }
+
+    /*
+     * Facet counts
+     */
+
+    public ListenableFuture<Page<FacetFieldEntry>> getProteinCounts(final int page, final int size, final boolean sortByIndex) {
+        return submit(new Callable<Page<FacetFieldEntry>>() {
+            @Override
+            public Page<FacetFieldEntry> call() {
+                return proteomesSearchService.getProteinCounts(page, size, sortByIndex);
+            }
+        });
+    }
+    public ListenableFuture<Page<FacetFieldEntry>> getProteinCountsBySpecies(final Collection<Integer> taxids, final int page, final int size, final boolean sortByIndex) {
+        return submit(new Callable<Page<FacetFieldEntry>>() {
+            @Override
+            public Page<FacetFieldEntry> call() {
+                return proteomesSearchService.getProteinCountsBySpecies(taxids, page, size, sortByIndex);
+            }
+        });
+    }
+
+    public ListenableFuture<Page<FacetFieldEntry>> getUPGroupCounts(final int page, final int size, final boolean sortByIndex) {
+        return submit(new Callable<Page<FacetFieldEntry>>() {
+            @Override
+            public Page<FacetFieldEntry> call() {
+                return proteomesSearchService.getUPGroupCounts(page, size, sortByIndex);
+            }
+        });
+    }
+    public ListenableFuture<Page<FacetFieldEntry>> getUPGroupCountsBySpecies(final Collection<Integer> taxids, final int page, final int size, final boolean sortByIndex) {
+        return submit(new Callable<Page<FacetFieldEntry>>() {
+            @Override
+            public Page<FacetFieldEntry> call() {
+                return proteomesSearchService.getUPGroupCountsBySpecies(taxids, page, size, sortByIndex);
+            }
+        });
+    }
+
+    public ListenableFuture<Page<FacetFieldEntry>> getGeneGroupCounts(final int page, final int size, final boolean sortByIndex) {
+        return submit(new Callable<Page<FacetFieldEntry>>() {
+            @Override
+            public Page<FacetFieldEntry> call() {
+                return proteomesSearchService.getGeneGroupCounts(page, size, sortByIndex);
+            }
+        });
+    }
+    public ListenableFuture<Page<FacetFieldEntry>> getGeneGroupCountsBySpecies(final Collection<Integer> taxids, final int page, final int size, final boolean sortByIndex) {
+        return submit(new Callable<Page<FacetFieldEntry>>() {
+            @Override
+            public Page<FacetFieldEntry> call() {
+                return proteomesSearchService.getGeneGroupCountsBySpecies(taxids, page, size, sortByIndex);
+            }
+        });
+    }
+
+    public ListenableFuture<FacetSummary> getFacetSummary(final String query, final Collection<Integer> taxids, final Collection<String> facetFields, final int page, final int size, final boolean sortByIndex) {
+        return submit(new Callable<FacetSummary>() {
+            @Override
+            public FacetSummary call() {
+                return proteomesSearchService.getFacetSummary(query, taxids, facetFields, page, size, sortByIndex);
+            }
+        });
+    }
+}
@@ -0,0 +1,109 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+/**
+ * Settings for the bulk indexing in {@link ProteomesIndexService#saveAll}.
+ *
+ * The number of documents held in memory at any time is bounded by
+ * (threads + queueCapacity) * batchSize, independent of the size of the data set.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public class BulkIndexOptions {
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_QUEUE_CAPACITY = 4;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_RETRY_DELAY = 500;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int threads = DEFAULT_THREADS;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private long retryDelay = DEFAULT_RETRY_DELAY;
+    private int commitWithin = -1;
+
+
+    /**
+     * @return the number of documents sent to Solr in one request.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size needs to be positive!");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the number of batches submitted to Solr concurrently.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of threads needs to be positive!");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @return the number of batches waiting for a free thread, before the producer is blocked.
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 0) {
+            throw new IllegalArgumentException("The queue capacity can not be negative!");
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * @return the number of times a failed batch is resubmitted before it is counted as failed.
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("The number of retries can not be negative!");
+        }
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @return the delay in milliseconds before the first retry, doubled for every further retry.
+     */
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    public void setRetryDelay(long retryDelay) {
+        if (retryDelay < 0) {
+            throw new IllegalArgumentException("The retry delay can not be negative!");
+        }
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * @return the commitWithin in milliseconds passed to Solr with every batch, a value < 1 means
+     * the commitWithin of the CommitPolicy of the index service. The commit at the end of the run
+     * is the one of the CommitPolicy as well.
+     */
+    public int getCommitWithin() {
+        return commitWithin;
+    }
+
+    public void setCommitWithin(int commitWithin) {
+        this.commitWithin = commitWithin;
+    }
+}
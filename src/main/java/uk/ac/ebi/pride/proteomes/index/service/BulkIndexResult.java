@@ -0,0 +1,82 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+/**
+ * Statistics of a bulk indexing run, see {@link ProteomesIndexService#saveAll}.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public class BulkIndexResult {
+
+    private final long documents;
+    private final long failedDocuments;
+    private final int batches;
+    private final int failedBatches;
+    private final int retries;
+    private final long elapsedMillis;
+
+    public BulkIndexResult(long documents, long failedDocuments, int batches, int failedBatches, int retries, long elapsedMillis) {
+        this.documents = documents;
+        this.failedDocuments = failedDocuments;
+        this.batches = batches;
+        this.failedBatches = failedBatches;
+        this.retries = retries;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * @return the number of documents successfully sent to the index.
+     */
+    public long getDocuments() {
+        return documents;
+    }
+
+    /**
+     * @return the number of documents in batches that failed after all retries.
+     */
+    public long getFailedDocuments() {
+        return failedDocuments;
+    }
+
+    public int getBatches() {
+        return batches;
+    }
+
+    public int getFailedBatches() {
+        return failedBatches;
+    }
+
+    /**
+     * @return the total number of resubmitted batches.
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public double getDocsPerSecond() {
+        if (elapsedMillis < 1) {
+            return documents;
+        }
+        return documents * 1000d / elapsedMillis;
+    }
+
+    public boolean isSuccessful() {
+        return failedBatches == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "BulkIndexResult{" +
+                "documents=" + documents +
+                ", failedDocuments=" + failedDocuments +
+                ", batches=" + batches +
+                ", failedBatches=" + failedBatches +
+                ", retries=" + retries +
+                ", elapsedMillis=" + elapsedMillis +
+                ", docsPerSecond=" + String.format("%.1f", getDocsPerSecond()) +
+                '}';
+    }
+}
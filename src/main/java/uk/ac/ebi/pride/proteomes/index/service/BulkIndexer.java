@@ -0,0 +1,136 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.solr.core.SolrCallback;
+import org.springframework.data.solr.core.SolrTemplate;
+import uk.ac.ebi.pride.proteomes.index.model.SolrPeptiform;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cuts a stream of PeptiForms into batches and submits them to Solr with a bounded pool of
+ * worker threads. The producer (the calling thread) blocks as soon as all workers are busy
+ * and the queue is full, so only a fixed number of batches is ever held in memory.
+ *
+ * One instance is used for one run.
+ *
+ * @author florian@ebi.ac.uk
+ */
+class BulkIndexer {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkIndexer.class);
+
+    private final SolrTemplate solrTemplate;
+    private final BulkIndexOptions options;
+    private final int commitWithin;
+    private final CommitPolicy.Commit commit;
+
+    private final AtomicLong documents = new AtomicLong();
+    private final AtomicLong failedDocuments = new AtomicLong();
+    private final AtomicInteger failedBatches = new AtomicInteger();
+    private final AtomicInteger retries = new AtomicInteger();
+
+
+    /**
+     * @param commitWithin the commitWithin sent with every batch, a value < 1 means none.
+     * @param commit the commit at the end of the run.
+     */
+    BulkIndexer(SolrTemplate solrTemplate, BulkIndexOptions options, int commitWithin, CommitPolicy.Commit commit) {
+        this.solrTemplate = solrTemplate;
+        this.options = options;
+        this.commitWithin = commitWithin;
+        this.commit = commit;
+    }
+
+    BulkIndexResult index(Iterator<SolrPeptiform> peptiforms) {
+        long start = System.currentTimeMillis();
+        int batches = 0;
+
+        // a batch needs a permit to be created, the permit is only released once the
+        // batch has been sent, this is what keeps the memory usage flat
+        final Semaphore permits = new Semaphore(options.getThreads() + options.getQueueCapacity());
+        ExecutorService executor = new ThreadPoolExecutor(options.getThreads(), options.getThreads(),
+                0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        try {
+            while (peptiforms.hasNext()) {
+                permits.acquire();
+                final List<SolrPeptiform> batch = new ArrayList<SolrPeptiform>(options.getBatchSize());
+                while (peptiforms.hasNext() && batch.size() < options.getBatchSize()) {
+                    batch.add(ContentHash.update(peptiforms.next()));
+                }
+                batches++;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            submit(batch);
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            // wait for the batches still in flight
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.debug("Waiting for bulk index batches to complete.");
+            }
+        } catch (RuntimeException e) {
+            // failure of the producer, the batches already queued are still sent
+            executor.shutdown();
+            throw e;
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Bulk indexing was interrupted after " + documents.get() + " documents.", e);
+        }
+
+        CommitPolicy.commit(solrTemplate, commit);
+
+        return new BulkIndexResult(documents.get(), failedDocuments.get(), batches, failedBatches.get(),
+                retries.get(), System.currentTimeMillis() - start);
+    }
+
+    private void submit(final List<SolrPeptiform> batch) {
+        long delay = options.getRetryDelay();
+        for (int attempt = 0; ; attempt++) {
+            try {
+                solrTemplate.execute(new SolrCallback<Object>() {
+                    @Override
+                    public Object doInSolr(SolrServer solrServer) throws SolrServerException, IOException {
+                        return solrServer.addBeans(batch, commitWithin);
+                    }
+                });
+                documents.addAndGet(batch.size());
+                return;
+            } catch (RuntimeException e) {
+                if (attempt >= options.getMaxRetries()) {
+                    logger.error("Failed to index batch starting with " + batch.get(0).getId() + " after " + attempt + " retries.", e);
+                    failedBatches.incrementAndGet();
+                    failedDocuments.addAndGet(batch.size());
+                    return;
+                }
+                logger.warn("Failed to index batch starting with " + batch.get(0).getId() + ", retrying.", e);
+                retries.incrementAndGet();
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    failedBatches.incrementAndGet();
+                    failedDocuments.addAndGet(batch.size());
+                    return;
+                }
+                delay *= 2;
+            }
+        }
+    }
+}
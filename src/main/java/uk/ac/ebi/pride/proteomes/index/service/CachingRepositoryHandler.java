@@ -0,0 +1,153 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+import uk.ac.ebi.pride.proteomes.index.repository.IndexVersionTracker;
+import uk.ac.ebi.pride.proteomes.index.repository.ProteomesRepository;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+
+/**
+ * Serves the count and facet queries (countXyz and getXyz methods) of a ProteomesRepository
+ * from a ResultCache and/or a RequestCoalescer. The results are cached and the running queries
+ * are shared by method and arguments, all other methods (find, stream, save, ...) go straight
+ * to the repository. The coalescer is behind the cache, so concurrent cache misses of the same
+ * query are sent to Solr once.
+ *
+ * The keys include the index version (see IndexVersionTracker), so a result is only served for
+ * the version it was computed on, also when changes become visible later than the call that
+ * sent them (e.g. with a commitWithin). Without a version the results are not cached.
+ *
+ * @author florian@ebi.ac.uk
+ */
+class CachingRepositoryHandler implements InvocationHandler {
+
+    private final ProteomesRepository repository;
+    private final ResultCache cache;
+    private final RequestCoalescer coalescer;
+    private final IndexVersionTracker versionTracker;
+
+    private CachingRepositoryHandler(ProteomesRepository repository, ResultCache cache, RequestCoalescer coalescer,
+                                     IndexVersionTracker versionTracker) {
+        this.repository = repository;
+        this.cache = cache;
+        this.coalescer = coalescer;
+        this.versionTracker = versionTracker;
+    }
+
+    /**
+     * @param cache          the cache of the results, null for none.
+     * @param coalescer      the coalescer of the running queries, null for none.
+     * @param versionTracker the version of the index the repository queries.
+     * @return the repository if there is neither a cache nor a coalescer.
+     */
+    static ProteomesRepository wrap(ProteomesRepository repository, ResultCache cache, RequestCoalescer coalescer,
+                                    IndexVersionTracker versionTracker) {
+        if (cache == null && coalescer == null) {
+            return repository;
+        }
+        if (versionTracker == null) {
+            throw new IllegalArgumentException("An IndexVersionTracker is required!");
+        }
+        return (ProteomesRepository) Proxy.newProxyInstance(ProteomesRepository.class.getClassLoader(),
+                new Class<?>[]{ProteomesRepository.class}, new CachingRepositoryHandler(repository, cache, coalescer, versionTracker));
+    }
+
+    static boolean isCached(Method method) {
+        String name = method.getName();
+        return method.getDeclaringClass() != Object.class && (name.startsWith("count") || name.startsWith("get"));
+    }
+
+    @Override
+    public Object invoke(Object proxy, final Method method, final Object[] args) throws Throwable {
+        if (!isCached(method)) {
+            return invoke(method, args);
+        }
+        long version = versionTracker.getVersion();
+        if (version < 0) {
+            return invoke(method, args);
+        }
+        final MethodCallKey key = new MethodCallKey(method, args, version);
+        Callable<Object> query = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return invoke(method, args);
+            }
+        };
+        if (coalescer != null) {
+            final Callable<Object> single = query;
+            query = new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return coalescer.get(key, single);
+                }
+            };
+        }
+        return (cache == null) ? query.call() : cache.get(key, query);
+    }
+
+    private Object invoke(Method method, Object[] args) throws Exception {
+        try {
+            return method.invoke(repository, args);
+        } catch (InvocationTargetException e) {
+            // pass on what the repository has thrown
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new UndeclaredThrowableException(cause);
+        }
+    }
+
+    /**
+     * Method plus a copy of its arguments and the index version, collections are copied so a
+     * caller changing its collection later does not change the key.
+     */
+    private static class MethodCallKey {
+        private final String method;
+        private final Object[] args;
+        private final long version;
+        private final int hash;
+
+        private MethodCallKey(Method method, Object[] args, long version) {
+            this.method = method.getName() + Arrays.toString(method.getParameterTypes());
+            if (args == null) {
+                this.args = new Object[0];
+            } else {
+                this.args = new Object[args.length];
+                for (int i = 0; i < args.length; i++) {
+                    this.args[i] = (args[i] instanceof Collection) ? new ArrayList<Object>((Collection<?>) args[i]) : args[i];
+                }
+            }
+            this.version = version;
+            this.hash = 31 * (31 * this.method.hashCode() + Arrays.deepHashCode(this.args)) + (int) (version ^ (version >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            MethodCallKey that = (MethodCallKey) o;
+            return hash == that.hash && version == that.version && method.equals(that.method) && Arrays.deepEquals(args, that.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return method + Arrays.deepToString(args) + "@" + version;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.springframework.data.solr.core.SolrCallback;
+import org.springframework.data.solr.core.SolrTemplate;
+
+import java.io.IOException;
+
+/**
+ * When the changes made through the {@link ProteomesIndexService} are committed.
+ *
+ * A hard commit makes the changes durable (and visible), it is the expensive one. A soft commit
+ * only makes the changes visible to searches. With a commitWithin Solr commits by itself at the
+ * latest after the given time, which lets it combine the changes of many requests into one commit.
+ *
+ * The default is a hard commit after every change, like the Spring Data repositories do. For
+ * a high write load use e.g. {@link #commitWithin(int)}, or {@link #softCommits()} if the changes
+ * need to be visible immediately. The durability of the changes between hard commits is left to
+ * the update log and the autoCommit of the Solr configuration. ProteomesIndexService.flush() and
+ * awaitVisible() commit explicitly.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public class CommitPolicy {
+
+    public enum Commit {
+        /** no commit, the changes become visible with the next commit */
+        NONE,
+        /** the changes are visible once the commit returns */
+        SOFT,
+        /** the changes are durable and visible once the commit returns */
+        HARD
+    }
+
+    private int commitWithin = -1;
+    private Commit afterWrite = Commit.HARD;
+    private Commit afterBatch = Commit.HARD;
+
+
+    /**
+     * Changes are sent with a commitWithin and only hard committed at the end of the bulk
+     * operations, single saves and deletes are not committed explicitly.
+     *
+     * @param commitWithin the time in milliseconds until a change is visible at the latest.
+     */
+    public static CommitPolicy commitWithin(int commitWithin) {
+        if (commitWithin < 1) {
+            throw new IllegalArgumentException("The commitWithin needs to be positive!");
+        }
+        CommitPolicy policy = new CommitPolicy();
+        policy.setCommitWithin(commitWithin);
+        policy.setAfterWrite(Commit.NONE);
+        return policy;
+    }
+
+    /**
+     * Single saves and deletes are soft committed, the bulk operations hard committed at the end.
+     */
+    public static CommitPolicy softCommits() {
+        CommitPolicy policy = new CommitPolicy();
+        policy.setAfterWrite(Commit.SOFT);
+        return policy;
+    }
+
+    /**
+     * @return the commitWithin in milliseconds sent with every change, a value < 1 means none.
+     * For the bulk indexing it is only used if the BulkIndexOptions do not have one.
+     */
+    public int getCommitWithin() {
+        return commitWithin;
+    }
+
+    public void setCommitWithin(int commitWithin) {
+        this.commitWithin = commitWithin;
+    }
+
+    /**
+     * @return the commit after a save or delete of single records or collections.
+     */
+    public Commit getAfterWrite() {
+        return afterWrite;
+    }
+
+    public void setAfterWrite(Commit afterWrite) {
+        if (afterWrite == null) {
+            throw new IllegalArgumentException("A commit is required!");
+        }
+        this.afterWrite = afterWrite;
+    }
+
+    /**
+     * @return the commit at the end of a bulk operation (saveAll, a segment of deltaIndex,
+     * the membership updates).
+     */
+    public Commit getAfterBatch() {
+        return afterBatch;
+    }
+
+    public void setAfterBatch(Commit afterBatch) {
+        if (afterBatch == null) {
+            throw new IllegalArgumentException("A commit is required!");
+        }
+        this.afterBatch = afterBatch;
+    }
+
+    static void commit(SolrTemplate solrTemplate, final Commit commit) {
+        if (commit == Commit.NONE) {
+            return;
+        }
+        solrTemplate.execute(new SolrCallback<Object>() {
+            @Override
+            public Object doInSolr(SolrServer solrServer) throws SolrServerException, IOException {
+                // wait for the new searcher, so the changes are visible once the call returns
+                return solrServer.commit(true, true, commit == Commit.SOFT);
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "CommitPolicy{" +
+                "commitWithin=" + commitWithin +
+                ", afterWrite=" + afterWrite +
+                ", afterBatch=" + afterBatch +
+                '}';
+    }
+}
@@ -0,0 +1,86 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+import uk.ac.ebi.pride.proteomes.index.model.SolrPeptiform;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Hash over the content of a PeptiForm, stored with the record in the content_hash field.
+ * Two records with the same hash are considered equal by the delta indexing, so all fields
+ * sent to the index are part of the hash (but not the hash itself).
+ *
+ * @author florian@ebi.ac.uk
+ */
+final class ContentHash {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    // separates the values, it can not be part of any of them
+    private static final char SEPARATOR = '\u0000';
+
+    private ContentHash() {
+    }
+
+    static String of(SolrPeptiform solrPeptiform) {
+        StringBuilder content = new StringBuilder(256);
+        append(content, solrPeptiform.getId());
+        append(content, solrPeptiform.getSequence());
+        append(content, String.valueOf(solrPeptiform.getTaxid()));
+        append(content, solrPeptiform.getSpecies());
+        append(content, String.valueOf(solrPeptiform.getNumProteins()));
+        append(content, solrPeptiform.getProteins());
+        append(content, solrPeptiform.getMods());
+        append(content, String.valueOf(solrPeptiform.getNumUpGroups()));
+        append(content, solrPeptiform.getUpGroups());
+        append(content, String.valueOf(solrPeptiform.getNumGeneGroups()));
+        append(content, solrPeptiform.getGeneGroups());
+        append(content, solrPeptiform.getGroupDescs());
+
+        byte[] digest = md5().digest(content.toString().getBytes(UTF8));
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[digest[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Sets the hash of the current content on the record.
+     */
+    static SolrPeptiform update(SolrPeptiform solrPeptiform) {
+        solrPeptiform.setContentHash(of(solrPeptiform));
+        return solrPeptiform;
+    }
+
+    private static void append(StringBuilder content, String value) {
+        // null and empty are the same for Solr
+        if (value != null) {
+            content.append(value);
+        }
+        content.append(SEPARATOR);
+    }
+
+    private static void append(StringBuilder content, List<String> values) {
+        if (values != null && !values.isEmpty()) {
+            content.append(values.size());
+            for (String value : values) {
+                content.append(SEPARATOR);
+                content.append(value);
+            }
+        }
+        content.append(SEPARATOR);
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support MD5
+            throw new IllegalStateException(e);
+        }
+    }
+}
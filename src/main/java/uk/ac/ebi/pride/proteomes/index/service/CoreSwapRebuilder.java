@@ -0,0 +1,312 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.CoreAdminRequest;
+import org.apache.solr.client.solrj.response.CoreAdminResponse;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.CoreAdminParams;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.solr.core.SolrTemplate;
+import org.springframework.data.solr.server.SolrServerFactory;
+import uk.ac.ebi.pride.proteomes.index.model.SolrPeptiform;
+
+import java.io.*;
+import java.util.*;
+
+import static uk.ac.ebi.pride.proteomes.index.model.SolrPeptiformFields.*;
+
+/**
+ * Rebuilds the index in a shadow core next to the live one and swaps the two cores once
+ * the shadow core has been loaded, committed, checked against the live core and warmed up.
+ * Readers keep using the live core until the swap, which only exchanges the core names, so
+ * they never see a partial index. The previous live core is unloaded after the swap.
+ *
+ * The shadow core gets its own instance directory, next to the one of the live core, with a
+ * copy of the live configuration. With core discovery the swap is persisted in the
+ * core.properties files of the two cores, so the rebuilt core is still live after a restart of
+ * Solr. The files of the previous core are kept for a rollback (its core.properties is renamed
+ * by the unload), they are only deleted on request (see RebuildOptions.setDeletePrevious) and
+ * only if the swap is known to be persisted. Without core discovery the swap is not known to
+ * be persisted and a restart may load the previous core again, which is logged and reported.
+ *
+ * The instance directories are prepared on the file system, so the Solr instance directories
+ * need to be accessible from here: an embedded Solr, or a Solr on the same host or on a shared
+ * file system. Core admin requests are sent through the default server of the
+ * SolrServerFactory, the shadow core is accessed with the server the factory creates for it.
+ *
+ * One instance is used for one run.
+ *
+ * @author florian@ebi.ac.uk
+ */
+class CoreSwapRebuilder {
+
+    private static final Logger logger = LoggerFactory.getLogger(CoreSwapRebuilder.class);
+
+    static final String SHADOW_SUFFIX = "_rebuild";
+
+    private static final String CONF = "conf";
+    private static final String CORE_PROPERTIES = "core.properties";
+
+    // facets warmed up in the shadow core before it goes live
+    private static final String[] WARM_UP_FACETS = {PEPTIFORM_TAXID, PROTEINS, UP_GROUPS, GENE_GROUPS};
+
+    private final SolrServerFactory solrServerFactory;
+    private final RebuildOptions options;
+
+
+    CoreSwapRebuilder(SolrServerFactory solrServerFactory, RebuildOptions options) {
+        this.solrServerFactory = solrServerFactory;
+        this.options = options;
+    }
+
+    RebuildResult rebuild(Iterator<SolrPeptiform> peptiforms) {
+        String live = options.getCore();
+        String shadow = live + SHADOW_SUFFIX;
+        SolrServer admin = solrServerFactory.getSolrServer();
+        boolean created = false;
+        boolean swapped = false;
+        try {
+            File liveDir = getInstanceDir(admin, live);
+            if (liveDir == null) {
+                throw new IllegalStateException("Unknown core " + live + "!");
+            }
+            File leftOver = getInstanceDir(admin, shadow);
+            if (leftOver != null) {
+                // may be the previous live core of a run that could not unload it, its files are kept
+                logger.warn("Unloading the core " + shadow + " left over from a previous rebuild, its files are kept in " + leftOver + ".");
+                unload(admin, shadow, false);
+            }
+            // a new instance directory for every rebuild
+            createCore(admin, liveDir, shadow, shadow + System.currentTimeMillis());
+            created = true;
+
+            SolrServer shadowServer = solrServerFactory.getSolrServer(shadow);
+            SolrTemplate shadowTemplate = new SolrTemplate(shadowServer);
+            // nobody reads from the shadow core yet, a single hard commit at the end is enough
+            BulkIndexResult indexing = new BulkIndexer(shadowTemplate, options, -1, CommitPolicy.Commit.HARD).index(peptiforms);
+
+            SolrServer liveServer = solrServerFactory.getSolrServer(live);
+            Map<String, Long> liveTaxids = new HashMap<String, Long>();
+            Map<String, Long> shadowTaxids = new HashMap<String, Long>();
+            long liveDocuments = countTaxids(liveServer, liveTaxids);
+            long shadowDocuments = countTaxids(shadowServer, shadowTaxids);
+
+            String failure = indexing.isSuccessful() ? check(liveDocuments, liveTaxids, shadowDocuments, shadowTaxids)
+                    : indexing.getFailedBatches() + " batches could not be indexed";
+            if (failure != null) {
+                logger.error("Discarding the rebuilt index: " + failure);
+                return new RebuildResult(indexing, liveDocuments, shadowDocuments, false, failure, false, null);
+            }
+
+            warmUp(shadowServer);
+            CoreAdminRequest swap = new CoreAdminRequest();
+            swap.setAction(CoreAdminParams.CoreAdminAction.SWAP);
+            swap.setCoreName(live);
+            swap.setOtherCoreName(shadow);
+            swap.process(admin);
+            swapped = true;
+            logger.info("Swapped in the rebuilt index with " + shadowDocuments + " documents, replacing " + liveDocuments + ".");
+
+            // the shadow name now refers to the previous live core
+            File newLiveDir = getInstanceDir(admin, live);
+            boolean persisted = isPersisted(newLiveDir, live);
+            boolean delete = persisted && options.isDeletePrevious();
+            if (!persisted) {
+                logger.warn("The core swap is not persisted (no core discovery), a restart of Solr may load the previous core from "
+                        + liveDir + " again.");
+            } else if (!delete) {
+                logger.info("The previous core is kept in " + liveDir + " for a rollback.");
+            }
+            unload(admin, shadow, delete);
+            return new RebuildResult(indexing, liveDocuments, shadowDocuments, true, null, persisted, delete ? null : liveDir.getPath());
+        } catch (SolrServerException e) {
+            throw new IllegalStateException(failureMessage(swapped), e);
+        } catch (IOException e) {
+            throw new IllegalStateException(failureMessage(swapped), e);
+        } finally {
+            if (created && !swapped) {
+                discard(admin, shadow);
+            }
+        }
+    }
+
+    /**
+     * Creates a core with its own instance directory next to the one of another core, with a
+     * copy of its configuration. The directory must not exist yet.
+     *
+     * @return the instance directory of the new core.
+     */
+    static File createCore(SolrServer admin, File templateDir, String core, String directory) throws SolrServerException, IOException {
+        File conf = new File(templateDir, CONF);
+        if (!conf.isDirectory()) {
+            throw new IllegalStateException("The configuration " + conf + " is not accessible, the instance directories need to be on a local or shared file system!");
+        }
+        File instanceDir = new File(templateDir.getParentFile(), directory);
+        if (!instanceDir.mkdir()) {
+            throw new IllegalStateException("Could not create the instance directory " + instanceDir + "!");
+        }
+        boolean created = false;
+        try {
+            copy(conf, new File(instanceDir, CONF));
+            CoreAdminRequest.Create create = new CoreAdminRequest.Create();
+            create.setCoreName(core);
+            create.setInstanceDir(instanceDir.getAbsolutePath());
+            create.process(admin);
+            created = true;
+        } finally {
+            if (!created) {
+                delete(instanceDir);
+            }
+        }
+        return instanceDir;
+    }
+
+    static File getInstanceDir(SolrServer admin, String core) throws SolrServerException, IOException {
+        CoreAdminResponse response = CoreAdminRequest.getStatus(core, admin);
+        NamedList<Object> status = response.getCoreStatus(core);
+        Object instanceDir = (status == null) ? null : status.get("instanceDir");
+        return (instanceDir == null) ? null : new File(instanceDir.toString());
+    }
+
+    // with core discovery the swap renames the cores in their core.properties
+    private static boolean isPersisted(File instanceDir, String core) throws IOException {
+        File file = new File(instanceDir, CORE_PROPERTIES);
+        if (!file.isFile()) {
+            return false;
+        }
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return core.equals(properties.getProperty("name"));
+    }
+    private String check(long liveDocuments, Map<String, Long> liveTaxids, long shadowDocuments, Map<String, Long> shadowTaxids) {
+        if (shadowDocuments < minimum(liveDocuments)) {
+            return "the rebuilt index has " + shadowDocuments + " documents, the live index " + liveDocuments;
+        }
+        for (Map.Entry<String, Long> entry : liveTaxids.entrySet()) {
+            Long count = shadowTaxids.get(entry.getKey());
+            if (count == null || count < minimum(entry.getValue())) {
+                return "the rebuilt index has " + (count == null ? 0 : count) + " documents for taxid "
+                        + entry.getKey() + ", the live index " + entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    private double minimum(long count) {
+        return count * (1 - options.getMaxDrop());
+    }
+
+    private static long countTaxids(SolrServer solrServer, Map<String, Long> taxids) throws SolrServerException {
+        SolrQuery query = new SolrQuery("*:*");
+        query.setRows(0);
+        query.setFacet(true);
+        query.addFacetField(PEPTIFORM_TAXID);
+        query.setFacetLimit(-1);
+        query.setFacetMinCount(1);
+        QueryResponse response = solrServer.query(query);
+        List<FacetField.Count> counts = response.getFacetField(PEPTIFORM_TAXID).getValues();
+        if (counts != null) {
+            for (FacetField.Count count : counts) {
+                taxids.put(count.getName(), count.getCount());
+            }
+        }
+        return response.getResults().getNumFound();
+    }
+
+    /**
+     * Loads the field caches used by the facet queries, so the first readers after the
+     * swap are not slowed down by a cold core.
+     */
+    private static void warmUp(SolrServer solrServer) throws SolrServerException {
+        SolrQuery query = new SolrQuery("*:*");
+        query.setRows(10);
+        query.setFacet(true);
+        query.addFacetField(WARM_UP_FACETS);
+        query.setFacetLimit(10);
+        query.setFacetMinCount(1);
+        solrServer.query(query);
+    }
+
+    /**
+     * @param deleteFiles whether the instance and the data directory of the core are deleted.
+     */
+    static void unload(SolrServer admin, String core, boolean deleteFiles) throws SolrServerException, IOException {
+        // the constructor argument is deleteIndex
+        CoreAdminRequest.Unload unload = new CoreAdminRequest.Unload(deleteFiles);
+        unload.setCoreName(core);
+        unload.setDeleteDataDir(deleteFiles);
+        unload.setDeleteInstanceDir(deleteFiles);
+        unload.process(admin);
+    }
+
+    /**
+     * Removes the shadow core of this run after a failure, it has never been live.
+     */
+    private static void discard(SolrServer admin, String shadow) {
+        try {
+            if (getInstanceDir(admin, shadow) != null) {
+                unload(admin, shadow, true);
+            }
+        } catch (Exception e) {
+            logger.warn("Could not unload the shadow core " + shadow + ".", e);
+        }
+    }
+
+    static void copy(File from, File to) throws IOException {
+        if (from.isDirectory()) {
+            if (!to.mkdir()) {
+                throw new IOException("Could not create the directory " + to + "!");
+            }
+            String[] names = from.list();
+            if (names == null) {
+                throw new IOException("Could not list the directory " + from + "!");
+            }
+            for (String name : names) {
+                copy(new File(from, name), new File(to, name));
+            }
+            return;
+        }
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            logger.warn("Could not delete " + file + ".");
+        }
+    }
+
+    private static String failureMessage(boolean swapped) {
+        return swapped ? "The rebuilt index is live, but the previous core could not be unloaded."
+                : "The index could not be rebuilt, the live core was kept.";
+    }
+}
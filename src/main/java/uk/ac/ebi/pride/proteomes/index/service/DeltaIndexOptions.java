@@ -0,0 +1,50 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+import java.io.File;
+
+/**
+ * Settings for the delta indexing in {@link ProteomesIndexService#deltaIndex}. The changed
+ * records are submitted with the settings of the bulk indexing, see {@link BulkIndexOptions}.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public class DeltaIndexOptions extends BulkIndexOptions {
+
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 100000;
+
+    private File checkpointFile;
+    private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+
+    /**
+     * @return the file holding the ID of the last record of the last completed segment,
+     * or null if the run can not be resumed.
+     */
+    public File getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    /**
+     * @param checkpointFile the file to write the checkpoints to. If the file exists when a run
+     *                       is started, the run resumes after the ID found in the file. The file
+     *                       is deleted once a run has completed.
+     */
+    public void setCheckpointFile(File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    /**
+     * @return the number of incoming records compared per segment, a checkpoint is written
+     * after each segment that has been sent to the index completely.
+     */
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    public void setCheckpointInterval(int checkpointInterval) {
+        if (checkpointInterval < 1) {
+            throw new IllegalArgumentException("The checkpoint interval needs to be positive!");
+        }
+        this.checkpointInterval = checkpointInterval;
+    }
+}
@@ -0,0 +1,122 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+/**
+ * Statistics of a delta indexing run, see {@link ProteomesIndexService#deltaIndex}.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public class DeltaIndexResult {
+
+    private final long added;
+    private final long updated;
+    private final long unchanged;
+    private final long deleted;
+    private final long skipped;
+    private final long failedDocuments;
+    private final long failedDeletes;
+    private final int segments;
+    private final boolean completed;
+    private final String resumedFrom;
+    private final long elapsedMillis;
+
+    public DeltaIndexResult(long added, long updated, long unchanged, long deleted, long skipped,
+                            long failedDocuments, long failedDeletes, int segments, boolean completed,
+                            String resumedFrom, long elapsedMillis) {
+        this.added = added;
+        this.updated = updated;
+        this.unchanged = unchanged;
+        this.deleted = deleted;
+        this.skipped = skipped;
+        this.failedDocuments = failedDocuments;
+        this.failedDeletes = failedDeletes;
+        this.segments = segments;
+        this.completed = completed;
+        this.resumedFrom = resumedFrom;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * @return the number of records that were not in the index before.
+     */
+    public long getAdded() {
+        return added;
+    }
+
+    /**
+     * @return the number of records whose content differs from the indexed record.
+     */
+    public long getUpdated() {
+        return updated;
+    }
+
+    /**
+     * @return the number of records that were not sent to the index, as they did not change.
+     */
+    public long getUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * @return the number of indexed records that are no longer part of the data set.
+     */
+    public long getDeleted() {
+        return deleted;
+    }
+
+    /**
+     * @return the number of records before the checkpoint of a resumed run.
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return the number of added or updated records in batches that failed after all retries.
+     */
+    public long getFailedDocuments() {
+        return failedDocuments;
+    }
+
+    public long getFailedDeletes() {
+        return failedDeletes;
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+
+    /**
+     * @return false if the run stopped at a failed segment, it can be resumed from the last checkpoint.
+     */
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    /**
+     * @return the ID of the checkpoint the run was resumed from, or null.
+     */
+    public String getResumedFrom() {
+        return resumedFrom;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "DeltaIndexResult{" +
+                "added=" + added +
+                ", updated=" + updated +
+                ", unchanged=" + unchanged +
+                ", deleted=" + deleted +
+                ", skipped=" + skipped +
+                ", failedDocuments=" + failedDocuments +
+                ", failedDeletes=" + failedDeletes +
+                ", segments=" + segments +
+                ", completed=" + completed +
+                ", resumedFrom=" + resumedFrom +
+                ", elapsedMillis=" + elapsedMillis +
+                '}';
+    }
+}
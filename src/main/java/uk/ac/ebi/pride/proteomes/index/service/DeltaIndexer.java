@@ -0,0 +1,288 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.solr.core.SolrCallback;
+import org.springframework.data.solr.core.SolrTemplate;
+import uk.ac.ebi.pride.proteomes.index.model.SolrPeptiform;
+import uk.ac.ebi.pride.proteomes.index.repository.PeptiformCursor;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static uk.ac.ebi.pride.proteomes.index.model.SolrPeptiformFields.CONTENT_HASH;
+import static uk.ac.ebi.pride.proteomes.index.model.SolrPeptiformFields.ID;
+
+/**
+ * Brings the index in line with a data set sorted by ID, by merging the incoming records with
+ * the IDs and content hashes of the indexed records (read with a cursor, also sorted by ID).
+ * Only new and changed records are sent to the index, indexed records missing from the data set
+ * are deleted. Neither side is held in memory.
+ *
+ * The data set is processed in segments. After a segment has been sent to the index, the ID of
+ * its last record is written to the checkpoint file, a later run resumes after that ID.
+ *
+ * One instance is used for one run.
+ *
+ * @author florian@ebi.ac.uk
+ */
+class DeltaIndexer {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeltaIndexer.class);
+
+    private static final String CHARSET = "UTF-8";
+
+    private final SolrTemplate solrTemplate;
+    private final DeltaIndexOptions options;
+    private final int commitWithin;
+    private final CommitPolicy.Commit commit;
+
+    private Iterator<SolrPeptiform> incoming;
+    private Iterator<SolrPeptiform> indexed;
+    private SolrPeptiform indexedHead;
+    private String checkpoint;
+    private String lastId;
+
+    private long added;
+    private long updated;
+    private long unchanged;
+    private long deleted;
+    private long skipped;
+    private long failedDeletes;
+    private final List<String> deletes = new ArrayList<String>();
+
+
+    /**
+     * @param commitWithin the commitWithin sent with the changes, a value < 1 means none.
+     * @param commit the commit at the end of every segment.
+     */
+    DeltaIndexer(SolrTemplate solrTemplate, DeltaIndexOptions options, int commitWithin, CommitPolicy.Commit commit) {
+        this.solrTemplate = solrTemplate;
+        this.options = options;
+        this.commitWithin = commitWithin;
+        this.commit = commit;
+    }
+
+    DeltaIndexResult index(Iterator<SolrPeptiform> peptiforms) {
+        long start = System.currentTimeMillis();
+        incoming = peptiforms;
+        checkpoint = readCheckpoint();
+        if (checkpoint != null) {
+            logger.info("Resuming delta indexing after " + checkpoint);
+        }
+        // quoted, the IDs contain brackets which end an unquoted range
+        SolrQuery query = new SolrQuery(checkpoint == null ? "*:*"
+                : ID + ":{\"" + checkpoint.replace("\\", "\\\\").replace("\"", "\\\"") + "\" TO *]");
+        query.setFields(ID, CONTENT_HASH);
+        indexed = new PeptiformCursor(solrTemplate, query, options.getBatchSize());
+        nextIndexed();
+
+        long failedDocuments = 0;
+        int segments = 0;
+        boolean completed = true;
+        boolean exhausted = false;
+        while (!exhausted) {
+            Segment segment = new Segment();
+            BulkIndexResult result = new BulkIndexer(solrTemplate, options, commitWithin, commit).index(segment);
+            segments++;
+            failedDocuments += result.getFailedDocuments();
+            if (!result.isSuccessful() || segment.deleteFailed) {
+                logger.error("Delta indexing stopped at segment " + segments + ", it can be resumed from the last checkpoint.");
+                completed = false;
+                break;
+            }
+            exhausted = segment.exhausted;
+            if (exhausted) {
+                deleteCheckpoint();
+            } else {
+                writeCheckpoint(lastId);
+            }
+        }
+
+        return new DeltaIndexResult(added, updated, unchanged, deleted, skipped, failedDocuments, failedDeletes,
+                segments, completed, checkpoint, System.currentTimeMillis() - start);
+    }
+
+    private void nextIndexed() {
+        indexedHead = indexed.hasNext() ? indexed.next() : null;
+    }
+
+    /**
+     * The new and changed records of one segment of the data set. Deletes are sent while
+     * iterating, the remaining ones once the end of the segment is reached.
+     */
+    private class Segment implements Iterator<SolrPeptiform> {
+
+        private int compared = 0;
+        private boolean exhausted = false;
+        private boolean ended = false;
+        private boolean deleteFailed = false;
+        private SolrPeptiform next;
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !ended) {
+                if (compared >= options.getCheckpointInterval()) {
+                    endSegment();
+                } else if (!incoming.hasNext()) {
+                    // everything that is left in the index is no longer part of the data set
+                    while (indexedHead != null) {
+                        delete(indexedHead.getId());
+                        nextIndexed();
+                    }
+                    exhausted = true;
+                    endSegment();
+                } else {
+                    compare(incoming.next());
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public SolrPeptiform next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            SolrPeptiform peptiform = next;
+            next = null;
+            return peptiform;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void compare(SolrPeptiform peptiform) {
+            String id = peptiform.getId();
+            if (id == null) {
+                throw new IllegalArgumentException("PeptiForms need an ID for delta indexing!");
+            }
+            if (lastId != null && id.compareTo(lastId) <= 0) {
+                throw new IllegalArgumentException("PeptiForms need to be sorted by ID for delta indexing, "
+                        + id + " follows " + lastId + "!");
+            }
+            lastId = id;
+            if (checkpoint != null && id.compareTo(checkpoint) <= 0) {
+                skipped++;
+                return;
+            }
+            compared++;
+
+            while (indexedHead != null && indexedHead.getId().compareTo(id) < 0) {
+                delete(indexedHead.getId());
+                nextIndexed();
+            }
+            ContentHash.update(peptiform);
+            if (indexedHead != null && indexedHead.getId().equals(id)) {
+                boolean same = peptiform.getContentHash().equals(indexedHead.getContentHash());
+                nextIndexed();
+                if (same) {
+                    unchanged++;
+                    return;
+                }
+                updated++;
+            } else {
+                added++;
+            }
+            next = peptiform;
+        }
+
+        private void delete(String id) {
+            deletes.add(id);
+            if (deletes.size() >= options.getBatchSize()) {
+                flushDeletes();
+            }
+        }
+
+        private void endSegment() {
+            flushDeletes();
+            ended = true;
+        }
+
+        private void flushDeletes() {
+            if (deletes.isEmpty()) {
+                return;
+            }
+            final List<String> ids = new ArrayList<String>(deletes);
+            deletes.clear();
+            try {
+                solrTemplate.execute(new SolrCallback<Object>() {
+                    @Override
+                    public Object doInSolr(SolrServer solrServer) throws SolrServerException, IOException {
+                        return solrServer.deleteById(ids, commitWithin);
+                    }
+                });
+                deleted += ids.size();
+            } catch (RuntimeException e) {
+                logger.error("Failed to delete " + ids.size() + " PeptiForms starting with " + ids.get(0) + ".", e);
+                failedDeletes += ids.size();
+                deleteFailed = true;
+            }
+        }
+    }
+
+    private String readCheckpoint() {
+        File file = options.getCheckpointFile();
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+            String id = reader.readLine();
+            return id == null || id.isEmpty() ? null : id;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read the checkpoint file " + file + ".", e);
+        } finally {
+            close(reader);
+        }
+    }
+
+    private void writeCheckpoint(String id) {
+        File file = options.getCheckpointFile();
+        if (file == null || id == null) {
+            return;
+        }
+        // written next to the checkpoint and then renamed, so a crash never leaves a partial ID
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(tmp), CHARSET);
+            writer.write(id);
+            writer.close();
+            writer = null;
+            if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp + " to " + file);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write the checkpoint file " + file + ".", e);
+        } finally {
+            close(writer);
+        }
+    }
+
+    private void deleteCheckpoint() {
+        File file = options.getCheckpointFile();
+        if (file != null && file.exists() && !file.delete()) {
+            logger.warn("Could not delete the checkpoint file " + file + ".");
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+}
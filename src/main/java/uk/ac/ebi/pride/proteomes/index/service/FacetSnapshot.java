@@ -0,0 +1,95 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The values of a facet field (e.g. the proteins) with their PeptiForm counts, pinned when
+ * the snapshot is opened, see {@link ProteomesSearchService#openFacetSnapshot}. The pages
+ * served from it are cut from the pinned values, so paging needs no further requests and
+ * shows no duplicated or missing entries while the index changes.
+ *
+ * The snapshot is serializable, so it can be kept e.g. in the HTTP session between requests.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public class FacetSnapshot implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String facetField;
+    private final List<Integer> taxIds;
+    private final boolean sortByIndex;
+    // values and counts in page order
+    private final String[] values;
+    private final long[] counts;
+    private final boolean truncated;
+    private final long created;
+
+    FacetSnapshot(String facetField, Collection<Integer> taxIds, boolean sortByIndex, String[] values, long[] counts, boolean truncated) {
+        this.facetField = facetField;
+        this.taxIds = (taxIds == null) ? Collections.<Integer>emptyList() : Collections.unmodifiableList(new ArrayList<Integer>(taxIds));
+        this.sortByIndex = sortByIndex;
+        this.values = values;
+        this.counts = counts;
+        this.truncated = truncated;
+        this.created = System.currentTimeMillis();
+    }
+
+    public String getFacetField() {
+        return facetField;
+    }
+
+    public List<Integer> getTaxIds() {
+        return taxIds;
+    }
+
+    public boolean isSortByIndex() {
+        return sortByIndex;
+    }
+
+    /**
+     * @return the number of values in the snapshot, the total elements of its pages.
+     */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * @return true if the field had more values than the maximum snapshot size, only the
+     * first values (in the order of the snapshot, by value or by count) are in the snapshot.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return the time the snapshot was opened in milliseconds since the epoch.
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    String getValue(int index) {
+        return values[index];
+    }
+
+    long getCount(int index) {
+        return counts[index];
+    }
+
+    @Override
+    public String toString() {
+        return "FacetSnapshot{" +
+                "facetField='" + facetField + '\'' +
+                ", taxIds=" + taxIds +
+                ", sortByIndex=" + sortByIndex +
+                ", size=" + values.length +
+                ", truncated=" + truncated +
+                ", created=" + created +
+                '}';
+    }
+}
@@ -0,0 +1,65 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.beans.DocumentObjectBinder;
+import org.apache.solr.common.util.NamedList;
+
+import java.io.IOException;
+
+/**
+ * SolrServer that passes the Solr QTime and the client side time of every request on to
+ * the ServiceMetrics, so the time spent in Solr can be told apart from the time spent in
+ * the client (transfer, parsing, binding). Wrap the server of the SolrTemplate to use it:
+ *
+ *   new SolrTemplate(new InstrumentedSolrServer(solrServerFactory.getSolrServer()))
+ *
+ * Without it the metrics only have the client side times of the service methods.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public class InstrumentedSolrServer extends SolrServer {
+
+    private final SolrServer solrServer;
+
+    public InstrumentedSolrServer(SolrServer solrServer) {
+        if (solrServer == null) {
+            throw new IllegalArgumentException("A SolrServer is required!");
+        }
+        this.solrServer = solrServer;
+    }
+
+    public SolrServer getSolrServer() {
+        return solrServer;
+    }
+
+    @Override
+    public NamedList<Object> request(SolrRequest request) throws SolrServerException, IOException {
+        long start = System.nanoTime();
+        NamedList<Object> response = solrServer.request(request);
+        SolrRequestStats.record(getQTime(response), System.nanoTime() - start);
+        return response;
+    }
+
+    private static long getQTime(NamedList<Object> response) {
+        Object header = (response == null) ? null : response.get("responseHeader");
+        if (header instanceof NamedList) {
+            Object qTime = ((NamedList<?>) header).get("QTime");
+            if (qTime instanceof Number) {
+                return ((Number) qTime).longValue();
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public DocumentObjectBinder getBinder() {
+        return solrServer.getBinder();
+    }
+
+    @Override
+    public void shutdown() {
+        solrServer.shutdown();
+    }
+}
@@ -0,0 +1,178 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size bounded result cache, the least recently used entry is dropped when the cache is full.
+ * Every entry expires after the same time to live.
+ *
+ * The statistics (hits, misses, evictions, ...) are available as JMX attributes
+ * if the application exports annotated beans (e.g. with @EnableMBeanExport).
+ *
+ * @author florian@ebi.ac.uk
+ */
+@ManagedResource(description = "Result cache of the PRIDE Proteomes search service")
+public class LruResultCache implements ResultCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final long DEFAULT_TIME_TO_LIVE = TimeUnit.MINUTES.toMillis(10);
+
+    private final int maxEntries;
+    private final long timeToLive;
+
+    private final Map<Object, Entry> entries;
+    // incremented by invalidate(), results loaded before are not cached
+    private long generation = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong loadTime = new AtomicLong();
+
+
+    public LruResultCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TIME_TO_LIVE);
+    }
+
+    /**
+     * @param maxEntries the maximum number of results in the cache.
+     * @param timeToLive the time in milliseconds after which a result has to be recomputed.
+     */
+    public LruResultCache(final int maxEntries, long timeToLive) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("The maximum number of entries needs to be positive!");
+        }
+        if (timeToLive < 1) {
+            throw new IllegalArgumentException("The time to live needs to be positive!");
+        }
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        // access ordered map, so the least recently used result is dropped first
+        this.entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Entry> eldest) {
+                if (size() > LruResultCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key, Callable<T> loader) throws Exception {
+        long loadGeneration;
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.expires > System.currentTimeMillis()) {
+                    hits.incrementAndGet();
+                    return (T) entry.value;
+                }
+                entries.remove(key);
+                expirations.incrementAndGet();
+            }
+            loadGeneration = generation;
+        }
+        misses.incrementAndGet();
+
+        // the lock is not held while loading, other keys can be served in the meantime
+        long start = System.nanoTime();
+        T value = loader.call();
+        loadTime.addAndGet(System.nanoTime() - start);
+
+        synchronized (entries) {
+            if (loadGeneration == generation) {
+                entries.put(key, new Entry(value, System.currentTimeMillis() + timeToLive));
+            }
+        }
+        return value;
+    }
+
+    @Override
+    @ManagedOperation(description = "Drops all cached results")
+    public void invalidate() {
+        synchronized (entries) {
+            entries.clear();
+            generation++;
+        }
+        invalidations.incrementAndGet();
+    }
+
+    @ManagedAttribute(description = "Number of cached results")
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @ManagedAttribute(description = "Maximum number of cached results")
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    @ManagedAttribute(description = "Time to live of a cached result in milliseconds")
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    @ManagedAttribute(description = "Number of requests served from the cache")
+    public long getHits() {
+        return hits.get();
+    }
+
+    @ManagedAttribute(description = "Number of requests that had to be computed")
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @ManagedAttribute(description = "Fraction of requests served from the cache")
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return (total == 0) ? 0 : (double) hits / total;
+    }
+
+    @ManagedAttribute(description = "Number of results dropped because the cache was full")
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @ManagedAttribute(description = "Number of results dropped because their time to live had passed")
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    @ManagedAttribute(description = "Number of times the cache was invalidated")
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    @ManagedAttribute(description = "Average time in milliseconds to compute a result")
+    public double getAverageLoadTime() {
+        long misses = getMisses();
+        return (misses == 0) ? 0 : loadTime.get() / 1e6 / misses;
+    }
+
+    private static class Entry {
+        private final Object value;
+        private final long expires;
+
+        private Entry(Object value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrInputDocument;
+import org.springframework.data.solr.core.SolrCallback;
+import org.springframework.data.solr.core.SolrTemplate;
+import uk.ac.ebi.pride.proteomes.index.model.MembershipField;
+import uk.ac.ebi.pride.proteomes.index.model.SolrPeptiform;
+import uk.ac.ebi.pride.proteomes.index.repository.PeptiformCursor;
+
+import java.io.IOException;
+import java.util.*;
+
+import static uk.ac.ebi.pride.proteomes.index.model.SolrPeptiformFields.CONTENT_HASH;
+import static uk.ac.ebi.pride.proteomes.index.model.SolrPeptiformFields.ID;
+import static uk.ac.ebi.pride.proteomes.index.model.SolrPeptiformFields.PEPTIFORM_TAXID;
+
+/**
+ * Changes the membership fields of all PeptiForms of a group with atomic updates. Only the
+ * ID, the taxid, the changed field and its count are sent to Solr, the other fields are kept
+ * from the stored document.
+ *
+ * Solr 4.7 has no atomic remove of a single value, so a removal sets the remaining values
+ * read from the index. Changes are made visible at the end of every operation (at least
+ * with a soft commit), so the next operation selects its PeptiForms on the updated values.
+ *
+ * @author florian@ebi.ac.uk
+ */
+class MembershipUpdater {
+
+    private final SolrTemplate solrTemplate;
+    private final int batchSize;
+    private final int commitWithin;
+    private final CommitPolicy.Commit commit;
+
+    /**
+     * @param commitWithin the commitWithin sent with the updates, a value < 1 means none.
+     * @param commit the commit at the end of every operation, NONE is replaced by SOFT.
+     */
+    MembershipUpdater(SolrTemplate solrTemplate, int batchSize, int commitWithin, CommitPolicy.Commit commit) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size needs to be positive!");
+        }
+        this.solrTemplate = solrTemplate;
+        this.batchSize = batchSize;
+        this.commitWithin = commitWithin;
+        this.commit = (commit == CommitPolicy.Commit.NONE) ? CommitPolicy.Commit.SOFT : commit;
+    }
+
+    /**
+     * Adds the value to the field of all PeptiForms of the group that do not have it yet.
+     *
+     * @return the number of updated PeptiForms.
+     */
+    long add(MembershipField groupField, String groupId, MembershipField field, String value) {
+        SolrQuery query = new SolrQuery("+" + term(groupField, groupId) + " -" + term(field, value));
+        query.setFields(ID, PEPTIFORM_TAXID);
+        Iterator<SolrPeptiform> peptiforms = new PeptiformCursor(solrTemplate, query, batchSize);
+
+        long updated = 0;
+        List<SolrInputDocument> batch = new ArrayList<SolrInputDocument>(batchSize);
+        while (peptiforms.hasNext()) {
+            SolrInputDocument doc = update(peptiforms.next());
+            doc.addField(field.getField(), operation("add", value));
+            doc.addField(field.getCountField(), operation("inc", 1));
+            batch.add(doc);
+            if (batch.size() >= batchSize) {
+                updated += submit(batch);
+            }
+        }
+        updated += submit(batch);
+        CommitPolicy.commit(solrTemplate, commit);
+        return updated;
+    }
+
+    /**
+     * Removes the value from the field of all PeptiForms of the group that have it.
+     *
+     * @return the number of updated PeptiForms.
+     */
+    long remove(MembershipField groupField, String groupId, MembershipField field, String value) {
+        SolrQuery query = new SolrQuery("+" + term(groupField, groupId) + " +" + term(field, value));
+        query.setFields(ID, PEPTIFORM_TAXID, field.getField());
+        Iterator<SolrPeptiform> peptiforms = new PeptiformCursor(solrTemplate, query, batchSize);
+
+        long updated = 0;
+        List<SolrInputDocument> batch = new ArrayList<SolrInputDocument>(batchSize);
+        while (peptiforms.hasNext()) {
+            SolrPeptiform peptiform = peptiforms.next();
+            List<String> values = new ArrayList<String>(field.getValues(peptiform));
+            values.removeAll(Collections.singleton(value));
+            SolrInputDocument doc = update(peptiform);
+            // setting null removes the field
+            doc.addField(field.getField(), operation("set", values.isEmpty() ? null : values));
+            doc.addField(field.getCountField(), operation("set", values.size()));
+            batch.add(doc);
+            if (batch.size() >= batchSize) {
+                updated += submit(batch);
+            }
+        }
+        updated += submit(batch);
+        CommitPolicy.commit(solrTemplate, commit);
+        return updated;
+    }
+
+    private static SolrInputDocument update(SolrPeptiform peptiform) {
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.addField(ID, peptiform.getId());
+        // unchanged, but needed to route the update to the shard of a TaxidShardedSolrServer
+        doc.addField(PEPTIFORM_TAXID, operation("set", peptiform.getTaxid()));
+        // the record differs from the one the hash was computed for (see delta indexing)
+        doc.addField(CONTENT_HASH, operation("set", null));
+        return doc;
+    }
+
+    private static Map<String, Object> operation(String name, Object value) {
+        return Collections.singletonMap(name, value);
+    }
+
+    private static String term(MembershipField field, String value) {
+        return field.getField() + ":" + ClientUtils.escapeQueryChars(value);
+    }
+
+    private int submit(List<SolrInputDocument> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        final List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>(batch);
+        batch.clear();
+        solrTemplate.execute(new SolrCallback<Object>() {
+            @Override
+            public Object doInSolr(SolrServer solrServer) throws SolrServerException, IOException {
+                return solrServer.add(docs, commitWithin);
+            }
+        });
+        return docs.size();
+    }
+}
@@ -0,0 +1,188 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Call statistics of one instrumented method, see ServiceMetrics.
+ *
+ * The latencies are kept in a histogram with exponential buckets (bucket i counts the calls
+ * that took less than 2^i microseconds), so the percentiles are upper bounds that are exact
+ * to a factor of two. That is enough to tell a slow method from a fast one and needs no
+ * locking nor memory per call.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public class MethodMetrics {
+
+    static final int BUCKETS = 40;
+
+    private final String name;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong totalTime = new AtomicLong();
+    private final AtomicLong maxTime = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong solrRequests = new AtomicLong();
+    private final AtomicLong solrQTime = new AtomicLong();
+    private final AtomicLong solrTime = new AtomicLong();
+
+    private final AtomicLong results = new AtomicLong();
+    private final AtomicLong facetEntries = new AtomicLong();
+
+    MethodMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param nanos        the time the call took.
+     * @param error        whether the call ended with an exception.
+     * @param solrRequests the number of Solr requests of the call.
+     * @param solrQTime    the sum of the QTimes (milliseconds) reported by Solr.
+     * @param solrNanos    the sum of the client side times of the Solr requests.
+     * @param results      the number of documents returned, -1 if not applicable.
+     * @param facetEntries the number of facet entries returned, -1 if not applicable.
+     */
+    void record(long nanos, boolean error, long solrRequests, long solrQTime, long solrNanos, long results, long facetEntries) {
+        calls.incrementAndGet();
+        if (error) {
+            errors.incrementAndGet();
+        }
+        totalTime.addAndGet(nanos);
+        long max = maxTime.get();
+        while (nanos > max && !maxTime.compareAndSet(max, nanos)) {
+            max = maxTime.get();
+        }
+        histogram.incrementAndGet(bucket(nanos));
+
+        if (solrRequests > 0) {
+            this.solrRequests.addAndGet(solrRequests);
+            this.solrQTime.addAndGet(solrQTime);
+            this.solrTime.addAndGet(solrNanos);
+        }
+        if (results > 0) {
+            this.results.addAndGet(results);
+        }
+        if (facetEntries > 0) {
+            this.facetEntries.addAndGet(facetEntries);
+        }
+    }
+
+    private static int bucket(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        // number of bits = index of the first power of two above the value
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * @return the average time of a call in milliseconds.
+     */
+    public double getAverageTime() {
+        long calls = getCalls();
+        return (calls == 0) ? 0 : totalTime.get() / 1e6 / calls;
+    }
+
+    /**
+     * @return the longest time of a call in milliseconds.
+     */
+    public double getMaxTime() {
+        return maxTime.get() / 1e6;
+    }
+
+    /**
+     * @param percentile e.g. 0.5 for the median or 0.99.
+     * @return the time in milliseconds the given fraction of calls stayed below (upper bound).
+     */
+    public double getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 1) {
+            throw new IllegalArgumentException("The percentile needs to be between 0 and 1!");
+        }
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = histogram.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                // never report more than the maximum that was actually seen
+                return Math.min((1L << i) / 1e3, getMaxTime());
+            }
+        }
+        return getMaxTime();
+    }
+
+    public long getSolrRequests() {
+        return solrRequests.get();
+    }
+
+    /**
+     * @return the average QTime in milliseconds reported by Solr per request (time spent in Solr).
+     */
+    public double getAverageSolrQTime() {
+        long requests = getSolrRequests();
+        return (requests == 0) ? 0 : (double) solrQTime.get() / requests;
+    }
+
+    /**
+     * @return the average client side time in milliseconds per Solr request (including transfer and parsing).
+     */
+    public double getAverageSolrTime() {
+        long requests = getSolrRequests();
+        return (requests == 0) ? 0 : solrTime.get() / 1e6 / requests;
+    }
+
+    public long getResults() {
+        return results.get();
+    }
+
+    public long getFacetEntries() {
+        return facetEntries.get();
+    }
+
+    public Map<String, Number> toMap() {
+        Map<String, Number> map = new LinkedHashMap<String, Number>();
+        map.put("calls", getCalls());
+        map.put("errors", getErrors());
+        map.put("averageTime", getAverageTime());
+        map.put("p50", getPercentile(0.5));
+        map.put("p95", getPercentile(0.95));
+        map.put("p99", getPercentile(0.99));
+        map.put("maxTime", getMaxTime());
+        map.put("solrRequests", getSolrRequests());
+        map.put("averageSolrQTime", getAverageSolrQTime());
+        map.put("averageSolrTime", getAverageSolrTime());
+        map.put("results", getResults());
+        map.put("facetEntries", getFacetEntries());
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return name + toMap();
+    }
+}
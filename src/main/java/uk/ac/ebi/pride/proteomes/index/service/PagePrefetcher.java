@@ -0,0 +1,344 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches the next page of a paged search in the background after a page has been served,
+ * so the request for it (the next click of a user browsing the results) is answered from
+ * memory. Used by the ProteomesSearchService for findByQuery, findByProtein and
+ * findByQueryAndFilterTaxid if a PagePrefetcher is set (see setPagePrefetcher or define a
+ * PagePrefetcher bean).
+ *
+ * A prefetched page is served once and only for the same query and pageable, and only within
+ * the time to live. If it is being fetched, the request waits for it instead of sending the
+ * same query again. If its prefetch has not started yet (it is queued behind other prefetches),
+ * the prefetch is cancelled and the request fetches the page itself, so a request never waits
+ * for the queue of the executor. The number of pending pages is bounded, the oldest one is
+ * dropped when the prefetcher is full. The ProteomesSearchService includes the index version in
+ * the query, so a page prefetched from an earlier version is not served, and the ProteomesIndexService
+ * drops the prefetched pages whenever the index is changed through it.
+ *
+ * By default the pages are fetched by a small pool of daemon threads with a bounded queue,
+ * prefetches that do not fit are skipped. The statistics (hits, wasted prefetches, ...) are
+ * available as JMX attributes if the application exports annotated beans.
+ *
+ * @author florian@ebi.ac.uk
+ */
+@ManagedResource(description = "Next page prefetching of the PRIDE Proteomes search service")
+public class PagePrefetcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(PagePrefetcher.class);
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_TIME_TO_LIVE = TimeUnit.SECONDS.toMillis(30);
+    public static final int DEFAULT_THREADS = 4;
+
+    /**
+     * Fetches a page of a paged search.
+     */
+    public interface PageLoader<T> {
+        public Page<T> load(Pageable pageable);
+    }
+
+    private final int maxEntries;
+    private final long timeToLive;
+    private final Executor executor;
+    // the default executor is created (and shut down) by the prefetcher
+    private final ExecutorService defaultExecutor;
+
+    // insertion ordered, so the oldest (and first to expire) pages are first
+    private final Map<Object, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong prefetches = new AtomicLong();
+    private final AtomicLong wasted = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong notStarted = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+
+    public PagePrefetcher() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TIME_TO_LIVE, null);
+    }
+
+    /**
+     * @param maxEntries the maximum number of prefetched pages waiting to be served.
+     * @param timeToLive the time in milliseconds after which a prefetched page is dropped.
+     * @param executor   the executor to fetch the pages on, null for the default executor.
+     */
+    public PagePrefetcher(final int maxEntries, long timeToLive, Executor executor) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("The maximum number of entries needs to be positive!");
+        }
+        if (timeToLive < 1) {
+            throw new IllegalArgumentException("The time to live needs to be positive!");
+        }
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        this.defaultExecutor = (executor == null) ? createDefaultExecutor(maxEntries) : null;
+        this.executor = (executor == null) ? defaultExecutor : executor;
+        this.entries = new LinkedHashMap<Object, Entry>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Entry> eldest) {
+                if (size() > PagePrefetcher.this.maxEntries) {
+                    drop(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param query    the query the pages belong to, e.g. the method and its arguments.
+     * @param pageable the page to get.
+     * @param loader   fetches the page if it has not been prefetched, and the next page.
+     * @return the prefetched or fetched page.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Page<T> get(Object query, Pageable pageable, PageLoader<T> loader) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.remove(key(query, pageable));
+        }
+        Page<T> page = null;
+        if (entry != null) {
+            if (entry.expires > System.currentTimeMillis()) {
+                if (entry.started.compareAndSet(false, true)) {
+                    // still queued, fetching the page now is faster than waiting for the queue
+                    entry.task.cancel(false);
+                    notStarted.incrementAndGet();
+                } else {
+                    page = (Page<T>) entry.await();
+                }
+            } else {
+                drop(entry);
+            }
+        }
+        if (page == null) {
+            misses.incrementAndGet();
+            page = loader.load(pageable);
+        } else {
+            hits.incrementAndGet();
+        }
+        prefetchNext(query, pageable, page, loader);
+        return page;
+    }
+
+    private <T> void prefetchNext(Object query, Pageable pageable, Page<T> page, final PageLoader<T> loader) {
+        if (pageable == null || page == null
+                || (long) (pageable.getPageNumber() + 1) * pageable.getPageSize() >= page.getTotalElements()) {
+            // the last page
+            return;
+        }
+        final Pageable next = new PageRequest(pageable.getPageNumber() + 1, pageable.getPageSize(), pageable.getSort());
+        Object key = key(query, next);
+        final AtomicBoolean started = new AtomicBoolean();
+        FutureTask<Page<?>> task = new FutureTask<Page<?>>(new Callable<Page<?>>() {
+            @Override
+            public Page<?> call() {
+                if (!started.compareAndSet(false, true)) {
+                    // the page has been requested and fetched in the meantime
+                    return null;
+                }
+                try {
+                    return loader.load(next);
+                } catch (RuntimeException e) {
+                    // the page is fetched again when it is requested
+                    failures.incrementAndGet();
+                    logger.warn("Could not prefetch page " + next.getPageNumber() + ".", e);
+                    return null;
+                }
+            }
+        });
+        synchronized (entries) {
+            if (entries.containsKey(key)) {
+                return;
+            }
+            dropExpired();
+            entries.put(key, new Entry(task, started, System.currentTimeMillis() + timeToLive));
+        }
+        try {
+            executor.execute(task);
+            prefetches.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            synchronized (entries) {
+                entries.remove(key);
+            }
+            skipped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drops all prefetched pages, e.g. because the index has changed.
+     */
+    @ManagedOperation(description = "Drops all prefetched pages")
+    public void invalidate() {
+        synchronized (entries) {
+            for (Entry entry : entries.values()) {
+                drop(entry);
+            }
+            entries.clear();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        invalidate();
+        if (defaultExecutor != null) {
+            defaultExecutor.shutdown();
+        }
+    }
+
+    // needs the lock of entries
+    private void dropExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.expires > now) {
+                // all later entries expire later
+                break;
+            }
+            drop(entry);
+            iterator.remove();
+        }
+    }
+
+    private void drop(Entry entry) {
+        // a prefetch that has not started yet is not run
+        entry.task.cancel(false);
+        wasted.incrementAndGet();
+    }
+
+    private static Object key(Object query, Pageable pageable) {
+        return Arrays.asList(query, pageable);
+    }
+
+    private static ExecutorService createDefaultExecutor(int maxEntries) {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(maxEntries), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "proteomes-prefetch-" + count.incrementAndGet());
+                // never keep the application from exiting
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // idle threads are released
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @ManagedAttribute(description = "Number of prefetched pages waiting to be served")
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @ManagedAttribute(description = "Maximum number of prefetched pages waiting to be served")
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    @ManagedAttribute(description = "Time to live of a prefetched page in milliseconds")
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    @ManagedAttribute(description = "Number of pages served from a prefetch")
+    public long getHits() {
+        return hits.get();
+    }
+
+    @ManagedAttribute(description = "Number of pages that had not been prefetched")
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @ManagedAttribute(description = "Fraction of pages served from a prefetch")
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return (total == 0) ? 0 : (double) hits / total;
+    }
+
+    @ManagedAttribute(description = "Number of pages prefetched in the background")
+    public long getPrefetches() {
+        return prefetches.get();
+    }
+
+    @ManagedAttribute(description = "Number of prefetched pages dropped without being served (expired, evicted or invalidated)")
+    public long getWasted() {
+        return wasted.get();
+    }
+
+    @ManagedAttribute(description = "Fraction of prefetched pages dropped without being served")
+    public double getWasteRate() {
+        long prefetches = getPrefetches();
+        return (prefetches == 0) ? 0 : (double) getWasted() / prefetches;
+    }
+
+    @ManagedAttribute(description = "Number of prefetches skipped because the executor was busy")
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    @ManagedAttribute(description = "Number of requested pages whose prefetch had not started yet, fetched by the request")
+    public long getNotStarted() {
+        return notStarted.get();
+    }
+
+    @ManagedAttribute(description = "Number of prefetches that failed")
+    public long getFailures() {
+        return failures.get();
+    }
+
+    private static class Entry {
+        private final Future<Page<?>> task;
+        // set by the prefetch when it runs, or by the request that takes over a queued prefetch
+        private final AtomicBoolean started;
+        private final long expires;
+
+        private Entry(Future<Page<?>> task, AtomicBoolean started, long expires) {
+            this.task = task;
+            this.started = started;
+            this.expires = expires;
+        }
+
+        // the page, null if the prefetch failed or was cancelled
+        private Page<?> await() {
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                return null;
+            } catch (CancellationException e) {
+                return null;
+            }
+        }
+    }
+}
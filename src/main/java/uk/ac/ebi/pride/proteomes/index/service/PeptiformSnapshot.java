@@ -0,0 +1,81 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of a query pinned when the snapshot is opened, see
+ * {@link ProteomesSearchService#openSnapshotByQuery}. It holds the IDs of the matching
+ * PeptiForms in result order, the pages served from it are cut from this list, so paging
+ * neither repeats the query nor shows duplicated or missing entries while the index changes.
+ *
+ * The snapshot is serializable, so it can be kept e.g. in the HTTP session between requests.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public class PeptiformSnapshot implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String query;
+    private final List<Integer> taxIds;
+    private final ArrayList<String> ids;
+    private final boolean truncated;
+    private final long created;
+
+    PeptiformSnapshot(String query, Collection<Integer> taxIds, List<String> ids, boolean truncated) {
+        this.query = query;
+        this.taxIds = (taxIds == null) ? Collections.<Integer>emptyList() : Collections.unmodifiableList(new ArrayList<Integer>(taxIds));
+        this.ids = new ArrayList<String>(ids);
+        this.truncated = truncated;
+        this.created = System.currentTimeMillis();
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public List<Integer> getTaxIds() {
+        return taxIds;
+    }
+
+    /**
+     * @return the number of PeptiForms in the snapshot, the total elements of its pages.
+     */
+    public int size() {
+        return ids.size();
+    }
+
+    /**
+     * @return true if the query had more results than the maximum snapshot size, only the
+     * first results are in the snapshot.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return the time the snapshot was opened in milliseconds since the epoch.
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    List<String> getIds(int from, int to) {
+        return ids.subList(Math.min(from, ids.size()), Math.min(to, ids.size()));
+    }
+
+    @Override
+    public String toString() {
+        return "PeptiformSnapshot{" +
+                "query='" + query + '\'' +
+                ", taxIds=" + taxIds +
+                ", size=" + ids.size() +
+                ", truncated=" + truncated +
+                ", created=" + created +
+                '}';
+    }
+}
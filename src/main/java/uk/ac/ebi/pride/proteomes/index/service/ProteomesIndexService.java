@@ -1,35 +1,436 @@
 package uk.ac.ebi.pride.proteomes.index.service;
 
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.UpdateResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.solr.core.SolrCallback;
+import org.springframework.data.solr.core.SolrTemplate;
+import org.springframework.data.solr.server.SolrServerFactory;
 import org.springframework.stereotype.Service;
+import uk.ac.ebi.pride.proteomes.index.model.MembershipField;
 import uk.ac.ebi.pride.proteomes.index.model.SolrPeptiform;
-import uk.ac.ebi.pride.proteomes.index.repository.ProteomesRepository;
+import uk.ac.ebi.pride.proteomes.index.repository.IndexVersionTracker;
 
 import javax.annotation.Resource;
+import java.io.IOException;
 import java.util.Collection;
+import java.util.Iterator;
 
 /**
+ * All changes of the index go through this service. When they are committed, and so become
+ * visible to searches, is controlled by the {@link CommitPolicy}.
+ *
+ * With a {@link uk.ac.ebi.pride.proteomes.index.repository.TaxidShardedSolrServer} as the
+ * server of the SolrTemplate, every write is routed to the shard of the PeptiForm's taxid and
+ * deletes and commits go to all shards. The rebuild with a core swap needs a single core.
+ *
  * @author florian@ebi.ac.uk
  */
 @Service
 public class ProteomesIndexService {
 
     @Resource
-    private ProteomesRepository proteomesRepository;
+    private SolrTemplate solrTemplate;
+
+    @Autowired(required = false)
+    private CommitPolicy commitPolicy = new CommitPolicy();
+
+    @Autowired(required = false)
+    private ResultCache resultCache;
+
+    @Autowired(required = false)
+    private SolrServerFactory solrServerFactory;
+
+    @Autowired(required = false)
+    private PagePrefetcher pagePrefetcher;
+
+    @Autowired(required = false)
+    private RequestCoalescer requestCoalescer;
+
+    private int membershipBatchSize = BulkIndexOptions.DEFAULT_BATCH_SIZE;
+
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * @param resultCache the cache of the search results, it is invalidated whenever changes are committed.
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public PagePrefetcher getPagePrefetcher() {
+        return pagePrefetcher;
+    }
+
+    /**
+     * @param pagePrefetcher the prefetcher of the search pages, it is invalidated whenever changes are committed.
+     */
+    public void setPagePrefetcher(PagePrefetcher pagePrefetcher) {
+        this.pagePrefetcher = pagePrefetcher;
+    }
+
+    public RequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    /**
+     * @param requestCoalescer the coalescer of the search queries, it is invalidated whenever changes are committed.
+     */
+    public void setRequestCoalescer(RequestCoalescer requestCoalescer) {
+        this.requestCoalescer = requestCoalescer;
+    }
+
+    public CommitPolicy getCommitPolicy() {
+        return commitPolicy;
+    }
+
+    /**
+     * @param commitPolicy when changes are committed, the default is a hard commit after every change.
+     */
+    public void setCommitPolicy(CommitPolicy commitPolicy) {
+        if (commitPolicy == null) {
+            throw new IllegalArgumentException("A commit policy is required!");
+        }
+        this.commitPolicy = commitPolicy;
+    }
+
+    public int getMembershipBatchSize() {
+        return membershipBatchSize;
+    }
+
+    /**
+     * @param membershipBatchSize the number of PeptiForms read and updated per request by the membership updates.
+     */
+    public void setMembershipBatchSize(int membershipBatchSize) {
+        if (membershipBatchSize < 1) {
+            throw new IllegalArgumentException("The batch size needs to be positive!");
+        }
+        this.membershipBatchSize = membershipBatchSize;
+    }
+
+    public SolrServerFactory getSolrServerFactory() {
+        return solrServerFactory;
+    }
+
+    /**
+     * @param solrServerFactory the factory of the SolrTemplate, needed for the core admin requests
+     *                          and the shadow core of a rebuild.
+     */
+    public void setSolrServerFactory(SolrServerFactory solrServerFactory) {
+        this.solrServerFactory = solrServerFactory;
+    }
 
 
     public void deleteAll() {
-        this.proteomesRepository.deleteAll();
+        write(new SolrCallback<UpdateResponse>() {
+            @Override
+            public UpdateResponse doInSolr(SolrServer solrServer) throws SolrServerException, IOException {
+                return solrServer.deleteByQuery("*:*", commitPolicy.getCommitWithin());
+            }
+        });
+    }
+
+    public void save(final SolrPeptiform solrPeptiform) {
+        ContentHash.update(solrPeptiform);
+        write(new SolrCallback<UpdateResponse>() {
+            @Override
+            public UpdateResponse doInSolr(SolrServer solrServer) throws SolrServerException, IOException {
+                return solrServer.addBean(solrPeptiform, commitPolicy.getCommitWithin());
+            }
+        });
+    }
+
+    public void save(final Collection<SolrPeptiform> solrPeptiforms) {
+        for (SolrPeptiform solrPeptiform : solrPeptiforms) {
+            ContentHash.update(solrPeptiform);
+        }
+        write(new SolrCallback<UpdateResponse>() {
+            @Override
+            public UpdateResponse doInSolr(SolrServer solrServer) throws SolrServerException, IOException {
+                return solrServer.addBeans(solrPeptiforms, commitPolicy.getCommitWithin());
+            }
+        });
+    }
+
+    public void delete(final String id) {
+        write(new SolrCallback<UpdateResponse>() {
+            @Override
+            public UpdateResponse doInSolr(SolrServer solrServer) throws SolrServerException, IOException {
+                return solrServer.deleteById(id, commitPolicy.getCommitWithin());
+            }
+        });
+    }
+
+    /**
+     * Hard commit of all pending changes, they are durable and visible once the call returns.
+     */
+    public void flush() {
+        CommitPolicy.commit(solrTemplate, CommitPolicy.Commit.HARD);
+        invalidateCache();
+    }
+
+    /**
+     * Soft commit of all pending changes, e.g. the ones sent with a commitWithin. They are
+     * visible to searches once the call returns, but only durable after the next hard commit.
+     */
+    public void awaitVisible() {
+        CommitPolicy.commit(solrTemplate, CommitPolicy.Commit.SOFT);
+        invalidateCache();
+    }
+
+    /**
+     * Bulk indexing of a (potentially very large) stream of PeptiForms with the default options.
+     *
+     * @see #saveAll(Iterator, BulkIndexOptions)
+     */
+    public BulkIndexResult saveAll(Iterator<SolrPeptiform> solrPeptiforms) {
+        return saveAll(solrPeptiforms, new BulkIndexOptions());
+    }
+
+    /**
+     * Bulk indexing of a (potentially very large) stream of PeptiForms. The records are
+     * consumed lazily from the iterator, cut into batches and sent to Solr by a bounded
+     * pool of threads. The calling thread blocks while all threads are busy, so the memory
+     * needed does not depend on the size of the data set.
+     *
+     * Failed batches are retried, batches that still fail are reported in the result
+     * and do not stop the run. Changes are committed once at the end of the run, with the
+     * batch commit of the CommitPolicy.
+     *
+     * @param solrPeptiforms the records to index, they are not collected in memory.
+     * @param options batch size, parallelism, retries and commit settings.
+     * @return the statistics of the run.
+     */
+    public BulkIndexResult saveAll(Iterator<SolrPeptiform> solrPeptiforms, BulkIndexOptions options) {
+        if (solrPeptiforms == null) {
+            throw new IllegalArgumentException("PeptiForms to index are required!");
+        }
+        if (options == null) {
+            options = new BulkIndexOptions();
+        }
+        try {
+            return new BulkIndexer(solrTemplate, options, commitWithin(options), commitPolicy.getAfterBatch()).index(solrPeptiforms);
+        } finally {
+            // also if the run failed, some batches may have made it to the index
+            changed(commitPolicy.getAfterBatch(), commitWithin(options));
+        }
+    }
+
+    /**
+     * Full rebuild with the default options.
+     *
+     * @see #rebuild(Iterator, RebuildOptions)
+     */
+    public RebuildResult rebuild(Iterator<SolrPeptiform> solrPeptiforms) {
+        return rebuild(solrPeptiforms, new RebuildOptions());
+    }
+
+    /**
+     * Rebuilds the index from scratch without downtime, as an alternative to deleteAll() followed
+     * by saveAll(). The records are loaded into a shadow core, which replaces the live core with a
+     * core swap once it passed the sanity checks: the number of documents, in total and for each
+     * taxid, must not drop by more than the configured fraction. Searches are served from the
+     * complete live core until the swap. If the checks fail, the shadow core is discarded and the
+     * live core is kept.
+     *
+     * This needs the SolrServerFactory: its default server must accept core admin requests (the
+     * embedded server, or an HTTP server with the Solr base URL), and the instance directories of
+     * the cores must be accessible from here, as the shadow core gets a copy of the configuration
+     * in a directory of its own. The swap only survives a restart of Solr with core discovery
+     * (core.properties), see RebuildResult.isPersisted. The replaced core is kept on disk for a
+     * rollback unless RebuildOptions.setDeletePrevious is set.
+     *
+     * @param solrPeptiforms the complete data set, streamed as in saveAll().
+     * @param options the batch settings, the live core and the sanity check threshold.
+     * @return the outcome of the rebuild.
+     */
+    public RebuildResult rebuild(Iterator<SolrPeptiform> solrPeptiforms, RebuildOptions options) {
+        if (solrPeptiforms == null) {
+            throw new IllegalArgumentException("PeptiForms to index are required!");
+        }
+        if (solrServerFactory == null) {
+            throw new IllegalStateException("A SolrServerFactory is required to rebuild the index!");
+        }
+        if (options == null) {
+            options = new RebuildOptions();
+        }
+        try {
+            return new CoreSwapRebuilder(solrServerFactory, options).rebuild(solrPeptiforms);
+        } finally {
+            invalidateCache();
+        }
+    }
+
+    /**
+     * Delta indexing with the default options, without checkpoints.
+     *
+     * @see #deltaIndex(Iterator, DeltaIndexOptions)
+     */
+    public DeltaIndexResult deltaIndex(Iterator<SolrPeptiform> solrPeptiforms) {
+        return deltaIndex(solrPeptiforms, new DeltaIndexOptions());
+    }
+
+    /**
+     * Brings the index in line with a new release of the complete data set, as an alternative
+     * to deleteAll() followed by saveAll(). The incoming records are compared with the indexed
+     * ones by ID and content hash: only new and changed records are sent to the index, and the
+     * indexed records with an ID that is not part of the data set any more are deleted. The
+     * index stays complete and searchable during the run.
+     *
+     * The records have to be sorted by ID (in the natural order of the Strings), as they are
+     * merged with the IDs read from the index. Like saveAll() the records are streamed.
+     *
+     * Records are compared in segments, a checkpoint is written once a segment has been sent
+     * to the index. A run that stopped because of failed batches or an exception can be
+     * resumed with the same data set and checkpoint file, it skips the records up to the
+     * checkpoint.
+     *
+     * @param solrPeptiforms the complete data set, sorted by ID.
+     * @param options the batch settings, the checkpoint file and interval.
+     * @return the statistics of the run.
+     */
+    public DeltaIndexResult deltaIndex(Iterator<SolrPeptiform> solrPeptiforms, DeltaIndexOptions options) {
+        if (solrPeptiforms == null) {
+            throw new IllegalArgumentException("PeptiForms to index are required!");
+        }
+        if (options == null) {
+            options = new DeltaIndexOptions();
+        }
+        try {
+            return new DeltaIndexer(solrTemplate, options, commitWithin(options), commitPolicy.getAfterBatch()).index(solrPeptiforms);
+        } finally {
+            changed(commitPolicy.getAfterBatch(), commitWithin(options));
+        }
+    }
+
+    /**
+     * Adds a value to a membership field of all PeptiForms of a group, e.g. a protein to all
+     * PeptiForms of a UniProt group. The count of the field is increased accordingly. PeptiForms
+     * that already have the value are not changed.
+     *
+     * Only the changed fields are sent to Solr (atomic update), the rest of the PeptiForms is
+     * kept as indexed. The PeptiForms are updated in batches (see setMembershipBatchSize) and
+     * committed at the end.
+     *
+     * The group descriptions of PeptiForms indexed before they were stored (see schema.xml)
+     * are dropped from the text field by an atomic update, such an index has to be rebuilt
+     * before using the membership updates.
+     *
+     * @param groupField the field of the group, e.g. UP_GROUPS.
+     * @param groupId the group whose PeptiForms are updated, e.g. a UniProt group ID.
+     * @param field the field to change, e.g. PROTEINS.
+     * @param value the value to add, e.g. a protein accession.
+     * @return the number of updated PeptiForms.
+     */
+    public long addMembership(MembershipField groupField, String groupId, MembershipField field, String value) {
+        checkMembership(groupField, groupId, field, value);
+        try {
+            return createMembershipUpdater().add(groupField, groupId, field, value);
+        } finally {
+            changed(commitPolicy.getAfterBatch(), commitPolicy.getCommitWithin());
+        }
+    }
+
+    /**
+     * Removes a value from a membership field of all PeptiForms of a group, the count of the field
+     * is decreased accordingly. To remove a group from all its PeptiForms, the group itself is
+     * used as the value, e.g. removeMembership(GENE_GROUPS, gene, GENE_GROUPS, gene).
+     *
+     * @see #addMembership(MembershipField, String, MembershipField, String)
+     * @return the number of updated PeptiForms.
+     */
+    public long removeMembership(MembershipField groupField, String groupId, MembershipField field, String value) {
+        checkMembership(groupField, groupId, field, value);
+        try {
+            return createMembershipUpdater().remove(groupField, groupId, field, value);
+        } finally {
+            changed(commitPolicy.getAfterBatch(), commitPolicy.getCommitWithin());
+        }
+    }
+
+    /**
+     * Replaces a value of a membership field in all PeptiForms that have it, e.g. after a group
+     * has been renamed.
+     *
+     * @return the number of updated PeptiForms.
+     */
+    public long replaceMembership(MembershipField field, String oldValue, String newValue) {
+        checkMembership(field, oldValue, field, newValue);
+        if (oldValue.equals(newValue)) {
+            return 0;
+        }
+        try {
+            MembershipUpdater updater = createMembershipUpdater();
+            updater.add(field, oldValue, field, newValue);
+            return updater.remove(field, oldValue, field, oldValue);
+        } finally {
+            changed(commitPolicy.getAfterBatch(), commitPolicy.getCommitWithin());
+        }
+    }
+
+
+    private MembershipUpdater createMembershipUpdater() {
+        return new MembershipUpdater(solrTemplate, membershipBatchSize,
+                commitPolicy.getCommitWithin(), commitPolicy.getAfterBatch());
+    }
+
+    private int commitWithin(BulkIndexOptions options) {
+        return options.getCommitWithin() > 0 ? options.getCommitWithin() : commitPolicy.getCommitWithin();
+    }
+
+    private void write(SolrCallback<UpdateResponse> update) {
+        try {
+            solrTemplate.execute(update);
+            CommitPolicy.commit(solrTemplate, commitPolicy.getAfterWrite());
+        } finally {
+            changed(commitPolicy.getAfterWrite(), commitPolicy.getCommitWithin());
+        }
     }
 
-    public void save(SolrPeptiform solrPeptiform) {
-        this.proteomesRepository.save(solrPeptiform);
+    private static void checkMembership(MembershipField groupField, String groupId, MembershipField field, String value) {
+        if (groupField == null || field == null) {
+            throw new IllegalArgumentException("Membership fields are required!");
+        }
+        if (groupId == null || groupId.isEmpty()) {
+            throw new IllegalArgumentException("Group ID is required!");
+        }
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Value is required!");
+        }
     }
 
-    public void save(Collection<SolrPeptiform> solrPeptiforms) {
-        this.proteomesRepository.save(solrPeptiforms);
+    /**
+     * Changes that have been committed are visible, the caches are invalidated. Changes that are
+     * not committed yet only become visible with a later commit (e.g. their commitWithin), until
+     * then the cached results are still those of the visible index. The caches of the search
+     * service are keyed by the index version, so they follow once the version changes, the
+     * tracker is told when to expect the new version.
+     */
+    private void changed(CommitPolicy.Commit commit, int commitWithin) {
+        if (commit != CommitPolicy.Commit.NONE) {
+            invalidateCache();
+        } else if (commitWithin > 0) {
+            IndexVersionTracker.of(solrTemplate).changedWithin(commitWithin);
+        } else {
+            IndexVersionTracker.of(solrTemplate).changed();
+        }
     }
 
-    public void delete(String id) {
-        this.proteomesRepository.delete(id);
+    private void invalidateCache() {
+        // the cached counts of the repository are checked against the index version
+        IndexVersionTracker.of(solrTemplate).changed();
+        // first, so the results loaded into the cache after its invalidation are not those of earlier queries
+        if (requestCoalescer != null) {
+            requestCoalescer.invalidate();
+        }
+        if (pagePrefetcher != null) {
+            pagePrefetcher.invalidate();
+        }
+        if (resultCache != null) {
+            resultCache.invalidate();
+        }
     }
 }
@@ -1,32 +1,82 @@
 package uk.ac.ebi.pride.proteomes.index.service;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.solr.core.SolrTemplate;
+import org.springframework.data.solr.core.query.SimpleField;
 import org.springframework.data.solr.core.query.result.FacetFieldEntry;
 import org.springframework.data.solr.core.query.result.FacetPage;
+import org.springframework.data.solr.core.query.result.SimpleFacetFieldEntry;
 import org.springframework.stereotype.Service;
+import uk.ac.ebi.pride.proteomes.index.model.CompactPeptiforms;
+import uk.ac.ebi.pride.proteomes.index.model.FacetSummary;
+import uk.ac.ebi.pride.proteomes.index.model.PeptiformProjection;
 import uk.ac.ebi.pride.proteomes.index.model.SolrPeptiform;
 import uk.ac.ebi.pride.proteomes.index.model.SolrPeptiformFields;
+import uk.ac.ebi.pride.proteomes.index.repository.IndexVersionTracker;
 import uk.ac.ebi.pride.proteomes.index.repository.ProteomesRepository;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Search service implementation based on the functionality defined in the Solr ProteomesRepository.
  *
  * Notes:
  *
- * - countByXyz methods are usually based on the corresponding findByXyz method (using the
- * statistics in the returned page) rather than using the Solr count methods. This is done
- * to keep the consistency with the find method in case the find method is customised.
+ * - countByXyz methods use count only queries (no documents are fetched or bound to beans).
+ * The count queries are derived from the same fields as the corresponding findByXyz method
+ * or share the same query string (see ProteomesRepository), so the counts stay consistent
+ * with the find methods. The input checks and defaults of the find methods are applied
+ * to the count methods as well.
  *
  * - findAllByXyz are convenience methods to retrieve all PeptiForms for a given search record
  * without having to deal with paging parameters. This is only available when result sets are
  * expected to be small.
  *
+ * - streamXyz methods iterate over all PeptiForms for a given search record using Solr deep
+ * paging (cursorMark). Pages are fetched lazily while iterating, so they are suitable for
+ * exports and large result sets where the findAllByXyz methods would run out of memory.
+ * The streamXyzCounts methods do the same for the values of the protein and group facets.
+ *
+ * - findAllCompactByXyz return all PeptiForms for a given search record like findAllByXyz, but
+ * read with deep paging into a CompactPeptiforms list, which holds the repeated accessions,
+ * modifications and groups once (dictionary encoded) instead of one bean per record.
+ *
+ * - findByXyz methods taking a PeptiformProjection only load the fields of the projection (e.g.
+ * PeptiformProjection.SUMMARY for result listings), the other fields of the returned beans are
+ * left empty. This avoids transferring and binding the protein and group lists when they are not
+ * needed. A null projection loads all fields.
+ *
+ * - openSnapshotByQuery and openFacetSnapshot pin a query result or the values of a facet, the
+ * pages served from the snapshot are consistent with each other while the index changes and
+ * are cut from the pinned result instead of re-executing the query for every page.
+ *
+ * - the results of the count and facet methods can be cached by providing a ResultCache (see
+ * setResultCache or define a ResultCache bean). The results are cached per index version (see
+ * IndexVersionTracker), so they follow the changes once they are visible, also those sent with a
+ * commitWithin or by other clients. The cache is also invalidated by the ProteomesIndexService
+ * whenever the index is changed through it.
+ *
+ * - identical count and facet queries running at the same time (e.g. a burst of requests for a
+ * popular page) can share one Solr request and its result by providing a RequestCoalescer (see
+ * setRequestCoalescer or define a RequestCoalescer bean).
+ *
+ * - the next page of findByQuery, findByProtein and findByQueryAndFilterTaxid can be fetched in
+ * the background after a page has been served, by providing a PagePrefetcher (see
+ * setPagePrefetcher or define a PagePrefetcher bean).
+ *
+ * - the calls of all public methods can be instrumented (latency, errors, result sizes, Solr QTime)
+ * by defining a ServiceMetrics bean.
+ *
  * - most methods querying specific fields will throw an exception if unsupported parameters
  * are provided (like null or empty Strings). Methods querying the general query field will
  * return everything by default.
@@ -38,16 +88,143 @@ import java.util.*;
 @SuppressWarnings("unused")
 public class ProteomesSearchService {
 
+    /**
+     * Minimum length of a sub-sequence query, the sequences are indexed as 3-mers.
+     */
+    public static final int MIN_SUB_SEQUENCE_LENGTH = 3;
+
+    /**
+     * Maximum number of IDs resolved per request in findByIds (and of proteins in findByProteins),
+     * well below the default maxBooleanClauses (1024) of Solr.
+     */
+    public static final int IDS_PER_REQUEST = 500;
+
+    /**
+     * Default maximum number of PeptiForm IDs or facet values held by a snapshot.
+     */
+    public static final int DEFAULT_MAX_SNAPSHOT_SIZE = 100000;
+
+    // PeptiForms fetched per request by the findAllCompactByXyz methods
+    private static final int COMPACT_PAGE_SIZE = 1000;
+
+    // facet values fetched per request when a facet snapshot is opened
+    private static final int SNAPSHOT_FACET_PAGE_SIZE = 10000;
+
     @Resource
     private ProteomesRepository proteomesRepository;
 
+    @Resource
+    private SolrTemplate solrTemplate;
+
+    // the repository without caching, proteomesRepository is a caching view on it if a cache is set
+    private ProteomesRepository repository;
+
+    @Autowired(required = false)
+    private ResultCache resultCache;
+
+    @Autowired(required = false)
+    private PagePrefetcher pagePrefetcher;
+
+    @Autowired(required = false)
+    private RequestCoalescer requestCoalescer;
+
+    private int maxSnapshotSize = DEFAULT_MAX_SNAPSHOT_SIZE;
+
+    @PostConstruct
+    void init() {
+        this.repository = this.proteomesRepository;
+        setResultCache(this.resultCache);
+    }
+
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * @param resultCache the cache for the results of the count and facet methods, null to disable caching.
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+        this.proteomesRepository = CachingRepositoryHandler.wrap(this.repository, resultCache, requestCoalescer, versionTracker());
+    }
+
+    public RequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    /**
+     * @param requestCoalescer shares the running count and facet queries with identical concurrent
+     *                         queries, null to send every query to Solr.
+     */
+    public void setRequestCoalescer(RequestCoalescer requestCoalescer) {
+        this.requestCoalescer = requestCoalescer;
+        this.proteomesRepository = CachingRepositoryHandler.wrap(this.repository, resultCache, requestCoalescer, versionTracker());
+    }
+
+    public PagePrefetcher getPagePrefetcher() {
+        return pagePrefetcher;
+    }
+
+    /**
+     * @param pagePrefetcher prefetches the next page of the paged searches, null to disable prefetching.
+     */
+    public void setPagePrefetcher(PagePrefetcher pagePrefetcher) {
+        this.pagePrefetcher = pagePrefetcher;
+    }
+
+    public int getMaxSnapshotSize() {
+        return maxSnapshotSize;
+    }
+
+    /**
+     * @param maxSnapshotSize the maximum number of PeptiForm IDs or facet values held by a snapshot,
+     *                        larger results are truncated (see PeptiformSnapshot.isTruncated).
+     */
+    public void setMaxSnapshotSize(int maxSnapshotSize) {
+        if (maxSnapshotSize < 1) {
+            throw new IllegalArgumentException("The maximum snapshot size needs to be positive!");
+        }
+        this.maxSnapshotSize = maxSnapshotSize;
+    }
+
+    // serves the page from the PagePrefetcher if one is set, the query and the index version identify the pages
+    private Page<SolrPeptiform> findPage(Pageable pageable, PagePrefetcher.PageLoader<SolrPeptiform> loader, Object... query) {
+        PagePrefetcher prefetcher = this.pagePrefetcher;
+        if (prefetcher == null || pageable == null) {
+            return loader.load(pageable);
+        }
+        long version = versionTracker().getVersion();
+        if (version < 0) {
+            return loader.load(pageable);
+        }
+        return prefetcher.get(Arrays.asList(Arrays.asList(query), version), pageable, loader);
+    }
+
+    private IndexVersionTracker versionTracker() {
+        return IndexVersionTracker.of(solrTemplate);
+    }
 
-    private static final PageRequest CPR = new PageRequest(0,1); // PageRequest used for counting (page.getTotalElements())
     private static void checkTerm(String term) {
         if (term == null || term.trim().isEmpty()) {
             throw new IllegalArgumentException("A search term is required!");
         }
     }
+    private static void checkSequence(String sequence, int minLength) {
+        checkTerm(sequence);
+        if (sequence.length() < minLength) {
+            throw new IllegalArgumentException("A sequence of at least " + minLength + " residues is required!");
+        }
+        for (int i = 0; i < sequence.length(); i++) {
+            if (!Character.isLetter(sequence.charAt(i))) {
+                throw new IllegalArgumentException("Not a valid peptide sequence: " + sequence);
+            }
+        }
+    }
+    private static void checkTaxid(int taxid) {
+        if (taxid < 1) {
+            throw new IllegalArgumentException("TaxId needs to be positive!");
+        }
+    }
 
     /*
      * Global queries, query for all records
@@ -56,8 +233,17 @@ public class ProteomesSearchService {
     public Page<SolrPeptiform> findAll(Pageable pageable) {
         return proteomesRepository.findAll(pageable);
     }
+    public Page<SolrPeptiform> findAll(Pageable pageable, PeptiformProjection projection) {
+        if (projection == null) {
+            return findAll(pageable);
+        }
+        return proteomesRepository.findAll(pageable, projection);
+    }
     public Long countAll() {
-        return this.findAll(CPR).getTotalElements();
+        return proteomesRepository.count();
+    }
+    public Iterator<SolrPeptiform> streamAll(int pageSize) {
+        return proteomesRepository.streamAll(pageSize);
     }
 
     public Map<Integer, Long> getTaxidFacets() {
@@ -82,22 +268,143 @@ public class ProteomesSearchService {
     }
     // Note: countById does not make sense and existById is the same as findById != null
 
+    public Map<String, SolrPeptiform> findByIds(Collection<String> ids) {
+        return findByIds(ids, null);
+    }
+
+    /**
+     * Resolves many IDs with one request per chunk of IDS_PER_REQUEST IDs instead of
+     * one request per ID.
+     *
+     * @param ids the IDs to look up, duplicates are resolved once.
+     * @param executor runs the requests of the chunks in parallel, null to run them one
+     *                 after the other in the calling thread.
+     * @return the PeptiForms by ID in the order of the IDs, IDs that are not in the index are missing.
+     */
+    public Map<String, SolrPeptiform> findByIds(Collection<String> ids, ExecutorService executor) {
+        if (ids == null) {
+            throw new IllegalArgumentException("IDs are required!");
+        }
+        Set<String> unique = new LinkedHashSet<String>(ids);
+        unique.remove(null);
+
+        List<List<String>> chunks = new ArrayList<List<String>>();
+        List<String> chunk = new ArrayList<String>(IDS_PER_REQUEST);
+        for (String id : unique) {
+            chunk.add(id);
+            if (chunk.size() == IDS_PER_REQUEST) {
+                chunks.add(chunk);
+                chunk = new ArrayList<String>(IDS_PER_REQUEST);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+
+        Map<String, SolrPeptiform> found = new HashMap<String, SolrPeptiform>(unique.size() * 2);
+        if (executor == null || chunks.size() < 2) {
+            for (List<String> idChunk : chunks) {
+                for (SolrPeptiform solrPeptiform : proteomesRepository.findByIds(idChunk, PeptiformProjection.ALL)) {
+                    found.put(solrPeptiform.getId(), solrPeptiform);
+                }
+            }
+        } else {
+            List<Callable<List<SolrPeptiform>>> tasks = new ArrayList<Callable<List<SolrPeptiform>>>(chunks.size());
+            for (final List<String> idChunk : chunks) {
+                tasks.add(new Callable<List<SolrPeptiform>>() {
+                    @Override
+                    public List<SolrPeptiform> call() {
+                        return proteomesRepository.findByIds(idChunk, PeptiformProjection.ALL);
+                    }
+                });
+            }
+            try {
+                for (Future<List<SolrPeptiform>> future : executor.invokeAll(tasks)) {
+                    for (SolrPeptiform solrPeptiform : future.get()) {
+                        found.put(solrPeptiform.getId(), solrPeptiform);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while looking up " + unique.size() + " IDs.", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        // in the order of the requested IDs
+        Map<String, SolrPeptiform> result = new LinkedHashMap<String, SolrPeptiform>(found.size() * 2);
+        for (String id : unique) {
+            SolrPeptiform solrPeptiform = found.get(id);
+            if (solrPeptiform != null) {
+                result.put(id, solrPeptiform);
+            }
+        }
+        return result;
+    }
+
     public Page<SolrPeptiform> findBySequence(String sequence, Pageable pageable) {
         checkTerm(sequence);
         return proteomesRepository.findBySequence(sequence, pageable);
     }
+    public Page<SolrPeptiform> findBySequence(String sequence, Pageable pageable, PeptiformProjection projection) {
+        if (projection == null) {
+            return findBySequence(sequence, pageable);
+        }
+        checkTerm(sequence);
+        return proteomesRepository.findBySequence(sequence, pageable, projection);
+    }
     public Long countBySequence(String sequence) {
-        return this.findBySequence(sequence, CPR).getTotalElements();
+        checkTerm(sequence);
+        return proteomesRepository.countBySequence(sequence);
+    }
+
+    /*
+     * Sequence searches: PeptiForms with sequences starting with or containing a (sub-)sequence,
+     * not case sensitive. Use these instead of wildcard queries (e.g. *CVMP*) on the query field,
+     * which have to scan all terms of the index.
+     */
+
+    public Page<SolrPeptiform> findBySequencePrefix(String prefix, Pageable pageable) {
+        checkSequence(prefix, 1);
+        return proteomesRepository.findBySequenceStartingWith(prefix, pageable);
+    }
+    public long countBySequencePrefix(String prefix) {
+        checkSequence(prefix, 1);
+        return proteomesRepository.countBySequenceStartingWith(prefix);
+    }
+
+    /**
+     * @param subSequence a sequence of at least MIN_SUB_SEQUENCE_LENGTH residues, e.g. a k-mer.
+     * @param pageable the page of the result.
+     * @return the PeptiForms with sequences containing the sub-sequence at any position.
+     */
+    public Page<SolrPeptiform> findBySubSequence(String subSequence, Pageable pageable) {
+        checkSequence(subSequence, MIN_SUB_SEQUENCE_LENGTH);
+        return proteomesRepository.findBySubSequence(subSequence, pageable);
+    }
+    public long countBySubSequence(String subSequence) {
+        checkSequence(subSequence, MIN_SUB_SEQUENCE_LENGTH);
+        return proteomesRepository.countBySubSequence(subSequence);
     }
 
     public Page<SolrPeptiform> findByTaxid(int taxid, Pageable pageable) {
-        if (taxid < 1) {
-            throw new IllegalArgumentException("TaxId needs to be positive!");
-        }
+        checkTaxid(taxid);
         return proteomesRepository.findByTaxid(taxid, pageable);
     }
+    public Page<SolrPeptiform> findByTaxid(int taxid, Pageable pageable, PeptiformProjection projection) {
+        if (projection == null) {
+            return findByTaxid(taxid, pageable);
+        }
+        checkTaxid(taxid);
+        return proteomesRepository.findByTaxid(taxid, pageable, projection);
+    }
     public Long countByTaxid(int taxid) {
-        return this.findByTaxid(taxid, CPR).getTotalElements();
+        checkTaxid(taxid);
+        return proteomesRepository.countByTaxid(taxid);
     }
 
     public Page<SolrPeptiform> findBySpecies(String species, Pageable pageable) {
@@ -105,19 +412,84 @@ public class ProteomesSearchService {
         return proteomesRepository.findBySpecies(species, pageable);
     }
     public Long countBySpecies(String species) {
-        return this.findBySpecies(species, CPR).getTotalElements();
+        checkTerm(species);
+        return proteomesRepository.countBySpecies(species);
     }
 
-    public Page<SolrPeptiform> findByProtein(String proteinAccession, Pageable pageable) {
+    public Page<SolrPeptiform> findByProtein(final String proteinAccession, Pageable pageable) {
+        checkTerm(proteinAccession);
+        return findPage(pageable, new PagePrefetcher.PageLoader<SolrPeptiform>() {
+            @Override
+            public Page<SolrPeptiform> load(Pageable pageable) {
+                return proteomesRepository.findByProteins(proteinAccession, pageable);
+            }
+        }, "findByProtein", proteinAccession);
+    }
+    public Page<SolrPeptiform> findByProtein(final String proteinAccession, Pageable pageable, final PeptiformProjection projection) {
+        if (projection == null) {
+            return findByProtein(proteinAccession, pageable);
+        }
         checkTerm(proteinAccession);
-        return proteomesRepository.findByProteins(proteinAccession, pageable);
+        return findPage(pageable, new PagePrefetcher.PageLoader<SolrPeptiform>() {
+            @Override
+            public Page<SolrPeptiform> load(Pageable pageable) {
+                return proteomesRepository.findByProteins(proteinAccession, pageable, projection);
+            }
+        }, "findByProtein", proteinAccession, projection);
     }
     public List<SolrPeptiform> findAllByProtein(String proteinAccession) {
         checkTerm(proteinAccession);
         return proteomesRepository.findAllByProteins(proteinAccession);
     }
+    public Iterator<SolrPeptiform> streamByProtein(String proteinAccession, int pageSize) {
+        checkTerm(proteinAccession);
+        return proteomesRepository.streamByProteins(proteinAccession, pageSize);
+    }
+    public CompactPeptiforms findAllCompactByProtein(String proteinAccession) {
+        return CompactPeptiforms.of(streamByProtein(proteinAccession, COMPACT_PAGE_SIZE));
+    }
+    /**
+     * The PeptiForms of several proteins (e.g. the members of a protein group) in a single request
+     * per IDS_PER_REQUEST proteins, instead of a findAllByProtein and a countByProtein call per protein.
+     *
+     * @param proteinAccessions the proteins, duplicates are ignored.
+     * @param taxids only PeptiForms of these species are returned and counted, null or empty for all.
+     * @param rowsPerProtein the maximum number of PeptiForms returned per protein, 0 for the counts only.
+     * @return a page per protein in the order of the accessions, the total elements of a page is the
+     * exact number of PeptiForms of the protein.
+     */
+    public Map<String, Page<SolrPeptiform>> findByProteins(Collection<String> proteinAccessions, Collection<Integer> taxids, int rowsPerProtein) {
+        if (proteinAccessions == null || proteinAccessions.isEmpty()) {
+            throw new IllegalArgumentException("Protein accessions are required!");
+        }
+        if (rowsPerProtein < 0) {
+            throw new IllegalArgumentException("The number of rows per protein can not be negative!");
+        }
+        Set<String> unique = new LinkedHashSet<String>(proteinAccessions.size());
+        for (String proteinAccession : proteinAccessions) {
+            checkTerm(proteinAccession);
+            unique.add(proteinAccession);
+        }
+        if (unique.size() <= IDS_PER_REQUEST) {
+            return proteomesRepository.findByProteinsGrouped(unique, taxids, rowsPerProtein);
+        }
+        Map<String, Page<SolrPeptiform>> result = new LinkedHashMap<String, Page<SolrPeptiform>>(unique.size() * 2);
+        List<String> chunk = new ArrayList<String>(IDS_PER_REQUEST);
+        for (String proteinAccession : unique) {
+            chunk.add(proteinAccession);
+            if (chunk.size() == IDS_PER_REQUEST) {
+                result.putAll(proteomesRepository.findByProteinsGrouped(chunk, taxids, rowsPerProtein));
+                chunk = new ArrayList<String>(IDS_PER_REQUEST);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            result.putAll(proteomesRepository.findByProteinsGrouped(chunk, taxids, rowsPerProtein));
+        }
+        return result;
+    }
     public long countByProtein(String proteinAccession) {
-        return this.findByProtein(proteinAccession, CPR).getTotalElements();
+        checkTerm(proteinAccession);
+        return proteomesRepository.countByProteins(proteinAccession);
     }
 
     public Page<SolrPeptiform> findByMod(String mod, Pageable pageable) {
@@ -125,7 +497,8 @@ public class ProteomesSearchService {
         return this.proteomesRepository.findByMods(mod, pageable);
     }
     public long countByMod(String mod) {
-        return this.findByMod(mod, CPR).getTotalElements();
+        checkTerm(mod);
+        return this.proteomesRepository.countByMods(mod);
     }
 
     public Page<SolrPeptiform> findByNumProteinsGreaterThan(int num, Pageable page) {
@@ -149,8 +522,23 @@ public class ProteomesSearchService {
         checkTerm(upGroupId);
         return this.proteomesRepository.findByUpGroups(upGroupId, pageable);
     }
+    public Page<SolrPeptiform> findByUpGroup(String upGroupId, Pageable pageable, PeptiformProjection projection) {
+        if (projection == null) {
+            return findByUpGroup(upGroupId, pageable);
+        }
+        checkTerm(upGroupId);
+        return this.proteomesRepository.findByUpGroups(upGroupId, pageable, projection);
+    }
+    public Iterator<SolrPeptiform> streamByUpGroup(String upGroupId, int pageSize) {
+        checkTerm(upGroupId);
+        return this.proteomesRepository.streamByUpGroups(upGroupId, pageSize);
+    }
+    public CompactPeptiforms findAllCompactByUpGroup(String upGroupId) {
+        return CompactPeptiforms.of(streamByUpGroup(upGroupId, COMPACT_PAGE_SIZE));
+    }
     public long countByUpGroup(String upGroupId) {
-        return this.findByUpGroup(upGroupId, CPR).getTotalElements();
+        checkTerm(upGroupId);
+        return this.proteomesRepository.countByUpGroups(upGroupId);
     }
 
     public List<SolrPeptiform> findAllByGeneGroup(String geneGroupId) {
@@ -161,8 +549,23 @@ public class ProteomesSearchService {
         checkTerm(geneGroupId);
         return this.proteomesRepository.findByGeneGroups(geneGroupId, pageable);
     }
+    public Page<SolrPeptiform> findByGeneGroup(String geneGroupId, Pageable pageable, PeptiformProjection projection) {
+        if (projection == null) {
+            return findByGeneGroup(geneGroupId, pageable);
+        }
+        checkTerm(geneGroupId);
+        return this.proteomesRepository.findByGeneGroups(geneGroupId, pageable, projection);
+    }
+    public Iterator<SolrPeptiform> streamByGeneGroup(String geneGroupId, int pageSize) {
+        checkTerm(geneGroupId);
+        return this.proteomesRepository.streamByGeneGroups(geneGroupId, pageSize);
+    }
+    public CompactPeptiforms findAllCompactByGeneGroup(String geneGroupId) {
+        return CompactPeptiforms.of(streamByGeneGroup(geneGroupId, COMPACT_PAGE_SIZE));
+    }
     public long countByGeneGroup(String geneGroupId) {
-        return this.findByGeneGroup(geneGroupId, CPR).getTotalElements();
+        checkTerm(geneGroupId);
+        return this.proteomesRepository.countByGeneGroups(geneGroupId);
     }
 
 
@@ -170,15 +573,49 @@ public class ProteomesSearchService {
      * General queries, not field specific
      */
 
-    public Page<SolrPeptiform> findByQuery(String query, Pageable pageable) {
+    public Page<SolrPeptiform> findByQuery(final String query, Pageable pageable) {
+        return findPage(pageable, new PagePrefetcher.PageLoader<SolrPeptiform>() {
+            @Override
+            public Page<SolrPeptiform> load(Pageable pageable) {
+                // if we don't have a query term return everything
+                if (query == null || query.trim().isEmpty()) {
+                    return proteomesRepository.findAll(pageable);
+                }
+                return proteomesRepository.findByQuery(query, pageable);
+            }
+        }, "findByQuery", query);
+    }
+    public Page<SolrPeptiform> findByQuery(final String query, Pageable pageable, final PeptiformProjection projection) {
+        if (projection == null) {
+            return findByQuery(query, pageable);
+        }
+        return findPage(pageable, new PagePrefetcher.PageLoader<SolrPeptiform>() {
+            @Override
+            public Page<SolrPeptiform> load(Pageable pageable) {
+                // if we don't have a query term return everything
+                if (query == null || query.trim().isEmpty()) {
+                    return proteomesRepository.findAll(pageable, projection);
+                }
+                return proteomesRepository.findByQuery(query, pageable, projection);
+            }
+        }, "findByQuery", query, projection);
+    }
+    public long countByQuery(String query) {
+        // if we don't have a query term count everything
+        if (query == null || query.trim().isEmpty()) {
+            return proteomesRepository.count();
+        }
+        return proteomesRepository.countByQuery(query);
+    }
+    public Iterator<SolrPeptiform> streamByQuery(String query, int pageSize) {
         // if we don't have a query term return everything
         if (query == null || query.trim().isEmpty()) {
-            return proteomesRepository.findAll(pageable);
+            return proteomesRepository.streamAll(pageSize);
         }
-        return proteomesRepository.findByQuery(query, pageable);
+        return proteomesRepository.streamByQuery(query, pageSize);
     }
-    public long countByQuery(String query) {
-        return this.findByQuery(query, CPR).getTotalElements();
+    public CompactPeptiforms findAllCompactByQuery(String query) {
+        return CompactPeptiforms.of(streamByQuery(query, COMPACT_PAGE_SIZE));
     }
 
     public Map<Integer, Long> getTaxidFacetsByQuery(String query) {
@@ -203,7 +640,10 @@ public class ProteomesSearchService {
         return proteomesRepository.findByQueryNot(query, pageable);
     }
     public long countByQueryNot(String query) {
-        return this.findByQueryNot(query, CPR).getTotalElements();
+        if (query == null || query.trim().isEmpty()) {
+            return 0;
+        }
+        return proteomesRepository.countByQueryNot(query);
     }
 
 
@@ -211,16 +651,45 @@ public class ProteomesSearchService {
         if (taxIds == null || taxIds.isEmpty()) {
             // no filters, use the normal query
             return this.findByQuery(query, pageable);
+        } else {
+            final String filteredQuery = (query == null || query.trim().isEmpty()) ? "*" : query;
+            final List<Integer> filterTaxIds = new ArrayList<Integer>(taxIds);
+            return findPage(pageable, new PagePrefetcher.PageLoader<SolrPeptiform>() {
+                @Override
+                public Page<SolrPeptiform> load(Pageable pageable) {
+                    return proteomesRepository.findByQueryAndFilterTaxid(filteredQuery, filterTaxIds, pageable);
+                }
+            }, "findByQueryAndFilterTaxid", filteredQuery, filterTaxIds);
+        }
+    }
+    public Page<SolrPeptiform> findByQueryAndFilterTaxid(String query, Collection<Integer> taxIds, Pageable pageable, final PeptiformProjection projection) {
+        if (taxIds == null || taxIds.isEmpty()) {
+            // no filters, use the normal query
+            return this.findByQuery(query, pageable, projection);
+        } else if (projection == null) {
+            return this.findByQueryAndFilterTaxid(query, taxIds, pageable);
+        } else {
+            final String filteredQuery = (query == null || query.trim().isEmpty()) ? "*" : query;
+            final List<Integer> filterTaxIds = new ArrayList<Integer>(taxIds);
+            return findPage(pageable, new PagePrefetcher.PageLoader<SolrPeptiform>() {
+                @Override
+                public Page<SolrPeptiform> load(Pageable pageable) {
+                    return proteomesRepository.findByQueryAndFilterTaxid(filteredQuery, filterTaxIds, pageable, projection);
+                }
+            }, "findByQueryAndFilterTaxid", filteredQuery, filterTaxIds, projection);
+        }
+    }
+    public long countByQueryAndFilterTaxid(String query, Collection<Integer> taxIds) {
+        if (taxIds == null || taxIds.isEmpty()) {
+            // no filters, use the normal count
+            return this.countByQuery(query);
         } else {
             if (query == null || query.trim().isEmpty()) {
                 query = "*";
             }
-            return this.proteomesRepository.findByQueryAndFilterTaxid(query, taxIds, pageable);
+            return this.proteomesRepository.countByQueryAndFilterTaxid(query, taxIds);
         }
     }
-    public long countByQueryAndFilterTaxid(String query, Collection<Integer> taxIds) {
-        return this.findByQueryAndFilterTaxid(query, taxIds, CPR).getTotalElements();
-    }
 
     public Page<FacetFieldEntry> getProteinCounts(int page, int size, boolean sortByIndex) {
         return this.proteomesRepository.getProteinCounts(page, size, sortByIndex);
@@ -243,4 +712,142 @@ public class ProteomesSearchService {
         return this.proteomesRepository.getGeneGroupCountsBySpecies(taxids, page, size, sortByIndex);
     }
 
+    /**
+     * Iterates over all proteins with their number of PeptiForms, sorted by accession. Unlike
+     * paging through getProteinCounts, every page is a single facet request without the count
+     * of the distinct values, and only one page of values is held in memory.
+     *
+     * @param taxids   taxid filters (ORed as for the getXyzCountsBySpecies methods), no filter if empty or null.
+     * @param pageSize the number of values fetched per request.
+     */
+    public Iterator<FacetFieldEntry> streamProteinCounts(Collection<Integer> taxids, int pageSize) {
+        return this.proteomesRepository.streamFacetCounts(SolrPeptiformFields.PROTEINS, taxids, pageSize);
+    }
+
+    /**
+     * Iterates over all UniProt groups with their number of PeptiForms, see streamProteinCounts.
+     */
+    public Iterator<FacetFieldEntry> streamUPGroupCounts(Collection<Integer> taxids, int pageSize) {
+        return this.proteomesRepository.streamFacetCounts(SolrPeptiformFields.UP_GROUPS, taxids, pageSize);
+    }
+
+    /**
+     * Iterates over all gene groups with their number of PeptiForms, see streamProteinCounts.
+     */
+    public Iterator<FacetFieldEntry> streamGeneGroupCounts(Collection<Integer> taxids, int pageSize) {
+        return this.proteomesRepository.streamFacetCounts(SolrPeptiformFields.GENE_GROUPS, taxids, pageSize);
+    }
+
+    /*
+     * Snapshots, consistent paging while the index changes
+     */
+
+    /**
+     * Runs the query once and pins its result, the pages are then served from the snapshot with
+     * findByQuery(PeptiformSnapshot, Pageable). Unlike paging with findByQueryAndFilterTaxid, no page
+     * is skipped or repeated when PeptiForms are added or removed between the requests, and deep
+     * pages do not re-execute the query.
+     *
+     * @param query  general query term as for findByQuery, everything is matched if empty or null.
+     * @param taxIds taxid filters as for findByQueryAndFilterTaxid, no filter if empty or null.
+     * @return the IDs of at most getMaxSnapshotSize() PeptiForms in result order.
+     */
+    public PeptiformSnapshot openSnapshotByQuery(String query, Collection<Integer> taxIds) {
+        // one more than the maximum to know if the result was truncated
+        List<String> ids = this.proteomesRepository.findIdsByQuery(query, taxIds, maxSnapshotSize + 1);
+        boolean truncated = ids.size() > maxSnapshotSize;
+        if (truncated) {
+            ids = ids.subList(0, maxSnapshotSize);
+        }
+        return new PeptiformSnapshot(query, taxIds, ids, truncated);
+    }
+
+    /**
+     * A page of a pinned query result. The PeptiForms are loaded with their current fields,
+     * PeptiForms deleted since the snapshot was opened are left out of the page.
+     *
+     * @return the page, its total elements is the size of the snapshot.
+     */
+    public Page<SolrPeptiform> findByQuery(PeptiformSnapshot snapshot, Pageable pageable) {
+        if (snapshot == null) {
+            throw new IllegalArgumentException("A snapshot is required!");
+        }
+        List<String> ids = snapshot.getIds(pageable.getOffset(), pageable.getOffset() + pageable.getPageSize());
+        List<SolrPeptiform> content = new ArrayList<SolrPeptiform>(findByIds(ids).values());
+        return new PageImpl<SolrPeptiform>(content, pageable, snapshot.size());
+    }
+
+    /**
+     * Pins the values of a facet field with their PeptiForm counts, the pages are then served
+     * from the snapshot with getCounts(FacetSnapshot, int, int) without further requests.
+     *
+     * @param facetField  SolrPeptiformFields.PROTEINS, UP_GROUPS or GENE_GROUPS.
+     * @param taxids      taxid filters (ORed as for the getXyzCountsBySpecies methods), no filter if empty or null.
+     * @param sortByIndex sort the values by value instead of by count.
+     * @return at most getMaxSnapshotSize() values, the first ones in the requested order, so the
+     * first pages are the same as the getXyzCounts pages.
+     */
+    public FacetSnapshot openFacetSnapshot(String facetField, Collection<Integer> taxids, boolean sortByIndex) {
+        checkTerm(facetField);
+        List<String> values = new ArrayList<String>();
+        List<Long> counts = new ArrayList<Long>();
+        // the count order can change from page to page while the index changes, so the values
+        // by count are fetched with a single request (one more value to tell if it is truncated)
+        int pageSize = sortByIndex ? Math.min(maxSnapshotSize + 1, SNAPSHOT_FACET_PAGE_SIZE) : maxSnapshotSize + 1;
+        Iterator<FacetFieldEntry> entries = this.proteomesRepository.streamFacetCounts(facetField, taxids, pageSize, sortByIndex);
+        boolean truncated = false;
+        while (entries.hasNext()) {
+            FacetFieldEntry entry = entries.next();
+            if (values.size() == maxSnapshotSize) {
+                truncated = true;
+                break;
+            }
+            values.add(entry.getValue());
+            counts.add(entry.getValueCount());
+        }
+
+        long[] valueCounts = new long[counts.size()];
+        for (int i = 0; i < valueCounts.length; i++) {
+            valueCounts[i] = counts.get(i);
+        }
+        return new FacetSnapshot(facetField, taxids, sortByIndex, values.toArray(new String[values.size()]), valueCounts, truncated);
+    }
+
+    /**
+     * A page of pinned facet values, same as the corresponding getXyzCounts page at the time
+     * the snapshot was opened.
+     *
+     * @return the page, its total elements is the size of the snapshot.
+     */
+    public Page<FacetFieldEntry> getCounts(FacetSnapshot snapshot, int page, int size) {
+        if (snapshot == null) {
+            throw new IllegalArgumentException("A snapshot is required!");
+        }
+        PageRequest pageRequest = new PageRequest(page, size);
+        int from = Math.min(pageRequest.getOffset(), snapshot.size());
+        int to = Math.min(from + size, snapshot.size());
+        SimpleField field = new SimpleField(snapshot.getFacetField());
+        List<FacetFieldEntry> content = new ArrayList<FacetFieldEntry>(to - from);
+        for (int i = from; i < to; i++) {
+            content.add(new SimpleFacetFieldEntry(field, snapshot.getValue(i), snapshot.getCount(i)));
+        }
+        return new PageImpl<FacetFieldEntry>(content, pageRequest, snapshot.size());
+    }
+
+    /**
+     * Combined facet request, e.g. for summary pages, that replaces the separate calls to
+     * countByQueryAndFilterTaxid, getTaxidFacetsByQuery and the getXyzCountsBySpecies methods.
+     *
+     * @param query       general query term, everything is matched if empty or null.
+     * @param taxids      taxid filters (as for findByQueryAndFilterTaxid), no filter if empty or null.
+     * @param facetFields the fields to facet on, e.g. SolrPeptiformFields.PROTEINS, UP_GROUPS or GENE_GROUPS.
+     * @param page        the page of facet values to return for each field.
+     * @param size        the number of facet values per page.
+     * @param sortByIndex sort the facet values by value instead of by count.
+     * @return the hit count, the taxid counts and a page of facet values per field.
+     */
+    public FacetSummary getFacetSummary(String query, Collection<Integer> taxids, Collection<String> facetFields, int page, int size, boolean sortByIndex) {
+        return this.proteomesRepository.getFacetSummary(query, taxids, facetFields, page, size, sortByIndex);
+    }
+
 }
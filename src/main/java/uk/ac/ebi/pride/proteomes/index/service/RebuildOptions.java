@@ -0,0 +1,60 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+/**
+ * Settings for the full rebuild in {@link ProteomesIndexService#rebuild}. The records are
+ * loaded into the shadow core with the settings of the bulk indexing, see {@link BulkIndexOptions}.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public class RebuildOptions extends BulkIndexOptions {
+
+    public static final String DEFAULT_CORE = "collection1";
+    public static final double DEFAULT_MAX_DROP = 0.1;
+
+    private String core = DEFAULT_CORE;
+    private double maxDrop = DEFAULT_MAX_DROP;
+    private boolean deletePrevious = false;
+
+
+    /**
+     * @return the name of the live core, the one the SolrTemplate is bound to.
+     */
+    public String getCore() {
+        return core;
+    }
+
+    public void setCore(String core) {
+        if (core == null || core.isEmpty()) {
+            throw new IllegalArgumentException("A core name is required!");
+        }
+        this.core = core;
+    }
+
+    /**
+     * @return the largest fraction of documents the rebuilt index may have less than the live
+     * one, in total and for each taxid. A larger drop fails the sanity checks and the live
+     * core is kept.
+     */
+    public double getMaxDrop() {
+        return maxDrop;
+    }
+
+    public void setMaxDrop(double maxDrop) {
+        if (maxDrop < 0 || maxDrop > 1) {
+            throw new IllegalArgumentException("The maximum drop needs to be between 0 and 1!");
+        }
+        this.maxDrop = maxDrop;
+    }
+
+    /**
+     * @return whether the files of the replaced core are deleted after the swap. By default they
+     * are kept for a rollback, they are never deleted if the swap is not known to be persisted.
+     */
+    public boolean isDeletePrevious() {
+        return deletePrevious;
+    }
+
+    public void setDeletePrevious(boolean deletePrevious) {
+        this.deletePrevious = deletePrevious;
+    }
+}
@@ -0,0 +1,92 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+/**
+ * Outcome of a full rebuild, see {@link ProteomesIndexService#rebuild}.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public class RebuildResult {
+
+    private final BulkIndexResult indexing;
+    private final long liveDocuments;
+    private final long rebuiltDocuments;
+    private final boolean swapped;
+    private final String failure;
+    private final boolean persisted;
+    private final String previousInstanceDir;
+
+    public RebuildResult(BulkIndexResult indexing, long liveDocuments, long rebuiltDocuments, boolean swapped, String failure,
+                         boolean persisted, String previousInstanceDir) {
+        this.indexing = indexing;
+        this.liveDocuments = liveDocuments;
+        this.rebuiltDocuments = rebuiltDocuments;
+        this.swapped = swapped;
+        this.failure = failure;
+        this.persisted = persisted;
+        this.previousInstanceDir = previousInstanceDir;
+    }
+
+    /**
+     * @return the statistics of loading the shadow core.
+     */
+    public BulkIndexResult getIndexing() {
+        return indexing;
+    }
+
+    /**
+     * @return the number of documents in the live core before the swap.
+     */
+    public long getLiveDocuments() {
+        return liveDocuments;
+    }
+
+    /**
+     * @return the number of documents in the rebuilt core.
+     */
+    public long getRebuiltDocuments() {
+        return rebuiltDocuments;
+    }
+
+    /**
+     * @return true if the rebuilt core is live now.
+     */
+    public boolean isSwapped() {
+        return swapped;
+    }
+
+    /**
+     * @return the reason the rebuilt core was discarded, or null.
+     */
+    public String getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return true if the swap is persisted in the core configuration (core discovery), so the
+     * rebuilt core is still live after a restart of Solr.
+     */
+    public boolean isPersisted() {
+        return persisted;
+    }
+
+    /**
+     * @return the instance directory of the replaced core, kept for a rollback. Null if there was
+     * no swap or the directory has been deleted.
+     */
+    public String getPreviousInstanceDir() {
+        return previousInstanceDir;
+    }
+
+    @Override
+    public String toString() {
+        return "RebuildResult{" +
+                "indexing=" + indexing +
+                ", liveDocuments=" + liveDocuments +
+                ", rebuiltDocuments=" + rebuiltDocuments +
+                ", swapped=" + swapped +
+                ", failure=" + failure +
+                ", persisted=" + persisted +
+                ", previousInstanceDir=" + previousInstanceDir +
+                '}';
+    }
+}
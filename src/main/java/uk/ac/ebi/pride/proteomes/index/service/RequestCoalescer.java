@@ -0,0 +1,121 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single flight for the count and facet queries of the ProteomesSearchService (e.g.
+ * getTaxidFacets, countByTaxid, getProteinCountsBySpecies): while a query is running, identical
+ * queries of other threads wait for it and get its result (or its exception) instead of sending
+ * the same request to Solr. This flattens the bursts of identical requests for a popular page,
+ * e.g. after the ResultCache has been invalidated or after a deploy. Nothing is kept once the
+ * query has finished, combine it with a ResultCache to keep results.
+ *
+ * The running queries are tracked in a ConcurrentHashMap, a query that is not running yet
+ * costs one insert and one remove in a striped map, there is no global lock.
+ *
+ * Queries are coalesced until the index changes: the ProteomesSearchService includes the index
+ * version in the keys, so later queries do not get the result of a query that was started on
+ * an earlier version. The ProteomesIndexService also invalidates the coalescer after every change.
+ *
+ * The statistics are available as JMX attributes if the application exports annotated beans.
+ *
+ * @author florian@ebi.ac.uk
+ */
+@ManagedResource(description = "Request coalescing of the PRIDE Proteomes search service")
+public class RequestCoalescer {
+
+    private final ConcurrentMap<Object, FutureTask<?>> running = new ConcurrentHashMap<Object, FutureTask<?>>();
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param key    the key of the query, e.g. the method and its arguments.
+     * @param loader runs the query if no identical query is running.
+     * @return the result of the running or the new query.
+     * @throws Exception the exception thrown by the loader.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key, Callable<T> loader) throws Exception {
+        FutureTask<T> task = new FutureTask<T>(loader);
+        FutureTask<?> other = running.putIfAbsent(key, task);
+        if (other != null) {
+            coalesced.incrementAndGet();
+            try {
+                return (T) result(other);
+            } catch (InterruptedException e) {
+                // do not wait any longer, run the query in this thread
+                Thread.currentThread().interrupt();
+                return loader.call();
+            }
+        }
+        calls.incrementAndGet();
+        try {
+            task.run();
+            return result(task);
+        } finally {
+            // only if it has not been replaced after an invalidation
+            running.remove(key, task);
+        }
+    }
+
+    private static <T> T result(Future<T> task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            // pass on what the loader has thrown
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new UndeclaredThrowableException(cause);
+        }
+    }
+
+    /**
+     * Later queries do not wait for the queries that are running, e.g. because the index has
+     * changed since they were started.
+     */
+    @ManagedOperation(description = "Later queries do not wait for the running queries")
+    public void invalidate() {
+        running.clear();
+        invalidations.incrementAndGet();
+    }
+
+    @ManagedAttribute(description = "Number of queries running")
+    public int getRunning() {
+        return running.size();
+    }
+
+    @ManagedAttribute(description = "Number of queries sent to Solr")
+    public long getCalls() {
+        return calls.get();
+    }
+
+    @ManagedAttribute(description = "Number of queries that got the result of an identical running query")
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    @ManagedAttribute(description = "Fraction of queries that got the result of an identical running query")
+    public double getCoalescedRate() {
+        long coalesced = getCoalesced();
+        long total = coalesced + getCalls();
+        return (total == 0) ? 0 : (double) coalesced / total;
+    }
+
+    @ManagedAttribute(description = "Number of times the coalescer was invalidated")
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+}
@@ -0,0 +1,32 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Cache for the results of the count and facet queries of the ProteomesSearchService.
+ *
+ * The keys used by the ProteomesSearchService include the index version (see IndexVersionTracker),
+ * so results of an earlier version are not served once a change is visible, e.g. after the
+ * commitWithin of a change or a change made by another client. The ProteomesIndexService also
+ * invalidates the cache after every change, to free the results of the earlier versions.
+ * Implementations should still expire entries after some time, as they are not used any more.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public interface ResultCache {
+
+    /**
+     * @param key    the key of the result, e.g. the method and its arguments.
+     * @param loader computes the result if it is not cached or has expired.
+     * @return the cached or computed result.
+     * @throws Exception the exception thrown by the loader.
+     */
+    public <T> T get(Object key, Callable<T> loader) throws Exception;
+
+    /**
+     * Drops all cached results. Results that are being computed while the cache
+     * is invalidated are not cached.
+     */
+    public void invalidate();
+
+}
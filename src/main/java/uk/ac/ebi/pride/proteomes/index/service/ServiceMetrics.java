@@ -0,0 +1,219 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.data.domain.Page;
+import org.springframework.data.solr.core.query.result.FacetFieldEntry;
+import org.springframework.data.solr.core.query.result.FacetPage;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.util.ClassUtils;
+import uk.ac.ebi.pride.proteomes.index.model.FacetSummary;
+import uk.ac.ebi.pride.proteomes.index.repository.ProteomesRepositoryImpl;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Latency, throughput, result size and error statistics for every public method of the
+ * ProteomesSearchService, the ProteomesIndexService and the ProteomesRepositoryImpl (the
+ * facet count methods).
+ *
+ * Instrumentation is enabled by defining a ServiceMetrics bean, which proxies the services
+ * and the repository implementation when they are created. Without a ServiceMetrics bean
+ * nothing is proxied. When disabled at runtime (see setEnabled) calls go straight to the
+ * instrumented objects. The statistics are available as JMX attributes and operations if
+ * the application exports annotated beans (e.g. with @EnableMBeanExport).
+ *
+ * The Solr QTimes are only recorded if the SolrTemplate uses an InstrumentedSolrServer.
+ *
+ * @author florian@ebi.ac.uk
+ */
+@ManagedResource(description = "Call statistics of the PRIDE Proteomes index and search services")
+public class ServiceMetrics implements BeanPostProcessor {
+
+    private volatile boolean enabled = true;
+
+    private final ConcurrentMap<String, MethodMetrics> methods = new ConcurrentHashMap<String, MethodMetrics>();
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+        if (bean instanceof ProteomesSearchService || bean instanceof ProteomesIndexService || bean instanceof ProteomesRepositoryImpl) {
+            return instrument(bean);
+        }
+        return bean;
+    }
+
+    /**
+     * @param target the object whose public methods are instrumented.
+     * @return a proxy (subclass) of the target recording the calls of its public methods.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T instrument(T target) {
+        if (target == null) {
+            throw new IllegalArgumentException("An object to instrument is required!");
+        }
+        ProxyFactory proxyFactory = new ProxyFactory(target);
+        // class based proxy, the services have no interfaces
+        // and the repository implementation is called through its class
+        proxyFactory.setProxyTargetClass(true);
+        proxyFactory.addAdvice(new MetricsInterceptor(ClassUtils.getUserClass(target).getSimpleName()));
+        return (T) proxyFactory.getProxy();
+    }
+
+    @ManagedAttribute(description = "Whether the calls are recorded")
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @ManagedAttribute(description = "Whether the calls are recorded")
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param method the method name, e.g. "ProteomesSearchService.findByQuery".
+     * @return the statistics of the method (all overloads), null if it has not been called.
+     */
+    public MethodMetrics getMethodMetrics(String method) {
+        return methods.get(method);
+    }
+
+    public Collection<MethodMetrics> getAllMethodMetrics() {
+        List<MethodMetrics> list = new ArrayList<MethodMetrics>(methods.values());
+        Collections.sort(list, new Comparator<MethodMetrics>() {
+            @Override
+            public int compare(MethodMetrics o1, MethodMetrics o2) {
+                return o1.getName().compareTo(o2.getName());
+            }
+        });
+        return list;
+    }
+
+    @ManagedAttribute(description = "Names of the methods that have been called")
+    public String[] getMethods() {
+        Set<String> names = new TreeSet<String>(methods.keySet());
+        return names.toArray(new String[names.size()]);
+    }
+
+    @ManagedOperation(description = "Statistics of a method, times in milliseconds")
+    public Map<String, Number> getStatistics(String method) {
+        MethodMetrics metrics = methods.get(method);
+        return (metrics == null) ? null : metrics.toMap();
+    }
+
+    @ManagedAttribute(description = "Statistics of all methods, times in milliseconds")
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        for (MethodMetrics metrics : getAllMethodMetrics()) {
+            sb.append(metrics).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @ManagedOperation(description = "Drops all statistics")
+    public void reset() {
+        methods.clear();
+    }
+
+    private MethodMetrics getOrCreate(String name) {
+        MethodMetrics metrics = methods.get(name);
+        if (metrics == null) {
+            MethodMetrics created = new MethodMetrics(name);
+            metrics = methods.putIfAbsent(name, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    private class MetricsInterceptor implements MethodInterceptor {
+
+        private final String prefix;
+
+        private MetricsInterceptor(String prefix) {
+            this.prefix = prefix + ".";
+        }
+
+        @Override
+        public Object invoke(MethodInvocation invocation) throws Throwable {
+            Method method = invocation.getMethod();
+            if (!enabled || !Modifier.isPublic(method.getModifiers()) || method.getDeclaringClass() == Object.class) {
+                return invocation.proceed();
+            }
+
+            long[] solrTotals = SolrRequestStats.current();
+            long solrRequests = solrTotals[SolrRequestStats.REQUESTS];
+            long solrQTime = solrTotals[SolrRequestStats.QTIME];
+            long solrNanos = solrTotals[SolrRequestStats.NANOS];
+            long start = System.nanoTime();
+            Object result = null;
+            boolean error = true;
+            try {
+                result = invocation.proceed();
+                error = false;
+                return result;
+            } finally {
+                long nanos = System.nanoTime() - start;
+                getOrCreate(prefix + method.getName()).record(nanos, error,
+                        solrTotals[SolrRequestStats.REQUESTS] - solrRequests,
+                        solrTotals[SolrRequestStats.QTIME] - solrQTime,
+                        solrTotals[SolrRequestStats.NANOS] - solrNanos,
+                        countResults(result), countFacetEntries(result));
+            }
+        }
+    }
+
+    private static long countResults(Object result) {
+        if (result instanceof Page) {
+            Page<?> page = (Page<?>) result;
+            if (!page.hasContent() || !(page.getContent().get(0) instanceof FacetFieldEntry)) {
+                return page.getNumberOfElements();
+            }
+        } else if (result instanceof Collection) {
+            return ((Collection<?>) result).size();
+        } else if (result instanceof BulkIndexResult) {
+            return ((BulkIndexResult) result).getDocuments();
+        }
+        return -1;
+    }
+
+    private static long countFacetEntries(Object result) {
+        long entries = -1;
+        if (result instanceof FacetPage) {
+            FacetPage<?> facetPage = (FacetPage<?>) result;
+            entries = 0;
+            for (Page<FacetFieldEntry> page : facetPage.getFacetResultPages()) {
+                entries += page.getNumberOfElements();
+            }
+        } else if (result instanceof Page) {
+            Page<?> page = (Page<?>) result;
+            if (page.hasContent() && page.getContent().get(0) instanceof FacetFieldEntry) {
+                entries = page.getNumberOfElements();
+            }
+        } else if (result instanceof Map) {
+            // taxid facets
+            entries = ((Map<?, ?>) result).size();
+        } else if (result instanceof FacetSummary) {
+            FacetSummary summary = (FacetSummary) result;
+            entries = summary.getTaxidCounts().size();
+            for (String field : summary.getFacetFields()) {
+                entries += summary.getFacetPage(field).getNumberOfElements();
+            }
+        }
+        return entries;
+    }
+}
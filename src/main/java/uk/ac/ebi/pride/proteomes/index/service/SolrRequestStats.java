@@ -0,0 +1,41 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+/**
+ * Per thread totals of the Solr requests made through an InstrumentedSolrServer. The totals
+ * are only kept for threads that are inside an instrumented method (see ServiceMetrics), which
+ * takes the difference of the totals before and after the call.
+ *
+ * @author florian@ebi.ac.uk
+ */
+final class SolrRequestStats {
+
+    static final int REQUESTS = 0;
+    static final int QTIME = 1;
+    static final int NANOS = 2;
+
+    private static final ThreadLocal<long[]> TOTALS = new ThreadLocal<long[]>();
+
+    private SolrRequestStats() {
+    }
+
+    /**
+     * @return the totals of the current thread, from now on requests of the thread are counted.
+     */
+    static long[] current() {
+        long[] totals = TOTALS.get();
+        if (totals == null) {
+            totals = new long[3];
+            TOTALS.set(totals);
+        }
+        return totals;
+    }
+
+    static void record(long qTime, long nanos) {
+        long[] totals = TOTALS.get();
+        if (totals != null) {
+            totals[REQUESTS]++;
+            totals[QTIME] += qTime;
+            totals[NANOS] += nanos;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.solr.core.SolrTemplate;
+import org.springframework.data.solr.core.query.SimpleQuery;
+import org.springframework.data.solr.core.query.SimpleStringCriteria;
+import org.springframework.data.solr.core.query.result.FacetFieldEntry;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import uk.ac.ebi.pride.proteomes.index.model.SolrPeptiform;
+import uk.ac.ebi.pride.proteomes.index.repository.IndexVersionTracker;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static junit.framework.Assert.*;
+import static uk.ac.ebi.pride.proteomes.index.service.TestData.*;
+
+/**
+ * @author florian@ebi.ac.uk
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = {TestContext.class})
+public class AsyncProteomesSearchServiceTest {
+
+    @Resource
+    SolrTemplate solrOperations;
+
+    @Resource
+    private AsyncProteomesSearchService asyncSearchService;
+
+    @Resource
+    private ProteomesSearchService proteomesSearchService;
+
+    @Before
+    public void setUp() {
+        solrOperations.saveBeans(createTestDocs());
+        solrOperations.commit();
+        IndexVersionTracker.of(solrOperations).changed();
+    }
+
+    @After
+    public void tearDown() {
+        asyncSearchService.setExecutor(null);
+        solrOperations.delete(new SimpleQuery(new SimpleStringCriteria("*:*")));
+        solrOperations.commit();
+        IndexVersionTracker.of(solrOperations).changed();
+    }
+
+    @Test
+    public void testConcurrentQueries() throws Exception {
+        // all queries of a page view are started before waiting for any of them
+        ListenableFuture<Page<SolrPeptiform>> results = asyncSearchService.findByQuery("human", new PageRequest(0, 10));
+        ListenableFuture<Long> count = asyncSearchService.countByQuery("human");
+        ListenableFuture<Map<Integer, Long>> taxids = asyncSearchService.getTaxidFacetsByQuery("human");
+        ListenableFuture<Page<FacetFieldEntry>> proteins = asyncSearchService.getProteinCounts(0, 10, false);
+
+        assertEquals(HUMAN_RECORDS + HBV_RECORDS, results.get().getTotalElements());
+        assertEquals(new Long(HUMAN_RECORDS + HBV_RECORDS), count.get());
+        assertEquals(proteomesSearchService.getTaxidFacetsByQuery("human"), taxids.get());
+        assertEquals(proteomesSearchService.getProteinCounts(0, 10, false).getTotalElements(), proteins.get().getTotalElements());
+    }
+
+    @Test
+    public void testCallbacksAndErrors() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(2);
+        final AtomicLong result = new AtomicLong(-1);
+        final AtomicLong failures = new AtomicLong();
+        ListenableFutureCallback<Long> callback = new ListenableFutureCallback<Long>() {
+            @Override
+            public void onSuccess(Long count) {
+                result.set(count);
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                failures.incrementAndGet();
+                latch.countDown();
+            }
+        };
+        asyncSearchService.countByTaxid(TAXID_MOUSE).addCallback(callback);
+        // invalid parameter, the exception of the search service is reported through the future
+        asyncSearchService.countByTaxid(-1).addCallback(callback);
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        assertEquals(MOUSE_RECORDS, result.get());
+        assertEquals(1, failures.get());
+
+        try {
+            asyncSearchService.findBySequence("", new PageRequest(0, 10)).get();
+            fail("Expected an exception");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    @Test
+    public void testDefaultExecutorIsBounded() throws Exception {
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) asyncSearchService.getExecutor();
+        assertEquals(AsyncProteomesSearchService.DEFAULT_QUEUE_CAPACITY, executor.getQueue().remainingCapacity());
+        assertTrue(executor.getRejectedExecutionHandler() instanceof ThreadPoolExecutor.CallerRunsPolicy);
+
+        // more queries than threads and queue places, the overflow runs on the calling thread
+        int queries = AsyncProteomesSearchService.DEFAULT_THREADS + AsyncProteomesSearchService.DEFAULT_QUEUE_CAPACITY + 10;
+        List<ListenableFuture<Long>> counts = new ArrayList<ListenableFuture<Long>>(queries);
+        for (int i = 0; i < queries; i++) {
+            counts.add(asyncSearchService.countAll());
+        }
+        for (ListenableFuture<Long> count : counts) {
+            assertEquals(new Long(COUNT_TOTAL_DOCS), count.get());
+        }
+    }
+
+    @Test
+    public void testCustomExecutor() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            asyncSearchService.setExecutor(executor);
+            assertEquals(new Long(COUNT_TOTAL_DOCS), asyncSearchService.countAll().get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * @author florian@ebi.ac.uk
+ */
+public class LruResultCacheTest {
+
+    private static Callable<Integer> counting(final AtomicInteger loads) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return loads.incrementAndGet();
+            }
+        };
+    }
+
+    @Test
+    public void testHitsAndEviction() throws Exception {
+        LruResultCache cache = new LruResultCache(2, 60000);
+        AtomicInteger loads = new AtomicInteger();
+
+        assertEquals(new Integer(1), cache.get("a", counting(loads)));
+        assertEquals(new Integer(1), cache.get("a", counting(loads)));
+        assertEquals(new Integer(2), cache.get("b", counting(loads)));
+        // a was used more recently than b, so b is dropped
+        cache.get("a", counting(loads));
+        assertEquals(new Integer(3), cache.get("c", counting(loads)));
+        assertEquals(new Integer(1), cache.get("a", counting(loads)));
+        assertEquals(new Integer(4), cache.get("b", counting(loads)));
+
+        assertEquals(2, cache.getSize());
+        assertEquals(2, cache.getEvictions());
+        assertEquals(4, cache.getMisses());
+        assertEquals(3, cache.getHits());
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+        LruResultCache cache = new LruResultCache(10, 1);
+        AtomicInteger loads = new AtomicInteger();
+
+        cache.get("a", counting(loads));
+        Thread.sleep(10);
+        assertEquals(new Integer(2), cache.get("a", counting(loads)));
+        assertEquals(1, cache.getExpirations());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        final LruResultCache cache = new LruResultCache(10, 60000);
+        AtomicInteger loads = new AtomicInteger();
+
+        cache.get("a", counting(loads));
+        cache.invalidate();
+        assertEquals(0, cache.getSize());
+        assertEquals(new Integer(2), cache.get("a", counting(loads)));
+
+        // a result computed while the cache is invalidated is not cached
+        cache.get("b", new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                cache.invalidate();
+                return 0;
+            }
+        });
+        assertEquals(0, cache.getSize());
+    }
+}
@@ -3,23 +3,37 @@ package uk.ac.ebi.pride.proteomes.index.service;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.CoreAdminRequest;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.solr.core.SolrTemplate;
+import org.springframework.data.solr.core.query.Criteria;
+import org.springframework.data.solr.core.query.SimpleFilterQuery;
 import org.springframework.data.solr.core.query.SimpleQuery;
 import org.springframework.data.solr.core.query.SimpleStringCriteria;
+import org.springframework.data.solr.server.SolrServerFactory;
+import org.springframework.data.solr.server.support.EmbeddedSolrServerFactory;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import uk.ac.ebi.pride.proteomes.index.model.MembershipField;
+import uk.ac.ebi.pride.proteomes.index.model.PeptiformProjection;
 import uk.ac.ebi.pride.proteomes.index.model.SolrPeptiform;
 import uk.ac.ebi.pride.proteomes.index.model.SolrPeptiformFields;
+import uk.ac.ebi.pride.proteomes.index.repository.IndexVersionTracker;
+import uk.ac.ebi.pride.proteomes.index.repository.TaxidShardedSolrServer;
 
 import javax.annotation.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executor;
 
-import static junit.framework.Assert.assertEquals;
-import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.*;
 import static uk.ac.ebi.pride.proteomes.index.service.TestData.*;
 
 /**
@@ -38,6 +52,9 @@ public class ProteomesIndexServiceTest {
     @Resource
     SolrTemplate solrOperations;
 
+    @Resource
+    SolrServerFactory solrServerFactory;
+
 //    @Before
 //    @After
 //    public void deleteAll() throws SolrServerException, IOException {
@@ -50,8 +67,12 @@ public class ProteomesIndexServiceTest {
 
     @After
     public void tearDown() {
+        proteomesSearchService.setResultCache(null);
+        proteomesIndexService.setResultCache(null);
+        proteomesIndexService.setCommitPolicy(new CommitPolicy());
         solrOperations.delete(new SimpleQuery(new SimpleStringCriteria("*:*")));
         solrOperations.commit();
+        IndexVersionTracker.of(solrOperations).changed();
     }
     /**
      * Simple save and delete test. Uses the ProteomesIndexService to create
@@ -166,4 +187,485 @@ public class ProteomesIndexServiceTest {
 
     }
 
+    /**
+     * Bulk save of a stream of records, the records are split into several
+     * batches which are submitted concurrently and committed at the end.
+     */
+    @Test
+    public void testBulkSave() {
+        BulkIndexOptions options = new BulkIndexOptions();
+        options.setBatchSize(3);
+        options.setThreads(2);
+        options.setQueueCapacity(1);
+
+        BulkIndexResult result = proteomesIndexService.saveAll(createTestPeptiForms().iterator(), options);
+        assertEquals(COUNT_TOTAL_DOCS, result.getDocuments());
+        assertEquals(4, result.getBatches());
+        assertEquals(0, result.getFailedBatches());
+        assertEquals(0, result.getFailedDocuments());
+        assertTrue(result.isSuccessful());
+
+        // everything is visible after the run
+        assertEquals(new Long(COUNT_TOTAL_DOCS), proteomesSearchService.countAll());
+        assertNotNull(proteomesSearchService.findById(PEPTIDE_6_FORM_1_ID));
+    }
+
+    @Test
+    public void testSaveSyntheticCorpus() {
+        SyntheticCorpus corpus = new SyntheticCorpus(5000);
+        corpus.setProteins(200);
+
+        // streamed into the index, the corpus is never held in memory
+        BulkIndexResult result = proteomesIndexService.saveAll(corpus.iterator());
+        assertTrue(result.isSuccessful());
+        assertEquals(5000, result.getDocuments());
+        // all IDs are unique, so nothing was overwritten
+        assertEquals(new Long(5000), proteomesSearchService.countAll());
+
+        // the same seed generates the same corpus
+        Iterator<SolrPeptiform> first = corpus.iterator();
+        Iterator<SolrPeptiform> second = new SyntheticCorpus(5000).iterator();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(first.next().getId(), second.next().getId());
+        }
+
+        // the most popular protein has many more peptides than a rare one
+        String popular = SyntheticCorpus.accession(0, 1);
+        String rare = SyntheticCorpus.accession(0, 200);
+        assertTrue(proteomesSearchService.countByProtein(popular) > 10 * proteomesSearchService.countByProtein(rare));
+
+        // larger corpora would repeat IDs
+        try {
+            new SyntheticCorpus(SyntheticCorpus.MAX_SIZE + 1);
+            fail("Expected an exception");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Changes sent with a commitWithin are only visible after the next commit,
+     * soft commits make every change visible immediately.
+     */
+    @Test
+    public void testCommitPolicy() {
+        proteomesIndexService.setCommitPolicy(CommitPolicy.commitWithin(600000));
+        proteomesIndexService.save(createTestPeptiForms());
+        assertEquals(new Long(0), proteomesSearchService.countAll());
+        proteomesIndexService.awaitVisible();
+        assertEquals(new Long(COUNT_TOTAL_DOCS), proteomesSearchService.countAll());
+
+        proteomesIndexService.delete(PEPTIDE_1_FORM_1_ID);
+        assertNotNull(proteomesSearchService.findById(PEPTIDE_1_FORM_1_ID));
+        proteomesIndexService.flush();
+        assertNull(proteomesSearchService.findById(PEPTIDE_1_FORM_1_ID));
+
+        // bulk operations are committed at the end of the run
+        BulkIndexResult result = proteomesIndexService.saveAll(createTestPeptiForms().iterator());
+        assertTrue(result.isSuccessful());
+        assertEquals(new Long(COUNT_TOTAL_DOCS), proteomesSearchService.countAll());
+
+        proteomesIndexService.setCommitPolicy(CommitPolicy.softCommits());
+        proteomesIndexService.delete(PEPTIDE_1_FORM_1_ID);
+        assertEquals(new Long(COUNT_TOTAL_DOCS - 1), proteomesSearchService.countAll());
+        proteomesIndexService.deleteAll();
+        assertEquals(new Long(0), proteomesSearchService.countAll());
+    }
+
+    /**
+     * Delta indexing of consecutive releases, only the differences are sent to the index.
+     */
+    @Test
+    public void testDeltaIndex() {
+        DeltaIndexResult result = proteomesIndexService.deltaIndex(sortedById(createTestPeptiForms()).iterator());
+        assertTrue(result.isCompleted());
+        assertEquals(COUNT_TOTAL_DOCS, result.getAdded());
+        assertEquals(new Long(COUNT_TOTAL_DOCS), proteomesSearchService.countAll());
+
+        // the same release again, nothing changed
+        result = proteomesIndexService.deltaIndex(sortedById(createTestPeptiForms()).iterator());
+        assertEquals(0, result.getAdded());
+        assertEquals(0, result.getUpdated());
+        assertEquals(0, result.getDeleted());
+        assertEquals(COUNT_TOTAL_DOCS, result.getUnchanged());
+
+        // the next release: one record changed, one removed and one new
+        List<SolrPeptiform> release = createTestPeptiForms();
+        Iterator<SolrPeptiform> iterator = release.iterator();
+        while (iterator.hasNext()) {
+            SolrPeptiform solrPeptiform = iterator.next();
+            if (solrPeptiform.getId().equals(PEPTIDE_1_FORM_1_ID)) {
+                solrPeptiform.setSpecies(SPECIES_MOUSE);
+            } else if (solrPeptiform.getId().equals(PEPTIDE_6_FORM_1_ID)) {
+                iterator.remove();
+            }
+        }
+        SolrPeptiform added = new SolrPeptiform();
+        added.setId("[NEWPEPTIDE|9606|]");
+        added.setSequence("NEWPEPTIDE");
+        added.setTaxid(TAXID_HUMAN);
+        release.add(added);
+
+        result = proteomesIndexService.deltaIndex(sortedById(release).iterator());
+        assertTrue(result.isCompleted());
+        assertEquals(1, result.getAdded());
+        assertEquals(1, result.getUpdated());
+        assertEquals(1, result.getDeleted());
+        assertEquals(COUNT_TOTAL_DOCS - 2, result.getUnchanged());
+
+        assertEquals(new Long(COUNT_TOTAL_DOCS), proteomesSearchService.countAll());
+        assertEquals(SPECIES_MOUSE, proteomesSearchService.findById(PEPTIDE_1_FORM_1_ID).getSpecies());
+        assertNull(proteomesSearchService.findById(PEPTIDE_6_FORM_1_ID));
+        assertEquals(new Long(1), proteomesSearchService.countBySequence("NEWPEPTIDE"));
+
+        // the records need to be in the order of the index
+        Collections.reverse(release);
+        try {
+            proteomesIndexService.deltaIndex(release.iterator());
+            fail("Expected an exception");
+        } catch (IllegalArgumentException e) {
+            // not sorted
+        }
+    }
+
+    /**
+     * A delta indexing run that stopped half way is resumed from its last checkpoint.
+     */
+    @Test
+    public void testDeltaIndexResume() throws IOException {
+        File checkpoint = File.createTempFile("delta-index", ".checkpoint");
+        assertTrue(checkpoint.delete());
+        DeltaIndexOptions options = new DeltaIndexOptions();
+        options.setCheckpointFile(checkpoint);
+        options.setCheckpointInterval(3);
+
+        final List<SolrPeptiform> release = sortedById(createTestPeptiForms());
+        // the data source fails after two segments
+        Iterator<SolrPeptiform> failing = new Iterator<SolrPeptiform>() {
+            private int position = 0;
+
+            @Override
+            public boolean hasNext() {
+                return position < release.size();
+            }
+
+            @Override
+            public SolrPeptiform next() {
+                if (position == 7) {
+                    throw new IllegalStateException("Lost connection to the data source");
+                }
+                return release.get(position++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        try {
+            proteomesIndexService.deltaIndex(failing, options);
+            fail("Expected an exception");
+        } catch (IllegalStateException e) {
+            // the first two segments are in the index
+        }
+        assertTrue(checkpoint.exists());
+
+        DeltaIndexResult result = proteomesIndexService.deltaIndex(sortedById(createTestPeptiForms()).iterator(), options);
+        assertTrue(result.isCompleted());
+        assertEquals(release.get(5).getId(), result.getResumedFrom());
+        assertEquals(6, result.getSkipped());
+        assertEquals(COUNT_TOTAL_DOCS - 6, result.getAdded() + result.getUnchanged());
+        assertEquals(0, result.getDeleted());
+        assertEquals(new Long(COUNT_TOTAL_DOCS), proteomesSearchService.countAll());
+        // a completed run does not leave a checkpoint
+        assertFalse(checkpoint.exists());
+    }
+
+    /**
+     * Membership changes of all PeptiForms of a group are applied as atomic updates,
+     * the fields that are not changed are kept.
+     */
+    @Test
+    public void testMembershipUpdates() {
+        proteomesIndexService.save(createTestPeptiForms());
+        // several batches per update
+        proteomesIndexService.setMembershipBatchSize(1);
+
+        // a new protein for the UniProt group P12345 (PeptiForms 3 and 5)
+        assertEquals(2, proteomesIndexService.addMembership(MembershipField.UP_GROUPS, "P12345", MembershipField.PROTEINS, "Q99999"));
+        assertEquals(2, proteomesSearchService.countByProtein("Q99999"));
+        SolrPeptiform peptide3 = proteomesSearchService.findById(PEPTIDE_3_FORM_1_ID);
+        assertEquals(PEPTIDE_3_PROTEINS.size() + 1, peptide3.getNumProteins());
+        assertTrue(peptide3.getProteins().contains("Q99999"));
+        assertEquals(PEPTIDE_3_SEQUENCE, peptide3.getSequence());
+        assertEquals(SPECIES_HUMAN, peptide3.getSpecies());
+        assertEquals(PEPTIDE_3_GENE_GROUPS, peptide3.getGeneGroups());
+        assertNull(peptide3.getContentHash());
+        // the descriptions are kept, but only loaded when requested
+        assertNull(peptide3.getGroupDescs());
+        PeptiformProjection descs = new PeptiformProjection(SolrPeptiformFields.GROUP_DESCS);
+        assertEquals(GROUP_DESC_1 + "\t" + GROUP_DESC_2 + "\t" + GROUP_DESC_3,
+                proteomesSearchService.findByQuery("kinase", new PageRequest(0, 10), descs).getContent().get(0).getGroupDescs());
+        // the text field is rebuilt from the stored fields
+        assertEquals(1, proteomesSearchService.countByQuery("kinase"));
+        // nothing to do the second time
+        assertEquals(0, proteomesIndexService.addMembership(MembershipField.UP_GROUPS, "P12345", MembershipField.PROTEINS, "Q99999"));
+
+        assertEquals(2, proteomesIndexService.removeMembership(MembershipField.UP_GROUPS, "P12345", MembershipField.PROTEINS, "P12345"));
+        assertEquals(0, proteomesSearchService.countByProtein("P12345"));
+        SolrPeptiform peptide5 = proteomesSearchService.findById(PEPTIDE_5_FORM_1_ID);
+        assertEquals(2, peptide5.getNumProteins());
+        assertEquals(Arrays.asList("P12344", "Q99999"), peptide5.getProteins());
+
+        // a renamed and a removed gene group
+        assertEquals(1, proteomesIndexService.replaceMembership(MembershipField.GENE_GROUPS, "GENE1", "GENE9"));
+        assertEquals(0, proteomesSearchService.countByGeneGroup("GENE1"));
+        assertEquals(1, proteomesSearchService.countByGeneGroup("GENE9"));
+        assertEquals(1, proteomesIndexService.removeMembership(MembershipField.GENE_GROUPS, "GENE2", MembershipField.GENE_GROUPS, "GENE2"));
+        peptide3 = proteomesSearchService.findById(PEPTIDE_3_FORM_1_ID);
+        assertEquals(Arrays.asList("GENE9"), peptide3.getGeneGroups());
+        assertEquals(1, peptide3.getNumGeneGroups());
+
+        assertEquals(new Long(COUNT_TOTAL_DOCS), proteomesSearchService.countAll());
+
+        try {
+            proteomesIndexService.setMembershipBatchSize(0);
+            fail("Expected an exception");
+        } catch (IllegalArgumentException e) {
+            // expected
+        } finally {
+            proteomesIndexService.setMembershipBatchSize(BulkIndexOptions.DEFAULT_BATCH_SIZE);
+        }
+    }
+
+    /**
+     * A rebuild is loaded into a shadow core, the live core is only replaced if the
+     * rebuilt index passes the sanity checks. The swap is persisted, so the rebuilt core
+     * is still live after a restart. The cores of a copy of the Solr home are swapped,
+     * the TestContext keeps its core.
+     */
+    @Test
+    public void testRebuild() throws Exception {
+        File solrHome = createSolrHome();
+        EmbeddedSolrServerFactory factory = new EmbeddedSolrServerFactory(solrHome.getAbsolutePath());
+        proteomesIndexService.setSolrServerFactory(factory);
+        try {
+            final SolrTemplate live = new SolrTemplate(factory.getSolrServer());
+            live.saveBeans(createTestPeptiForms());
+            live.commit();
+            File originalDir = CoreSwapRebuilder.getInstanceDir(factory.getSolrServer(), RebuildOptions.DEFAULT_CORE);
+
+            final List<SolrPeptiform> release = createTestPeptiForms();
+            SolrPeptiform added = new SolrPeptiform();
+            added.setId("[NEWPEPTIDE|9606|]");
+            added.setSequence("NEWPEPTIDE");
+            added.setTaxid(TAXID_HUMAN);
+            release.add(added);
+            // readers see the complete live index while the rebuild is loading
+            Iterator<SolrPeptiform> observed = new Iterator<SolrPeptiform>() {
+                private int position = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return position < release.size();
+                }
+
+                @Override
+                public SolrPeptiform next() {
+                    if (position == release.size() / 2) {
+                        assertEquals(COUNT_TOTAL_DOCS, countAll(live));
+                    }
+                    return release.get(position++);
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+
+            RebuildResult result = proteomesIndexService.rebuild(observed);
+            assertTrue(result.isSwapped());
+            assertNull(result.getFailure());
+            assertTrue(result.isPersisted());
+            assertEquals(COUNT_TOTAL_DOCS, result.getLiveDocuments());
+            assertEquals(COUNT_TOTAL_DOCS + 1, result.getRebuiltDocuments());
+            assertEquals(COUNT_TOTAL_DOCS + 1, countAll(live));
+            // the replaced core is kept for a rollback
+            assertEquals(originalDir, new File(result.getPreviousInstanceDir()));
+            assertTrue(new File(originalDir, "data").isDirectory());
+
+            // a truncated data set fails the checks and the live core is kept
+            result = proteomesIndexService.rebuild(createTestPeptiForms().subList(0, 2).iterator());
+            assertFalse(result.isSwapped());
+            assertNotNull(result.getFailure());
+            assertEquals(2, result.getRebuiltDocuments());
+            assertEquals(COUNT_TOTAL_DOCS + 1, countAll(live));
+
+            // after a restart the rebuilt core is live, the replaced one is not loaded again
+            factory.getSolrServer().shutdown();
+            factory = new EmbeddedSolrServerFactory(solrHome.getAbsolutePath());
+            proteomesIndexService.setSolrServerFactory(factory);
+            assertEquals(COUNT_TOTAL_DOCS + 1, countAll(new SolrTemplate(factory.getSolrServer())));
+            assertEquals(1, CoreAdminRequest.getStatus(null, factory.getSolrServer()).getCoreStatus().size());
+            File rebuiltDir = CoreSwapRebuilder.getInstanceDir(factory.getSolrServer(), RebuildOptions.DEFAULT_CORE);
+            assertFalse(originalDir.equals(rebuiltDir));
+
+            // on request the files of the replaced core are deleted
+            RebuildOptions options = new RebuildOptions();
+            options.setDeletePrevious(true);
+            result = proteomesIndexService.rebuild(createTestPeptiForms().iterator(), options);
+            assertTrue(result.isSwapped());
+            assertNull(result.getPreviousInstanceDir());
+            assertFalse(rebuiltDir.exists());
+            assertEquals(COUNT_TOTAL_DOCS, countAll(new SolrTemplate(factory.getSolrServer())));
+        } finally {
+            proteomesIndexService.setSolrServerFactory(solrServerFactory);
+            factory.getSolrServer().shutdown();
+            CoreSwapRebuilder.delete(solrHome);
+        }
+    }
+
+    /**
+     * Writes through a TaxidShardedSolrServer end up in the core of their taxid and queries
+     * filtered on a taxid are answered by its core alone.
+     */
+    @Test
+    public void testTaxidShards() throws SolrServerException, IOException {
+        SolrServer admin = solrServerFactory.getSolrServer();
+        // a directory of its own, with core discovery the core.properties of the live core must not be replaced
+        File liveDir = CoreSwapRebuilder.getInstanceDir(admin, RebuildOptions.DEFAULT_CORE);
+        CoreSwapRebuilder.createCore(admin, liveDir, "mouse", "mouse" + System.currentTimeMillis());
+        try {
+            TaxidShardedSolrServer sharded = new TaxidShardedSolrServer(solrServerFactory.getSolrServer(RebuildOptions.DEFAULT_CORE), null);
+            SolrServer mouse = solrServerFactory.getSolrServer("mouse");
+            sharded.addShard("mouse", mouse, null, TAXID_MOUSE);
+            SolrTemplate shardedTemplate = new SolrTemplate(sharded);
+
+            shardedTemplate.saveBeans(createTestPeptiForms());
+            shardedTemplate.commit();
+            assertEquals(COUNT_TOTAL_DOCS - MOUSE_RECORDS, solrOperations.count(new SimpleQuery(new SimpleStringCriteria("*:*"))));
+            assertEquals(MOUSE_RECORDS, mouse.query(new SolrQuery("*:*")).getResults().getNumFound());
+
+            SimpleQuery mouseQuery = new SimpleQuery(new SimpleStringCriteria("*:*"));
+            mouseQuery.addFilterQuery(new SimpleFilterQuery(new Criteria(SolrPeptiformFields.PEPTIFORM_TAXID).is(TAXID_MOUSE)));
+            assertEquals(MOUSE_RECORDS, shardedTemplate.count(mouseQuery));
+            SimpleQuery humanQuery = new SimpleQuery(new SimpleStringCriteria("*:*"));
+            humanQuery.addFilterQuery(new SimpleFilterQuery(new Criteria(SolrPeptiformFields.PEPTIFORM_TAXID).is(TAXID_HUMAN)));
+            assertEquals(HUMAN_RECORDS, shardedTemplate.count(humanQuery));
+
+            // deletes go to all shards
+            shardedTemplate.delete(new SimpleQuery(new SimpleStringCriteria("*:*")));
+            shardedTemplate.commit();
+            assertEquals(0, solrOperations.count(new SimpleQuery(new SimpleStringCriteria("*:*"))));
+            assertEquals(0, mouse.query(new SolrQuery("*:*")).getResults().getNumFound());
+        } finally {
+            CoreSwapRebuilder.unload(admin, "mouse", true);
+        }
+    }
+
+    // a copy of the configuration of the Solr home of the TestContext, without its data
+    private static File createSolrHome() throws IOException {
+        File source = new ClassPathResource("solr").getFile();
+        File solrHome = File.createTempFile("solr-home", "");
+        assertTrue(solrHome.delete() && solrHome.mkdir());
+        CoreSwapRebuilder.copy(new File(source, "solr.xml"), new File(solrHome, "solr.xml"));
+        File core = new File(solrHome, RebuildOptions.DEFAULT_CORE);
+        assertTrue(core.mkdir());
+        CoreSwapRebuilder.copy(new File(source, RebuildOptions.DEFAULT_CORE + "/conf"), new File(core, "conf"));
+        CoreSwapRebuilder.copy(new File(source, RebuildOptions.DEFAULT_CORE + "/core.properties"), new File(core, "core.properties"));
+        return solrHome;
+    }
+
+    private static long countAll(SolrTemplate solrTemplate) {
+        return solrTemplate.count(new SimpleQuery(new SimpleStringCriteria("*:*")));
+    }
+
+    private static List<SolrPeptiform> sortedById(List<SolrPeptiform> solrPeptiforms) {
+        Collections.sort(solrPeptiforms, new Comparator<SolrPeptiform>() {
+            @Override
+            public int compare(SolrPeptiform o1, SolrPeptiform o2) {
+                return o1.getId().compareTo(o2.getId());
+            }
+        });
+        return solrPeptiforms;
+    }
+
+    /**
+     * Count results are served from the cache until the index is changed
+     * through the ProteomesIndexService.
+     */
+    @Test
+    public void testResultCacheInvalidation() {
+        LruResultCache cache = new LruResultCache(100, 60000);
+        proteomesSearchService.setResultCache(cache);
+        proteomesIndexService.setResultCache(cache);
+
+        proteomesIndexService.save(createTestPeptiForms());
+        assertEquals(new Long(COUNT_TOTAL_DOCS), proteomesSearchService.countAll());
+        assertEquals(new Long(COUNT_TOTAL_DOCS), proteomesSearchService.countAll());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+        // a change made directly to the index is seen once its version is read (changed() instead of waiting for the check interval)
+        solrOperations.delete(new SimpleQuery(new SimpleStringCriteria("*:*")));
+        solrOperations.commit();
+        IndexVersionTracker.of(solrOperations).changed();
+        assertEquals(new Long(0), proteomesSearchService.countAll());
+        assertEquals(2, cache.getMisses());
+
+        // a change through the index service invalidates the cache
+        proteomesIndexService.save(createTestPeptiForms().get(0));
+        assertEquals(new Long(1), proteomesSearchService.countAll());
+        assertEquals(0, proteomesSearchService.countByTaxid(TAXID_MOUSE).longValue());
+        assertEquals(2, cache.getInvalidations());
+
+        proteomesIndexService.deleteAll();
+        assertEquals(new Long(0), proteomesSearchService.countAll());
+    }
+
+    /**
+     * Results cached before the commitWithin of a change are not served once the change is visible.
+     */
+    @Test
+    public void testResultCacheWithCommitWithin() throws Exception {
+        LruResultCache cache = new LruResultCache(100, 600000);
+        PagePrefetcher prefetcher = new PagePrefetcher(10, 600000, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        proteomesSearchService.setResultCache(cache);
+        proteomesSearchService.setPagePrefetcher(prefetcher);
+        proteomesIndexService.setResultCache(cache);
+        proteomesIndexService.setPagePrefetcher(prefetcher);
+        try {
+            proteomesIndexService.setCommitPolicy(CommitPolicy.commitWithin(2000));
+            proteomesIndexService.save(createTestPeptiForms());
+            long due = System.currentTimeMillis() + 2000;
+            // not visible yet, the results of the empty index are cached
+            assertEquals(new Long(0), proteomesSearchService.countAll());
+            assertEquals(0, proteomesSearchService.findByQuery("", new PageRequest(0, 2)).getTotalElements());
+            assertEquals(new Long(0), proteomesSearchService.countAll());
+            assertEquals(1, cache.getHits());
+
+            // wait for the commit without going through the caches, the version is read again once it is due
+            long timeout = System.currentTimeMillis() + 30000;
+            while (solrOperations.count(new SimpleQuery(new SimpleStringCriteria("*:*"))) < COUNT_TOTAL_DOCS
+                    || System.currentTimeMillis() < due) {
+                assertTrue("The changes did not become visible", System.currentTimeMillis() < timeout);
+                Thread.sleep(100);
+            }
+            assertEquals(new Long(COUNT_TOTAL_DOCS), proteomesSearchService.countAll());
+            assertEquals(COUNT_TOTAL_DOCS, proteomesSearchService.findByQuery("", new PageRequest(0, 2)).getTotalElements());
+            // the page prefetched after the first request of the empty index is not served
+            assertEquals(COUNT_TOTAL_DOCS, proteomesSearchService.findByQuery("", new PageRequest(1, 2)).getTotalElements());
+        } finally {
+            proteomesSearchService.setPagePrefetcher(null);
+            proteomesIndexService.setPagePrefetcher(null);
+            prefetcher.shutdown();
+        }
+    }
+
 }
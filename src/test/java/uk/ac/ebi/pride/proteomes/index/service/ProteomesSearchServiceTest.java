@@ -4,6 +4,7 @@ package uk.ac.ebi.pride.proteomes.index.service;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.FacetField;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrDocument;
@@ -13,23 +14,39 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.solr.core.SolrTemplate;
 import org.springframework.data.solr.core.query.SimpleQuery;
 import org.springframework.data.solr.core.query.SimpleStringCriteria;
 import org.springframework.data.solr.core.query.result.FacetFieldEntry;
+import org.springframework.data.solr.repository.config.EnableSolrRepositories;
+import org.springframework.data.solr.server.SolrServerFactory;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import uk.ac.ebi.pride.proteomes.index.model.CompactPeptiforms;
+import uk.ac.ebi.pride.proteomes.index.model.FacetSummary;
+import uk.ac.ebi.pride.proteomes.index.model.PeptiformProjection;
 import uk.ac.ebi.pride.proteomes.index.model.SolrPeptiform;
 import uk.ac.ebi.pride.proteomes.index.model.SolrPeptiformFields;
+import uk.ac.ebi.pride.proteomes.index.repository.FacetCountStore;
+import uk.ac.ebi.pride.proteomes.index.repository.FacetDistinctCounter;
+import uk.ac.ebi.pride.proteomes.index.repository.IndexVersionTracker;
+import uk.ac.ebi.pride.proteomes.index.repository.TaxidShardedSolrServer;
 
 import javax.annotation.Resource;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static junit.framework.Assert.*;
 import static uk.ac.ebi.pride.proteomes.index.service.TestData.*;
@@ -47,6 +64,12 @@ public class ProteomesSearchServiceTest {
     @Resource
     private ProteomesSearchService proteomesSearchService;
 
+    @Resource
+    private ApplicationContext applicationContext;
+
+    @Resource
+    private SolrServerFactory solrServerFactory;
+
     private static final List<SolrInputDocument> docs = createTestDocs();
 
     private SolrServer server;
@@ -61,12 +84,14 @@ public class ProteomesSearchServiceTest {
 
         // force the commit for testing purposes (avoids soft commit delay)
         solrOperations.commit();
+        IndexVersionTracker.of(solrOperations).changed();
     }
 
     @After
     public void tearDown() {
         solrOperations.delete(new SimpleQuery(new SimpleStringCriteria("*:*")));
         solrOperations.commit();
+        IndexVersionTracker.of(solrOperations).changed();
     }
 
 
@@ -182,6 +207,84 @@ public class ProteomesSearchServiceTest {
         assertEquals(PEPTIDE_1_FORM_1_ID, result.getId());
     }
 
+    @Test
+    public void testFindByIds() {
+        List<String> ids = Arrays.asList(PEPTIDE_5_FORM_1_ID, PEPTIDE_1_FORM_1_ID, "[UNKNOWN|9606|]", PEPTIDE_5_FORM_1_ID, PEPTIDE_4_FORM_2_ID);
+        Map<String, SolrPeptiform> found = proteomesSearchService.findByIds(ids);
+        assertEquals(3, found.size());
+        // in the order of the requested IDs, without the unknown one
+        assertEquals(Arrays.asList(PEPTIDE_5_FORM_1_ID, PEPTIDE_1_FORM_1_ID, PEPTIDE_4_FORM_2_ID), new ArrayList<String>(found.keySet()));
+        assertEquals(PEPTIDE_4_SEQUENCE, found.get(PEPTIDE_4_FORM_2_ID).getSequence());
+        assertEquals(PEPTIDE_5_PROTEINS, found.get(PEPTIDE_5_FORM_1_ID).getProteins());
+
+        assertTrue(proteomesSearchService.findByIds(Collections.<String>emptyList()).isEmpty());
+
+        // several chunks, requested in parallel
+        List<String> manyIds = new ArrayList<String>();
+        for (int i = 0; i < 2 * ProteomesSearchService.IDS_PER_REQUEST; i++) {
+            manyIds.add("[UNKNOWN|" + i + "|]");
+        }
+        manyIds.add(PEPTIDE_6_FORM_1_ID);
+        manyIds.add(0, PEPTIDE_3_FORM_1_ID);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            found = proteomesSearchService.findByIds(manyIds, executor);
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(Arrays.asList(PEPTIDE_3_FORM_1_ID, PEPTIDE_6_FORM_1_ID), new ArrayList<String>(found.keySet()));
+        assertEquals(found, proteomesSearchService.findByIds(manyIds));
+    }
+
+    @Test
+    public void testFindByProteins() {
+        List<String> proteins = Arrays.asList("P12345", "P98765", "P00000");
+        Map<String, Page<SolrPeptiform>> pages = proteomesSearchService.findByProteins(proteins, null, 10);
+        assertEquals(proteins, new ArrayList<String>(pages.keySet()));
+        assertEquals(2, pages.get("P12345").getTotalElements());
+        assertEquals(2, pages.get("P12345").getContent().size());
+        assertEquals(1, pages.get("P98765").getTotalElements());
+        assertEquals(PEPTIDE_6_FORM_1_ID, pages.get("P98765").getContent().get(0).getId());
+        assertEquals(0, pages.get("P00000").getTotalElements());
+        assertTrue(pages.get("P00000").getContent().isEmpty());
+        // the same counts as one countByProtein call per protein
+        for (String protein : proteins) {
+            assertEquals(proteomesSearchService.countByProtein(protein), pages.get(protein).getTotalElements());
+        }
+
+        // the counts are exact, also if fewer PeptiForms are returned
+        pages = proteomesSearchService.findByProteins(proteins, null, 1);
+        assertEquals(2, pages.get("P12345").getTotalElements());
+        assertEquals(1, pages.get("P12345").getContent().size());
+        pages = proteomesSearchService.findByProteins(proteins, null, 0);
+        assertEquals(2, pages.get("P12345").getTotalElements());
+        assertTrue(pages.get("P12345").getContent().isEmpty());
+
+        pages = proteomesSearchService.findByProteins(proteins, Arrays.asList(TAXID_HUMAN), 10);
+        assertEquals(1, pages.get("P12345").getTotalElements());
+        assertEquals(PEPTIDE_3_FORM_1_ID, pages.get("P12345").getContent().get(0).getId());
+        assertEquals(0, pages.get("P98765").getTotalElements());
+
+        // more proteins than the maxBooleanClauses (1024) of Solr, they are sent in several requests
+        List<String> manyProteins = new ArrayList<String>();
+        for (int i = 0; i < 1500; i++) {
+            manyProteins.add("X" + i);
+        }
+        manyProteins.addAll(700, proteins);
+        pages = proteomesSearchService.findByProteins(manyProteins, null, 1);
+        assertEquals(manyProteins, new ArrayList<String>(pages.keySet()));
+        assertEquals(2, pages.get("P12345").getTotalElements());
+        assertEquals(1, pages.get("P98765").getTotalElements());
+        assertEquals(0, pages.get("X0").getTotalElements());
+
+        try {
+            proteomesSearchService.findByProteins(Collections.<String>emptyList(), null, 10);
+            fail("Expected an exception");
+        } catch (IllegalArgumentException e) {
+            // no proteins
+        }
+    }
+
     @Test
     public void testFindBySequence() {
         Page<SolrPeptiform> page = proteomesSearchService.findBySequence(PEPTIDE_1_SEQUENCE, new PageRequest(0, 10));
@@ -206,6 +309,43 @@ public class ProteomesSearchServiceTest {
         assertEquals(0, page.getTotalElements());
     }
 
+    @Test
+    public void testFindBySequencePrefixAndSubSequence() {
+        // EDAANNYAR (3 PeptiForms) and EDSQLASMQHK
+        Page<SolrPeptiform> page = proteomesSearchService.findBySequencePrefix("ED", new PageRequest(0, 10));
+        assertEquals(4, page.getTotalElements());
+        assertEquals(4, proteomesSearchService.countBySequencePrefix("ed"));
+        assertEquals(3, proteomesSearchService.countBySequencePrefix(PEPTIDE_4_SEQUENCE));
+        assertEquals(0, proteomesSearchService.countBySequencePrefix("DAAN"));
+
+        // sub-sequence anywhere in the sequence
+        page = proteomesSearchService.findBySubSequence("CVMP", new PageRequest(0, 10));
+        assertEquals(2, page.getTotalElements());
+        for (SolrPeptiform solrPeptiform : page) {
+            assertEquals(PEPTIDE_1_SEQUENCE, solrPeptiform.getSequence());
+        }
+        assertEquals(2, proteomesSearchService.countBySubSequence("cvmp"));
+        assertEquals(3, proteomesSearchService.countBySubSequence("AAN"));
+        assertEquals(2, proteomesSearchService.countBySubSequence("SYEK"));
+        // the whole sequence is a sub-sequence as well
+        assertEquals(2, proteomesSearchService.countBySubSequence(PEPTIDE_1_SEQUENCE));
+        // all 3-mers exist (CVM, VMP, MPD, PDA), but not in this order
+        assertEquals(0, proteomesSearchService.countBySubSequence("CVMPDA"));
+
+        try {
+            proteomesSearchService.findBySubSequence("EK", new PageRequest(0, 10));
+            fail("Expected an exception");
+        } catch (IllegalArgumentException e) {
+            // too short
+        }
+        try {
+            proteomesSearchService.countBySubSequence("CV*P");
+            fail("Expected an exception");
+        } catch (IllegalArgumentException e) {
+            // not a sequence
+        }
+    }
+
     @Test
     public void testFindByTaxid() {
         Page<SolrPeptiform> page = proteomesSearchService.findByTaxid(TAXID_HUMAN, new PageRequest(0, 10));
@@ -291,6 +431,136 @@ public class ProteomesSearchServiceTest {
 
     }
 
+    @Test
+    public void testStream() {
+        // page size smaller than the result set, so the cursor has to move over several pages
+        Set<String> ids = new HashSet<String>();
+        Iterator<SolrPeptiform> iterator = proteomesSearchService.streamAll(3);
+        while (iterator.hasNext()) {
+            // every record is returned exactly once
+            assertTrue(ids.add(iterator.next().getId()));
+        }
+        assertEquals(COUNT_TOTAL_DOCS, ids.size());
+
+        ids.clear();
+        iterator = proteomesSearchService.streamByQuery("human", 2);
+        while (iterator.hasNext()) {
+            assertTrue(ids.add(iterator.next().getId()));
+        }
+        assertEquals(HUMAN_RECORDS + HBV_RECORDS, ids.size());
+
+        // same records as the findAll method
+        List<SolrPeptiform> list = new ArrayList<SolrPeptiform>();
+        iterator = proteomesSearchService.streamByProtein("P12345", 1);
+        while (iterator.hasNext()) {
+            SolrPeptiform solrPeptiform = iterator.next();
+            assertTrue(solrPeptiform.getProteins().contains("P12345"));
+            list.add(solrPeptiform);
+        }
+        assertEquals(proteomesSearchService.findAllByProtein("P12345").size(), list.size());
+
+        iterator = proteomesSearchService.streamByUpGroup("P12344", 10);
+        assertTrue(iterator.hasNext());
+        assertEquals(PEPTIDE_5_FORM_1_ID, iterator.next().getId());
+        assertFalse(iterator.hasNext());
+
+        iterator = proteomesSearchService.streamByGeneGroup("GENE2", 10);
+        assertTrue(iterator.hasNext());
+        assertEquals(PEPTIDE_3_FORM_1_ID, iterator.next().getId());
+        assertFalse(iterator.hasNext());
+
+        assertFalse(proteomesSearchService.streamByProtein("NONEXISTENT", 10).hasNext());
+    }
+
+    @Test
+    public void testFindAllCompact() {
+        CompactPeptiforms compact = proteomesSearchService.findAllCompactByQuery(null);
+        assertEquals(COUNT_TOTAL_DOCS, compact.size());
+        // the beans created from the compact form have the same fields as the loaded ones
+        Map<String, SolrPeptiform> loaded = proteomesSearchService.findByIds(Arrays.asList(
+                PEPTIDE_3_FORM_1_ID, PEPTIDE_5_FORM_1_ID, PEPTIDE_1_FORM_1_ID));
+        int compared = 0;
+        for (SolrPeptiform solrPeptiform : compact) {
+            SolrPeptiform expected = loaded.get(solrPeptiform.getId());
+            if (expected != null) {
+                assertEquals(expected.getSequence(), solrPeptiform.getSequence());
+                assertEquals(expected.getTaxid(), solrPeptiform.getTaxid());
+                assertEquals(expected.getSpecies(), solrPeptiform.getSpecies());
+                assertEquals(expected.getNumProteins(), solrPeptiform.getNumProteins());
+                assertEquals(expected.getProteins(), solrPeptiform.getProteins());
+                assertEquals(expected.getMods(), solrPeptiform.getMods());
+                assertEquals(expected.getUpGroups(), solrPeptiform.getUpGroups());
+                assertEquals(expected.getGeneGroups(), solrPeptiform.getGeneGroups());
+                assertEquals(expected.getGroupDescs(), solrPeptiform.getGroupDescs());
+                compared++;
+            }
+        }
+        assertEquals(3, compared);
+
+        compact = proteomesSearchService.findAllCompactByProtein("P12345");
+        assertEquals(proteomesSearchService.findAllByProtein("P12345").size(), compact.size());
+        for (int i = 0; i < compact.size(); i++) {
+            assertTrue(compact.getProteins(i).contains("P12345"));
+        }
+        // P12345 is both a protein and an UP group, but held once (the sequences are not encoded)
+        Set<String> strings = new HashSet<String>();
+        for (SolrPeptiform solrPeptiform : compact) {
+            strings.add(solrPeptiform.getSpecies());
+            for (List<String> list : Arrays.asList(solrPeptiform.getProteins(), solrPeptiform.getMods(),
+                    solrPeptiform.getUpGroups(), solrPeptiform.getGeneGroups())) {
+                if (list != null) {
+                    strings.addAll(list);
+                }
+            }
+            if (solrPeptiform.getGroupDescs() != null) {
+                strings.add(solrPeptiform.getGroupDescs());
+            }
+        }
+        strings.remove(null);
+        assertEquals(strings.size(), compact.getDictionarySize());
+        // records added after the list has been trimmed are still encoded with the existing codes
+        SolrPeptiform copy = compact.get(0);
+        compact.add(copy);
+        assertEquals(strings.size(), compact.getDictionarySize());
+        assertEquals(copy.getProteins(), compact.getProteins(compact.size() - 1));
+        assertEquals(copy.getSequence(), compact.getSequence(compact.size() - 1));
+
+        assertEquals(1, proteomesSearchService.findAllCompactByGeneGroup("GENE2").size());
+        assertEquals(PEPTIDE_5_FORM_1_ID, proteomesSearchService.findAllCompactByUpGroup("P12344").getId(0));
+        assertTrue(proteomesSearchService.findAllCompactByProtein("NONEXISTENT").isEmpty());
+    }
+
+    @Test
+    public void testFindWithProjection() {
+        Page<SolrPeptiform> page = proteomesSearchService.findByQuery("human", new PageRequest(0, 10), PeptiformProjection.SUMMARY);
+        // same result as without projection
+        assertEquals(HUMAN_RECORDS + HBV_RECORDS, page.getTotalElements());
+        for (SolrPeptiform solrPeptiform : page) {
+            assertNotNull(solrPeptiform.getId());
+            assertNotNull(solrPeptiform.getSequence());
+            assertTrue(solrPeptiform.getTaxid() > 0);
+            // fields outside the projection are not loaded
+            assertNull(solrPeptiform.getSpecies());
+            assertNull(solrPeptiform.getProteins());
+        }
+
+        List<SolrPeptiform> list = proteomesSearchService.findByProtein("P12347", new PageRequest(0, 10), PeptiformProjection.SUMMARY).getContent();
+        assertEquals(1, list.size());
+        assertEquals(PEPTIDE_3_FORM_1_ID, list.get(0).getId());
+        assertNull(list.get(0).getProteins());
+
+        page = proteomesSearchService.findByQueryAndFilterTaxid("", Arrays.asList(TAXID_MOUSE), new PageRequest(0, 10), new PeptiformProjection(SolrPeptiformFields.PEPTIFORM_SPECIES));
+        assertEquals(MOUSE_RECORDS, page.getTotalElements());
+        for (SolrPeptiform solrPeptiform : page) {
+            assertEquals(SPECIES_MOUSE, solrPeptiform.getSpecies());
+            assertNull(solrPeptiform.getSequence());
+        }
+
+        // no projection, all fields are loaded
+        list = proteomesSearchService.findByProtein("P12347", new PageRequest(0, 10), null).getContent();
+        assertTrue(list.get(0).getProteins().contains("P12347"));
+    }
+
     @Test
     public void testFindByMod() {
         String mod = "Oxidation";
@@ -646,6 +916,42 @@ public class ProteomesSearchServiceTest {
         assertEquals(COUNT_TOTAL_DOCS, count);
     }
 
+    @Test
+    public void testCountsConsistentWithFind() {
+        PageRequest page = new PageRequest(0, 1);
+        assertEquals(proteomesSearchService.findAll(page).getTotalElements(), proteomesSearchService.countAll().longValue());
+        assertEquals(proteomesSearchService.findBySequence(PEPTIDE_4_SEQUENCE.toLowerCase(), page).getTotalElements(), proteomesSearchService.countBySequence(PEPTIDE_4_SEQUENCE.toLowerCase()).longValue());
+        assertEquals(proteomesSearchService.findByTaxid(TAXID_MOUSE, page).getTotalElements(), proteomesSearchService.countByTaxid(TAXID_MOUSE).longValue());
+        assertEquals(proteomesSearchService.findBySpecies(SPECIES_HUMAN, page).getTotalElements(), proteomesSearchService.countBySpecies(SPECIES_HUMAN).longValue());
+        assertEquals(proteomesSearchService.findByProtein("P12345", page).getTotalElements(), proteomesSearchService.countByProtein("P12345"));
+        assertEquals(proteomesSearchService.findByMod("Oxidation", page).getTotalElements(), proteomesSearchService.countByMod("Oxidation"));
+        assertEquals(proteomesSearchService.findByUpGroup("P12345", page).getTotalElements(), proteomesSearchService.countByUpGroup("P12345"));
+        assertEquals(proteomesSearchService.findByGeneGroup("GENE2", page).getTotalElements(), proteomesSearchService.countByGeneGroup("GENE2"));
+        for (String query : new String[]{"human", "?ouse", "P????5", "human mouse", "*", "", null}) {
+            assertEquals(proteomesSearchService.findByQuery(query, page).getTotalElements(), proteomesSearchService.countByQuery(query));
+            assertEquals(proteomesSearchService.findByQuery(query, page, PeptiformProjection.SUMMARY).getTotalElements(), proteomesSearchService.countByQuery(query));
+            assertEquals(proteomesSearchService.findByQueryNot(query, page).getTotalElements(), proteomesSearchService.countByQueryNot(query));
+        }
+
+        List<Integer> species = new ArrayList<Integer>();
+        species.add(TAXID_HUMAN);
+        for (String query : new String[]{"human", "P12347", "human P12347", "*", "", null}) {
+            assertEquals(proteomesSearchService.findByQueryAndFilterTaxid(query, species, page).getTotalElements(), proteomesSearchService.countByQueryAndFilterTaxid(query, species));
+            assertEquals(proteomesSearchService.findByQueryAndFilterTaxid(query, species, page, PeptiformProjection.SUMMARY).getTotalElements(), proteomesSearchService.countByQueryAndFilterTaxid(query, species));
+        }
+        species.add(TAXID_HBV);
+        assertEquals(proteomesSearchService.findByQueryAndFilterTaxid("human", species, page).getTotalElements(), proteomesSearchService.countByQueryAndFilterTaxid("human", species));
+
+        // invalid input is rejected the same way as by the find methods
+        boolean failed = false;
+        try {
+            proteomesSearchService.countByMod("");
+        } catch (IllegalArgumentException e) {
+            failed = true;
+        }
+        assertTrue(failed);
+    }
+
     @Test
     public void testCountByQueryAndFilterTaxId() {
         List<Integer> species = new ArrayList<Integer>();
@@ -713,6 +1019,99 @@ public class ProteomesSearchServiceTest {
         assertEquals(0, proteinCounts.getContent().size());
     }
 
+    @Test
+    public void testGetCountsTotalElements() {
+        // the total is the number of distinct values, independent of the requested page
+        assertEquals(5, proteomesSearchService.getProteinCounts(0, 2, false).getTotalElements());
+        assertEquals(5, proteomesSearchService.getProteinCounts(1, 2, true).getTotalElements());
+        assertEquals(4, proteomesSearchService.getUPGroupCounts(0, 2, false).getTotalElements());
+        assertEquals(2, proteomesSearchService.getGeneGroupCounts(0, 1, false).getTotalElements());
+
+        Collection<Integer> taxids = new ArrayList<Integer>();
+        taxids.add(TAXID_MOUSE);
+        assertEquals(2, proteomesSearchService.getProteinCountsBySpecies(taxids, 0, 1, false).getTotalElements());
+        assertEquals(2, proteomesSearchService.getUPGroupCountsBySpecies(taxids, 0, 1, false).getTotalElements());
+        assertEquals(0, proteomesSearchService.getGeneGroupCountsBySpecies(taxids, 0, 1, false).getTotalElements());
+
+        // a new protein becomes visible with the next commit, the total has to follow
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.addField(SolrPeptiformFields.ID, "[NEWPEPTIDE|10090|]");
+        doc.addField(SolrPeptiformFields.PEPTIFORM_SEQUENCE, "NEWPEPTIDE");
+        doc.addField(SolrPeptiformFields.PEPTIFORM_TAXID, TAXID_MOUSE);
+        doc.addField(SolrPeptiformFields.PROTEINS, "Q99999");
+        solrOperations.saveDocument(doc);
+        solrOperations.commit();
+        IndexVersionTracker.of(solrOperations).changed();
+        assertEquals(6, proteomesSearchService.getProteinCounts(0, 2, false).getTotalElements());
+        assertEquals(3, proteomesSearchService.getProteinCountsBySpecies(taxids, 0, 1, false).getTotalElements());
+
+        // the terms of a deleted document stay in the index until a merge, its protein is not counted
+        solrOperations.deleteById("[NEWPEPTIDE|10090|]");
+        solrOperations.commit();
+        IndexVersionTracker.of(solrOperations).changed();
+        assertEquals(5, proteomesSearchService.getProteinCounts(0, 2, false).getTotalElements());
+    }
+
+    @Test
+    public void testDistinctCountOfManyValues() {
+        int added = 2345;
+        List<SolrInputDocument> addedDocs = new ArrayList<SolrInputDocument>();
+        for (int i = 0; i < added; i++) {
+            SolrInputDocument doc = new SolrInputDocument();
+            doc.addField(SolrPeptiformFields.ID, "[PEPTIDE" + i + "|10090|]");
+            doc.addField(SolrPeptiformFields.PEPTIFORM_SEQUENCE, "PEPTIDE");
+            doc.addField(SolrPeptiformFields.PEPTIFORM_TAXID, TAXID_MOUSE);
+            doc.addField(SolrPeptiformFields.PROTEINS, "X" + i);
+            addedDocs.add(doc);
+        }
+        solrOperations.saveDocuments(addedDocs);
+        solrOperations.commit();
+        IndexVersionTracker.of(solrOperations).changed();
+        assertEquals(5 + added, proteomesSearchService.getProteinCounts(0, 2, false).getTotalElements());
+        Collection<Integer> taxids = Arrays.asList(TAXID_MOUSE);
+        assertEquals(2 + added, proteomesSearchService.getProteinCountsBySpecies(taxids, 3, 10, true).getTotalElements());
+        assertEquals(1001, new FacetDistinctCounter(solrOperations).countDistinct(SolrPeptiformFields.PROTEINS, SolrPeptiformFields.ID,
+                idsOfAdded(1001)));
+    }
+
+    private static List<String> idsOfAdded(int count) {
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            ids.add("[PEPTIDE" + i + "|10090|]");
+        }
+        return ids;
+    }
+
+    @Test
+    public void testIndexVersionTracker() {
+        IndexVersionTracker tracker = IndexVersionTracker.of(solrOperations);
+        assertSame(tracker, IndexVersionTracker.of(solrOperations));
+        long version = tracker.getVersion();
+        assertTrue(version >= 0);
+
+        // a change made directly to the index is seen after the check interval
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.addField(SolrPeptiformFields.ID, "[NEWPEPTIDE|10090|]");
+        doc.addField(SolrPeptiformFields.PEPTIFORM_SEQUENCE, "NEWPEPTIDE");
+        doc.addField(SolrPeptiformFields.PEPTIFORM_TAXID, TAXID_MOUSE);
+        solrOperations.saveDocument(doc);
+        solrOperations.commit();
+        assertEquals(version, tracker.getVersion());
+        tracker.setCheckInterval(0);
+        try {
+            assertTrue(tracker.getVersion() != version);
+        } finally {
+            tracker.setCheckInterval(IndexVersionTracker.DEFAULT_CHECK_INTERVAL);
+        }
+
+        // a change announced by the index service is seen right away
+        version = tracker.getVersion();
+        solrOperations.deleteById("[NEWPEPTIDE|10090|]");
+        solrOperations.commit();
+        tracker.changed();
+        assertTrue(tracker.getVersion() != version);
+    }
+
     @Test
     public void testGetProteinCountsBySpecies() {
         Collection<Integer> taxids = new ArrayList<Integer>();
@@ -800,4 +1199,582 @@ public class ProteomesSearchServiceTest {
         assertEquals(0, proteinCounts.getContent().size());
     }
 
+    @Test
+    public void testStreamFacetCounts() {
+        // page size smaller than the number of values, same values and counts as the paged method
+        assertSameCounts(proteomesSearchService.getProteinCounts(0, 10, true).getContent(), toList(proteomesSearchService.streamProteinCounts(null, 2)));
+        assertSameCounts(proteomesSearchService.getUPGroupCounts(0, 10, true).getContent(), toList(proteomesSearchService.streamUPGroupCounts(null, 2)));
+        // page size equal to the number of values, the last request returns an empty page
+        assertSameCounts(proteomesSearchService.getGeneGroupCounts(0, 10, true).getContent(), toList(proteomesSearchService.streamGeneGroupCounts(null, 2)));
+
+        List<FacetFieldEntry> proteins = toList(proteomesSearchService.streamProteinCounts(Collections.<Integer>emptyList(), 3));
+        assertEquals(5, proteins.size());
+        // sorted by value
+        for (int i = 1; i < proteins.size(); i++) {
+            assertTrue(proteins.get(i - 1).getValue().compareTo(proteins.get(i).getValue()) < 0);
+        }
+
+        List<Integer> taxids = new ArrayList<Integer>();
+        taxids.add(TAXID_MOUSE);
+        assertSameCounts(proteomesSearchService.getProteinCountsBySpecies(taxids, 0, 10, true).getContent(), toList(proteomesSearchService.streamProteinCounts(taxids, 1)));
+        assertFalse(proteomesSearchService.streamGeneGroupCounts(taxids, 10).hasNext());
+    }
+
+    @Test
+    public void testSnapshots() {
+        PeptiformSnapshot snapshot = proteomesSearchService.openSnapshotByQuery("", null);
+        assertEquals(COUNT_TOTAL_DOCS, snapshot.size());
+        assertFalse(snapshot.isTruncated());
+
+        // the index changes between the pages, the pages stay consistent with the snapshot
+        Page<SolrPeptiform> page = proteomesSearchService.findByQuery(snapshot, new PageRequest(0, 3));
+        assertEquals(3, page.getContent().size());
+        assertEquals(COUNT_TOTAL_DOCS, page.getTotalElements());
+        Set<String> ids = new HashSet<String>();
+        for (SolrPeptiform solrPeptiform : page) {
+            assertTrue(ids.add(solrPeptiform.getId()));
+        }
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.addField(SolrPeptiformFields.ID, "[AAAAAAA|9606|]");
+        doc.addField(SolrPeptiformFields.PEPTIFORM_SEQUENCE, "AAAAAAA");
+        doc.addField(SolrPeptiformFields.PEPTIFORM_TAXID, TAXID_HUMAN);
+        solrOperations.saveDocument(doc);
+        solrOperations.commit();
+        IndexVersionTracker.of(solrOperations).changed();
+        for (int i = 1; i * 3 < COUNT_TOTAL_DOCS; i++) {
+            page = proteomesSearchService.findByQuery(snapshot, new PageRequest(i, 3));
+            assertEquals(COUNT_TOTAL_DOCS, page.getTotalElements());
+            for (SolrPeptiform solrPeptiform : page) {
+                // no duplicates and no new PeptiForms
+                assertTrue(ids.add(solrPeptiform.getId()));
+            }
+        }
+        assertEquals(COUNT_TOTAL_DOCS, ids.size());
+        assertTrue(proteomesSearchService.findByQuery(snapshot, new PageRequest(100, 3)).getContent().isEmpty());
+
+        // same results as the find methods
+        List<Integer> taxids = new ArrayList<Integer>();
+        taxids.add(TAXID_MOUSE);
+        snapshot = proteomesSearchService.openSnapshotByQuery("", taxids);
+        assertEquals(MOUSE_RECORDS, snapshot.size());
+        snapshot = proteomesSearchService.openSnapshotByQuery("human", null);
+        ids.clear();
+        for (SolrPeptiform solrPeptiform : proteomesSearchService.findByQuery("human", new PageRequest(0, 100))) {
+            ids.add(solrPeptiform.getId());
+        }
+        assertEquals(ids.size(), snapshot.size());
+        for (SolrPeptiform solrPeptiform : proteomesSearchService.findByQuery(snapshot, new PageRequest(0, 100))) {
+            assertTrue(ids.contains(solrPeptiform.getId()));
+        }
+
+        // facet values, a new protein is not in the snapshot
+        FacetSnapshot proteins = proteomesSearchService.openFacetSnapshot(SolrPeptiformFields.PROTEINS, null, false);
+        assertSameCounts(proteomesSearchService.getProteinCounts(0, 10, false).getContent(), proteomesSearchService.getCounts(proteins, 0, 10).getContent());
+        doc.addField(SolrPeptiformFields.PROTEINS, "Q99999");
+        solrOperations.saveDocument(doc);
+        solrOperations.commit();
+        IndexVersionTracker.of(solrOperations).changed();
+        assertEquals(6, proteomesSearchService.getProteinCounts(0, 10, false).getContent().size());
+        assertEquals(5, proteins.size());
+        assertEquals("P12345", proteomesSearchService.getCounts(proteins, 0, 1).getContent().get(0).getValue());
+        assertEquals(2, proteomesSearchService.getCounts(proteins, 0, 1).getContent().get(0).getValueCount());
+        assertEquals(1, proteomesSearchService.getCounts(proteins, 2, 2).getContent().size());
+        assertEquals(5, proteomesSearchService.getCounts(proteins, 2, 2).getTotalElements());
+
+        // truncated to the maximum size, the first values in the order of the snapshot
+        proteomesSearchService.setMaxSnapshotSize(2);
+        try {
+            proteins = proteomesSearchService.openFacetSnapshot(SolrPeptiformFields.PROTEINS, null, true);
+            assertTrue(proteins.isTruncated());
+            assertSameCounts(proteomesSearchService.getProteinCounts(0, 2, true).getContent(), proteomesSearchService.getCounts(proteins, 0, 10).getContent());
+            assertTrue(proteomesSearchService.openSnapshotByQuery(null, null).isTruncated());
+
+            // by count the first values are the most frequent ones, not the first ones in index order
+            for (String sequence : new String[]{"CCCCCCC", "DDDDDDD", "EEEEEEE"}) {
+                doc = new SolrInputDocument();
+                doc.addField(SolrPeptiformFields.ID, "[" + sequence + "|9606|]");
+                doc.addField(SolrPeptiformFields.PEPTIFORM_SEQUENCE, sequence);
+                doc.addField(SolrPeptiformFields.PEPTIFORM_TAXID, TAXID_HUMAN);
+                doc.addField(SolrPeptiformFields.PROTEINS, "Z99999");
+                solrOperations.saveDocument(doc);
+            }
+            solrOperations.commit();
+            IndexVersionTracker.of(solrOperations).changed();
+            proteins = proteomesSearchService.openFacetSnapshot(SolrPeptiformFields.PROTEINS, null, false);
+            assertTrue(proteins.isTruncated());
+            assertEquals(2, proteins.size());
+            assertSameCounts(proteomesSearchService.getProteinCounts(0, 2, false).getContent(), proteomesSearchService.getCounts(proteins, 0, 10).getContent());
+            assertEquals("Z99999", proteomesSearchService.getCounts(proteins, 0, 1).getContent().get(0).getValue());
+            assertEquals(3, proteomesSearchService.getCounts(proteins, 0, 1).getContent().get(0).getValueCount());
+        } finally {
+            proteomesSearchService.setMaxSnapshotSize(ProteomesSearchService.DEFAULT_MAX_SNAPSHOT_SIZE);
+        }
+    }
+
+    @Test
+    public void testFacetCountStore() {
+        // the reloads are run by the test
+        final List<Runnable> reloads = new ArrayList<Runnable>();
+        FacetCountStore store = new FacetCountStore(solrOperations, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                reloads.add(runnable);
+            }
+        });
+        List<Integer> human = Arrays.asList(TAXID_HUMAN);
+        List<Integer> humanAndMouse = Arrays.asList(TAXID_HUMAN, TAXID_MOUSE, TAXID_MOUSE);
+        // same pages as the Solr facets, for both sort orders and across pages
+        for (boolean sortByIndex : new boolean[]{true, false}) {
+            for (int page = 0; page < 3; page++) {
+                assertSameCounts(proteomesSearchService.getProteinCounts(page, 2, sortByIndex).getContent(),
+                        store.getCounts(SolrPeptiformFields.PROTEINS, null, page, 2, sortByIndex).getContent());
+                assertSameCounts(proteomesSearchService.getProteinCountsBySpecies(human, page, 2, sortByIndex).getContent(),
+                        store.getCounts(SolrPeptiformFields.PROTEINS, human, page, 2, sortByIndex).getContent());
+                assertSameCounts(proteomesSearchService.getUPGroupCountsBySpecies(humanAndMouse, page, 2, sortByIndex).getContent(),
+                        store.getCounts(SolrPeptiformFields.UP_GROUPS, humanAndMouse, page, 2, sortByIndex).getContent());
+                assertSameCounts(proteomesSearchService.getGeneGroupCountsBySpecies(humanAndMouse, page, 1, sortByIndex).getContent(),
+                        store.getCounts(SolrPeptiformFields.GENE_GROUPS, humanAndMouse, page, 1, sortByIndex).getContent());
+            }
+        }
+        assertEquals(5, store.getCounts(SolrPeptiformFields.PROTEINS, null, 0, 1, false).getTotalElements());
+        assertEquals(3, store.getCounts(SolrPeptiformFields.PROTEINS, human, 0, 1, false).getTotalElements());
+        assertEquals(0, store.getCounts(SolrPeptiformFields.GENE_GROUPS, Arrays.asList(TAXID_MOUSE), 0, 10, false).getTotalElements());
+        assertEquals(0, store.getCounts(SolrPeptiformFields.PROTEINS, Arrays.asList(1), 0, 10, false).getTotalElements());
+
+        // reloaded in the background after a commit, the previous counts are served meanwhile
+        long version = store.getVersion();
+        assertTrue(reloads.isEmpty());
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.addField(SolrPeptiformFields.ID, "[NEWPEPTIDE|10090|]");
+        doc.addField(SolrPeptiformFields.PEPTIFORM_SEQUENCE, "NEWPEPTIDE");
+        doc.addField(SolrPeptiformFields.PEPTIFORM_TAXID, TAXID_MOUSE);
+        doc.addField(SolrPeptiformFields.PROTEINS, "P12345");
+        solrOperations.saveDocument(doc);
+        solrOperations.commit();
+        IndexVersionTracker.of(solrOperations).changed();
+        Page<FacetFieldEntry> proteins = store.getCounts(SolrPeptiformFields.PROTEINS, humanAndMouse, 0, 1, false);
+        assertEquals(version, store.getVersion());
+        assertEquals(2, proteins.getContent().get(0).getValueCount());
+        store.getCounts(SolrPeptiformFields.UP_GROUPS, null, 0, 1, false);
+        // a single reload
+        assertEquals(1, reloads.size());
+        reloads.get(0).run();
+        proteins = store.getCounts(SolrPeptiformFields.PROTEINS, humanAndMouse, 0, 1, false);
+        assertTrue(store.getVersion() != version);
+        assertEquals("P12345", proteins.getContent().get(0).getValue());
+        assertEquals(3, proteins.getContent().get(0).getValueCount());
+        assertEquals(1, reloads.size());
+
+        // refresh loads the counts right away
+        version = store.getVersion();
+        solrOperations.deleteById("[NEWPEPTIDE|10090|]");
+        solrOperations.commit();
+        IndexVersionTracker.of(solrOperations).changed();
+        store.refresh();
+        assertTrue(store.getVersion() != version);
+        assertEquals(2, store.getCounts(SolrPeptiformFields.PROTEINS, humanAndMouse, 0, 1, false).getContent().get(0).getValueCount());
+        assertEquals(1, reloads.size());
+    }
+
+    @Test
+    public void testFacetCountStoreBean() {
+        // the services and repositories with a FacetCountStore bean, used by the repository for the count pages
+        FacetCountStore store = new FacetCountStore(solrOperations);
+        AnnotationConfigApplicationContext context = createServicesContext("facetCountStore", store);
+        try {
+            ProteomesSearchService searchService = context.getBean(ProteomesSearchService.class);
+            assertNotSame(proteomesSearchService, searchService);
+            assertEquals(-1, store.getVersion());
+
+            List<Integer> humanAndMouse = Arrays.asList(TAXID_HUMAN, TAXID_MOUSE);
+            for (boolean sortByIndex : new boolean[]{true, false}) {
+                assertSameCounts(proteomesSearchService.getProteinCounts(0, 10, sortByIndex).getContent(),
+                        searchService.getProteinCounts(0, 10, sortByIndex).getContent());
+                assertSameCounts(proteomesSearchService.getUPGroupCountsBySpecies(humanAndMouse, 0, 2, sortByIndex).getContent(),
+                        searchService.getUPGroupCountsBySpecies(humanAndMouse, 0, 2, sortByIndex).getContent());
+                assertSameCounts(proteomesSearchService.getGeneGroupCounts(0, 10, sortByIndex).getContent(),
+                        searchService.getGeneGroupCounts(0, 10, sortByIndex).getContent());
+            }
+            // the pages came from the store
+            assertTrue(store.getVersion() >= 0);
+            assertEquals(5, searchService.getProteinCounts(0, 1, false).getTotalElements());
+        } finally {
+            context.close();
+        }
+    }
+
+    @Test
+    public void testPagePrefetcher() {
+        // the pages without prefetching
+        List<String> firstPage = ids(proteomesSearchService.findByQuery("", new PageRequest(0, 4)));
+        List<String> secondPage = ids(proteomesSearchService.findByQuery("", new PageRequest(1, 4)));
+        List<String> lastPage = ids(proteomesSearchService.findByQuery("", new PageRequest(2, 4)));
+
+        // the prefetches run right away, so they have always started when the next page is requested
+        PagePrefetcher prefetcher = new PagePrefetcher(10, 60000, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        });
+        proteomesSearchService.setPagePrefetcher(prefetcher);
+        try {
+            assertEquals(firstPage, ids(proteomesSearchService.findByQuery("", new PageRequest(0, 4))));
+            assertEquals(0, prefetcher.getHits());
+            assertEquals(1, prefetcher.getPrefetches());
+            // the next page is served by the prefetch, which prefetches the last page
+            Page<SolrPeptiform> page = proteomesSearchService.findByQuery("", new PageRequest(1, 4));
+            assertEquals(secondPage, ids(page));
+            assertEquals(COUNT_TOTAL_DOCS, page.getTotalElements());
+            assertEquals(1, prefetcher.getHits());
+            assertEquals(lastPage, ids(proteomesSearchService.findByQuery("", new PageRequest(2, 4))));
+            assertEquals(2, prefetcher.getHits());
+            // nothing after the last page
+            assertEquals(2, prefetcher.getPrefetches());
+            assertEquals(0, prefetcher.getSize());
+
+            // only the same query and page are served from a prefetch
+            List<Integer> taxids = Arrays.asList(TAXID_HUMAN);
+            proteomesSearchService.findByQueryAndFilterTaxid("", taxids, new PageRequest(0, 2));
+            proteomesSearchService.findByQueryAndFilterTaxid("", taxids, new PageRequest(0, 2), PeptiformProjection.SUMMARY);
+            assertEquals(2, prefetcher.getSize());
+            assertEquals(2, prefetcher.getHits());
+            assertEquals(3, prefetcher.getMisses());
+            assertEquals(0.4, prefetcher.getHitRate(), 0.001);
+
+            // pages that are not requested are wasted
+            prefetcher.invalidate();
+            assertEquals(0, prefetcher.getSize());
+            assertEquals(2, prefetcher.getWasted());
+            assertEquals(0, prefetcher.getNotStarted());
+        } finally {
+            proteomesSearchService.setPagePrefetcher(null);
+            prefetcher.shutdown();
+        }
+
+        // a request does not wait for a prefetch that is still queued, it fetches the page itself
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        prefetcher = new PagePrefetcher(10, 60000, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                queued.add(runnable);
+            }
+        });
+        proteomesSearchService.setPagePrefetcher(prefetcher);
+        try {
+            assertEquals(firstPage, ids(proteomesSearchService.findByQuery("", new PageRequest(0, 4))));
+            assertEquals(1, queued.size());
+            assertEquals(secondPage, ids(proteomesSearchService.findByQuery("", new PageRequest(1, 4))));
+            assertEquals(0, prefetcher.getHits());
+            assertEquals(2, prefetcher.getMisses());
+            assertEquals(1, prefetcher.getNotStarted());
+            // the cancelled prefetch does not run any more, the prefetch of the last page is served once it has run
+            queued.get(0).run();
+            queued.get(1).run();
+            assertEquals(lastPage, ids(proteomesSearchService.findByQuery("", new PageRequest(2, 4))));
+            assertEquals(1, prefetcher.getHits());
+            assertEquals(1, prefetcher.getNotStarted());
+        } finally {
+            proteomesSearchService.setPagePrefetcher(null);
+            prefetcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testRequestCoalescer() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // the second identical query waits for the running one and gets its result
+            Future<Long> first = executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return coalescer.get("countByTaxid", new Callable<Long>() {
+                        @Override
+                        public Long call() throws Exception {
+                            release.await();
+                            return proteomesSearchService.countByTaxid(TAXID_HUMAN);
+                        }
+                    });
+                }
+            });
+            while (coalescer.getRunning() == 0) {
+                Thread.sleep(10);
+            }
+            Future<Long> second = executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return coalescer.get("countByTaxid", new Callable<Long>() {
+                        @Override
+                        public Long call() {
+                            throw new IllegalStateException("The running query is not shared!");
+                        }
+                    });
+                }
+            });
+            while (coalescer.getCoalesced() == 0) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            assertEquals(new Long(HUMAN_RECORDS), first.get());
+            assertEquals(new Long(HUMAN_RECORDS), second.get());
+            assertEquals(1, coalescer.getCalls());
+            assertEquals(0, coalescer.getRunning());
+        } finally {
+            executor.shutdown();
+        }
+
+        // nothing is kept once the query has finished
+        proteomesSearchService.setRequestCoalescer(coalescer);
+        try {
+            assertEquals(new Long(MOUSE_RECORDS), proteomesSearchService.countByTaxid(TAXID_MOUSE));
+            assertEquals(new Long(MOUSE_RECORDS), proteomesSearchService.countByTaxid(TAXID_MOUSE));
+            assertEquals(COUNT_TOTAL_DOCS, proteomesSearchService.findByQuery("", new PageRequest(0, 100)).getContent().size());
+            assertEquals(3, coalescer.getCalls());
+            assertEquals(1, coalescer.getCoalesced());
+        } finally {
+            proteomesSearchService.setRequestCoalescer(null);
+        }
+    }
+
+    private static List<String> ids(Page<SolrPeptiform> page) {
+        List<String> ids = new ArrayList<String>();
+        for (SolrPeptiform solrPeptiform : page) {
+            ids.add(solrPeptiform.getId());
+        }
+        return ids;
+    }
+
+    private static void assertSameCounts(List<FacetFieldEntry> expected, List<FacetFieldEntry> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getValue(), actual.get(i).getValue());
+            assertEquals(expected.get(i).getValueCount(), actual.get(i).getValueCount());
+        }
+    }
+
+    private static List<FacetFieldEntry> toList(Iterator<FacetFieldEntry> iterator) {
+        List<FacetFieldEntry> list = new ArrayList<FacetFieldEntry>();
+        while (iterator.hasNext()) {
+            list.add(iterator.next());
+        }
+        return list;
+    }
+
+    @Test
+    public void testGetFacetSummary() {
+        List<String> fields = new ArrayList<String>();
+        fields.add(SolrPeptiformFields.PROTEINS);
+        fields.add(SolrPeptiformFields.UP_GROUPS);
+        fields.add(SolrPeptiformFields.GENE_GROUPS);
+
+        // no query and no filters, same results as the separate methods
+        FacetSummary summary = proteomesSearchService.getFacetSummary(null, null, fields, 0, 2, false);
+        assertEquals(proteomesSearchService.countAll().longValue(), summary.getHitCount());
+        assertEquals(proteomesSearchService.getTaxidFacets(), summary.getTaxidCounts());
+        Page<FacetFieldEntry> proteins = summary.getFacetPage(SolrPeptiformFields.PROTEINS);
+        assertEquals(2, proteins.getContent().size());
+        assertEquals(5, proteins.getTotalElements());
+        // the protein with most PeptiForms comes first
+        assertEquals("P12345", proteins.getContent().get(0).getValue());
+        assertEquals(2, proteins.getContent().get(0).getValueCount());
+        assertEquals(4, summary.getDistinctCount(SolrPeptiformFields.UP_GROUPS));
+        assertEquals(2, summary.getDistinctCount(SolrPeptiformFields.GENE_GROUPS));
+
+        // filter by species, the taxid counts ignore the filter
+        List<Integer> taxids = new ArrayList<Integer>();
+        taxids.add(TAXID_MOUSE);
+        summary = proteomesSearchService.getFacetSummary("", taxids, fields, 0, 10, true);
+        assertEquals(MOUSE_RECORDS, summary.getHitCount());
+        assertEquals(3, summary.getTaxidCounts().size());
+        assertEquals(proteomesSearchService.getProteinCountsBySpecies(taxids, 0, 10, true).getContent().size(),
+                summary.getFacetPage(SolrPeptiformFields.PROTEINS).getContent().size());
+        assertEquals(2, summary.getDistinctCount(SolrPeptiformFields.PROTEINS));
+        assertEquals(0, summary.getDistinctCount(SolrPeptiformFields.GENE_GROUPS));
+
+        // query and filter
+        taxids.clear();
+        taxids.add(TAXID_HUMAN);
+        summary = proteomesSearchService.getFacetSummary("human", taxids, fields, 0, 10, false);
+        assertEquals(HUMAN_RECORDS, summary.getHitCount());
+        assertEquals(new Long(HBV_RECORDS), summary.getTaxidCounts().get(TAXID_HBV));
+        assertEquals(3, summary.getDistinctCount(SolrPeptiformFields.PROTEINS));
+
+        // same query and filter semantics (default operator AND) as countByQueryAndFilterTaxid
+        taxids.add(TAXID_HBV);
+        for (String query : new String[]{"human", "human mouse", "human P12347", ""}) {
+            summary = proteomesSearchService.getFacetSummary(query, taxids, fields, 0, 10, false);
+            assertEquals(proteomesSearchService.countByQueryAndFilterTaxid(query, taxids), summary.getHitCount());
+            assertEquals(summary.getHitCount() == 0, summary.getDistinctCount(SolrPeptiformFields.PROTEINS) == 0);
+        }
+        taxids.remove(Integer.valueOf(TAXID_HBV));
+        for (String query : new String[]{"human mouse", "human P12347"}) {
+            summary = proteomesSearchService.getFacetSummary(query, taxids, fields, 0, 10, false);
+            assertEquals(proteomesSearchService.countByQueryAndFilterTaxid(query, taxids), summary.getHitCount());
+        }
+    }
+
+    @Test
+    public void testTaxidShards() throws Exception {
+        // the results of the unsharded index
+        List<String> fields = Arrays.asList(SolrPeptiformFields.PROTEINS, SolrPeptiformFields.UP_GROUPS);
+        List<Integer> humanAndMouse = Arrays.asList(TAXID_HUMAN, TAXID_MOUSE);
+        Set<String> allIds = new HashSet<String>(ids(proteomesSearchService.findByQuery("", new PageRequest(0, 100))));
+        Map<Integer, Long> taxidFacets = proteomesSearchService.getTaxidFacets();
+        FacetSummary summary = proteomesSearchService.getFacetSummary(null, null, fields, 0, 2, false);
+        Map<String, Page<SolrPeptiform>> byProteins = proteomesSearchService.findByProteins(Arrays.asList("P12345", "P12347"), null, 1);
+
+        // the same documents in two embedded shards, the mouse PeptiForms in a core of their own
+        SolrServer mouse = TestCores.create(solrServerFactory, "mouse");
+        TaxidShardedSolrServer sharded = new TaxidShardedSolrServer(solrServerFactory.getSolrServer(RebuildOptions.DEFAULT_CORE), null);
+        sharded.addShard("mouse", mouse, null, TAXID_MOUSE);
+        SolrTemplate shardedTemplate = new SolrTemplate(sharded);
+        AnnotationConfigApplicationContext context = null;
+        try {
+            solrOperations.delete(new SimpleQuery(new SimpleStringCriteria("*:*")));
+            shardedTemplate.saveDocuments(docs);
+            shardedTemplate.commit();
+            assertEquals(MOUSE_RECORDS, mouse.query(new SolrQuery("*:*")).getResults().getNumFound());
+            context = createServicesContext("solrTemplate", shardedTemplate);
+            ProteomesSearchService searchService = context.getBean(ProteomesSearchService.class);
+
+            // queries without a taxid go to both shards and are merged
+            assertEquals(COUNT_TOTAL_DOCS, searchService.countAll().longValue());
+            assertEquals(proteomesSearchService.countByQuery("human"), searchService.countByQuery("human"));
+            Set<String> pagedIds = new HashSet<String>();
+            for (int page = 0; page < 4; page++) {
+                Page<SolrPeptiform> result = searchService.findByQuery("", new PageRequest(page, 3));
+                assertEquals(COUNT_TOTAL_DOCS, result.getTotalElements());
+                for (String id : ids(result)) {
+                    assertTrue(pagedIds.add(id));
+                }
+            }
+            assertEquals(allIds, pagedIds);
+            assertEquals(taxidFacets, searchService.getTaxidFacets());
+
+            FacetSummary shardedSummary = searchService.getFacetSummary(null, null, fields, 0, 2, false);
+            assertEquals(summary.getHitCount(), shardedSummary.getHitCount());
+            assertEquals(summary.getTaxidCounts(), shardedSummary.getTaxidCounts());
+            for (String field : fields) {
+                assertSameCounts(summary.getFacetPage(field).getContent(), shardedSummary.getFacetPage(field).getContent());
+                assertEquals(summary.getDistinctCount(field), shardedSummary.getDistinctCount(field));
+            }
+            for (boolean sortByIndex : new boolean[]{true, false}) {
+                for (int page = 0; page < 3; page++) {
+                    assertSameCounts(proteomesSearchService.getProteinCounts(page, 2, sortByIndex).getContent(),
+                            searchService.getProteinCounts(page, 2, sortByIndex).getContent());
+                    assertSameCounts(proteomesSearchService.getUPGroupCountsBySpecies(humanAndMouse, page, 2, sortByIndex).getContent(),
+                            searchService.getUPGroupCountsBySpecies(humanAndMouse, page, 2, sortByIndex).getContent());
+                }
+            }
+
+            Map<String, Page<SolrPeptiform>> shardedByProteins = searchService.findByProteins(Arrays.asList("P12345", "P12347"), null, 1);
+            for (String protein : byProteins.keySet()) {
+                assertEquals(byProteins.get(protein).getTotalElements(), shardedByProteins.get(protein).getTotalElements());
+                assertEquals(1, shardedByProteins.get(protein).getContent().size());
+            }
+
+            // the cursor pages end in the middle of the documents of a shard
+            Set<String> streamedIds = new HashSet<String>();
+            Iterator<SolrPeptiform> iterator = searchService.streamAll(3);
+            while (iterator.hasNext()) {
+                assertTrue(streamedIds.add(iterator.next().getId()));
+            }
+            assertEquals(allIds, streamedIds);
+
+            PeptiformSnapshot snapshot = searchService.openSnapshotByQuery("", null);
+            assertEquals(COUNT_TOTAL_DOCS, snapshot.size());
+            assertEquals(allIds, new HashSet<String>(snapshot.getIds(0, snapshot.size())));
+            FacetSnapshot proteins = searchService.openFacetSnapshot(SolrPeptiformFields.PROTEINS, null, false);
+            assertSameCounts(proteomesSearchService.getProteinCounts(0, 10, false).getContent(), searchService.getCounts(proteins, 0, 10).getContent());
+        } finally {
+            if (context != null) {
+                context.close();
+            }
+            TestCores.remove(solrServerFactory, "mouse");
+        }
+    }
+
+    /**
+     * Facet pages merged in-process, where the shards return full pages: the top value is not
+     * on the first page of every shard, so it needs the refinement and more values.
+     */
+    @Test
+    public void testTaxidShardsFacetRefinement() throws Exception {
+        SolrServer mouse = TestCores.create(solrServerFactory, "mouse");
+        TaxidShardedSolrServer sharded = new TaxidShardedSolrServer(solrServerFactory.getSolrServer(RebuildOptions.DEFAULT_CORE), null);
+        sharded.addShard("mouse", mouse, null, TAXID_MOUSE);
+        try {
+            solrOperations.delete(new SimpleQuery(new SimpleStringCriteria("*:*")));
+            // human: H00-H11 3 times and SHARED twice, mouse: SHARED 3 times and M00-M10 twice
+            List<SolrInputDocument> addedDocs = new ArrayList<SolrInputDocument>();
+            for (int i = 0; i < 12; i++) {
+                addProteinDocs(addedDocs, String.format("H%02d", i), TAXID_HUMAN, 3);
+            }
+            addProteinDocs(addedDocs, "SHARED", TAXID_HUMAN, 2);
+            addProteinDocs(addedDocs, "SHARED", TAXID_MOUSE, 3);
+            for (int i = 0; i < 11; i++) {
+                addProteinDocs(addedDocs, String.format("M%02d", i), TAXID_MOUSE, 2);
+            }
+            sharded.add(addedDocs);
+            sharded.commit();
+
+            assertEquals(Arrays.asList("SHARED=5"), proteinCounts(sharded, 0, 1, 1, true));
+            assertEquals(Arrays.asList("H00=3", "H01=3"), proteinCounts(sharded, 1, 2, 1, true));
+            assertEquals(Arrays.asList("M10=2", "SHARED=5"), proteinCounts(sharded, 22, 2, 1, false));
+            assertEquals(Arrays.asList("SHARED=5"), proteinCounts(sharded, 0, 1, 5, false));
+            assertEquals(Arrays.asList("H11=3", "SHARED=5"), proteinCounts(sharded, 11, 5, 3, false));
+        } finally {
+            TestCores.remove(solrServerFactory, "mouse");
+        }
+    }
+
+    private static void addProteinDocs(List<SolrInputDocument> docs, String protein, int taxid, int count) {
+        for (int i = 0; i < count; i++) {
+            SolrInputDocument doc = new SolrInputDocument();
+            doc.addField(SolrPeptiformFields.ID, "[PEPTIDE|" + taxid + "|" + protein + i + "]");
+            doc.addField(SolrPeptiformFields.PEPTIFORM_SEQUENCE, "PEPTIDE");
+            doc.addField(SolrPeptiformFields.PEPTIFORM_TAXID, taxid);
+            doc.addField(SolrPeptiformFields.PROTEINS, protein);
+            docs.add(doc);
+        }
+    }
+
+    // the page of protein counts as value=count
+    private static List<String> proteinCounts(SolrServer solrServer, int offset, int limit, int minCount, boolean byCount)
+            throws SolrServerException {
+        SolrQuery query = new SolrQuery("*:*");
+        query.setRows(0);
+        query.addFacetField(SolrPeptiformFields.PROTEINS);
+        query.set("facet.offset", offset);
+        query.setFacetLimit(limit);
+        query.setFacetMinCount(minCount);
+        query.setFacetSort(byCount ? "count" : "index");
+        List<String> counts = new ArrayList<String>();
+        for (FacetField.Count count : solrServer.query(query).getFacetField(SolrPeptiformFields.PROTEINS).getValues()) {
+            counts.add(count.getName() + "=" + count.getCount());
+        }
+        return counts;
+    }
+
+    // the services and repositories of the TestContext with an additional bean, e.g. another SolrTemplate
+    private AnnotationConfigApplicationContext createServicesContext(String beanName, Object bean) {
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.setParent(applicationContext);
+        context.getBeanFactory().registerSingleton(beanName, bean);
+        context.register(ServicesContext.class);
+        context.refresh();
+        return context;
+    }
+
+    /**
+     * The services and repositories of the TestContext, as an application would define them.
+     */
+    @Configuration
+    @EnableSolrRepositories("uk.ac.ebi.pride.proteomes.index.repository")
+    @ComponentScan(basePackages = {"uk.ac.ebi.pride.proteomes.index.service"},
+            excludeFilters = @ComponentScan.Filter(Configuration.class))
+    static class ServicesContext {
+    }
 }
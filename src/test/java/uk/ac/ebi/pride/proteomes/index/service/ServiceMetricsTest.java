@@ -0,0 +1,187 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.solr.core.SolrTemplate;
+import org.springframework.data.solr.core.query.SimpleQuery;
+import org.springframework.data.solr.core.query.SimpleStringCriteria;
+import org.springframework.data.solr.repository.config.EnableSolrRepositories;
+import org.springframework.data.solr.server.SolrServerFactory;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import uk.ac.ebi.pride.proteomes.index.repository.IndexVersionTracker;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.*;
+import static uk.ac.ebi.pride.proteomes.index.service.TestData.*;
+
+/**
+ * @author florian@ebi.ac.uk
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = {TestContext.class})
+public class ServiceMetricsTest {
+
+    @Resource
+    private ApplicationContext applicationContext;
+
+    @Resource
+    private SolrTemplate solrOperations;
+
+    // services created with a ServiceMetrics bean, on top of the embedded Solr server of the TestContext
+    private AnnotationConfigApplicationContext metricsContext;
+
+    @Before
+    public void setUp() {
+        metricsContext = new AnnotationConfigApplicationContext();
+        metricsContext.setParent(applicationContext);
+        metricsContext.register(MetricsContext.class);
+        metricsContext.refresh();
+    }
+
+    @After
+    public void tearDown() {
+        metricsContext.close();
+        solrOperations.delete(new SimpleQuery(new SimpleStringCriteria("*:*")));
+        solrOperations.commit();
+        IndexVersionTracker.of(solrOperations).changed();
+    }
+
+    @Test
+    public void testInstrumentedServices() {
+        ServiceMetrics serviceMetrics = metricsContext.getBean(ServiceMetrics.class);
+        ProteomesIndexService proteomesIndexService = metricsContext.getBean(ProteomesIndexService.class);
+        ProteomesSearchService proteomesSearchService = metricsContext.getBean(ProteomesSearchService.class);
+
+        proteomesIndexService.save(createTestPeptiForms());
+        MethodMetrics save = serviceMetrics.getMethodMetrics("ProteomesIndexService.save");
+        assertEquals(1, save.getCalls());
+        assertEquals(0, save.getErrors());
+        // at least the update and the commit went through the InstrumentedSolrServer
+        assertTrue(save.getSolrRequests() >= 2);
+
+        assertEquals(HUMAN_RECORDS, proteomesSearchService.findByQuery("human", new PageRequest(0, 10)).getNumberOfElements());
+        proteomesSearchService.findByQuery("human", new PageRequest(0, 3));
+        MethodMetrics findByQuery = serviceMetrics.getMethodMetrics("ProteomesSearchService.findByQuery");
+        assertEquals(2, findByQuery.getCalls());
+        assertEquals(HUMAN_RECORDS + 3, findByQuery.getResults());
+        assertTrue(findByQuery.getSolrRequests() >= 2);
+        // the QTime reported by Solr is part of the time of the request on the client side
+        assertTrue(findByQuery.getAverageSolrQTime() >= 0);
+        assertTrue(findByQuery.getAverageSolrTime() >= findByQuery.getAverageSolrQTime());
+        assertTrue(findByQuery.getMaxTime() >= findByQuery.getAverageSolrTime());
+
+        // the facet counts are recorded for the repository implementation as well
+        assertEquals(5, proteomesSearchService.getProteinCounts(0, 10, false).getNumberOfElements());
+        MethodMetrics proteinCounts = serviceMetrics.getMethodMetrics("ProteomesRepositoryImpl.getProteinCounts");
+        assertEquals(1, proteinCounts.getCalls());
+        assertEquals(5, proteinCounts.getFacetEntries());
+        assertTrue(proteinCounts.getSolrRequests() >= 1);
+        assertEquals(5, serviceMetrics.getMethodMetrics("ProteomesSearchService.getProteinCounts").getFacetEntries());
+
+        assertEquals(3, proteomesSearchService.getTaxidFacets().size());
+        assertEquals(3, serviceMetrics.getMethodMetrics("ProteomesSearchService.getTaxidFacets").getFacetEntries());
+
+        try {
+            proteomesSearchService.findByProteins(new ArrayList<String>(), null, 10);
+            fail("Expected an exception");
+        } catch (IllegalArgumentException e) {
+            // no proteins
+        }
+        MethodMetrics findByProteins = serviceMetrics.getMethodMetrics("ProteomesSearchService.findByProteins");
+        assertEquals(1, findByProteins.getErrors());
+        assertEquals(0, findByProteins.getSolrRequests());
+
+        // the services of the TestContext are not instrumented
+        applicationContext.getBean(ProteomesSearchService.class).countAll();
+        assertNull(serviceMetrics.getMethodMetrics("ProteomesSearchService.countAll"));
+    }
+
+    @Test
+    public void testCallsAndErrors() {
+        ServiceMetrics serviceMetrics = new ServiceMetrics();
+        List<String> list = serviceMetrics.instrument(new ArrayList<String>());
+
+        list.add("a");
+        list.add("b");
+        list.add("c");
+        assertEquals(2, list.subList(0, 2).size());
+        try {
+            list.get(5);
+            fail("Expected an exception");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+
+        MethodMetrics add = serviceMetrics.getMethodMetrics("ArrayList.add");
+        assertEquals(3, add.getCalls());
+        assertEquals(0, add.getErrors());
+        assertTrue(add.getPercentile(0.5) <= add.getPercentile(0.99));
+        assertTrue(add.getPercentile(0.99) <= add.getMaxTime());
+
+        // result sizes of collections
+        assertEquals(2, serviceMetrics.getMethodMetrics("ArrayList.subList").getResults());
+
+        MethodMetrics get = serviceMetrics.getMethodMetrics("ArrayList.get");
+        assertEquals(1, get.getCalls());
+        assertEquals(1, get.getErrors());
+
+        // no Solr requests through an InstrumentedSolrServer
+        assertEquals(0, add.getSolrRequests());
+
+        serviceMetrics.reset();
+        assertNull(serviceMetrics.getMethodMetrics("ArrayList.add"));
+    }
+
+    @Test
+    public void testDisabled() {
+        ServiceMetrics serviceMetrics = new ServiceMetrics();
+        List<String> list = serviceMetrics.instrument(new ArrayList<String>());
+
+        serviceMetrics.setEnabled(false);
+        list.add("a");
+        assertEquals(0, serviceMetrics.getMethods().length);
+        // the calls still reach the instrumented object
+        assertEquals(1, list.size());
+
+        serviceMetrics.setEnabled(true);
+        list.add("b");
+        assertEquals(1, serviceMetrics.getMethodMetrics("ArrayList.add").getCalls());
+    }
+
+    /**
+     * The services and repositories of the TestContext with a ServiceMetrics bean and a
+     * SolrTemplate using an InstrumentedSolrServer, as an application would define them.
+     */
+    @Configuration
+    @EnableSolrRepositories("uk.ac.ebi.pride.proteomes.index.repository")
+    @ComponentScan(basePackages = {"uk.ac.ebi.pride.proteomes.index.service"},
+            excludeFilters = @ComponentScan.Filter(Configuration.class))
+    static class MetricsContext {
+
+        @Resource
+        private SolrServerFactory solrServerFactory;
+
+        // static, a bean post processor is created before the other beans
+        @Bean
+        public static ServiceMetrics serviceMetrics() {
+            return new ServiceMetrics();
+        }
+
+        @Bean
+        public SolrTemplate solrTemplate() {
+            return new SolrTemplate(new InstrumentedSolrServer(solrServerFactory.getSolrServer()));
+        }
+    }
+}
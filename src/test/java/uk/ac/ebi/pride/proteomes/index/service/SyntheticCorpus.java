@@ -0,0 +1,401 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+import uk.ac.ebi.pride.proteomes.index.model.SolrPeptiform;
+
+import java.util.*;
+
+/**
+ * Deterministic generator of synthetic PeptiForms for load and scaling tests, the
+ * counterpart of the hand-written TestData at production-like sizes.
+ *
+ * The PeptiForms are generated while iterating, nothing is kept in memory, so a corpus of
+ * up to MAX_SIZE PeptiForms can be streamed straight into ProteomesIndexService.saveAll. Every iterator
+ * starts from the seed, so the same settings always produce the same PeptiForms.
+ *
+ * Model:
+ * - peptides are tryptic like (ending in K or R) with log-normal distributed lengths
+ *   (median ~13 residues) and natural amino acid frequencies. Part of the sequence
+ *   encodes the peptide number, so all sequences (and IDs) are unique.
+ * - every peptide has an unmodified PeptiForm, some of them have up to three modified forms.
+ * - the species of a peptide follows a skewed distribution (human > mouse > rat > ...).
+ * - the number of proteins per peptide is Zipf distributed (most peptides are unique to
+ *   one protein, a few are shared by many) and the proteins are picked by a Zipf distributed
+ *   popularity, so a few proteins have very many peptides. Accessions are species specific.
+ * - the UP group of a protein is its accession, proteins are assigned to gene groups of a
+ *   few (neighbouring) proteins.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public class SyntheticCorpus implements Iterable<SolrPeptiform> {
+
+    public static final long DEFAULT_SEED = 42;
+
+    /**
+     * The largest corpus with unique sequences (and IDs), one peptide per PeptiForm at most.
+     */
+    public static final long MAX_SIZE = 64000000L;
+
+    private static final int[] TAXIDS = {9606, 10090, 10116, 559292, 3702, 7227, 6239, 7955};
+    private static final String[] SPECIES = {
+            "Homo sapiens (human)", "Mus musculus (mouse)", "Rattus norvegicus (rat)",
+            "Saccharomyces cerevisiae (baker's yeast)", "Arabidopsis thaliana (mouse-ear cress)",
+            "Drosophila melanogaster (fruit fly)", "Caenorhabditis elegans", "Danio rerio (zebrafish)"};
+    private static final char[] ACCESSION_PREFIXES = {'P', 'Q', 'O', 'A', 'B', 'C', 'D', 'E'};
+    private static final double[] SPECIES_WEIGHTS = {55, 20, 8, 5, 4, 4, 2, 2};
+
+    private static final String AMINO_ACIDS = "ACDEFGHIKLMNPQRSTVWY";
+    // natural abundance of the amino acids above (percent)
+    private static final double[] AMINO_ACID_WEIGHTS = {
+            8.3, 1.4, 5.5, 6.8, 3.9, 7.1, 2.3, 5.9, 5.8, 9.7, 2.4, 4.1, 4.7, 3.9, 5.5, 6.6, 5.4, 6.9, 1.1, 2.9};
+
+    private static final String[] MODS = {"Oxidation", "Phosphorylation", "Acetylation", "Carbamidomethyl", "Deamidation", "Methylation"};
+    private static final int[] MOD_IDS = {35, 21, 1, 4, 7, 34};
+    private static final double[] MOD_WEIGHTS = {40, 25, 10, 15, 7, 3};
+
+    // residues used to encode the peptide number, 20^6 = 64M (MAX_SIZE) unique peptides
+    private static final int CODE_LENGTH = 6;
+
+    private final long size;
+    private long seed = DEFAULT_SEED;
+    private int proteins;
+    private double proteinExponent = 1.0;
+    private int maxProteinsPerPeptide = 50;
+    private double proteinsPerPeptideExponent = 2.5;
+    private int geneGroupSize = 3;
+    private double modifiedFraction = 0.3;
+
+    /**
+     * @param size the number of PeptiForms, at most MAX_SIZE. The number of proteins per species defaults to a tenth of it.
+     */
+    public SyntheticCorpus(long size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("The size can not be negative!");
+        }
+        if (size > MAX_SIZE) {
+            // the peptide numbers would wrap around in the sequence code and repeat sequences and IDs
+            throw new IllegalArgumentException("The size can not exceed " + MAX_SIZE + "!");
+        }
+        this.size = size;
+        this.proteins = (int) Math.max(1, Math.min(Integer.MAX_VALUE, size / 10));
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public int getProteins() {
+        return proteins;
+    }
+
+    /**
+     * @param proteins the number of different proteins per species.
+     */
+    public void setProteins(int proteins) {
+        if (proteins < 1) {
+            throw new IllegalArgumentException("The number of proteins needs to be positive!");
+        }
+        this.proteins = proteins;
+    }
+
+    public double getProteinExponent() {
+        return proteinExponent;
+    }
+
+    /**
+     * @param proteinExponent the exponent of the Zipf distribution of the protein popularity, 0 for a uniform distribution.
+     */
+    public void setProteinExponent(double proteinExponent) {
+        if (proteinExponent < 0) {
+            throw new IllegalArgumentException("The exponent can not be negative!");
+        }
+        this.proteinExponent = proteinExponent;
+    }
+
+    public int getMaxProteinsPerPeptide() {
+        return maxProteinsPerPeptide;
+    }
+
+    public void setMaxProteinsPerPeptide(int maxProteinsPerPeptide) {
+        if (maxProteinsPerPeptide < 1) {
+            throw new IllegalArgumentException("The maximum number of proteins per peptide needs to be positive!");
+        }
+        this.maxProteinsPerPeptide = maxProteinsPerPeptide;
+    }
+
+    public double getProteinsPerPeptideExponent() {
+        return proteinsPerPeptideExponent;
+    }
+
+    /**
+     * @param proteinsPerPeptideExponent the exponent of the Zipf distribution of the number of proteins per peptide.
+     */
+    public void setProteinsPerPeptideExponent(double proteinsPerPeptideExponent) {
+        if (proteinsPerPeptideExponent < 0) {
+            throw new IllegalArgumentException("The exponent can not be negative!");
+        }
+        this.proteinsPerPeptideExponent = proteinsPerPeptideExponent;
+    }
+
+    public int getGeneGroupSize() {
+        return geneGroupSize;
+    }
+
+    public void setGeneGroupSize(int geneGroupSize) {
+        if (geneGroupSize < 1) {
+            throw new IllegalArgumentException("The gene group size needs to be positive!");
+        }
+        this.geneGroupSize = geneGroupSize;
+    }
+
+    public double getModifiedFraction() {
+        return modifiedFraction;
+    }
+
+    /**
+     * @param modifiedFraction the fraction of peptides that have modified PeptiForms.
+     */
+    public void setModifiedFraction(double modifiedFraction) {
+        if (modifiedFraction < 0 || modifiedFraction > 1) {
+            throw new IllegalArgumentException("The modified fraction needs to be between 0 and 1!");
+        }
+        this.modifiedFraction = modifiedFraction;
+    }
+
+    @Override
+    public Iterator<SolrPeptiform> iterator() {
+        return new Generator();
+    }
+
+    /**
+     * @return the accession of the protein with the given popularity rank (1 is the most popular) in a species.
+     */
+    public static String accession(int species, int rank) {
+        StringBuilder sb = new StringBuilder(8);
+        sb.append(ACCESSION_PREFIXES[species]);
+        String number = Integer.toString(rank);
+        for (int i = number.length(); i < 5; i++) {
+            sb.append('0');
+        }
+        return sb.append(number).toString();
+    }
+
+    private class Generator implements Iterator<SolrPeptiform> {
+
+        private final Random random = new Random(seed);
+        private final ZipfSampler proteinSampler = new ZipfSampler(proteins, proteinExponent);
+        private final ZipfSampler proteinsPerPeptideSampler = new ZipfSampler(Math.min(maxProteinsPerPeptide, proteins), proteinsPerPeptideExponent);
+        private final double[] speciesCdf = cdf(SPECIES_WEIGHTS);
+        private final double[] aminoAcidCdf = cdf(AMINO_ACID_WEIGHTS);
+        private final double[] modCdf = cdf(MOD_WEIGHTS);
+
+        // the PeptiForms of the current peptide that have not been returned yet
+        private final LinkedList<SolrPeptiform> pending = new LinkedList<SolrPeptiform>();
+        private long returned = 0;
+        private long peptides = 0;
+
+        @Override
+        public boolean hasNext() {
+            return returned < size;
+        }
+
+        @Override
+        public SolrPeptiform next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (pending.isEmpty()) {
+                createPeptide();
+            }
+            returned++;
+            return pending.removeFirst();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void createPeptide() {
+            long number = peptides++;
+            int species = pick(speciesCdf);
+            String sequence = createSequence(number);
+
+            Set<Integer> ranks = new LinkedHashSet<Integer>();
+            int numProteins = proteinsPerPeptideSampler.sample(random);
+            // a few attempts more than proteins, the popular proteins are drawn repeatedly
+            for (int attempt = 0; ranks.size() < numProteins && attempt < 3 * numProteins; attempt++) {
+                ranks.add(proteinSampler.sample(random));
+            }
+            List<String> accessions = new ArrayList<String>(ranks.size());
+            Set<String> geneGroups = new LinkedHashSet<String>();
+            for (Integer rank : ranks) {
+                accessions.add(accession(species, rank));
+                geneGroups.add("GENE" + ACCESSION_PREFIXES[species] + ((rank - 1) / geneGroupSize + 1));
+            }
+
+            pending.add(createPeptiform(sequence, species, accessions, new ArrayList<String>(geneGroups), "", Collections.<String>emptyList()));
+            if (random.nextDouble() < modifiedFraction) {
+                int forms = 1 + random.nextInt(3);
+                for (int form = 0; form < forms; form++) {
+                    addModifiedForm(sequence, species, accessions, new ArrayList<String>(geneGroups), form);
+                }
+            }
+        }
+
+        private void addModifiedForm(String sequence, int species, List<String> accessions, List<String> geneGroups, int form) {
+            // the number of the form makes sure the forms of a peptide differ in the first modification position
+            int numMods = 1 + random.nextInt(2);
+            StringBuilder modString = new StringBuilder();
+            List<String> mods = new ArrayList<String>(numMods);
+            int position = form;
+            for (int i = 0; i < numMods && position < sequence.length(); i++) {
+                int mod = pick(modCdf);
+                modString.append('(').append(position + 1).append(',').append(MOD_IDS[mod]).append(')');
+                if (!mods.contains(MODS[mod])) {
+                    mods.add(MODS[mod]);
+                }
+                position += 3 + random.nextInt(3);
+            }
+            pending.add(createPeptiform(sequence, species, accessions, geneGroups, modString.toString(), mods));
+        }
+
+        private SolrPeptiform createPeptiform(String sequence, int species, List<String> accessions, List<String> geneGroups, String modString, List<String> mods) {
+            SolrPeptiform peptiform = new SolrPeptiform();
+            peptiform.setId("[" + sequence + "|" + TAXIDS[species] + "|" + modString + "]");
+            peptiform.setSequence(sequence);
+            peptiform.setTaxid(TAXIDS[species]);
+            peptiform.setSpecies(SPECIES[species]);
+            peptiform.setProteins(accessions);
+            peptiform.setNumProteins(accessions.size());
+            peptiform.setUpGroups(accessions);
+            peptiform.setNumUpGroups(accessions.size());
+            peptiform.setGeneGroups(geneGroups);
+            peptiform.setNumGeneGroups(geneGroups.size());
+            peptiform.setMods(mods);
+            return peptiform;
+        }
+
+        private String createSequence(long number) {
+            // log-normal length, median ~13, between 7 and 40 residues
+            int length = (int) Math.round(Math.exp(Math.log(13) + 0.35 * random.nextGaussian()));
+            length = Math.max(7, Math.min(40, length));
+
+            StringBuilder sb = new StringBuilder(length);
+            int prefix = length - CODE_LENGTH - 1;
+            for (int i = 0; i < prefix; i++) {
+                sb.append(AMINO_ACIDS.charAt(pick(aminoAcidCdf)));
+            }
+            // unique part, the peptide number in base 20
+            long code = number;
+            for (int i = 0; i < CODE_LENGTH; i++) {
+                sb.append(AMINO_ACIDS.charAt((int) (code % AMINO_ACIDS.length())));
+                code /= AMINO_ACIDS.length();
+            }
+            // trypsin cleaves after K and R
+            sb.append(random.nextBoolean() ? 'K' : 'R');
+            return sb.toString();
+        }
+
+        private int pick(double[] cdf) {
+            double r = random.nextDouble();
+            for (int i = 0; i < cdf.length - 1; i++) {
+                if (r < cdf[i]) {
+                    return i;
+                }
+            }
+            return cdf.length - 1;
+        }
+    }
+
+    private static double[] cdf(double[] weights) {
+        double total = 0;
+        for (double weight : weights) {
+            total += weight;
+        }
+        double[] cdf = new double[weights.length];
+        double sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            sum += weights[i];
+            cdf[i] = sum / total;
+        }
+        return cdf;
+    }
+
+    /**
+     * Samples integers 1..n with a probability proportional to 1/k^exponent in constant time
+     * and memory (rejection-inversion, W. Hoermann and G. Derflinger, 1996), so it can be used
+     * for millions of proteins without a lookup table.
+     */
+    static class ZipfSampler {
+        private final int n;
+        private final double exponent;
+        private final double hIntegralX1;
+        private final double hIntegralN;
+        private final double s;
+
+        ZipfSampler(int n, double exponent) {
+            this.n = n;
+            this.exponent = exponent;
+            this.hIntegralX1 = hIntegral(1.5) - 1d;
+            this.hIntegralN = hIntegral(n + 0.5);
+            this.s = 2d - hIntegralInverse(hIntegral(2.5) - h(2));
+        }
+
+        int sample(Random random) {
+            while (true) {
+                double u = hIntegralN + random.nextDouble() * (hIntegralX1 - hIntegralN);
+                double x = hIntegralInverse(u);
+                int k = (int) (x + 0.5);
+                if (k < 1) {
+                    k = 1;
+                } else if (k > n) {
+                    k = n;
+                }
+                if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+                    return k;
+                }
+            }
+        }
+
+        private double h(double x) {
+            return Math.exp(-exponent * Math.log(x));
+        }
+
+        private double hIntegral(double x) {
+            double logX = Math.log(x);
+            return helper2((1d - exponent) * logX) * logX;
+        }
+
+        private double hIntegralInverse(double x) {
+            double t = x * (1d - exponent);
+            if (t < -1d) {
+                t = -1d;
+            }
+            return Math.exp(helper1(t) * x);
+        }
+
+        // log(1 + x) / x, stable for small x
+        private static double helper1(double x) {
+            if (Math.abs(x) > 1e-8) {
+                return Math.log1p(x) / x;
+            }
+            return 1 - x * (0.5 - x * (0.33333333333333333 - 0.25 * x));
+        }
+
+        // (exp(x) - 1) / x, stable for small x
+        private static double helper2(double x) {
+            if (Math.abs(x) > 1e-8) {
+                return Math.expm1(x) / x;
+            }
+            return 1 + x * 0.5 * (1 + x * 0.33333333333333333 * (1 + 0.25 * x));
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package uk.ac.ebi.pride.proteomes.index.service;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.springframework.data.solr.server.SolrServerFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Additional cores of the embedded Solr of the TestContext, e.g. the shards of a
+ * TaxidShardedSolrServer, with the configuration of the default core.
+ *
+ * @author florian@ebi.ac.uk
+ */
+public final class TestCores {
+
+    private TestCores() {
+    }
+
+    /**
+     * @return the server of the new, empty core.
+     */
+    public static SolrServer create(SolrServerFactory solrServerFactory, String core) throws SolrServerException, IOException {
+        SolrServer admin = solrServerFactory.getSolrServer();
+        File liveDir = CoreSwapRebuilder.getInstanceDir(admin, RebuildOptions.DEFAULT_CORE);
+        CoreSwapRebuilder.createCore(admin, liveDir, core, core + System.currentTimeMillis());
+        return solrServerFactory.getSolrServer(core);
+    }
+
+    /**
+     * Unloads the core and deletes its files.
+     */
+    public static void remove(SolrServerFactory solrServerFactory, String core) throws SolrServerException, IOException {
+        CoreSwapRebuilder.unload(solrServerFactory.getSolrServer(), core, true);
+    }
+}